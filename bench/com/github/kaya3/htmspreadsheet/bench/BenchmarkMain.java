@@ -0,0 +1,54 @@
+package com.github.kaya3.htmspreadsheet.bench;
+
+import com.github.kaya3.htmspreadsheet.ProgramCompiler;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// BenchmarkMain [results.json [benchmark-regex]]
+// Writes the JMH results, with allocation rates, and alongside them the length of the code generated for each
+// program, so that both can be tracked per commit.
+public class BenchmarkMain {
+	private static final String[] PROGRAMS = {
+		"circle", "collatz", "fibonacci-loop", "fibonacci-recursion", "function-call",
+		"one-plus-one", "powers", "recursive-factorial",
+		"many-functions", "deep-nesting", "straight-line",
+	};
+	
+	public static void main(String[] args) throws Exception {
+		String results = args.length > 0 ? args[0] : "bench-results.json";
+		String include = args.length > 1 ? args[1] : BenchmarkMain.class.getPackage().getName() + ".*Benchmark";
+		
+		Options options = new OptionsBuilder()
+			.include(include)
+			.addProfiler(GCProfiler.class)
+			.resultFormat(ResultFormatType.JSON)
+			.result(results)
+			.build();
+		new Runner(options).run();
+		
+		Path codeSize = Paths.get(results.endsWith(".json") ? results.substring(0, results.length() - 5) + "-code-size.json" : results + "-code-size.json");
+		Files.write(codeSize, codeSizes().getBytes(StandardCharsets.UTF_8));
+	}
+	
+	static String codeSizes() throws Exception {
+		StringBuilder json = new StringBuilder("{\n");
+		for(int i = 0; i < PROGRAMS.length; ++i) {
+			String src = CompileBenchmark.source(PROGRAMS[i]);
+			int optimized = new ProgramCompiler().compile(src).size();
+			int unoptimized = new ProgramCompiler(null, false).compile(src).size();
+			json.append("\t\"").append(PROGRAMS[i]).append("\": { ")
+				.append("\"optimized\": ").append(optimized).append(", ")
+				.append("\"unoptimized\": ").append(unoptimized).append(" }")
+				.append(i + 1 < PROGRAMS.length ? ",\n" : "\n");
+		}
+		return json.append("}\n").toString();
+	}
+}
@@ -0,0 +1,59 @@
+package com.github.kaya3.htmspreadsheet.bench;
+
+import com.github.kaya3.htmspreadsheet.Instruction;
+import com.github.kaya3.htmspreadsheet.ProgramCompiler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Run with -prof gc for allocation rates.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompileBenchmark {
+	// the working directory should be the repository root, or set -Dhtmspreadsheet.root
+	static Path root() {
+		return Paths.get(System.getProperty("htmspreadsheet.root", "."));
+	}
+	
+	static String source(String name) throws IOException {
+		Path path = root().resolve("programs-src").resolve(name + ".java");
+		if(Files.exists(path)) {
+			return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+		}
+		return SyntheticPrograms.get(name);
+	}
+	
+	@Param({
+		"circle", "collatz", "fibonacci-loop", "fibonacci-recursion", "function-call",
+		"one-plus-one", "powers", "recursive-factorial",
+		"many-functions", "deep-nesting", "straight-line",
+	})
+	public String program;
+	
+	private String src;
+	
+	@Setup
+	public void setup() throws IOException {
+		src = source(program);
+	}
+	
+	@Benchmark
+	public List<Instruction> compile() {
+		return new ProgramCompiler().compile(src);
+	}
+	
+	@Benchmark
+	public List<Instruction> compileUnoptimized() {
+		return new ProgramCompiler(null, false).compile(src);
+	}
+}
@@ -0,0 +1,63 @@
+package com.github.kaya3.htmspreadsheet.bench;
+
+import com.github.kaya3.htmspreadsheet.CompiledProgram;
+import com.github.kaya3.htmspreadsheet.DecodedProgram;
+import com.github.kaya3.htmspreadsheet.ProgramTranslator;
+import com.github.kaya3.htmspreadsheet.VirtualMachine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// Steps per second running the programs in programs-compiled, on each engine.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExecutionBenchmark {
+	@Param({
+		"circle", "collatz", "fibonacci-loop", "fibonacci-recursion", "function-call",
+		"one-plus-one", "powers", "recursive-factorial",
+	})
+	public String program;
+	
+	@Param({ "interpret", "translate" })
+	public String engine;
+	
+	private DecodedProgram decoded;
+	private CompiledProgram compiled;
+	
+	// the score of each benchmark is reported in VM steps, rather than runs of the program
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Steps {
+		public long steps;
+		
+		@Setup(Level.Iteration)
+		public void reset() {
+			steps = 0;
+		}
+	}
+	
+	@Setup
+	public void setup() throws IOException {
+		try(Reader in = Files.newBufferedReader(CompileBenchmark.root().resolve("programs-compiled").resolve(program + ".ssm"), StandardCharsets.UTF_8)) {
+			decoded = DecodedProgram.parse(in);
+		}
+		if(engine.equals("translate")) {
+			compiled = ProgramTranslator.translate(decoded);
+		}
+	}
+	
+	@Benchmark
+	public VirtualMachine run(Steps counter) {
+		VirtualMachine vm = new VirtualMachine(decoded);
+		counter.steps += compiled != null ? compiled.run(vm) : vm.run();
+		return vm;
+	}
+}
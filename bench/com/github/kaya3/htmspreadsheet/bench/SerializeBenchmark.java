@@ -0,0 +1,63 @@
+package com.github.kaya3.htmspreadsheet.bench;
+
+import com.github.kaya3.htmspreadsheet.Instruction;
+import com.github.kaya3.htmspreadsheet.ProgramCompiler;
+import com.github.kaya3.htmspreadsheet.ProgramWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The cost of writing out a whole compiled program as text.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializeBenchmark {
+	@Param({ "circle", "many-functions", "straight-line" })
+	public String program;
+	
+	private List<Instruction> instructions;
+	
+	private static final WritableByteChannel DISCARD = new WritableByteChannel() {
+		@Override
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			return n;
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+		
+		@Override
+		public void close() {}
+	};
+	
+	@Setup
+	public void setup() throws IOException {
+		instructions = new ProgramCompiler().compile(CompileBenchmark.source(program));
+	}
+	
+	@Benchmark
+	public void instructionToString(Blackhole bh) {
+		for(Instruction instruction : instructions) {
+			bh.consume(instruction.toString());
+		}
+	}
+	
+	@Benchmark
+	public void programWriter() throws IOException {
+		ProgramWriter writer = new ProgramWriter(DISCARD);
+		writer.write(instructions);
+		writer.flush();
+	}
+}
@@ -0,0 +1,95 @@
+package com.github.kaya3.htmspreadsheet.bench;
+
+import java.util.Random;
+
+// Deterministic generated programs, much larger than the samples, each stressing one part of the compiler.
+public final class SyntheticPrograms {
+	private SyntheticPrograms() {}
+	
+	private static final String[] OPERATORS = { "+", "-", "*", "&", "|", "^", "<", "==", "!=", ">=" };
+	
+	public static String get(String name) {
+		switch(name) {
+			case "many-functions": return manyFunctions(500);
+			case "deep-nesting": return deepNesting(100);
+			case "straight-line": return straightLine(5000);
+			default:
+				throw new IllegalArgumentException("No synthetic program " + name);
+		}
+	}
+	
+	private static String expr(Random random, String[] vars, int depth) {
+		if(depth == 0 || random.nextInt(10) < 3) {
+			return random.nextBoolean() ? vars[random.nextInt(vars.length)] : Integer.toString(random.nextInt(21));
+		} else if(random.nextInt(8) == 0) {
+			return "(" + expr(random, vars, depth - 1) + (random.nextBoolean() ? " << " : " >> ") + random.nextInt(4) + ")";
+		}
+		String op = OPERATORS[random.nextInt(OPERATORS.length)];
+		return "(" + expr(random, vars, depth - 1) + " " + op + " " + expr(random, vars, depth - 1) + ")";
+	}
+	
+	// lots of small functions calling each other, each with a loop and a branch
+	public static String manyFunctions(int n) {
+		Random random = new Random(n);
+		StringBuilder main = new StringBuilder("void main() {\n\tint acc = 0;\n");
+		StringBuilder functions = new StringBuilder();
+		String[] params = { "a", "b" }, locals = { "a", "b", "c", "i" };
+		for(int i = 0; i < n; ++i) {
+			main.append("\tacc = (acc + f").append(i).append("(acc & 15, ").append(i & 7).append(")) & 255;\n");
+			main.append("\toutput(").append(i % 16).append(", ").append(i / 16 % 16).append(", acc);\n");
+			
+			functions.append("int f").append(i).append("(int a, int b) {\n");
+			functions.append("\tint c = ").append(expr(random, params, 3)).append(";\n");
+			functions.append("\tint i = 0;\n");
+			functions.append("\twhile(i < ").append(1 + random.nextInt(6)).append(") {\n");
+			for(int k = 3 + random.nextInt(8); k > 0; --k) {
+				functions.append("\t\t").append(locals[random.nextInt(3)]).append(" = ").append(expr(random, locals, 3)).append(" & 1023;\n");
+			}
+			functions.append("\t\tif(").append(expr(random, locals, 2)).append(") { c = c + 1; } else { c = c ^ 5; }\n");
+			functions.append("\t\ti = i + 1;\n\t}\n");
+			if(i > 0 && random.nextBoolean()) {
+				functions.append("\tc = c + f").append(random.nextInt(i)).append("(c & 7, b);\n");
+			}
+			functions.append("\treturn c & 255;\n}\n\n");
+		}
+		return main.append("}\n\n").append(functions).toString();
+	}
+	
+	// one deeply nested expression, and deeply nested blocks; JavaParser recurses through about twenty methods per
+	// bracket, so much deeper than a few hundred overflows the default thread stack
+	public static String deepNesting(int depth) {
+		StringBuilder src = new StringBuilder("void main() {\n\tint x = input(0, 0);\n\tint y = ");
+		for(int i = 0; i < depth; ++i) {
+			src.append("(x ").append(OPERATORS[i % 4]).append(' ');
+		}
+		src.append('1');
+		for(int i = 0; i < depth; ++i) {
+			src.append(')');
+		}
+		src.append(";\n");
+		for(int i = 0; i < depth; ++i) {
+			src.append("\tif(y < ").append(i).append(") {\n\t\ty = y + x;\n");
+		}
+		for(int i = 0; i < depth; ++i) {
+			src.append("\t}\n");
+		}
+		return src.append("\toutput(0, 0, y);\n}\n").toString();
+	}
+	
+	// a single function with a long run of assignments and no control flow
+	public static String straightLine(int n) {
+		Random random = new Random(n);
+		String[] vars = { "a", "b", "c", "d", "e", "f", "g" };
+		StringBuilder src = new StringBuilder("void main() {\n");
+		for(String v : vars) {
+			src.append("\tint ").append(v).append(" = input(").append(v.charAt(0) - 'a').append(", 0);\n");
+		}
+		for(int i = 0; i < n; ++i) {
+			src.append('\t').append(vars[random.nextInt(vars.length)]).append(" = ").append(expr(random, vars, 2)).append(" & 255;\n");
+		}
+		for(int i = 0; i < vars.length; ++i) {
+			src.append("\toutput(").append(i).append(", 1, ").append(vars[i]).append(");\n");
+		}
+		return src.append("}\n").toString();
+	}
+}
@@ -1,3 +1,4 @@
+// TRANSFORMS HOIST ROTATE
 void main() {
 	int y = 0;
 	while(y < 16) {
@@ -1,3 +1,4 @@
+// TRANSFORMS ROTATE
 void main() {
 	int n = 1;
 	while(n < 11) {
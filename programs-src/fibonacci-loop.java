@@ -1,3 +1,4 @@
+// TRANSFORMS UNROLL
 void main() {
 	int a = 1;
 	int b = 0;
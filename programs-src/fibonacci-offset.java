@@ -0,0 +1,17 @@
+// ASSERT 0 0 13
+// ASSERT 1 0 25
+void main() {
+	output(0, 0, fib(7, 0, 1, 0));
+	output(1, 0, fib(6, 1, 1, 1));
+}
+
+// the nth term of the sequence starting a, b, where each term is the sum of the two before it plus d
+int fib(int n, int a, int b, int d) {
+	if(n < 1) {
+		return a;
+	} else if(n < 2) {
+		return b;
+	} else {
+		return fib(n-1, a, b, d) + fib(n-2, a, b, d) + d;
+	}
+}
@@ -0,0 +1,32 @@
+// ASSERT 0 0 7
+// ASSERT 1 1 1
+// ASSERT 2 1 2
+// ASSERT 3 1 3
+// ASSERT 3 2 3
+// ASSERT 4 2 4
+// ASSERT 5 2 5
+// ASSERT 0 3 3
+void main() {
+	int i = 3;
+	while(i == 3) {
+		output(0, 0, 7);
+		i = i + 1;
+	}
+	int j = 1;
+	while(j & 3) {
+		output(j, 1, j);
+		j = j + 1;
+	}
+	int k = 5;
+	while(k - 2) {
+		output(k, 2, k);
+		k = k - 1;
+	}
+	int n = 0;
+	while(n < 3) n = next(n);
+	output(0, 3, n);
+}
+
+int next(int x) {
+	return x + 1;
+}
@@ -0,0 +1,15 @@
+// ASSERT 0 0 38750
+// TRANSFORMS HOIST REDUCE ROTATE
+void main() {
+	int a = input(0, 0) + 3;
+	int b = input(1, 0) + 5;
+	int s = 0;
+	int i = 0;
+	int j = 2;
+	while(i < 100) {
+		s = s + a * b + (a << 2) + j * 7;
+		j = j + 1;
+		i = i + 1;
+	}
+	output(0, 0, s);
+}
@@ -1,3 +1,4 @@
+// TRANSFORMS UNROLL
 void main() {
 	int x = 1;
 	int i = 0;
@@ -0,0 +1,41 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Turns generated code into a program: NOOP labels are dropped, and anything referring to a label is pointed at the
+// instruction which follows it instead. Each pass is linear in the length of the code.
+public final class Assembler {
+	private Assembler() {}
+	
+	public static List<Instruction> assemble(List<Instruction> code) {
+		// first pass: a label takes the position of the next real instruction
+		int n = 0;
+		for(Instruction instruction : code) {
+			instruction.setPos(n);
+			if(instruction.getOpcode() != Opcode.NOOP) {
+				++n;
+			}
+		}
+		
+		Instruction[] program = new Instruction[n];
+		for(Instruction instruction : code) {
+			if(instruction.getOpcode() != Opcode.NOOP) {
+				program[instruction.getPos()] = instruction;
+			}
+		}
+		
+		// second pass: resolve references to labels
+		for(Instruction instruction : program) {
+			Instruction target = instruction.getTarget();
+			if(target != null && target.getOpcode() == Opcode.NOOP) {
+				if(target.getPos() < 0 || target.getPos() >= n) {
+					throw new IllegalStateException("Label at " + target.getPos() + " is not followed by an instruction");
+				}
+				instruction.setTarget(program[target.getPos()]);
+			}
+		}
+		return new ArrayList<>(Arrays.asList(program));
+	}
+}
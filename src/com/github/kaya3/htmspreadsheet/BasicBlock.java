@@ -0,0 +1,52 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.util.Arrays;
+
+// Straight-line statements ending in a terminator; blocks are numbered by their position in the graph, which is also
+// the order they are laid out in.
+public final class BasicBlock {
+	private final StmtNode[] statements;
+	private final StmtNode.Terminator terminator;
+	// how many loops the block is inside, counting a loop's own condition
+	private final int loopDepth;
+	
+	public BasicBlock(StmtNode[] statements, StmtNode.Terminator terminator, int loopDepth) {
+		this.statements = statements.clone();
+		this.terminator = terminator;
+		this.loopDepth = loopDepth;
+	}
+	
+	public int getStatementCount() {
+		return statements.length;
+	}
+	
+	public StmtNode getStatement(int i) {
+		return statements[i];
+	}
+	
+	public StmtNode.Terminator getTerminator() {
+		return terminator;
+	}
+	
+	public int getLoopDepth() {
+		return loopDepth;
+	}
+	
+	public BasicBlock withTerminator(StmtNode.Terminator terminator) {
+		return new BasicBlock(statements, terminator, loopDepth);
+	}
+	
+	// the block without its last n statements
+	public BasicBlock withoutLast(int n, StmtNode.Terminator terminator) {
+		return new BasicBlock(Arrays.copyOf(statements, statements.length - n), terminator, loopDepth);
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(StmtNode s : statements) {
+			sb.append("  ").append(s).append('\n');
+		}
+		return sb.append("  ").append(terminator).append('\n').toString();
+	}
+}
@@ -0,0 +1,225 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Compiles many source files in one process, writing foo.java to foo.ssm either alongside it or under an output
+// directory; the sources within a directory keep their relative paths. Optionally each program is also written in
+// the binary format, with its symbol table, to foo.ssmb next to foo.ssm.
+public class BatchCompiler {
+	private final Path outputDir;
+	private final int threads;
+	private final boolean binary;
+	private final boolean metrics;
+	private FunctionCache cache;
+	private boolean extended;
+	
+	// a null output directory writes each program next to its source
+	public BatchCompiler(Path outputDir, int threads) {
+		this(outputDir, threads, false);
+	}
+	
+	public BatchCompiler(Path outputDir, int threads, boolean binary) {
+		this(outputDir, threads, binary, false);
+	}
+	
+	// with metrics, each result keeps a report of its compiler's phases
+	public BatchCompiler(Path outputDir, int threads, boolean binary, boolean metrics) {
+		this.outputDir = outputDir;
+		this.threads = threads;
+		this.binary = binary;
+		this.metrics = metrics;
+	}
+	
+	public static class Result {
+		private final Path source, output;
+		private final int length;
+		private final long nanos;
+		private final Exception error;
+		private final CompilerMetrics metrics;
+		
+		private Result(Path source, Path output, int length, long nanos, Exception error, CompilerMetrics metrics) {
+			this.source = source;
+			this.output = output;
+			this.length = length;
+			this.nanos = nanos;
+			this.error = error;
+			this.metrics = metrics;
+		}
+		
+		public Path getSource() {
+			return source;
+		}
+		
+		public Path getOutput() {
+			return output;
+		}
+		
+		public int getLength() {
+			return length;
+		}
+		
+		public long getNanos() {
+			return nanos;
+		}
+		
+		// null if the file compiled successfully
+		public Exception getError() {
+			return error;
+		}
+		
+		// the phases up to any error; empty unless the batch was asked for metrics
+		public CompilerMetrics getMetrics() {
+			return metrics;
+		}
+	}
+	
+	// shared by every file compiled, so that a function compiled before isn't compiled again; null for none
+	public void setCache(FunctionCache cache) {
+		this.cache = cache;
+	}
+	
+	public FunctionCache getCache() {
+		return cache;
+	}
+	
+	// programs are left in the extended instruction set, which the spreadsheet can't run
+	public void setExtended(boolean extended) {
+		this.extended = extended;
+	}
+	
+	// each path is a source file or a directory to search for .java files; results come back in the same order
+	public List<Result> compile(List<Path> paths) throws IOException, InterruptedException {
+		return compile(paths, source -> true);
+	}
+	
+	// only the source files the filter accepts, as found under the paths
+	public List<Result> compile(List<Path> paths, Predicate<Path> filter) throws IOException, InterruptedException {
+		List<Path[]> jobs = new ArrayList<>();
+		for(Path path : paths) {
+			if(Files.isDirectory(path)) {
+				List<Path> sources;
+				try(Stream<Path> files = Files.walk(path)) {
+					sources = files
+						.filter(p -> Files.isRegularFile(p) && p.getFileName().toString().endsWith(".java"))
+						.filter(filter)
+						.sorted()
+						.collect(Collectors.toList());
+				}
+				for(Path source : sources) {
+					jobs.add(new Path[] { source, outputPath(source, path.relativize(source)) });
+				}
+			} else if(filter.test(path)) {
+				jobs.add(new Path[] { path, outputPath(path, path.getFileName()) });
+			}
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Result>> futures = new ArrayList<>();
+			for(Path[] job : jobs) {
+				futures.add(executor.submit(() -> compileFile(job[0], job[1])));
+			}
+			List<Result> results = new ArrayList<>();
+			for(Future<Result> f : futures) {
+				try {
+					results.add(f.get());
+				} catch(ExecutionException e) {
+					throw new AssertionError(e.getCause());
+				}
+			}
+			return results;
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	private Path outputPath(Path source, Path relative) {
+		String name = relative.getFileName().toString();
+		name = name.substring(0, name.length() - ".java".length()) + ".ssm";
+		if(outputDir == null) {
+			return source.resolveSibling(name);
+		}
+		Path parent = relative.getParent();
+		return (parent == null ? outputDir : outputDir.resolve(parent)).resolve(name);
+	}
+	
+	private Result compileFile(Path source, Path output) {
+		long start = System.nanoTime();
+		CompilerMetrics fileMetrics = metrics ? new CompilerMetrics(true) : CompilerMetrics.NONE;
+		try {
+			String src = new String(Files.readAllBytes(source), StandardCharsets.UTF_8);
+			ProgramCompiler compiler = new ProgramCompiler();
+			compiler.setMetrics(fileMetrics);
+			compiler.setCache(cache);
+			compiler.setExtended(extended);
+			List<Instruction> program = compiler.compile(src);
+			if(output.getParent() != null) {
+				Files.createDirectories(output.getParent());
+			}
+			try(FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ProgramWriter writer = new ProgramWriter(channel);
+				writer.write(program);
+				writer.flush();
+			}
+			if(binary) {
+				String name = output.getFileName().toString();
+				Path binaryOutput = output.resolveSibling(name.substring(0, name.length() - ".ssm".length()) + BinaryProgram.EXTENSION);
+				new BinaryProgram(DecodedProgram.decode(program), compiler.getSymbols(), compiler.getStackLayout()).write(binaryOutput);
+			}
+			return new Result(source, output, program.size(), System.nanoTime() - start, null, fileMetrics);
+		} catch(IOException | RuntimeException e) {
+			return new Result(source, output, 0, System.nanoTime() - start, e, fileMetrics);
+		}
+	}
+	
+	public static void printSummary(List<Result> results, long wallNanos, PrintStream out) {
+		long totalNanos = 0;
+		int failed = 0;
+		for(Result r : results) {
+			totalNanos += r.nanos;
+			StringBuilder line = new StringBuilder();
+			line.append(r.error == null ? "ok    " : "FAIL  ")
+				.append(r.nanos / 1000000).append(" ms\t")
+				.append(r.source);
+			if(r.error == null) {
+				line.append(" -> ").append(r.output).append(" (").append(r.length).append(" instructions)");
+			} else {
+				++failed;
+				line.append(": ").append(r.error);
+			}
+			out.println(line);
+		}
+		out.println(results.size() + " files, " + failed + " failed; " + totalNanos / 1000000 + " ms compiling, " + wallNanos / 1000000 + " ms wall time");
+	}
+	
+	// {"files": [{"source": ..., "nanos": ..., "metrics": {"phases": [...]}}, ...]}
+	public static void writeMetrics(List<Result> results, Appendable out) throws IOException {
+		out.append("{\"files\": [");
+		for(int i = 0; i < results.size(); ++i) {
+			Result r = results.get(i);
+			out.append(i == 0 ? "\n" : ",\n")
+				.append("{\"source\": ").append(CompilerMetrics.jsonString(r.source.toString()))
+				.append(", \"nanos\": ").append(Long.toString(r.nanos))
+				.append(", \"failed\": ").append(Boolean.toString(r.error != null))
+				.append(", \"metrics\": ");
+			r.metrics.writeJson(out);
+			out.append('}');
+		}
+		out.append("\n]}\n");
+	}
+}
@@ -0,0 +1,282 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StreamTokenizer;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Runs one program against many input grids, spread across a work-stealing pool. Results are delivered in the order
+// of the inputs, and only a few runs per thread are in flight at once, so an input stream of any length runs in
+// constant memory.
+// The decoded program, and its translation if used, are immutable and shared by every worker; machines are pooled
+// and reset between runs, so a run allocates little beyond its result.
+public final class BatchRunner implements AutoCloseable {
+	public static final long DEFAULT_MAX_STEPS = 10000000;
+	
+	// how many steps a run takes between checks for cancellation
+	private static final long CHUNK_STEPS = 1 << 16;
+	private static final int RUNS_PER_THREAD = 4;
+	
+	public enum Status {
+		HALTED, OUT_OF_STEPS, FAILED, CANCELLED
+	}
+	
+	public static final class Result {
+		private final long index;
+		private final Status status;
+		private final Grid output;
+		private final long steps;
+		private final String error;
+		
+		private Result(long index, Status status, Grid output, long steps, String error) {
+			this.index = index;
+			this.status = status;
+			this.output = output;
+			this.steps = steps;
+			this.error = error;
+		}
+		
+		// the position of the input grid in the stream, from 0
+		public long getIndex() {
+			return index;
+		}
+		
+		public Status getStatus() {
+			return status;
+		}
+		
+		// as far as the run got, unless it was cancelled before starting
+		public Grid getOutput() {
+			return output;
+		}
+		
+		public long getSteps() {
+			return steps;
+		}
+		
+		// null unless the run failed
+		public String getError() {
+			return error;
+		}
+	}
+	
+	private final DecodedProgram program;
+	private final CompiledProgram translated;
+	private final long maxSteps;
+	private final int threads;
+	private final ForkJoinPool pool;
+	private final Queue<VirtualMachine> machines = new ConcurrentLinkedQueue<>();
+	private volatile boolean cancelled;
+	
+	// translate chooses the translated engine over the interpreter
+	public BatchRunner(DecodedProgram program, int threads, long maxSteps, boolean translate) {
+		this.program = program;
+		this.translated = translate ? ProgramTranslator.translate(program) : null;
+		this.maxSteps = maxSteps;
+		this.threads = threads;
+		this.pool = new ForkJoinPool(threads);
+	}
+	
+	// Runs the program on each input, passing the results to the consumer in input order on the calling thread.
+	// Returns the number of results delivered; after cancel, the runs already started are finished or cut short and
+	// delivered, and no more inputs are taken. The input grids must not be modified until their results arrive.
+	public long run(Stream<Grid> inputs, Consumer<Result> consumer) throws InterruptedException {
+		Iterator<Grid> it = inputs.iterator();
+		Deque<Future<Result>> inFlight = new ArrayDeque<>();
+		long submitted = 0, delivered = 0;
+		try {
+			while(true) {
+				while(!cancelled && inFlight.size() < threads * RUNS_PER_THREAD && it.hasNext()) {
+					Grid input = it.next();
+					long index = submitted++;
+					inFlight.add(pool.submit(() -> runOne(index, input)));
+				}
+				if(inFlight.isEmpty()) {
+					return delivered;
+				}
+				consumer.accept(await(inFlight.peek()));
+				inFlight.remove();
+				++delivered;
+			}
+		} finally {
+			for(Future<Result> f : inFlight) {
+				f.cancel(false);
+			}
+		}
+	}
+	
+	private static Result await(Future<Result> f) throws InterruptedException {
+		try {
+			return f.get();
+		} catch(ExecutionException e) {
+			// runOne catches everything a run can throw
+			throw new AssertionError(e.getCause());
+		}
+	}
+	
+	private Result runOne(long index, Grid input) {
+		if(cancelled) {
+			return new Result(index, Status.CANCELLED, new Grid(), 0, null);
+		}
+		VirtualMachine vm = machines.poll();
+		if(vm == null) {
+			vm = new VirtualMachine(program, input);
+		} else {
+			vm.reset(input);
+		}
+		try {
+			Status status = Status.OUT_OF_STEPS;
+			String error = null;
+			try {
+				while(vm.getSteps() < maxSteps) {
+					if(cancelled) {
+						status = Status.CANCELLED;
+						break;
+					}
+					long chunk = Math.min(CHUNK_STEPS, maxSteps - vm.getSteps());
+					if(translated != null) {
+						translated.run(vm, chunk);
+					} else {
+						vm.run(chunk);
+					}
+					if(!vm.isRunning()) {
+						status = Status.HALTED;
+						break;
+					}
+				}
+			} catch(RuntimeException e) {
+				status = Status.FAILED;
+				error = e.getMessage();
+			}
+			Grid output = new Grid();
+			output.copyFrom(vm.getOutput());
+			return new Result(index, status, output, vm.getSteps(), error);
+		} finally {
+			machines.add(vm);
+		}
+	}
+	
+	// runs which have started stop within a few thousand steps; safe to call from any thread, including the consumer
+	public void cancel() {
+		cancelled = true;
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	@Override
+	public void close() {
+		pool.shutdown();
+	}
+	
+	// reads grids as whitespace-separated integers, IO_SIZE * IO_SIZE of them per grid, row by row
+	public static Stream<Grid> readGrids(BufferedReader in) {
+		StreamTokenizer tokens = new StreamTokenizer(in);
+		tokens.resetSyntax();
+		tokens.wordChars('-', '-');
+		tokens.wordChars('0', '9');
+		tokens.whitespaceChars(0, ' ');
+		Iterator<Grid> it = new Iterator<Grid>() {
+			private Grid next = read();
+			
+			private Grid read() {
+				try {
+					Grid grid = new Grid();
+					for(int i = 0; i < Grid.IO_SIZE * Grid.IO_SIZE; ++i) {
+						if(tokens.nextToken() != StreamTokenizer.TT_WORD) {
+							if(i == 0 && tokens.ttype == StreamTokenizer.TT_EOF) {
+								return null;
+							}
+							throw new IllegalArgumentException("Incomplete grid on line " + tokens.lineno());
+						}
+						grid.set(i % Grid.IO_SIZE, i / Grid.IO_SIZE, Integer.parseInt(tokens.sval));
+					}
+					return grid;
+				} catch(IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+			
+			@Override
+			public Grid next() {
+				if(next == null) {
+					throw new NoSuchElementException();
+				}
+				Grid grid = next;
+				next = read();
+				return grid;
+			}
+		};
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+	
+	// BatchRunner [-j threads] [-s max-steps] [--translate] program.ssm|program.ssmb
+	// reads input grids from standard input, and prints each output grid followed by a blank line
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		long maxSteps = DEFAULT_MAX_STEPS;
+		boolean translate = false;
+		String file = null;
+		for(int i = 0; i < args.length; ++i) {
+			if(args[i].equals("-j") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-s") && i + 1 < args.length) {
+				maxSteps = Long.parseLong(args[++i]);
+			} else if(args[i].equals("--translate")) {
+				translate = true;
+			} else if(file == null) {
+				file = args[i];
+			} else {
+				file = null;
+				break;
+			}
+		}
+		if(file == null) {
+			System.err.println("Usage: BatchRunner [-j threads] [-s max-steps] [--translate] program.ssm|program" + BinaryProgram.EXTENSION + " < grids");
+			System.exit(2);
+		}
+		Path path = Paths.get(file);
+		DecodedProgram program = file.endsWith(BinaryProgram.EXTENSION)
+			? BinaryProgram.load(path).getProgram()
+			: DecodedProgram.parse(new StringReader(new String(Files.readAllBytes(path), StandardCharsets.UTF_8)));
+		
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		StringBuilder sb = new StringBuilder();
+		try(BatchRunner runner = new BatchRunner(program, threads, maxSteps, translate)) {
+			runner.run(readGrids(in), r -> {
+				if(r.getStatus() != Status.HALTED) {
+					sb.append("; run ").append(r.getIndex()).append(": ").append(r.getStatus());
+					sb.append(r.getError() == null ? "" : " " + r.getError()).append('\n');
+				}
+				sb.append(r.getOutput()).append('\n');
+				System.out.print(sb);
+				sb.setLength(0);
+			});
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// The binary program format:
+//   magic "HTMB", version byte, flags byte (bit 0: symbol table present; bit 1: stack layout present)
+//   instruction count (varint)
+//   one opcode byte per instruction, numbered as in DecodedProgram
+//   the arguments of every instruction in order, as zigzag varints
+//   if present, symbol count (varint), then for each symbol its UTF-8 name (varint length, bytes) and position (varint)
+//   if present, frame count (varint), then for each frame its entry, parameter count, size and depth + 1 (varints)
+// Loading maps the file and decodes it in one pass straight into DecodedProgram's arrays, which the engines run from;
+// executing the varints themselves would put their decoding in the dispatch loop.
+public final class BinaryProgram {
+	public static final int VERSION = 1;
+	private static final byte[] MAGIC = { 'H', 'T', 'M', 'B' };
+	private static final int FLAG_SYMBOLS = 1;
+	private static final int FLAG_STACK_LAYOUT = 2;
+	
+	public static final String EXTENSION = ".ssmb";
+	
+	private final DecodedProgram program;
+	private final Map<String, Integer> symbols;
+	private final StackLayout stackLayout;
+	
+	public BinaryProgram(DecodedProgram program, Map<String, Integer> symbols) {
+		this(program, symbols, null);
+	}
+	
+	// the program's maximum stack is taken from the layout, if it is bounded
+	public BinaryProgram(DecodedProgram program, Map<String, Integer> symbols, StackLayout stackLayout) {
+		this.program = stackLayout != null && stackLayout.isBounded() ? program.withMaxStack(stackLayout.getMaxStack()) : program;
+		this.symbols = Collections.unmodifiableMap(new LinkedHashMap<>(symbols));
+		this.stackLayout = stackLayout;
+	}
+	
+	public DecodedProgram getProgram() {
+		return program;
+	}
+	
+	// function names to start positions; empty if the file had no symbol table
+	public Map<String, Integer> getSymbols() {
+		return symbols;
+	}
+	
+	// null if the file had no stack layout
+	public StackLayout getStackLayout() {
+		return stackLayout;
+	}
+	
+	public static BinaryProgram load(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return read(buffer);
+		}
+	}
+	
+	public static BinaryProgram read(ByteBuffer buffer) {
+		try {
+			for(byte b : MAGIC) {
+				if(buffer.get() != b) {
+					throw new IllegalArgumentException("Not a binary program");
+				}
+			}
+			int version = buffer.get() & 0xFF;
+			if(version != VERSION) {
+				throw new IllegalArgumentException("Unsupported binary program version " + version);
+			}
+			int flags = buffer.get() & 0xFF;
+			
+			int n = readVarint(buffer);
+			int[] ops = new int[n], args1 = new int[n], args2 = new int[n];
+			for(int i = 0; i < n; ++i) {
+				ops[i] = buffer.get() & 0xFF;
+			}
+			for(int i = 0; i < n; ++i) {
+				// the DecodedProgram constructor checks opcodes and registers
+				int argCount = DecodedProgram.getArgCount(ops[i]);
+				if(argCount > 0) {
+					args1[i] = readZigzag(buffer);
+				}
+				if(argCount > 1) {
+					args2[i] = readZigzag(buffer);
+				}
+			}
+			DecodedProgram program = new DecodedProgram(ops, args1, args2);
+			
+			Map<String, Integer> symbols = new LinkedHashMap<>();
+			if((flags & FLAG_SYMBOLS) != 0) {
+				for(int count = readVarint(buffer); count > 0; --count) {
+					byte[] name = new byte[readVarint(buffer)];
+					buffer.get(name);
+					symbols.put(new String(name, StandardCharsets.UTF_8), readVarint(buffer));
+				}
+			}
+			StackLayout stackLayout = null;
+			if((flags & FLAG_STACK_LAYOUT) != 0) {
+				List<StackLayout.Frame> frames = new ArrayList<>();
+				for(int count = readVarint(buffer); count > 0; --count) {
+					frames.add(new StackLayout.Frame(readVarint(buffer), readVarint(buffer), readVarint(buffer), readVarint(buffer) - 1));
+				}
+				stackLayout = new StackLayout(frames);
+			}
+			return new BinaryProgram(program, symbols, stackLayout);
+		} catch(BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated binary program", e);
+		}
+	}
+	
+	public void write(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			write(channel);
+		}
+	}
+	
+	public void write(WritableByteChannel channel) throws IOException {
+		int n = program.length();
+		// at most five bytes per varint
+		ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length + 2 + 5 + 11 * n);
+		int flags = (symbols.isEmpty() ? 0 : FLAG_SYMBOLS) | (stackLayout == null ? 0 : FLAG_STACK_LAYOUT);
+		buffer.put(MAGIC).put((byte) VERSION).put((byte) flags);
+		writeVarint(buffer, n);
+		for(int i = 0; i < n; ++i) {
+			buffer.put((byte) program.getOp(i));
+		}
+		for(int i = 0; i < n; ++i) {
+			int argCount = DecodedProgram.getArgCount(program.getOp(i));
+			if(argCount > 0) {
+				writeZigzag(buffer, program.getArg1(i));
+			}
+			if(argCount > 1) {
+				writeZigzag(buffer, program.getArg2(i));
+			}
+		}
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		
+		if(!symbols.isEmpty()) {
+			ByteBuffer table = ByteBuffer.allocate(5 + symbols.keySet().stream().mapToInt(s -> 10 + 3 * s.length()).sum());
+			writeVarint(table, symbols.size());
+			for(Map.Entry<String, Integer> e : symbols.entrySet()) {
+				byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+				writeVarint(table, name.length);
+				table.put(name);
+				writeVarint(table, e.getValue());
+			}
+			table.flip();
+			while(table.hasRemaining()) {
+				channel.write(table);
+			}
+		}
+		
+		if(stackLayout != null) {
+			List<StackLayout.Frame> frames = stackLayout.getFrames();
+			ByteBuffer table = ByteBuffer.allocate(5 + 20 * frames.size());
+			writeVarint(table, frames.size());
+			for(StackLayout.Frame f : frames) {
+				writeVarint(table, f.getEntry());
+				writeVarint(table, f.getParamCount());
+				writeVarint(table, f.getSize());
+				writeVarint(table, f.getDepth() + 1);
+			}
+			table.flip();
+			while(table.hasRemaining()) {
+				channel.write(table);
+			}
+		}
+	}
+	
+	// the text format, with each symbol as a comment before the instruction it names
+	public String toText() {
+		Map<Integer, List<String>> names = new HashMap<>();
+		for(Map.Entry<String, Integer> e : symbols.entrySet()) {
+			names.computeIfAbsent(e.getValue(), k -> new ArrayList<>()).add(e.getKey());
+		}
+		StringBuilder sb = new StringBuilder();
+		String[] lines = program.toString().split("\n", -1);
+		for(int i = 0; i < program.length(); ++i) {
+			for(String name : names.getOrDefault(i, Collections.emptyList())) {
+				sb.append("; ").append(name).append('\n');
+			}
+			sb.append(lines[i]).append('\n');
+		}
+		return sb.toString();
+	}
+	
+	private static void writeVarint(ByteBuffer buffer, int x) {
+		while((x & ~0x7F) != 0) {
+			buffer.put((byte) (x & 0x7F | 0x80));
+			x >>>= 7;
+		}
+		buffer.put((byte) x);
+	}
+	
+	private static void writeZigzag(ByteBuffer buffer, int x) {
+		writeVarint(buffer, x << 1 ^ x >> 31);
+	}
+	
+	private static int readVarint(ByteBuffer buffer) {
+		int x = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			byte b = buffer.get();
+			x |= (b & 0x7F) << shift;
+			if(b >= 0) {
+				return x;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+	
+	private static int readZigzag(ByteBuffer buffer) {
+		int x = readVarint(buffer);
+		return x >>> 1 ^ -(x & 1);
+	}
+	
+	// converts between the text and binary formats, by file extension:
+	// BinaryProgram input.ssm output.ssmb, or BinaryProgram input.ssmb output.ssm
+	public static void main(String[] args) throws IOException {
+		if(args.length != 2) {
+			System.err.println("Usage: BinaryProgram input output; " + EXTENSION + " files are binary, anything else is text");
+			System.exit(2);
+		}
+		Path in = Paths.get(args[0]), out = Paths.get(args[1]);
+		
+		BinaryProgram program;
+		if(in.toString().endsWith(EXTENSION)) {
+			program = load(in);
+		} else {
+			try(Reader reader = Files.newBufferedReader(in, StandardCharsets.UTF_8)) {
+				DecodedProgram decoded = DecodedProgram.parse(reader);
+				StackLayout stackLayout;
+				try {
+					stackLayout = StackVerifier.verify(decoded);
+				} catch(IllegalArgumentException e) {
+					// hand-written programs needn't follow the compiler's calling convention
+					stackLayout = null;
+				}
+				program = new BinaryProgram(decoded, Collections.emptyMap(), stackLayout);
+			}
+		}
+		
+		if(out.toString().endsWith(EXTENSION)) {
+			program.write(out);
+		} else {
+			Files.write(out, program.toText().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
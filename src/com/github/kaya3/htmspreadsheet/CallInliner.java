@@ -0,0 +1,317 @@
+package com.github.kaya3.htmspreadsheet;
+
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.Parameter;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.*;
+import com.github.javaparser.ast.stmt.*;
+import com.github.javaparser.ast.type.PrimitiveType;
+import com.github.javaparser.ast.visitor.VoidVisitorAdapter;
+
+import java.util.*;
+
+// Replaces calls to small functions with a copy of the function's body, its variables renamed into the caller's.
+// A call is moved out of its statement, so it is only inlined when nothing evaluated before it in that statement
+// could observe the difference: no other calls, and not in the right-hand side of && or ||. Callees can't change
+// the caller's variables, and input is only read, so variables and input(...) are safe to evaluate later. Only
+// bodies with no return before the end can be inlined, since there is no statement to jump out of a block.
+public final class CallInliner {
+	public static final int DEFAULT_THRESHOLD = 40;
+	// mutually recursive functions could otherwise be inlined into each other forever
+	private static final int MAX_DEPTH = 3;
+	
+	// copies taken before any function is compiled, since compiling a function rewrites its body
+	private final Map<String, MethodDeclaration> templates = new HashMap<>();
+	
+	public CallInliner(List<MethodDeclaration> methods, int threshold) {
+		for(MethodDeclaration method : methods) {
+			if(method.getBody().isPresent() && !method.getNameAsString().equals("main")
+					&& size(method.getBody().get()) <= threshold && canInline(method)) {
+				templates.put(method.getNameAsString(), method.clone());
+			}
+		}
+	}
+	
+	private static int size(Node node) {
+		int n = 1;
+		for(Node child : node.getChildNodes()) {
+			n += size(child);
+		}
+		return n;
+	}
+	
+	// anything unusual is left for FunctionCompiler to report when it compiles the function itself
+	private static boolean canInline(MethodDeclaration method) {
+		String name = method.getNameAsString();
+		NodeList<Statement> statements = method.getBody().get().getStatements();
+		Statement last = statements.isEmpty() ? null : statements.get(statements.size() - 1);
+		boolean returnsInt = method.getType().toString().equals("int");
+		if(returnsInt && !(last instanceof ReturnStmt && ((ReturnStmt) last).getExpression().isPresent())) {
+			return false;
+		}
+		for(Parameter p : method.getParameters()) {
+			if(!p.getType().toString().equals("int")) {
+				return false;
+			}
+		}
+		
+		boolean[] ok = { true };
+		method.getBody().get().accept(new VoidVisitorAdapter<Void>() {
+			@Override
+			public void visit(ReturnStmt n, Void v) {
+				ok[0] &= n == last;
+				super.visit(n, v);
+			}
+			@Override
+			public void visit(MethodCallExpr n, Void v) {
+				ok[0] &= !n.getNameAsString().equals(name);
+				super.visit(n, v);
+			}
+			@Override
+			public void visit(VariableDeclarationExpr n, Void v) {
+				ok[0] &= n.getVariables().size() == 1 && n.getVariable(0).getInitializer().isPresent();
+				super.visit(n, v);
+			}
+			@Override
+			public void visit(AssignExpr n, Void v) {
+				ok[0] &= n.getOperator() == AssignExpr.Operator.ASSIGN && n.getTarget() instanceof NameExpr;
+				super.visit(n, v);
+			}
+		}, null);
+		return ok[0];
+	}
+	
+	// rewrites the body in place; the caller's variables are extended with those of the inlined functions
+	public void inline(BlockStmt body, List<String> variables) {
+		inlineBlock(body, variables, 0);
+	}
+	
+	private void inlineBlock(BlockStmt block, List<String> variables, int depth) {
+		NodeList<Statement> statements = new NodeList<>();
+		for(Statement s : new ArrayList<>(block.getStatements())) {
+			inlineStmt(s, variables, depth, statements);
+		}
+		block.setStatements(statements);
+	}
+	
+	private static BlockStmt asBlock(Statement s) {
+		return s instanceof BlockStmt ? (BlockStmt) s : new BlockStmt(NodeList.nodeList(s));
+	}
+	
+	// appends the statement to out, after the inlined bodies of any calls moved out of it
+	private void inlineStmt(Statement s, List<String> variables, int depth, NodeList<Statement> out) {
+		if(s instanceof BlockStmt) {
+			inlineBlock((BlockStmt) s, variables, depth);
+		} else if(s instanceof WhileStmt) {
+			// the condition is evaluated on every iteration, so calls in it stay where they are
+			WhileStmt ex = (WhileStmt) s;
+			BlockStmt loopBody = asBlock(ex.getBody());
+			inlineBlock(loopBody, variables, depth);
+			ex.setBody(loopBody);
+		} else if(s instanceof IfStmt) {
+			IfStmt ex = (IfStmt) s;
+			ex.setCondition(hoistCalls(ex.getCondition(), variables, depth, out));
+			BlockStmt thenBlock = asBlock(ex.getThenStmt());
+			inlineBlock(thenBlock, variables, depth);
+			ex.setThenStmt(thenBlock);
+			if(ex.getElseStmt().isPresent()) {
+				BlockStmt elseBlock = asBlock(ex.getElseStmt().get());
+				inlineBlock(elseBlock, variables, depth);
+				ex.setElseStmt(elseBlock);
+			}
+		} else if(s instanceof ReturnStmt) {
+			ReturnStmt ex = (ReturnStmt) s;
+			if(ex.getExpression().isPresent()) {
+				ex.setExpression(hoistCalls(ex.getExpression().get(), variables, depth, out));
+			}
+		} else if(s instanceof ExpressionStmt) {
+			Expression e = ((ExpressionStmt) s).getExpression();
+			if(e instanceof VariableDeclarationExpr) {
+				VariableDeclarator v = ((VariableDeclarationExpr) e).getVariable(0);
+				if(v.getInitializer().isPresent()) {
+					v.setInitializer(hoistCalls(v.getInitializer().get(), variables, depth, out));
+				}
+			} else if(e instanceof AssignExpr) {
+				AssignExpr ex = (AssignExpr) e;
+				ex.setValue(hoistCalls(ex.getValue(), variables, depth, out));
+			} else if(e instanceof MethodCallExpr) {
+				MethodCallExpr call = (MethodCallExpr) e;
+				NodeList<Expression> args = call.getArguments();
+				for(int i = 0; i < args.size(); ++i) {
+					args.set(i, hoistCalls(args.get(i), variables, depth, out));
+					if(containsCall(args.get(i))) {
+						// later arguments can't be moved before this call
+						out.add(s);
+						return;
+					}
+				}
+				if(isInlinable(call, false)) {
+					Expression result = inlineCall(call, variables, depth, out);
+					if(containsCall(result)) {
+						// the unused return value may still have side effects
+						out.add(declare(fresh(call.getNameAsString() + "$result", variables), result));
+					}
+					return;
+				}
+			}
+		}
+		out.add(s);
+	}
+	
+	// moves inlinable calls out of the expression, in evaluation order, until one can't be moved
+	private Expression hoistCalls(Expression e, List<String> variables, int depth, NodeList<Statement> out) {
+		while(true) {
+			MethodCallExpr call = firstCall(e);
+			if(call == null || !isInlinable(call, true)) {
+				return e;
+			}
+			Expression result = inlineCall(call, variables, depth, out);
+			String name = fresh(call.getNameAsString() + "$result", variables);
+			out.add(declare(name, result));
+			e = substitute(e, call, new NameExpr(name));
+		}
+	}
+	
+	private boolean isInlinable(MethodCallExpr call, boolean expr) {
+		MethodDeclaration template = templates.get(call.getNameAsString());
+		return template != null && !call.getScope().isPresent()
+			&& call.getArguments().size() == template.getParameters().size()
+			&& (!expr || template.getType().toString().equals("int"));
+	}
+	
+	// the call which finishes first, if it can be moved to before the statement; null otherwise
+	private static MethodCallExpr firstCall(Expression e) {
+		if(e instanceof EnclosedExpr) {
+			return firstCall(((EnclosedExpr) e).getInner().get());
+		} else if(e instanceof BinaryExpr) {
+			BinaryExpr ex = (BinaryExpr) e;
+			if(containsCall(ex.getLeft())) {
+				return firstCall(ex.getLeft());
+			}
+			BinaryExpr.Operator o = ex.getOperator();
+			// the right-hand side of && or || may not be evaluated at all
+			return o == BinaryExpr.Operator.AND || o == BinaryExpr.Operator.OR ? null : firstCall(ex.getRight());
+		} else if(e instanceof UnaryExpr) {
+			return firstCall(((UnaryExpr) e).getExpression());
+		} else if(e instanceof MethodCallExpr) {
+			MethodCallExpr ex = (MethodCallExpr) e;
+			for(Expression arg : ex.getArguments()) {
+				if(containsCall(arg)) {
+					return firstCall(arg);
+				}
+			}
+			return isInput(ex) ? null : ex;
+		}
+		return null;
+	}
+	
+	private static boolean isInput(MethodCallExpr e) {
+		return e.getNameAsString().equals("input");
+	}
+	
+	// whether the expression calls anything other than input(...)
+	private static boolean containsCall(Expression e) {
+		if(e instanceof EnclosedExpr) {
+			return containsCall(((EnclosedExpr) e).getInner().get());
+		} else if(e instanceof BinaryExpr) {
+			return containsCall(((BinaryExpr) e).getLeft()) || containsCall(((BinaryExpr) e).getRight());
+		} else if(e instanceof UnaryExpr) {
+			return containsCall(((UnaryExpr) e).getExpression());
+		} else if(e instanceof MethodCallExpr) {
+			MethodCallExpr ex = (MethodCallExpr) e;
+			return !isInput(ex) || ex.getArguments().stream().anyMatch(CallInliner::containsCall);
+		}
+		return false;
+	}
+	
+	// the expression with one node replaced, found by identity
+	private static Expression substitute(Expression e, Expression from, Expression to) {
+		if(e == from) {
+			return to;
+		} else if(e instanceof EnclosedExpr) {
+			EnclosedExpr ex = (EnclosedExpr) e;
+			ex.setInner(substitute(ex.getInner().get(), from, to));
+		} else if(e instanceof BinaryExpr) {
+			BinaryExpr ex = (BinaryExpr) e;
+			ex.setLeft(substitute(ex.getLeft(), from, to));
+			ex.setRight(substitute(ex.getRight(), from, to));
+		} else if(e instanceof UnaryExpr) {
+			UnaryExpr ex = (UnaryExpr) e;
+			ex.setExpression(substitute(ex.getExpression(), from, to));
+		} else if(e instanceof MethodCallExpr) {
+			NodeList<Expression> args = ((MethodCallExpr) e).getArguments();
+			for(int i = 0; i < args.size(); ++i) {
+				args.set(i, substitute(args.get(i), from, to));
+			}
+		}
+		return e;
+	}
+	
+	// appends the callee's body to out, and returns its return value; null for a void function
+	private Expression inlineCall(MethodCallExpr call, List<String> variables, int depth, NodeList<Statement> out) {
+		MethodDeclaration template = templates.get(call.getNameAsString());
+		String prefix = call.getNameAsString() + "$";
+		
+		Map<String, String> renamed = new HashMap<>();
+		NodeList<Statement> inlined = new NodeList<>();
+		NodeList<Parameter> params = template.getParameters();
+		for(int i = 0; i < params.size(); ++i) {
+			String name = fresh(prefix + params.get(i).getNameAsString(), variables);
+			renamed.put(params.get(i).getNameAsString(), name);
+			inlined.add(declare(name, call.getArguments().get(i)));
+		}
+		
+		BlockStmt body = template.getBody().get().clone();
+		body.accept(new VoidVisitorAdapter<Void>() {
+			@Override
+			public void visit(VariableDeclarator n, Void v) {
+				String name = fresh(prefix + n.getNameAsString(), variables);
+				renamed.put(n.getNameAsString(), name);
+				n.setName(name);
+				super.visit(n, v);
+			}
+		}, null);
+		body.accept(new VoidVisitorAdapter<Void>() {
+			@Override
+			public void visit(NameExpr n, Void v) {
+				String name = renamed.get(n.getNameAsString());
+				if(name != null) {
+					n.setName(name);
+				}
+			}
+		}, null);
+		
+		Expression result = null;
+		for(Statement s : body.getStatements()) {
+			if(s instanceof ReturnStmt) {
+				result = ((ReturnStmt) s).getExpression().orElse(null);
+			} else {
+				inlined.add(s);
+			}
+		}
+		
+		for(Statement s : inlined) {
+			if(depth + 1 < MAX_DEPTH) {
+				inlineStmt(s, variables, depth + 1, out);
+			} else {
+				out.add(s);
+			}
+		}
+		return result == null || depth + 1 >= MAX_DEPTH ? result : hoistCalls(result, variables, depth + 1, out);
+	}
+	
+	private static String fresh(String base, List<String> variables) {
+		String name = base;
+		for(int i = 1; variables.contains(name); ++i) {
+			name = base + "$" + i;
+		}
+		variables.add(name);
+		return name;
+	}
+	
+	private static Statement declare(String name, Expression value) {
+		return new ExpressionStmt(new VariableDeclarationExpr(new VariableDeclarator(new PrimitiveType(PrimitiveType.Primitive.INT), name, value)));
+	}
+}
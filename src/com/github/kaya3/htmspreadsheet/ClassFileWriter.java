@@ -0,0 +1,290 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// just enough of the class file format to hold static methods; version 49 so no stack map frames are needed
+final class ClassFileWriter {
+	private static final int CLASS_VERSION = 49;
+	
+	static final int ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+	
+	static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13;
+	static final int ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19, ISTORE = 0x36, LSTORE = 0x37, ASTORE = 0x3a;
+	static final int IALOAD = 0x2e, IASTORE = 0x4f;
+	static final int DUP2 = 0x5c;
+	static final int IADD = 0x60, LADD = 0x61, ISUB = 0x64, LSUB = 0x65, IMUL = 0x68;
+	static final int IAND = 0x7e, IOR = 0x80, IXOR = 0x82;
+	static final int IINC = 0x84, I2L = 0x85, LCMP = 0x94;
+	static final int IFNE = 0x9a, IFLE = 0x9e, IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPGE = 0xa2, IF_ICMPLT = 0xa1;
+	static final int GOTO = 0xa7, TABLESWITCH = 0xaa, RETURN = 0xb1;
+	static final int INVOKEVIRTUAL = 0xb6, INVOKESTATIC = 0xb8, ARRAYLENGTH = 0xbe, GOTO_W = 0xc8;
+	
+	private final List<byte[]> constants = new ArrayList<>();
+	private final Map<String, Integer> constantIndex = new HashMap<>();
+	private final List<byte[]> methods = new ArrayList<>();
+	private final int thisClass;
+	
+	ClassFileWriter(String internalName) {
+		thisClass = classConstant(internalName);
+	}
+	
+	private int constant(String key, byte[] entry, int slots) {
+		Integer idx = constantIndex.get(key);
+		if(idx == null) {
+			idx = constants.size() + 1;
+			constants.add(entry);
+			// long and double constants take two slots in the pool
+			if(slots == 2) {
+				constants.add(null);
+			}
+			constantIndex.put(key, idx);
+		}
+		return idx;
+	}
+	
+	private static byte[] bytes(int tag, int... u2s) {
+		byte[] b = new byte[1 + 2 * u2s.length];
+		b[0] = (byte) tag;
+		for(int i = 0; i < u2s.length; ++i) {
+			b[1 + 2*i] = (byte) (u2s[i] >> 8);
+			b[2 + 2*i] = (byte) u2s[i];
+		}
+		return b;
+	}
+	
+	int utf8Constant(String s) {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = new DataOutputStream(buf);
+			out.writeByte(1);
+			out.writeUTF(s);
+		} catch(IOException e) {
+			throw new AssertionError(e);
+		}
+		return constant("U" + s, buf.toByteArray(), 1);
+	}
+	
+	int classConstant(String internalName) {
+		return constant("C" + internalName, bytes(7, utf8Constant(internalName)), 1);
+	}
+	
+	int intConstant(int value) {
+		byte[] b = { 3, (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value };
+		return constant("I" + value, b, 1);
+	}
+	
+	int methodConstant(String owner, String name, String descriptor) {
+		int nameAndType = constant("N" + name + ":" + descriptor, bytes(12, utf8Constant(name), utf8Constant(descriptor)), 1);
+		return constant("M" + owner + "." + name + ":" + descriptor, bytes(10, classConstant(owner), nameAndType), 1);
+	}
+	
+	void addMethod(int access, String name, String descriptor, Code code) {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = new DataOutputStream(buf);
+			out.writeShort(access);
+			out.writeShort(utf8Constant(name));
+			out.writeShort(utf8Constant(descriptor));
+			out.writeShort(1);
+			byte[] bytecode = code.toByteArray();
+			out.writeShort(utf8Constant("Code"));
+			out.writeInt(12 + bytecode.length);
+			out.writeShort(code.maxStack);
+			out.writeShort(code.maxLocals);
+			out.writeInt(bytecode.length);
+			out.write(bytecode);
+			// no exception table, no attributes
+			out.writeShort(0);
+			out.writeShort(0);
+		} catch(IOException e) {
+			throw new AssertionError(e);
+		}
+		methods.add(buf.toByteArray());
+	}
+	
+	byte[] toByteArray() {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		try {
+			int superClass = classConstant("java/lang/Object");
+			DataOutputStream out = new DataOutputStream(buf);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(CLASS_VERSION);
+			out.writeShort(constants.size() + 1);
+			for(byte[] c : constants) {
+				if(c != null) {
+					out.write(c);
+				}
+			}
+			out.writeShort(ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			// interfaces, fields
+			out.writeShort(0);
+			out.writeShort(0);
+			out.writeShort(methods.size());
+			for(byte[] m : methods) {
+				out.write(m);
+			}
+			// class attributes
+			out.writeShort(0);
+		} catch(IOException e) {
+			throw new AssertionError(e);
+		}
+		return buf.toByteArray();
+	}
+	
+	static final class Label {
+		private int pos = -1;
+		private final List<int[]> fixups = new ArrayList<>();
+	}
+	
+	static final class Code {
+		// HotSpot won't JIT methods with more bytecode than this (-XX:-DontCompileHugeMethods notwithstanding)
+		static final int MAX_JIT_SIZE = 8000;
+		
+		private byte[] code = new byte[256];
+		private int size;
+		private final List<Label> labels = new ArrayList<>();
+		private final int maxStack, maxLocals;
+		
+		Code(int maxStack, int maxLocals) {
+			this.maxStack = maxStack;
+			this.maxLocals = maxLocals;
+		}
+		
+		Label newLabel() {
+			Label label = new Label();
+			labels.add(label);
+			return label;
+		}
+		
+		int size() {
+			return size;
+		}
+		
+		private void u1(int b) {
+			if(size == code.length) {
+				code = Arrays.copyOf(code, 2 * size);
+			}
+			code[size++] = (byte) b;
+		}
+		
+		private void u2(int v) {
+			u1(v >> 8);
+			u1(v);
+		}
+		
+		private void u4(int v) {
+			u2(v >> 16);
+			u2(v);
+		}
+		
+		private void put4(int at, int v) {
+			code[at] = (byte) (v >> 24);
+			code[at+1] = (byte) (v >> 16);
+			code[at+2] = (byte) (v >> 8);
+			code[at+3] = (byte) v;
+		}
+		
+		void op(int opcode) {
+			u1(opcode);
+		}
+		
+		void op1(int opcode, int arg) {
+			u1(opcode);
+			u1(arg);
+		}
+		
+		void op2(int opcode, int arg) {
+			u1(opcode);
+			u2(arg);
+		}
+		
+		void iinc(int local, int delta) {
+			u1(IINC);
+			u1(local);
+			u1(delta);
+		}
+		
+		void intConst(ClassFileWriter cf, int value) {
+			if(value >= -1 && value <= 5) {
+				op(ICONST_0 + value);
+			} else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				op1(BIPUSH, value);
+			} else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				op2(SIPUSH, value);
+			} else {
+				op2(LDC_W, cf.intConstant(value));
+			}
+		}
+		
+		// 16-bit offset; only for short hops within one translated instruction
+		void branch(int opcode, Label target) {
+			int start = size;
+			u1(opcode);
+			target.fixups.add(new int[] { start, size, 2 });
+			u2(0);
+		}
+		
+		void gotoW(Label target) {
+			int start = size;
+			u1(GOTO_W);
+			target.fixups.add(new int[] { start, size, 4 });
+			u4(0);
+		}
+		
+		void tableswitch(int low, Label dflt, Label[] targets) {
+			int start = size;
+			u1(TABLESWITCH);
+			while(size % 4 != 0) {
+				u1(0);
+			}
+			dflt.fixups.add(new int[] { start, size, 4 });
+			u4(0);
+			u4(low);
+			u4(low + targets.length - 1);
+			for(Label target : targets) {
+				target.fixups.add(new int[] { start, size, 4 });
+				u4(0);
+			}
+		}
+		
+		void bind(Label label) {
+			label.pos = size;
+		}
+		
+		byte[] toByteArray() {
+			for(Label label : labels) {
+				resolve(label);
+			}
+			return Arrays.copyOf(code, size);
+		}
+		
+		private void resolve(Label label) {
+			if(label.pos < 0 && !label.fixups.isEmpty()) {
+				throw new IllegalStateException("Unbound label");
+			}
+			for(int[] f : label.fixups) {
+				int offset = label.pos - f[0];
+				if(f[2] == 2) {
+					if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+						throw new IllegalStateException("Branch offset too large");
+					}
+					code[f[1]] = (byte) (offset >> 8);
+					code[f[1]+1] = (byte) offset;
+				} else {
+					put4(f[1], offset);
+				}
+			}
+			label.fixups.clear();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.lang.invoke.MethodHandle;
+
+public final class CompiledProgram {
+	private final DecodedProgram program;
+	private final int[] regionOf;
+	private final MethodHandle[] regions;
+	
+	CompiledProgram(DecodedProgram program, int[] regionOf, MethodHandle[] regions) {
+		this.program = program;
+		this.regionOf = regionOf;
+		this.regions = regions;
+	}
+	
+	public DecodedProgram getProgram() {
+		return program;
+	}
+	
+	public long run(VirtualMachine vm) {
+		return run(vm, Long.MAX_VALUE);
+	}
+	
+	// same contract as VirtualMachine.run, and leaves the machine in exactly the same state
+	public long run(VirtualMachine vm, long maxSteps) {
+		if(vm.getProgram() != program) {
+			throw new IllegalArgumentException("Virtual machine is running a different program");
+		}
+		long start = vm.getSteps();
+		long limit = maxSteps > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + maxSteps;
+		while(vm.isRunning() && vm.getSteps() < limit) {
+			long before = vm.getSteps();
+			MethodHandle region = regions[regionOf[vm.getRegister(Instruction.PC_REGISTER)]];
+			try {
+				region.invokeExact(vm, limit);
+			} catch(ArrayIndexOutOfBoundsException e) {
+				// pushes aren't checked when the program's maximum stack is known
+				throw new IllegalStateException(program.getMaxStack() >= 0 ? "Stack underflow, or overflow past the verified maximum" : "Stack underflow", e);
+			} catch(RuntimeException | Error e) {
+				throw e;
+			} catch(Throwable e) {
+				throw new AssertionError(e);
+			}
+			if(vm.getSteps() == before) {
+				// a jump part-way into a block, or a block longer than the remaining budget
+				vm.run(1);
+			}
+		}
+		return vm.getSteps() - start;
+	}
+}
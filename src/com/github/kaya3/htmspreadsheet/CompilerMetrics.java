@@ -0,0 +1,201 @@
+package com.github.kaya3.htmspreadsheet;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Times each phase of compiling a program, per function where a phase is per function. A phase is committed as a JFR
+// event when Flight Recorder is recording them, and kept for the report when one was asked for; when neither, starting
+// a phase costs one check and allocates nothing. Allocation is measured for the thread running the phase, which is the
+// whole phase since functions are compiled on one thread each.
+public final class CompilerMetrics {
+	@Name("com.github.kaya3.htmspreadsheet.CompilerPhase")
+	@Label("Compiler Phase")
+	@Category({ "HTM Spreadsheet", "Compiler" })
+	@StackTrace(false)
+	static final class PhaseEvent extends Event {
+		@Label("Phase")
+		String phase;
+		@Label("Function")
+		@Description("Null for phases over the whole program")
+		String function;
+		@Label("Instructions Before")
+		int instructionsBefore;
+		@Label("Instructions After")
+		int instructionsAfter;
+		@Label("Allocated")
+		@DataAmount
+		long allocated;
+	}
+	
+	private static final EventType EVENT_TYPE = EventType.getEventType(PhaseEvent.class);
+	// the HotSpot extension which can count a thread's allocations, or null
+	private static final com.sun.management.ThreadMXBean THREADS;
+	static {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+			THREADS = (com.sun.management.ThreadMXBean) threads;
+		} else {
+			THREADS = null;
+		}
+	}
+	
+	// reports only to Flight Recorder
+	public static final CompilerMetrics NONE = new CompilerMetrics(false);
+	
+	public static final class Record {
+		private final String phase, function;
+		private final long nanos, allocated;
+		private final int instructionsBefore, instructionsAfter;
+		
+		private Record(String phase, String function, long nanos, long allocated, int instructionsBefore, int instructionsAfter) {
+			this.phase = phase;
+			this.function = function;
+			this.nanos = nanos;
+			this.allocated = allocated;
+			this.instructionsBefore = instructionsBefore;
+			this.instructionsAfter = instructionsAfter;
+		}
+		
+		public String getPhase() {
+			return phase;
+		}
+		
+		// null for phases over the whole program
+		public String getFunction() {
+			return function;
+		}
+		
+		public long getNanos() {
+			return nanos;
+		}
+		
+		// bytes allocated by the phase, or -1 if the JVM can't count them
+		public long getAllocated() {
+			return allocated;
+		}
+		
+		public int getInstructionsBefore() {
+			return instructionsBefore;
+		}
+		
+		public int getInstructionsAfter() {
+			return instructionsAfter;
+		}
+	}
+	
+	public final class Phase {
+		private final String phase, function;
+		private final int instructionsBefore;
+		private final PhaseEvent event = new PhaseEvent();
+		private final long start, allocatedStart;
+		
+		private Phase(String phase, String function, int instructionsBefore) {
+			this.phase = phase;
+			this.function = function;
+			this.instructionsBefore = instructionsBefore;
+			allocatedStart = allocatedBytes();
+			event.begin();
+			start = System.nanoTime();
+		}
+		
+		public void end(int instructionsAfter) {
+			long nanos = System.nanoTime() - start;
+			event.end();
+			long allocated = allocatedStart < 0 ? -1 : allocatedBytes() - allocatedStart;
+			if(event.shouldCommit()) {
+				event.phase = phase;
+				event.function = function;
+				event.instructionsBefore = instructionsBefore;
+				event.instructionsAfter = instructionsAfter;
+				event.allocated = allocated;
+				event.commit();
+			}
+			if(records != null) {
+				synchronized(records) {
+					records.add(new Record(phase, function, nanos, allocated, instructionsBefore, instructionsAfter));
+				}
+			}
+		}
+	}
+	
+	private final List<Record> records;
+	
+	// a report keeps every phase of every compile using these metrics
+	public CompilerMetrics(boolean report) {
+		records = report ? new ArrayList<>() : null;
+	}
+	
+	// null if nothing is recording; end it with the number of instructions after the phase
+	public Phase begin(String phase, String function, int instructionsBefore) {
+		if(records == null && !EVENT_TYPE.isEnabled()) {
+			return null;
+		}
+		return new Phase(phase, function, instructionsBefore);
+	}
+	
+	// for a phase which may be null
+	public static void end(Phase phase, int instructionsAfter) {
+		if(phase != null) {
+			phase.end(instructionsAfter);
+		}
+	}
+	
+	private static long allocatedBytes() {
+		return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	// in the order the phases ended
+	public List<Record> getRecords() {
+		if(records == null) {
+			return Collections.emptyList();
+		}
+		synchronized(records) {
+			return new ArrayList<>(records);
+		}
+	}
+	
+	// {"phases": [{"phase": ..., "function": ..., "nanos": ..., ...}, ...]}, one phase per line
+	public void writeJson(Appendable out) throws IOException {
+		List<Record> list = getRecords();
+		out.append("{\"phases\": [");
+		for(int i = 0; i < list.size(); ++i) {
+			Record r = list.get(i);
+			out.append(i == 0 ? "\n\t" : ",\n\t")
+				.append("{\"phase\": ").append(jsonString(r.phase))
+				.append(", \"function\": ").append(r.function == null ? "null" : jsonString(r.function))
+				.append(", \"nanos\": ").append(Long.toString(r.nanos))
+				.append(", \"instructionsBefore\": ").append(Integer.toString(r.instructionsBefore))
+				.append(", \"instructionsAfter\": ").append(Integer.toString(r.instructionsAfter))
+				.append(", \"allocatedBytes\": ").append(Long.toString(r.allocated))
+				.append('}');
+		}
+		out.append("\n]}");
+	}
+	
+	static String jsonString(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for(int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if(c < ' ') {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
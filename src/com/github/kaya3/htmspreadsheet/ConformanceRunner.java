@@ -0,0 +1,431 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Runs the conformance suite:
+//   every .ssm file under the tests directory, checked against its annotations, on both execution engines; a test
+//   written for another instruction format is skipped, as it means nothing here;
+//   every .java file under the tests directory, parsed by SourceParser and checked against its annotations;
+//   every programs-src/foo.java, compiled at each optimisation level and in the extended instruction set and run
+//   on both engines, checked against its ASSERT comments if it has any, or else against the output of
+//   programs-compiled/foo.ssm.
+// Test annotations are comments:
+//   ; ASSERT x y value    output cell (x, y) must be written with value
+//   ; ASSERT value        some output cell must be written with value
+//   ; INPUT x y value     input cell (x, y) holds value
+// A program's annotations are // comments:
+//   // ASSERT x y value   output cell (x, y) must be written with value, and no cell may be written without one
+//   // TRANSFORMS t ...   fully optimised, the program must take fewer rows * steps than without each of LoopOptimizer's
+//                        transforms t
+// as is a parser test's:
+//   // REJECT line column SourceParser must report a syntax error at that position
+// Each case runs as its own task, so the suite spreads across cores however many cases there are.
+public class ConformanceRunner {
+	public static final long DEFAULT_MAX_STEPS = 10000000;
+	
+	private static final String[] LEVEL_NAMES = { "unoptimised", "peephole", "tree", "full", "memoised", "extended" };
+	private static final List<Supplier<ProgramCompiler>> LEVELS = Arrays.asList(
+		() -> new ProgramCompiler(null, false),
+		() -> new ProgramCompiler(new PeepholeOptimizer(), false),
+		() -> new ProgramCompiler(null, true),
+		ProgramCompiler::new,
+		() -> new ProgramCompiler(new PeepholeOptimizer(), true, CallInliner.DEFAULT_THRESHOLD, ProgramCompiler.DEFAULT_MEMO_TABLE_SIZE),
+		ConformanceRunner::extendedCompiler
+	);
+	
+	// fully optimised, in the extended instruction set rather than lowered to the base set
+	private static ProgramCompiler extendedCompiler() {
+		ProgramCompiler compiler = new ProgramCompiler();
+		compiler.setExtended(true);
+		return compiler;
+	}
+	
+	private final int threads;
+	private final long maxSteps;
+	
+	public ConformanceRunner(int threads, long maxSteps) {
+		this.threads = threads;
+		this.maxSteps = maxSteps;
+	}
+	
+	public static class Result {
+		private final String name;
+		private final String failure;
+		private final String skipped;
+		private final long nanos;
+		
+		private Result(String name, String failure, String skipped, long nanos) {
+			this.name = name;
+			this.failure = failure;
+			this.skipped = skipped;
+			this.nanos = nanos;
+		}
+		
+		// the file, with the engine and optimisation level if relevant
+		public String getName() {
+			return name;
+		}
+		
+		public boolean isPassed() {
+			return failure == null;
+		}
+		
+		// null if the case passed
+		public String getFailure() {
+			return failure;
+		}
+		
+		// why the case wasn't run, or null if it was
+		public String getSkipped() {
+			return skipped;
+		}
+		
+		public long getNanos() {
+			return nanos;
+		}
+	}
+	
+	private interface Case {
+		// returns null if the case passed, otherwise why it failed
+		String check() throws Exception;
+	}
+	
+	private static class Skip extends Exception {
+		private static final long serialVersionUID = 1L;
+		
+		private Skip(String reason) {
+			super(reason);
+		}
+	}
+	
+	// either directory may be null to skip that part of the suite; results come back in a deterministic order
+	public List<Result> run(Path testsDir, Path sourceDir, Path compiledDir) throws IOException, InterruptedException {
+		List<String> names = new ArrayList<>();
+		List<Case> cases = new ArrayList<>();
+		if(testsDir != null) {
+			for(Path test : find(testsDir, ".ssm")) {
+				for(boolean translate : new boolean[] { false, true }) {
+					names.add(test + " [" + engineName(translate) + "]");
+					cases.add(() -> checkTest(test, translate));
+				}
+			}
+			for(Path test : find(testsDir, ".java")) {
+				names.add(test + " [parser]");
+				cases.add(() -> checkParse(test));
+			}
+		}
+		if(sourceDir != null) {
+			for(Path source : find(sourceDir, ".java")) {
+				String name = source.getFileName().toString();
+				Path compiled = compiledDir.resolve(name.substring(0, name.length() - ".java".length()) + ".ssm");
+				for(int level = 0; level < LEVELS.size(); ++level) {
+					for(boolean translate : new boolean[] { false, true }) {
+						int l = level;
+						names.add(source + " [" + LEVEL_NAMES[level] + ", " + engineName(translate) + "]");
+						cases.add(() -> checkProgram(source, compiled, LEVELS.get(l).get(), translate));
+					}
+				}
+				for(LoopOptimizer.Transform transform : programTransforms(Files.readAllLines(source, StandardCharsets.UTF_8))) {
+					names.add(source + " [" + transform + "]");
+					cases.add(() -> checkTransform(source, transform));
+				}
+			}
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Result>> futures = new ArrayList<>();
+			for(int i = 0; i < cases.size(); ++i) {
+				String name = names.get(i);
+				Case c = cases.get(i);
+				futures.add(executor.submit(() -> runCase(name, c)));
+			}
+			List<Result> results = new ArrayList<>();
+			for(Future<Result> f : futures) {
+				try {
+					results.add(f.get());
+				} catch(ExecutionException e) {
+					throw new AssertionError(e.getCause());
+				}
+			}
+			return results;
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	private static List<Path> find(Path dir, String extension) throws IOException {
+		try(Stream<Path> files = Files.walk(dir)) {
+			return files
+				.filter(p -> Files.isRegularFile(p) && p.getFileName().toString().endsWith(extension))
+				.sorted()
+				.collect(Collectors.toList());
+		}
+	}
+	
+	private static String engineName(boolean translate) {
+		return translate ? "translated" : "interpreted";
+	}
+	
+	private static Result runCase(String name, Case c) {
+		long start = System.nanoTime();
+		String failure = null, skipped = null;
+		try {
+			failure = c.check();
+		} catch(Skip e) {
+			skipped = e.getMessage();
+		} catch(Exception e) {
+			failure = e.toString();
+		}
+		return new Result(name, failure, skipped, System.nanoTime() - start);
+	}
+	
+	private VirtualMachine execute(DecodedProgram program, Grid input, boolean translate) {
+		VirtualMachine vm = new VirtualMachine(program, input);
+		if(translate) {
+			ProgramTranslator.translate(program).run(vm, maxSteps);
+		} else {
+			vm.run(maxSteps);
+		}
+		if(vm.isRunning()) {
+			throw new IllegalStateException("Did not halt within " + maxSteps + " steps");
+		}
+		return vm;
+	}
+	
+	private String checkTest(Path test, boolean translate) throws IOException, Skip {
+		List<String> lines = Files.readAllLines(test, StandardCharsets.UTF_8);
+		Grid input = new Grid();
+		List<int[]> asserts = new ArrayList<>();
+		for(int i = 0; i < lines.size(); ++i) {
+			String line = lines.get(i).trim();
+			int comment = line.indexOf(';');
+			if(comment >= 0) {
+				String[] parts = line.substring(comment + 1).trim().split("\\s+");
+				if(parts[0].equals("ASSERT") || parts[0].equals("INPUT")) {
+					int[] args = parseAnnotation(parts, i + 1);
+					if(parts[0].equals("INPUT")) {
+						if(args.length != 3 || !Grid.inRange(args[0], args[1])) {
+							throw new IllegalArgumentException("INPUT on line " + (i + 1) + " must be x y value, in range");
+						}
+						input.set(args[0], args[1], args[2]);
+					} else if(args.length == 1 || args.length == 3 && Grid.inRange(args[0], args[1])) {
+						asserts.add(args);
+					} else {
+						throw new IllegalArgumentException("ASSERT on line " + (i + 1) + " must be value, or x y value in range");
+					}
+				}
+				line = line.substring(0, comment).trim();
+			}
+			if(!line.isEmpty()) {
+				// the parser ignores extra operands, so a test written for another instruction format would run wrongly
+				String[] parts = line.split("\\s+");
+				int argCount = DecodedProgram.getArgCount(DecodedProgram.codeOf(Opcode.valueOf(parts[0])));
+				if(parts.length - 1 != argCount) {
+					throw new Skip("written for another instruction format; line " + (i + 1) + ": " + parts[0] + " takes " + argCount + " operands, but has " + (parts.length - 1));
+				}
+			}
+		}
+		if(asserts.isEmpty()) {
+			return "no ASSERT annotations";
+		}
+		
+		Grid output = execute(DecodedProgram.parse(String.join("\n", lines)), input, translate).getOutput();
+		for(int[] a : asserts) {
+			if(a.length == 3 && (!output.isSet(a[0], a[1]) || output.get(a[0], a[1]) != a[2])) {
+				String actual = output.isSet(a[0], a[1]) ? Integer.toString(output.get(a[0], a[1])) : "nothing";
+				return "expected " + a[2] + " at (" + a[0] + ", " + a[1] + "), was " + actual;
+			} else if(a.length == 1 && !outputContains(output, a[0])) {
+				return "expected " + a[0] + " to be output";
+			}
+		}
+		return null;
+	}
+	
+	private static String checkParse(Path test) throws IOException {
+		List<String> lines = Files.readAllLines(test, StandardCharsets.UTF_8);
+		int[] reject = null;
+		for(int i = 0; i < lines.size(); ++i) {
+			String line = lines.get(i);
+			int comment = line.indexOf("//");
+			String[] parts = comment < 0 ? new String[0] : line.substring(comment + 2).trim().split("\\s+");
+			if(parts.length > 0 && parts[0].equals("REJECT")) {
+				reject = parseAnnotation(parts, i + 1);
+				if(reject.length != 2) {
+					throw new IllegalArgumentException("REJECT on line " + (i + 1) + " must be line column");
+				}
+			}
+		}
+		if(reject == null) {
+			return "no REJECT annotation";
+		}
+		
+		try {
+			SourceParser.parse(String.join("\n", lines));
+		} catch(SourceParser.SyntaxError e) {
+			return e.getLine() == reject[0] && e.getColumn() == reject[1] ? null : "expected a syntax error at line " + reject[0] + ", column " + reject[1] + ", was: " + e.getMessage();
+		}
+		return "expected a syntax error at line " + reject[0] + ", column " + reject[1] + ", but it parsed";
+	}
+	
+	private static int[] parseAnnotation(String[] parts, int lineNumber) {
+		try {
+			int[] args = new int[parts.length - 1];
+			for(int j = 1; j < parts.length; ++j) {
+				args[j - 1] = Integer.parseInt(parts[j]);
+			}
+			return args;
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + parts[0] + " on line " + lineNumber, e);
+		}
+	}
+	
+	private static boolean outputContains(Grid output, int value) {
+		for(int y = 0; y < Grid.IO_SIZE; ++y) {
+			for(int x = 0; x < Grid.IO_SIZE; ++x) {
+				if(output.isSet(x, y) && output.get(x, y) == value) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	private String checkProgram(Path source, Path compiled, ProgramCompiler compiler, boolean translate) throws IOException {
+		List<String> lines = Files.readAllLines(source, StandardCharsets.UTF_8);
+		Grid expected = programAsserts(lines);
+		if(expected == null && !Files.exists(compiled)) {
+			return "no ASSERT annotations and no compiled program " + compiled;
+		}
+		DecodedProgram program = DecodedProgram.decode(compiler.compile(String.join("\n", lines)));
+		Grid actual = execute(program, new Grid(), translate).getOutput();
+		if(expected != null) {
+			return actual.equals(expected) ? null : "output differs from the ASSERT annotations:\n" + actual;
+		}
+		expected = execute(DecodedProgram.parse(new String(Files.readAllBytes(compiled), StandardCharsets.UTF_8)), new Grid(), false).getOutput();
+		return actual.equals(expected) ? null : "output differs from " + compiled + ":\n" + actual;
+	}
+	
+	// the transform must still make the program smaller by the measure LoopOptimizer's cost model estimates
+	private String checkTransform(Path source, LoopOptimizer.Transform transform) throws IOException {
+		String program = new String(Files.readAllBytes(source), StandardCharsets.UTF_8);
+		Set<LoopOptimizer.Transform> others = EnumSet.allOf(LoopOptimizer.Transform.class);
+		others.remove(transform);
+		long with = work(program, EnumSet.allOf(LoopOptimizer.Transform.class)), without = work(program, others);
+		return with < without ? null : "rows * steps is " + with + " with " + transform + ", " + without + " without";
+	}
+	
+	// rows * steps, fully optimised with the given transforms
+	private long work(String program, Set<LoopOptimizer.Transform> transforms) {
+		ProgramCompiler compiler = new ProgramCompiler();
+		compiler.setLoopTransforms(transforms);
+		List<Instruction> instructions = compiler.compile(program);
+		return (long) instructions.size() * execute(DecodedProgram.decode(instructions), new Grid(), false).getSteps();
+	}
+	
+	// the transforms the source's TRANSFORMS comments name
+	private static Set<LoopOptimizer.Transform> programTransforms(List<String> lines) {
+		Set<LoopOptimizer.Transform> transforms = EnumSet.noneOf(LoopOptimizer.Transform.class);
+		for(int i = 0; i < lines.size(); ++i) {
+			String line = lines.get(i);
+			int comment = line.indexOf("//");
+			String[] parts = comment < 0 ? new String[0] : line.substring(comment + 2).trim().split("\\s+");
+			if(parts.length > 0 && parts[0].equals("TRANSFORMS")) {
+				for(int j = 1; j < parts.length; ++j) {
+					try {
+						transforms.add(LoopOptimizer.Transform.valueOf(parts[j]));
+					} catch(IllegalArgumentException e) {
+						throw new IllegalArgumentException("Invalid TRANSFORMS on line " + (i + 1) + ": " + parts[j], e);
+					}
+				}
+			}
+		}
+		return transforms;
+	}
+	
+	// the output the source's ASSERT comments describe, or null if it has none
+	private static Grid programAsserts(List<String> lines) {
+		Grid expected = null;
+		for(int i = 0; i < lines.size(); ++i) {
+			String line = lines.get(i);
+			int comment = line.indexOf("//");
+			if(comment < 0) {
+				continue;
+			}
+			String[] parts = line.substring(comment + 2).trim().split("\\s+");
+			if(parts[0].equals("ASSERT")) {
+				int[] args = parseAnnotation(parts, i + 1);
+				if(args.length != 3 || !Grid.inRange(args[0], args[1])) {
+					throw new IllegalArgumentException("ASSERT on line " + (i + 1) + " must be x y value, in range");
+				}
+				if(expected == null) {
+					expected = new Grid();
+				}
+				expected.set(args[0], args[1], args[2]);
+			}
+		}
+		return expected;
+	}
+	
+	public static int printSummary(List<Result> results, long wallNanos, PrintStream out) {
+		int failed = 0, skipped = 0;
+		for(Result r : results) {
+			if(!r.isPassed()) {
+				++failed;
+				out.println("FAIL  " + r.name + ": " + r.failure);
+			} else if(r.skipped != null) {
+				++skipped;
+				out.println("SKIP  " + r.name + ": " + r.skipped);
+			}
+		}
+		out.println(results.size() + " cases, " + failed + " failed, " + skipped + " skipped; " + wallNanos / 1000000 + " ms wall time");
+		return failed;
+	}
+	
+	// ConformanceRunner [-j threads] [-s max-steps] [tests-dir [programs-src programs-compiled]]
+	// by default, runs tests, programs-src and programs-compiled from the working directory
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		long maxSteps = DEFAULT_MAX_STEPS;
+		List<Path> paths = new ArrayList<>();
+		for(int i = 0; i < args.length; ++i) {
+			if(args[i].equals("-j") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-s") && i + 1 < args.length) {
+				maxSteps = Long.parseLong(args[++i]);
+			} else {
+				paths.add(Paths.get(args[i]));
+			}
+		}
+		if(paths.size() != 0 && paths.size() != 1 && paths.size() != 3) {
+			System.err.println("Usage: ConformanceRunner [-j threads] [-s max-steps] [tests-dir [programs-src programs-compiled]]");
+			System.exit(2);
+		}
+		Path testsDir = paths.isEmpty() ? Paths.get("tests") : paths.get(0);
+		Path sourceDir = paths.size() == 3 ? paths.get(1) : paths.isEmpty() ? Paths.get("programs-src") : null;
+		Path compiledDir = paths.size() == 3 ? paths.get(2) : Paths.get("programs-compiled");
+		
+		long start = System.nanoTime();
+		List<Result> results = new ConformanceRunner(threads, maxSteps).run(testsDir, sourceDir, compiledDir);
+		if(printSummary(results, System.nanoTime() - start, System.out) > 0) {
+			System.exit(1);
+		}
+	}
+}
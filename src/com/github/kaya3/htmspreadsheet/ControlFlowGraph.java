@@ -0,0 +1,73 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// One function's body as basic blocks. Block 0 is the entry; a graph is never changed, only replaced by passes.
+public final class ControlFlowGraph {
+	private final String function;
+	private final List<String> variables;
+	private final int paramCount;
+	private final BasicBlock[] blocks;
+	
+	public ControlFlowGraph(String function, List<String> variables, int paramCount, BasicBlock[] blocks) {
+		this.function = function;
+		this.variables = Collections.unmodifiableList(new ArrayList<>(variables));
+		this.paramCount = paramCount;
+		this.blocks = blocks.clone();
+	}
+	
+	public String getFunction() {
+		return function;
+	}
+	
+	// indexed as in ExprNode.Var; the parameters come first
+	public List<String> getVariables() {
+		return variables;
+	}
+	
+	public int getParamCount() {
+		return paramCount;
+	}
+	
+	public int size() {
+		return blocks.length;
+	}
+	
+	public BasicBlock getBlock(int i) {
+		return blocks[i];
+	}
+	
+	public ControlFlowGraph withBlocks(BasicBlock[] blocks) {
+		return new ControlFlowGraph(function, variables, paramCount, blocks);
+	}
+	
+	// keeps the blocks marked, in order, with their successors renumbered; the entry must be kept
+	public ControlFlowGraph retain(boolean[] keep) {
+		int[] index = new int[blocks.length];
+		int n = 0;
+		for(int i = 0; i < blocks.length; ++i) {
+			index[i] = keep[i] ? n++ : -1;
+		}
+		if(n == blocks.length) {
+			return this;
+		}
+		BasicBlock[] kept = new BasicBlock[n];
+		for(int i = 0; i < blocks.length; ++i) {
+			if(keep[i]) {
+				kept[index[i]] = blocks[i].withTerminator(blocks[i].getTerminator().remap(index));
+			}
+		}
+		return withBlocks(kept);
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(function).append(variables).append('\n');
+		for(int i = 0; i < blocks.length; ++i) {
+			sb.append(i).append(":\n").append(blocks[i]);
+		}
+		return sb.toString();
+	}
+}
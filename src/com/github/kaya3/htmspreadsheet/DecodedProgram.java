@@ -0,0 +1,284 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+public final class DecodedProgram {
+	// dense opcode numbering used by the execution engines; NOOP is never decoded
+	public static final int OP_CONST = 0;
+	public static final int OP_PUSH = 1;
+	public static final int OP_POP = 2;
+	public static final int OP_LOAD = 3;
+	public static final int OP_STORE = 4;
+	public static final int OP_COPY = 5;
+	public static final int OP_INPUT = 6;
+	public static final int OP_OUTPUT = 7;
+	public static final int OP_JUMPIF = 8;
+	public static final int OP_ADD = 9;
+	public static final int OP_MULT = 10;
+	public static final int OP_AND = 11;
+	public static final int OP_OR = 12;
+	public static final int OP_XOR = 13;
+	public static final int OP_LSHIFT = 14;
+	public static final int OP_RSHIFT = 15;
+	public static final int OP_NOT = 16;
+	public static final int OP_EQUALS = 17;
+	public static final int OP_LESSTHAN = 18;
+	// the extended set follows the base set
+	public static final int OP_JUMP = 19;
+	public static final int OP_JUMPIFZ = 20;
+	public static final int OP_JUMPIFLT = 21;
+	public static final int OP_JUMPIFGE = 22;
+	public static final int OP_JUMPIFEQ = 23;
+	public static final int OP_JUMPIFNE = 24;
+	public static final int OP_SUB = 25;
+	public static final int OP_DUP = 26;
+	public static final int OP_CALL = 27;
+	public static final int OP_RET = 28;
+	
+	private static final Opcode[] OPCODES = {
+		Opcode.CONST, Opcode.PUSH, Opcode.POP, Opcode.LOAD, Opcode.STORE,
+		Opcode.COPY, Opcode.INPUT, Opcode.OUTPUT, Opcode.JUMPIF,
+		Opcode.ADD, Opcode.MULT, Opcode.AND, Opcode.OR, Opcode.XOR, Opcode.LSHIFT, Opcode.RSHIFT,
+		Opcode.NOT, Opcode.EQUALS, Opcode.LESSTHAN,
+		Opcode.JUMP, Opcode.JUMPIFZ,
+		Opcode.JUMPIFLT, Opcode.JUMPIFGE, Opcode.JUMPIFEQ, Opcode.JUMPIFNE,
+		Opcode.SUB, Opcode.DUP,
+		Opcode.CALL, Opcode.RET,
+	};
+	
+	public static int codeOf(Opcode opcode) {
+		switch(opcode) {
+			case CONST: return OP_CONST;
+			case PUSH: return OP_PUSH;
+			case POP: return OP_POP;
+			case LOAD: return OP_LOAD;
+			case STORE: return OP_STORE;
+			case COPY: return OP_COPY;
+			case INPUT: return OP_INPUT;
+			case OUTPUT: return OP_OUTPUT;
+			case JUMPIF: return OP_JUMPIF;
+			case ADD: return OP_ADD;
+			case MULT: return OP_MULT;
+			case AND: return OP_AND;
+			case OR: return OP_OR;
+			case XOR: return OP_XOR;
+			case LSHIFT: return OP_LSHIFT;
+			case RSHIFT: return OP_RSHIFT;
+			case NOT: return OP_NOT;
+			case EQUALS: return OP_EQUALS;
+			case LESSTHAN: return OP_LESSTHAN;
+			case JUMP: return OP_JUMP;
+			case JUMPIFZ: return OP_JUMPIFZ;
+			case JUMPIFLT: return OP_JUMPIFLT;
+			case JUMPIFGE: return OP_JUMPIFGE;
+			case JUMPIFEQ: return OP_JUMPIFEQ;
+			case JUMPIFNE: return OP_JUMPIFNE;
+			case SUB: return OP_SUB;
+			case DUP: return OP_DUP;
+			case CALL: return OP_CALL;
+			case RET: return OP_RET;
+			default:
+				throw new IllegalArgumentException("Cannot decode opcode " + opcode);
+		}
+	}
+	
+	public static Opcode opcodeOf(int code) {
+		return OPCODES[code];
+	}
+	
+	public static DecodedProgram decode(List<Instruction> instructions) {
+		int n = 0;
+		int[] ops = new int[instructions.size()];
+		int[] args1 = new int[ops.length], args2 = new int[ops.length];
+		for(Instruction instruction : instructions) {
+			if(instruction.getOpcode() == Opcode.NOOP) {
+				throw new IllegalArgumentException("Cannot decode unresolved label at position " + n);
+			}
+			ops[n] = codeOf(instruction.getOpcode());
+			args1[n] = instruction.getArg1();
+			args2[n] = instruction.getArg2();
+			++n;
+		}
+		return new DecodedProgram(ops, args1, args2);
+	}
+	
+	public static DecodedProgram parse(String src) {
+		try {
+			return parse(new StringReader(src));
+		} catch(IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	public static DecodedProgram parse(Reader src) throws IOException {
+		BufferedReader reader = new BufferedReader(src);
+		int n = 0;
+		int[] ops = new int[64], args1 = new int[64], args2 = new int[64];
+		String line;
+		int lineNumber = 0;
+		while((line = reader.readLine()) != null) {
+			++lineNumber;
+			int comment = line.indexOf(';');
+			if(comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			line = line.trim();
+			if(line.isEmpty()) {
+				continue;
+			}
+			
+			String[] parts = line.split(" ");
+			if(n == ops.length) {
+				ops = Arrays.copyOf(ops, 2 * n);
+				args1 = Arrays.copyOf(args1, 2 * n);
+				args2 = Arrays.copyOf(args2, 2 * n);
+			}
+			try {
+				ops[n] = codeOf(Opcode.valueOf(parts[0]));
+				args1[n] = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+				args2[n] = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
+			} catch(IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid instruction on line " + lineNumber + ": " + line, e);
+			}
+			++n;
+		}
+		return new DecodedProgram(Arrays.copyOf(ops, n), Arrays.copyOf(args1, n), Arrays.copyOf(args2, n));
+	}
+	
+	private final int[] ops, args1, args2;
+	// -1 if not known
+	private final int maxStack;
+	
+	DecodedProgram(int[] ops, int[] args1, int[] args2) {
+		for(int i = 0; i < ops.length; ++i) {
+			int op = ops[i];
+			if(op < 0 || op >= OPCODES.length) {
+				throw new IllegalArgumentException("Invalid opcode " + op + " at position " + i);
+			}
+			int argCount = getArgCount(op);
+			if(!hasImmediate(op) && (argCount > 0 && !isRegister(args1[i]) || argCount > 1 && !isRegister(args2[i]))) {
+				throw new IllegalArgumentException("Invalid register in " + OPCODES[op] + " at position " + i);
+			}
+		}
+		this.ops = ops;
+		this.args1 = args1;
+		this.args2 = args2;
+		this.maxStack = -1;
+	}
+	
+	private DecodedProgram(DecodedProgram program, int maxStack) {
+		this.ops = program.ops;
+		this.args1 = program.args1;
+		this.args2 = program.args2;
+		this.maxStack = maxStack;
+	}
+	
+	// The engines trust this: the interpreter allocates exactly this much stack, and translated code doesn't check
+	// for room before pushing. It should come from StackVerifier.
+	public DecodedProgram withMaxStack(int maxStack) {
+		return new DecodedProgram(this, maxStack);
+	}
+	
+	// the largest the stack can get on any input, or -1 if not known
+	public int getMaxStack() {
+		return maxStack;
+	}
+	
+	// whether the program uses the extended set, which the spreadsheet can't run
+	public boolean isExtended() {
+		for(int op : ops) {
+			if(isExtended(op)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public static boolean isExtended(int op) {
+		return op >= OP_JUMP;
+	}
+	
+	// the arguments are numbers or code addresses rather than registers
+	private static boolean hasImmediate(int op) {
+		return op == OP_CONST || op >= OP_JUMP && op <= OP_JUMPIFNE || op == OP_CALL;
+	}
+	
+	private static boolean isRegister(int r) {
+		return r >= 0 && r < Instruction.REGISTER_COUNT;
+	}
+	
+	public int length() {
+		return ops.length;
+	}
+	
+	public int getOp(int pos) {
+		return ops[pos];
+	}
+	
+	public int getArg1(int pos) {
+		return args1[pos];
+	}
+	
+	public int getArg2(int pos) {
+		return args2[pos];
+	}
+	
+	// the engines read these arrays directly; they must never be written to
+	int[] ops() {
+		return ops;
+	}
+	
+	int[] args1() {
+		return args1;
+	}
+	
+	int[] args2() {
+		return args2;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < ops.length; ++i) {
+			sb.append(OPCODES[ops[i]]);
+			// mirrors Instruction.toString, which omits arguments the opcode doesn't take
+			int argCount = getArgCount(ops[i]);
+			if(argCount > 0) {
+				sb.append(' ').append(args1[i]);
+			}
+			if(argCount > 1) {
+				sb.append(' ').append(args2[i]);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+	
+	public static int getArgCount(int op) {
+		switch(op) {
+			case OP_CONST:
+			case OP_PUSH:
+			case OP_POP:
+			case OP_JUMPIF:
+			case OP_JUMP:
+			case OP_JUMPIFZ:
+			case OP_JUMPIFLT:
+			case OP_JUMPIFGE:
+			case OP_JUMPIFEQ:
+			case OP_JUMPIFNE:
+				return 1;
+			case OP_LOAD:
+			case OP_STORE:
+			case OP_COPY:
+			case OP_CALL:
+				return 2;
+			default:
+				return 0;
+		}
+	}
+}
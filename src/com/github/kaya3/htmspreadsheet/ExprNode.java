@@ -1,4 +1,161 @@
 package com.github.kaya3.htmspreadsheet;
 
+// An expression in the compiler's intermediate representation. Nodes are immutable, and variables are referred to by
+// their index in the function's variable list, so that analyses can use bit sets rather than maps of names.
+// && and || are kept as operators, since whether the right operand is evaluated is up to the code generator.
 public abstract class ExprNode {
+	public enum Operator {
+		// unary
+		NEGATE, LOGICAL_NOT, COMPLEMENT,
+		// binary
+		PLUS, MINUS, MULTIPLY, BINARY_AND, BINARY_OR, XOR, LEFT_SHIFT, RIGHT_SHIFT,
+		EQUALS, NOT_EQUALS, LESS, LESS_EQUALS, GREATER, GREATER_EQUALS,
+		// short-circuiting
+		AND, OR;
+		
+		public boolean isRelational() {
+			return this == LESS || this == LESS_EQUALS || this == GREATER || this == GREATER_EQUALS;
+		}
+	}
+	
+	private ExprNode() {}
+	
+	public static final class Const extends ExprNode {
+		private final int value;
+		
+		public Const(int value) {
+			this.value = value;
+		}
+		
+		public int getValue() {
+			return value;
+		}
+		
+		@Override
+		public String toString() {
+			return Integer.toString(value);
+		}
+	}
+	
+	public static final class Var extends ExprNode {
+		private final int index;
+		
+		public Var(int index) {
+			this.index = index;
+		}
+		
+		public int getIndex() {
+			return index;
+		}
+		
+		@Override
+		public String toString() {
+			return "$" + index;
+		}
+	}
+	
+	public static final class Unary extends ExprNode {
+		private final Operator operator;
+		private final ExprNode operand;
+		
+		public Unary(Operator operator, ExprNode operand) {
+			this.operator = operator;
+			this.operand = operand;
+		}
+		
+		public Operator getOperator() {
+			return operator;
+		}
+		
+		public ExprNode getOperand() {
+			return operand;
+		}
+		
+		@Override
+		public String toString() {
+			return operator + "(" + operand + ")";
+		}
+	}
+	
+	public static final class Binary extends ExprNode {
+		private final Operator operator;
+		private final ExprNode left, right;
+		
+		public Binary(Operator operator, ExprNode left, ExprNode right) {
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+		}
+		
+		public Operator getOperator() {
+			return operator;
+		}
+		
+		public ExprNode getLeft() {
+			return left;
+		}
+		
+		public ExprNode getRight() {
+			return right;
+		}
+		
+		@Override
+		public String toString() {
+			return operator + "(" + left + ", " + right + ")";
+		}
+	}
+	
+	// a call to another function in the program; each call is its own node, so it can key per-call information
+	public static final class Call extends ExprNode {
+		private final String function;
+		private final ExprNode[] args;
+		
+		public Call(String function, ExprNode... args) {
+			this.function = function;
+			this.args = args.clone();
+		}
+		
+		public String getFunction() {
+			return function;
+		}
+		
+		public int getArgCount() {
+			return args.length;
+		}
+		
+		public ExprNode getArg(int i) {
+			return args[i];
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(function).append('(');
+			for(int i = 0; i < args.length; ++i) {
+				sb.append(i > 0 ? ", " : "").append(args[i]);
+			}
+			return sb.append(')').toString();
+		}
+	}
+	
+	public static final class Input extends ExprNode {
+		private final ExprNode x, y;
+		
+		public Input(ExprNode x, ExprNode y) {
+			this.x = x;
+			this.y = y;
+		}
+		
+		public ExprNode getX() {
+			return x;
+		}
+		
+		public ExprNode getY() {
+			return y;
+		}
+		
+		@Override
+		public String toString() {
+			return "input(" + x + ", " + y + ")";
+		}
+	}
 }
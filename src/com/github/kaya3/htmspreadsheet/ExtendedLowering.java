@@ -0,0 +1,109 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Expands the extended instructions in generated code into the base set, for the spreadsheet. Each becomes the idiom
+// the compiler wrote before there was an extended set, and a PUSH followed by a POP is made a COPY as the compiler
+// does, so that lowered code is exactly what the compiler would have generated for the base set.
+// The idioms leave a jump's destination in the IO register, where the extended jumps don't touch it; compiled code
+// never reads the IO register after a jump without writing it first. DUP goes through the scratch register unless
+// it follows a PUSH, which the compiler's DUPs always do.
+public final class ExtendedLowering {
+	private ExtendedLowering() {}
+	
+	// the code must not be assembled yet, so that anything referred to is a label
+	public static List<Instruction> lower(List<Instruction> code) {
+		List<Instruction> out = new ArrayList<>(code.size());
+		for(Instruction instruction : code) {
+			SourceLocation source = instruction.getSource();
+			switch(instruction.getOpcode()) {
+				case JUMP:
+					emit(out, source, destination(instruction));
+					emit(out, source, new Instruction(Opcode.POP, Instruction.PC_REGISTER));
+					break;
+				case JUMPIFZ:
+					emitJumpIf(out, source, instruction);
+					break;
+				case JUMPIFLT:
+					emit(out, source, new Instruction(Opcode.LESSTHAN));
+					emit(out, source, new Instruction(Opcode.CONST, 0));
+					emit(out, source, new Instruction(Opcode.EQUALS));
+					emitJumpIf(out, source, instruction);
+					break;
+				case JUMPIFGE:
+					emit(out, source, new Instruction(Opcode.LESSTHAN));
+					emitJumpIf(out, source, instruction);
+					break;
+				case JUMPIFEQ:
+					// x ^ y is zero exactly when x == y
+					emit(out, source, new Instruction(Opcode.XOR));
+					emitJumpIf(out, source, instruction);
+					break;
+				case JUMPIFNE:
+					emit(out, source, new Instruction(Opcode.EQUALS));
+					emitJumpIf(out, source, instruction);
+					break;
+				case SUB:
+					emit(out, source, new Instruction(Opcode.CONST, -1));
+					emit(out, source, new Instruction(Opcode.MULT));
+					emit(out, source, new Instruction(Opcode.ADD));
+					break;
+				case DUP: {
+					Instruction last = out.isEmpty() ? null : out.get(out.size() - 1);
+					if(last != null && last.getOpcode() == Opcode.PUSH) {
+						emit(out, source, new Instruction(Opcode.PUSH, last.getArg1()));
+					} else {
+						emit(out, source, new Instruction(Opcode.POP, RegisterAllocator.SCRATCH_REGISTER));
+						emit(out, source, new Instruction(Opcode.PUSH, RegisterAllocator.SCRATCH_REGISTER));
+						emit(out, source, new Instruction(Opcode.PUSH, RegisterAllocator.SCRATCH_REGISTER));
+					}
+					break;
+				}
+				case CALL:
+					emit(out, source, new Instruction(Opcode.PUSH, Instruction.BOS_REGISTER));
+					emit(out, source, new Instruction(Opcode.CONST, instruction.getArg2()));
+					emit(out, source, new Instruction(Opcode.ADD));
+					emit(out, source, new Instruction(Opcode.POP, Instruction.BOS_REGISTER));
+					emit(out, source, new Instruction(Opcode.CONST, instruction.getTarget()));
+					emit(out, source, new Instruction(Opcode.POP, Instruction.PC_REGISTER));
+					break;
+				case RET:
+					emit(out, source, new Instruction(Opcode.POP, Instruction.BOS_REGISTER));
+					emit(out, source, new Instruction(Opcode.POP, Instruction.PC_REGISTER));
+					break;
+				default:
+					emit(out, source, instruction);
+					break;
+			}
+		}
+		return out;
+	}
+	
+	// a CONST pushing where the jump goes
+	private static Instruction destination(Instruction jump) {
+		return jump.getTarget() != null ? new Instruction(Opcode.CONST, jump.getTarget()) : new Instruction(Opcode.CONST, jump.getArg1());
+	}
+	
+	private static void emitJumpIf(List<Instruction> out, SourceLocation source, Instruction jump) {
+		emit(out, source, destination(jump));
+		emit(out, source, new Instruction(Opcode.POP, Instruction.IO_REGISTER));
+		emit(out, source, new Instruction(Opcode.JUMPIF, Instruction.IO_REGISTER));
+	}
+	
+	private static void emit(List<Instruction> out, SourceLocation source, Instruction instruction) {
+		instruction.setSource(source);
+		int n = out.size();
+		if(instruction.getOpcode() == Opcode.POP && n > 0 && out.get(n-1).getOpcode() == Opcode.PUSH) {
+			int toReg = instruction.getArg1();
+			int fromReg = out.remove(n-1).getArg1();
+			if(toReg != fromReg) {
+				Instruction copy = new Instruction(Opcode.COPY, toReg, fromReg);
+				copy.setSource(source);
+				out.add(copy);
+			}
+		} else {
+			out.add(instruction);
+		}
+	}
+}
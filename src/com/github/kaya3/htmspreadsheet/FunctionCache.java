@@ -0,0 +1,360 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Keeps each function's generated code, before assembly, keyed by a hash of everything the code depends on; the
+// ProgramCompiler decides what that is. A hit rebuilds the instructions with their calls pointing at the current
+// program's functions, so the program is relinked as usual. Lines are kept relative to the function's declaration,
+// so a function which only moved is still a hit. The least recently used entries are evicted past the size limit.
+public final class FunctionCache {
+	public static final int DEFAULT_SIZE = 4096;
+	
+	private static final int MAGIC = 0x48544d43;
+	// changes whenever the entries or the code generator do
+	private static final int VERSION = 4;
+	private static final int NO_LINE = Integer.MIN_VALUE;
+	
+	// one function's code; a target of -1 is none, 0 and up is an instruction in the same function, and below -1 is
+	// the start of the function external[-2 - target]
+	private static final class Entry {
+		private final String[] external;
+		private final int[] opcodes, argCounts, args1, args2, targets;
+		// per instruction; a null kind means no source location, and a loop of -1 is none
+		private final int[] lines, loops;
+		private final String[] kinds;
+		private final int[] loopLines, loopParents;
+		
+		private Entry(String[] external, int[] opcodes, int[] argCounts, int[] args1, int[] args2, int[] targets, int[] lines, int[] loops, String[] kinds, int[] loopLines, int[] loopParents) {
+			this.external = external;
+			this.opcodes = opcodes;
+			this.argCounts = argCounts;
+			this.args1 = args1;
+			this.args2 = args2;
+			this.targets = targets;
+			this.lines = lines;
+			this.loops = loops;
+			this.kinds = kinds;
+			this.loopLines = loopLines;
+			this.loopParents = loopParents;
+		}
+	}
+	
+	private final int maxSize;
+	private final LinkedHashMap<String, Entry> entries;
+	private int hits, misses;
+	
+	public FunctionCache() {
+		this(DEFAULT_SIZE);
+	}
+	
+	public FunctionCache(int maxSize) {
+		this.maxSize = maxSize;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > FunctionCache.this.maxSize;
+			}
+		};
+	}
+	
+	// a SHA-256 digest of the description, which can be arbitrarily long
+	public static String key(String description) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(description.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for(byte b : digest) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch(NoSuchAlgorithmException e) {
+			// every JVM has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	// The function's code from the cache if its key is present, otherwise compiled and then stored. Lines are made
+	// relative to baseLine, the line of the declaration. The code's first instruction is the function's start label.
+	public List<Instruction> compile(FunctionCompiler f, String key, int baseLine, Map<String, FunctionCompiler> functions) {
+		Entry entry;
+		synchronized(this) {
+			entry = entries.get(key);
+			if(entry != null) {
+				++hits;
+			} else {
+				++misses;
+			}
+		}
+		if(entry != null) {
+			return rebuild(entry, f, baseLine, functions);
+		}
+		
+		List<Instruction> code = f.compile();
+		entry = store(code, f.getName(), baseLine, functions);
+		if(entry != null) {
+			synchronized(this) {
+				entries.put(key, entry);
+			}
+		}
+		return code;
+	}
+	
+	// null if the code can't be stored, which would be a bug in the compiler
+	private static Entry store(List<Instruction> code, String name, int baseLine, Map<String, FunctionCompiler> functions) {
+		int n = code.size();
+		Map<Instruction, Integer> index = new IdentityHashMap<>();
+		for(int i = 0; i < n; ++i) {
+			index.put(code.get(i), i);
+		}
+		Map<Instruction, String> starts = new IdentityHashMap<>();
+		for(FunctionCompiler g : functions.values()) {
+			starts.put(g.getStartLabel(), g.getName());
+		}
+		List<String> external = new ArrayList<>();
+		Map<SourceLocation.Loop, Integer> loopIndex = new IdentityHashMap<>();
+		List<SourceLocation.Loop> loops = new ArrayList<>();
+		int[] opcodes = new int[n], argCounts = new int[n], args1 = new int[n], args2 = new int[n], targets = new int[n];
+		int[] lines = new int[n], loopOf = new int[n];
+		String[] kinds = new String[n];
+		for(int i = 0; i < n; ++i) {
+			Instruction instruction = code.get(i);
+			opcodes[i] = instruction.getOpcode().ordinal();
+			argCounts[i] = instruction.getArgCount();
+			args2[i] = instruction.getArg2();
+			Instruction target = instruction.getTarget();
+			if(target == null) {
+				args1[i] = instruction.getArg1();
+				targets[i] = -1;
+			} else if(index.containsKey(target)) {
+				targets[i] = index.get(target);
+			} else {
+				// a call to another function, by its start label
+				String callee = starts.get(target);
+				if(callee == null) {
+					return null;
+				}
+				int e = external.indexOf(callee);
+				if(e < 0) {
+					e = external.size();
+					external.add(callee);
+				}
+				targets[i] = -2 - e;
+			}
+			
+			SourceLocation source = instruction.getSource();
+			loopOf[i] = -1;
+			if(source != null) {
+				if(!source.getFunction().equals(name)) {
+					return null;
+				}
+				kinds[i] = source.getKind();
+				lines[i] = relative(source.getLine(), baseLine);
+				SourceLocation.Loop loop = source.getLoop();
+				if(loop != null) {
+					loopOf[i] = loopIndex(loop, loopIndex, loops);
+				}
+			}
+		}
+		int[] loopLines = new int[loops.size()], loopParents = new int[loops.size()];
+		for(int i = 0; i < loopLines.length; ++i) {
+			SourceLocation.Loop loop = loops.get(i);
+			loopLines[i] = relative(loop.getLine(), baseLine);
+			loopParents[i] = loop.getParent() == null ? -1 : loopIndex.get(loop.getParent());
+		}
+		return new Entry(external.toArray(new String[0]), opcodes, argCounts, args1, args2, targets, lines, loopOf, kinds, loopLines, loopParents);
+	}
+	
+	// outer loops are numbered before the loops inside them, so rebuilding can make parents first
+	private static int loopIndex(SourceLocation.Loop loop, Map<SourceLocation.Loop, Integer> index, List<SourceLocation.Loop> loops) {
+		Integer i = index.get(loop);
+		if(i == null) {
+			if(loop.getParent() != null) {
+				loopIndex(loop.getParent(), index, loops);
+			}
+			i = loops.size();
+			loops.add(loop);
+			index.put(loop, i);
+		}
+		return i;
+	}
+	
+	private static int relative(int line, int baseLine) {
+		return line < 0 || baseLine < 0 ? NO_LINE : line - baseLine;
+	}
+	
+	private static int absolute(int line, int baseLine) {
+		return line == NO_LINE ? -1 : line + baseLine;
+	}
+	
+	private static List<Instruction> rebuild(Entry entry, FunctionCompiler f, int baseLine, Map<String, FunctionCompiler> functions) {
+		String name = f.getName();
+		SourceLocation.Loop[] loops = new SourceLocation.Loop[entry.loopLines.length];
+		for(int i = 0; i < loops.length; ++i) {
+			SourceLocation.Loop parent = entry.loopParents[i] < 0 ? null : loops[entry.loopParents[i]];
+			loops[i] = new SourceLocation.Loop(name, absolute(entry.loopLines[i], baseLine), parent);
+		}
+		
+		Opcode[] opcodes = Opcode.values();
+		int n = entry.opcodes.length;
+		Instruction[] code = new Instruction[n];
+		for(int i = 0; i < n; ++i) {
+			Opcode op = opcodes[entry.opcodes[i]];
+			if(i == 0) {
+				code[i] = f.getStartLabel();
+			} else if(entry.targets[i] != -1) {
+				// a placeholder, as the target may come later
+				code[i] = entry.argCounts[i] == 2 ? new Instruction(op, code[0], entry.args2[i]) : new Instruction(op, code[0]);
+			} else if(entry.argCounts[i] == 0) {
+				code[i] = new Instruction(op);
+			} else if(entry.argCounts[i] == 1) {
+				code[i] = new Instruction(op, entry.args1[i]);
+			} else {
+				code[i] = new Instruction(op, entry.args1[i], entry.args2[i]);
+			}
+		}
+		for(int i = 0; i < n; ++i) {
+			int t = entry.targets[i];
+			if(t >= 0) {
+				code[i].setTarget(code[t]);
+			} else if(t < -1) {
+				code[i].setTarget(functions.get(entry.external[-2 - t]).getStartLabel());
+			}
+			if(entry.kinds[i] != null) {
+				SourceLocation.Loop loop = entry.loops[i] < 0 ? null : loops[entry.loops[i]];
+				code[i].setSource(new SourceLocation(name, absolute(entry.lines[i], baseLine), entry.kinds[i], loop));
+			}
+		}
+		return new ArrayList<>(Arrays.asList(code));
+	}
+	
+	// A missing file, or one from another version of the compiler, gives an empty cache; the cache only saves work,
+	// so nothing is lost by starting again.
+	public static FunctionCache load(Path path, int maxSize) throws IOException {
+		FunctionCache cache = new FunctionCache(maxSize);
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != Opcode.values().length) {
+				return cache;
+			}
+			int count = in.readInt();
+			for(int e = 0; e < count; ++e) {
+				String key = in.readUTF();
+				cache.entries.put(key, readEntry(in));
+			}
+		} catch(NoSuchFileException | EOFException | UTFDataFormatException | StreamCorruptedException e) {
+			cache.entries.clear();
+		}
+		return cache;
+	}
+	
+	private static Entry readEntry(DataInputStream in) throws IOException {
+		int externalCount = in.readInt();
+		check(externalCount >= 0);
+		String[] external = new String[externalCount];
+		for(int i = 0; i < external.length; ++i) {
+			external[i] = in.readUTF();
+		}
+		int n = in.readInt();
+		check(n > 0);
+		int[] opcodes = new int[n], argCounts = new int[n], args1 = new int[n], args2 = new int[n], targets = new int[n];
+		int[] lines = new int[n], loops = new int[n];
+		String[] kinds = new String[n];
+		for(int i = 0; i < n; ++i) {
+			opcodes[i] = in.readUnsignedByte();
+			argCounts[i] = in.readUnsignedByte();
+			args1[i] = in.readInt();
+			args2[i] = in.readInt();
+			targets[i] = in.readInt();
+			lines[i] = in.readInt();
+			loops[i] = in.readInt();
+			check(opcodes[i] < Opcode.values().length && argCounts[i] <= 2);
+			check(targets[i] < n && targets[i] >= -1 - external.length);
+			String kind = in.readUTF();
+			kinds[i] = kind.isEmpty() ? null : kind.intern();
+		}
+		int loopCount = in.readInt();
+		check(loopCount >= 0);
+		int[] loopLines = new int[loopCount], loopParents = new int[loopLines.length];
+		for(int i = 0; i < loopLines.length; ++i) {
+			loopLines[i] = in.readInt();
+			loopParents[i] = in.readInt();
+			check(loopParents[i] >= -1 && loopParents[i] < i);
+		}
+		for(int loop : loops) {
+			check(loop >= -1 && loop < loopLines.length);
+		}
+		return new Entry(external, opcodes, argCounts, args1, args2, targets, lines, loops, kinds, loopLines, loopParents);
+	}
+	
+	private static void check(boolean valid) throws StreamCorruptedException {
+		if(!valid) {
+			throw new StreamCorruptedException("Invalid function cache");
+		}
+	}
+	
+	// written to a temporary file first, so that a session stopped part way through saving leaves the old cache
+	public synchronized void save(Path path) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(Opcode.values().length);
+			// least recently used first, so that loading puts them back in the same order
+			out.writeInt(entries.size());
+			for(Map.Entry<String, Entry> e : entries.entrySet()) {
+				out.writeUTF(e.getKey());
+				writeEntry(e.getValue(), out);
+			}
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	private static void writeEntry(Entry entry, DataOutputStream out) throws IOException {
+		out.writeInt(entry.external.length);
+		for(String name : entry.external) {
+			out.writeUTF(name);
+		}
+		int n = entry.opcodes.length;
+		out.writeInt(n);
+		for(int i = 0; i < n; ++i) {
+			out.writeByte(entry.opcodes[i]);
+			out.writeByte(entry.argCounts[i]);
+			out.writeInt(entry.args1[i]);
+			out.writeInt(entry.args2[i]);
+			out.writeInt(entry.targets[i]);
+			out.writeInt(entry.lines[i]);
+			out.writeInt(entry.loops[i]);
+			out.writeUTF(entry.kinds[i] == null ? "" : entry.kinds[i]);
+		}
+		out.writeInt(entry.loopLines.length);
+		for(int i = 0; i < entry.loopLines.length; ++i) {
+			out.writeInt(entry.loopLines[i]);
+			out.writeInt(entry.loopParents[i]);
+		}
+	}
+	
+	public synchronized int getHits() {
+		return hits;
+	}
+	
+	public synchronized int getMisses() {
+		return misses;
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+}
@@ -1,18 +1,13 @@
 package com.github.kaya3.htmspreadsheet;
 
-import com.github.javaparser.ast.Node;
-import com.github.javaparser.ast.NodeList;
 import com.github.javaparser.ast.body.MethodDeclaration;
 import com.github.javaparser.ast.body.Parameter;
-import com.github.javaparser.ast.body.VariableDeclarator;
 import com.github.javaparser.ast.expr.*;
-import com.github.javaparser.ast.stmt.*;
+import com.github.javaparser.ast.stmt.DoStmt;
 import com.github.javaparser.ast.type.Type;
 import com.github.javaparser.ast.visitor.VoidVisitorAdapter;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.function.Supplier;
+import java.util.*;
 
 public class FunctionCompiler {
 	private static void assertInt(Type type) {
@@ -20,9 +15,11 @@ public class FunctionCompiler {
 			throw new IllegalArgumentException("Invalid type " + type);
 		}
 	}
-	private static void invalidAST(Node node) {
-		throw new IllegalArgumentException("Invalid AST node: " + node.getClass().getSimpleName() + "\n" + node);
-	}
+	
+	// not a name the source can clash with, since the inliner's names start with a function name
+	private static final String MEMO_KEY = "$memo";
+	// how many zeros each time round the loop which clears the memo tables pushes, at most
+	private static final int MEMO_FILL_CHUNK = 8;
 	
 	private final ProgramCompiler compiler;
 	private final MethodDeclaration method;
@@ -30,10 +27,20 @@ public class FunctionCompiler {
 	private final int paramCount;
 	private final boolean returnsInt;
 	private final List<String> variables = new ArrayList<>();
+	private PassManager passes;
+	private RegisterAllocator allocator;
 	
 	private List<Instruction> out;
-	private Instruction startNoop, returnNoop;
+	private final Instruction startNoop = new Instruction(Opcode.NOOP), returnNoop = new Instruction(Opcode.NOOP);
+	// after the prologue, where a self tail call jumps back to with the parameters reassigned
+	private final Instruction bodyNoop = new Instruction(Opcode.NOOP);
+	// where a memoised function returns to from a table hit, past storing its result
+	private final Instruction memoDone = new Instruction(Opcode.NOOP);
+	// set once the compiler has chosen which functions to memoise
+	private int memoTable = -1;
 	private int stackDepth;
+	// attached to every instruction emitted, for profiling
+	private SourceLocation location;
 	
 	public FunctionCompiler(ProgramCompiler compiler, MethodDeclaration method) {
 		if(!method.getModifiers().isEmpty() || !method.getTypeParameters().isEmpty() || !method.getThrownExceptions().isEmpty()) {
@@ -46,10 +53,48 @@ public class FunctionCompiler {
 		this.method = method;
 		
 		paramCount = method.getParameters().size();
+		String typeName = method.getType().toString();
+		if(typeName.equals("int")) {
+			returnsInt = true;
+		} else if(typeName.equals("void")) {
+			returnsInt = false;
+		} else {
+			throw new IllegalArgumentException("Invalid return type " + typeName + " for function " + method.getNameAsString());
+		}
+	}
+	
+	public String getName() {
+		return method.getNameAsString();
+	}
+	
+	// the line the function is declared on, or -1 if unknown
+	public int getLine() {
+		return IRLowering.lineOf(method);
+	}
+	
+	public int getParamCount() {
+		return paramCount;
+	}
+	
+	public int getVariableCount() {
+		return variables.size();
+	}
+	
+	public boolean returnsInt() {
+		return returnsInt;
+	}
+	
+	// only reads this function's body, so it can run alongside other functions being compiled
+	private void analyze() {
+		if(allocator != null) {
+			throw new IllegalStateException("Function " + method.getNameAsString() + " already compiled");
+		}
 		for(Parameter p : method.getParameters()) {
 			addVariable(p.getNameAsString());
 		}
 		
+		CompilerMetrics metrics = compiler.getMetrics();
+		CompilerMetrics.Phase phase = metrics.begin("validate", getName(), 0);
 		method.getBody().get().accept(new VoidVisitorAdapter<Void>() {
 			@Override
 			public void visit(VariableDeclarationExpr n, Void v) {
@@ -64,6 +109,10 @@ public class FunctionCompiler {
 				addVariable(n.getVariable(0).getNameAsString());
 			}
 			@Override
+			public void visit(DoStmt n, Void v) {
+				throw new IllegalArgumentException("do-while loops are not supported: " + n);
+			}
+			@Override
 			public void visit(AssignExpr n, Void v) {
 				if(n.getOperator() != AssignExpr.Operator.ASSIGN) {
 					throw new IllegalArgumentException("Illegal assignment operator " + n.getOperator());
@@ -78,193 +127,325 @@ public class FunctionCompiler {
 				}
 			}
 		}, null);
+		CompilerMetrics.end(phase, 0);
 		
-		String typeName = method.getType().toString();
-		if(typeName.equals("int")) {
-			returnsInt = true;
-		} else if(typeName.equals("void")) {
-			returnsInt = false;
+		phase = metrics.begin("ast-passes", getName(), 0);
+		CallInliner inliner = compiler.getInliner();
+		if(inliner != null) {
+			inliner.inline(method.getBody().get(), variables);
+		}
+		// after collecting variables, so that one declared only in removed code is still declared
+		if(compiler.isSimplifying()) {
+			TreeSimplifier.simplify(method.getBody().get());
+			// unrolled loops leave constants to fold
+			int pinned = compiler.getMemoTable(method.getNameAsString()) >= 0 ? 1 : 0;
+			LoopOptimizer.optimize(method.getBody().get(), variables, RegisterAllocator.freeRegisters(pinned), compiler.getLoopTransforms());
+			TreeSimplifier.simplify(method.getBody().get());
+		}
+		CompilerMetrics.end(phase, 0);
+		
+		phase = metrics.begin("lower", getName(), 0);
+		passes = new PassManager(IRLowering.lower(compiler, method, variables, paramCount, returnsInt));
+		CompilerMetrics.end(phase, 0);
+		
+		phase = metrics.begin("ir-passes", getName(), 0);
+		passes.run(IRPasses.REMOVE_UNREACHABLE);
+		if(compiler.isSimplifying()) {
+			passes.run(IRPasses.TAIL_CALLS);
+			passes.run(IRPasses.THREAD_JUMPS);
+			// threading can leave blocks nothing jumps to
+			passes.run(IRPasses.REMOVE_UNREACHABLE);
+		}
+		CompilerMetrics.end(phase, 0);
+		
+		phase = metrics.begin("allocate", getName(), 0);
+		memoTable = compiler.getMemoTable(method.getNameAsString());
+		if(memoTable >= 0) {
+			addVariable(MEMO_KEY);
+			allocator = new RegisterAllocator(passes, variables, paramCount, Collections.singleton(MEMO_KEY));
 		} else {
-			throw new IllegalArgumentException("Invalid return type " + typeName + " for function " + method.getNameAsString());
+			allocator = new RegisterAllocator(passes, variables, paramCount);
 		}
+		CompilerMetrics.end(phase, 0);
 	}
 	
-	public int getParamCount() {
-		return paramCount;
-	}
-	
-	public int getVariableCount() {
-		return variables.size();
-	}
-	
-	public boolean returnsInt() {
-		return returnsInt;
-	}
-	
+	// may only be called once; other functions are only asked for their signatures and start labels
 	public List<Instruction> compile() {
+		analyze();
+		CompilerMetrics.Phase phase = compiler.getMetrics().begin("codegen", getName(), 0);
 		stackDepth = paramCount;
 		out = new ArrayList<>();
+		location = new SourceLocation(getName(), IRLowering.lineOf(method), SourceLocation.PROLOGUE, null);
 		// for jumping to
-		emit(startNoop = new Instruction(Opcode.NOOP));
+		emit(startNoop);
 		
-		for(int i = paramCount-1; i >= 0; --i) {
-			emitPopToVar(variables.get(i));
+		if(getName().equals("main") && compiler.getMemoTablesSize() > 0) {
+			emitMemoTables();
+		}
+		if(!allocator.hasSpills()) {
+			for(int i = paramCount-1; i >= 0; --i) {
+				emitPopToVar(variables.get(i));
+			}
+		} else {
+			// parameters stay in their stack slots, spilled or not, and the frame is extended for spilled locals
+			for(int i = 0; i < paramCount; ++i) {
+				int reg = allocator.getRegister(variables.get(i));
+				if(reg >= RegisterAllocator.FIRST_REGISTER) {
+					emitLoadSlot(reg, i);
+				}
+			}
+			while(stackDepth < allocator.getFrameSize()) {
+				emit(new Instruction(Opcode.CONST, 0));
+			}
 		}
-		compileBlockStmt(method.getBody().get());
+		if(memoTable >= 0) {
+			emitMemoLookup();
+		}
+		emit(bodyNoop);
+		compileGraph(passes.getGraph());
 		
-		emit(returnNoop = new Instruction(Opcode.NOOP));
+		location = new SourceLocation(getName(), IRLowering.lineOf(method), SourceLocation.EPILOGUE, null);
+		emit(returnNoop);
+		if(memoTable >= 0) {
+			emitMemoStore();
+			emit(memoDone);
+		}
 		emitReturn();
+		// labels included, as the assembler removes them
+		CompilerMetrics.end(phase, out.size());
 		return out;
 	}
 	
-	public int getStartPos() {
-		return startNoop.getPos();
-	}
-	private int getReturnPos() {
-		return returnNoop.getPos();
-	}
-	
-	private void compileStmt(Statement s) {
-		if(s instanceof BlockStmt) {
-			compileBlockStmt((BlockStmt) s);
-		} else if(s instanceof ExpressionStmt) {
-			Expression e = ((ExpressionStmt) s).getExpression();
-			// assignment or function call (including print)
-			if(e instanceof VariableDeclarationExpr) {
-				VariableDeclarator v = ((VariableDeclarationExpr) e).getVariable(0);
-				compileAssignmentStmt(v.getName().asString(), v.getInitializer().get());
-			} else if(e instanceof MethodCallExpr) {
-				MethodCallExpr ex = (MethodCallExpr) e;
-				String name = ex.getNameAsString();
-				if(name.equals("output")) {
-					compileOutputStmt(ex.getArguments());
-				} else if(name.equals("input")) {
-					throw new IllegalArgumentException("input(...) call cannot be statement");
-				} else {
-					compileFunctionCall(name, ex.getArguments(), false);
-				}
-			} else if(e instanceof AssignExpr) {
-				AssignExpr ex = (AssignExpr) e;
-				compileAssignmentStmt(ex.getTarget().toString(), ex.getValue());
-			} else {
-				invalidAST(e);
-			}
-		} else if(s instanceof IfStmt) {
-			compileIfStmt((IfStmt) s);
-		} else if(s instanceof ReturnStmt) {
-			compileReturnStmt((ReturnStmt) s);
-		} else if(s instanceof WhileStmt) {
-			compileWhileStmt((WhileStmt) s);
-		} else {
-			invalidAST(s);
+	// The tables sit below main's frame, filled with zeros; main's BOS moves up past them. The address of any entry
+	// can then be reached from any frame as (address - BOS) relative to it. BOS moves first, so that it never points
+	// into the stack as it does when making a call. The zeros are pushed a few at a time by a loop, counting down in
+	// the scratch register, so that the tables cost a handful of rows rather than one per entry.
+	private void emitMemoTables() {
+		int size = compiler.getMemoTablesSize();
+		int chunk = MEMO_FILL_CHUNK;
+		while(size % chunk != 0) {
+			chunk /= 2;
+		}
+		emit(new Instruction(Opcode.CONST, size));
+		emit(new Instruction(Opcode.POP, Instruction.BOS_REGISTER));
+		emit(new Instruction(Opcode.CONST, size / chunk));
+		emit(new Instruction(Opcode.POP, RegisterAllocator.SCRATCH_REGISTER));
+		Instruction loop = new Instruction(Opcode.NOOP);
+		emit(loop);
+		for(int i = 0; i < chunk; ++i) {
+			emit(new Instruction(Opcode.CONST, 0));
 		}
+		emit(new Instruction(Opcode.PUSH, RegisterAllocator.SCRATCH_REGISTER));
+		emit(new Instruction(Opcode.CONST, -1));
+		emit(new Instruction(Opcode.ADD));
+		emit(new Instruction(Opcode.POP, RegisterAllocator.SCRATCH_REGISTER));
+		emit(new Instruction(Opcode.PUSH, RegisterAllocator.SCRATCH_REGISTER));
+		emitJumpOnValue(true, loop);
+		stackDepth = paramCount;
 	}
 	
-	private void compileBlockStmt(BlockStmt blockStmt) {
-		for(Statement s : blockStmt.getStatements()) {
-			compileStmt(s);
+	// The key is the address of the table entry for these arguments, or -1 if any argument is outside the table;
+	// the parameters may be reassigned by the body, so it is kept for storing the result at the end. An entry holds
+	// the result plus one, so that 0 means empty.
+	private void emitMemoLookup() {
+		int radix = memoRadix();
+		emit(new Instruction(Opcode.CONST, -1));
+		emitPopToVar(MEMO_KEY);
+		for(int i = 0; i < paramCount; ++i) {
+			emitPushVar(variables.get(i));
+			emit(new Instruction(Opcode.CONST, radix));
+			emit(new Instruction(Opcode.LESSTHAN));
+			emitPushVar(variables.get(i));
+			emit(new Instruction(Opcode.CONST, 0));
+			emit(new Instruction(Opcode.LESSTHAN));
+			emitLogicalNot();
+			emit(new Instruction(Opcode.AND));
+			if(i > 0) {
+				emit(new Instruction(Opcode.AND));
+			}
+		}
+		if(paramCount > 0) {
+			emitJumpIf(bodyNoop);
+		}
+		
+		// the first parameter varies fastest
+		emit(new Instruction(Opcode.CONST, 0));
+		for(int i = paramCount - 1; i >= 0; --i) {
+			if(i < paramCount - 1) {
+				emit(new Instruction(Opcode.CONST, radix));
+				emit(new Instruction(Opcode.MULT));
+			}
+			emitPushVar(variables.get(i));
+			emit(new Instruction(Opcode.ADD));
 		}
+		emit(new Instruction(Opcode.CONST, memoTable));
+		emit(new Instruction(Opcode.ADD));
+		emitPopToVar(MEMO_KEY);
+		
+		emitLoadMemoEntry();
+		emit(new Instruction(Opcode.PUSH, Instruction.IO_REGISTER));
+		emit(new Instruction(Opcode.DUP));
+		Instruction miss = new Instruction(Opcode.NOOP);
+		emitJumpIf(miss);
+		emit(new Instruction(Opcode.CONST, -1));
+		emit(new Instruction(Opcode.ADD));
+		emit(new Instruction(Opcode.POP, Instruction.IO_REGISTER));
+		emitJump(memoDone);
+		// the entry, 0, is still on the stack when a miss jumps here
+		stackDepth++;
+		emit(miss);
+		emit(new Instruction(Opcode.POP, RegisterAllocator.SCRATCH_REGISTER));
 	}
 	
-	private void compileIfStmt(IfStmt s) {
-		compileExpr(s.getCondition());
-		Instruction ifEnd = new Instruction(Opcode.NOOP);
-		emitJumpIf(ifEnd);
-		compileStmt(s.getThenStmt());
-		if(!s.hasElseBlock()) {
-			emit(ifEnd);
-		} else {
-			Instruction elseEnd = new Instruction(Opcode.NOOP);
-			emitJump(elseEnd::getPos);
-			emit(ifEnd);
-			compileStmt(s.getElseStmt().get());
-			emit(elseEnd);
-		}
+	// the return value is in the IO register, and stays there
+	private void emitMemoStore() {
+		Instruction skip = new Instruction(Opcode.NOOP);
+		emit(new Instruction(Opcode.PUSH, Instruction.IO_REGISTER));
+		emitPushVar(MEMO_KEY);
+		emit(new Instruction(Opcode.CONST, 0));
+		emitBranch(Opcode.JUMPIFLT, skip);
+		
+		emit(new Instruction(Opcode.POP, RegisterAllocator.SCRATCH_REGISTER));
+		emit(new Instruction(Opcode.PUSH, RegisterAllocator.SCRATCH_REGISTER));
+		emitPushMemoOffset();
+		emit(new Instruction(Opcode.POP, Instruction.IO_REGISTER));
+		emit(new Instruction(Opcode.PUSH, RegisterAllocator.SCRATCH_REGISTER));
+		emitAddOne();
+		emit(new Instruction(Opcode.POP, RegisterAllocator.SCRATCH_REGISTER));
+		emit(new Instruction(Opcode.STORE, RegisterAllocator.SCRATCH_REGISTER, Instruction.IO_REGISTER));
+		
+		emit(skip);
+		emit(new Instruction(Opcode.POP, Instruction.IO_REGISTER));
 	}
 	
-	private void compileWhileStmt(WhileStmt s) {
-		Instruction whileStart = new Instruction(Opcode.NOOP);
-		Instruction whileEnd = new Instruction(Opcode.NOOP);
-		emit(whileStart);
-		compileExpr(s.getCondition());
-		emitJumpIf(whileEnd);
-		compileStmt(s.getBody());
-		emitJump(whileStart::getPos);
-		emit(whileEnd);
+	// leaves the table entry for the key in the IO register
+	private void emitLoadMemoEntry() {
+		emitPushMemoOffset();
+		emit(new Instruction(Opcode.POP, Instruction.IO_REGISTER));
+		emit(new Instruction(Opcode.LOAD, Instruction.IO_REGISTER, Instruction.IO_REGISTER));
 	}
 	
-	private void compileAssignmentStmt(String s, Expression rhs) {
-		compileExpr(rhs);
-		emitPopToVar(s);
+	// the key, which is an absolute address, made relative to this frame
+	private void emitPushMemoOffset() {
+		emitPushVar(MEMO_KEY);
+		emit(new Instruction(Opcode.PUSH, Instruction.BOS_REGISTER));
+		emit(new Instruction(Opcode.SUB));
 	}
 	
-	private void compileOutputStmt(NodeList<Expression> arguments) {
-		if(arguments.size() != 3) {
-			throw new IllegalArgumentException("output(x,y,v) must take three arguments");
+	// each argument is keyed from 0 up to the radix, which is as large as the table allows
+	private int memoRadix() {
+		int radix = 1;
+		while(paramCount > 0 && Math.pow(radix + 1, paramCount) <= compiler.getMemoTableSize()) {
+			++radix;
 		}
-		
-		compileExpr(arguments.get(0));
-		compileExpr(arguments.get(1));
-		compileExpr(arguments.get(2));
-		emit(new Instruction(Opcode.POP, Instruction.IO_REGISTER));
-		emit(new Instruction(Opcode.OUTPUT));
+		return radix;
 	}
 	
-	private void compileInputExpr(NodeList<Expression> arguments) {
-		if(arguments.size() != 2) {
-			throw new IllegalArgumentException("input(x,y) must take two arguments");
+	public Instruction getStartLabel() {
+		return startNoop;
+	}
+	
+	// blocks are laid out in order, so a jump to the next block is left out, and the last block runs into the epilogue
+	private void compileGraph(ControlFlowGraph graph) {
+		Instruction[] labels = new Instruction[graph.size()];
+		for(int i = 0; i < labels.length; ++i) {
+			labels[i] = new Instruction(Opcode.NOOP);
+		}
+		for(int i = 0; i < labels.length; ++i) {
+			BasicBlock block = graph.getBlock(i);
+			emit(labels[i]);
+			for(int j = 0; j < block.getStatementCount(); ++j) {
+				location = block.getStatement(j).getLocation();
+				compileStmt(block.getStatement(j));
+			}
+			location = block.getTerminator().getLocation();
+			compileTerminator(block.getTerminator(), labels, i + 1);
 		}
-		
-		compileExpr(arguments.get(0));
-		compileExpr(arguments.get(1));
-		emit(new Instruction(Opcode.INPUT));
-		emit(new Instruction(Opcode.PUSH, Instruction.IO_REGISTER));
 	}
 	
-	private void compileFunctionCall(String name, NodeList<Expression> arguments, boolean expr) {
-		FunctionCompiler f = compiler.getFunction(name);
-		if(f == null) {
-			throw new IllegalArgumentException("No such function: " + name);
-		} else if(expr && !f.returnsInt()) {
-			throw new IllegalArgumentException("Function " + name + " is void, cannot be expression");
-		} else if(arguments.size() != f.getParamCount()) {
-			throw new IllegalArgumentException("Wrong number of arguments for function " + name + "; expected " + f.getParamCount() + ", was " + arguments.size());
+	private void compileStmt(StmtNode s) {
+		if(s instanceof StmtNode.Assign) {
+			StmtNode.Assign ex = (StmtNode.Assign) s;
+			compileExpr(ex.getValue());
+			emitPopToVar(variables.get(ex.getTarget()));
+		} else if(s instanceof StmtNode.Output) {
+			StmtNode.Output ex = (StmtNode.Output) s;
+			compileExpr(ex.getX());
+			compileExpr(ex.getY());
+			compileExpr(ex.getValue());
+			emit(new Instruction(Opcode.POP, Instruction.IO_REGISTER));
+			emit(new Instruction(Opcode.OUTPUT));
+		} else if(s instanceof StmtNode.Call) {
+			compileFunctionCall(((StmtNode.Call) s).getCall(), false);
+		} else {
+			throw new IllegalStateException("Unexpected statement " + s);
+		}
+	}
+	
+	private void compileTerminator(StmtNode.Terminator t, Instruction[] labels, int next) {
+		if(t instanceof StmtNode.Jump) {
+			int target = ((StmtNode.Jump) t).getTarget();
+			if(target != next) {
+				emitJump(labels[target]);
+			}
+		} else if(t instanceof StmtNode.Branch) {
+			StmtNode.Branch ex = (StmtNode.Branch) t;
+			if(ex.getIfTrue() == next) {
+				compileCondition(ex.getCondition(), false, labels[ex.getIfFalse()]);
+			} else if(ex.getIfFalse() == next) {
+				compileCondition(ex.getCondition(), true, labels[ex.getIfTrue()]);
+			} else {
+				compileCondition(ex.getCondition(), false, labels[ex.getIfFalse()]);
+				emitJump(labels[ex.getIfTrue()]);
+			}
+		} else if(t instanceof StmtNode.Return) {
+			ExprNode value = ((StmtNode.Return) t).getValue();
+			if(value != null) {
+				compileExpr(value);
+				emit(new Instruction(Opcode.POP, Instruction.IO_REGISTER));
+			}
+			if(next < labels.length) {
+				emitJump(returnNoop);
+			}
+		} else if(t instanceof StmtNode.TailCall) {
+			compileTailCall(((StmtNode.TailCall) t).getCall());
+		} else {
+			throw new IllegalStateException("Unexpected terminator " + t);
 		}
+	}
+	
+	private void compileFunctionCall(ExprNode.Call call, boolean expr) {
+		FunctionCompiler f = compiler.getFunction(call.getFunction());
 		
-		int maxVarRegister = 2 + variables.size();
-		// push registers
-		for(int i = maxVarRegister; i >= 3; --i) {
-			emit(new Instruction(Opcode.PUSH, i));
+		// push registers holding variables which are still needed after the call
+		int[] saved = allocator.getSavedRegisters(call);
+		for(int i = saved.length - 1; i >= 0; --i) {
+			emit(new Instruction(Opcode.PUSH, saved[i]));
 		}
 		
 		// save PC and BOS so can restore after returning
 		Instruction returnTo = new Instruction(Opcode.NOOP);
-		emit(new Instruction(Opcode.CONST, returnTo::getPos));
+		emit(new Instruction(Opcode.CONST, returnTo));
 		emit(new Instruction(Opcode.PUSH, Instruction.BOS_REGISTER));
 		
-		// update BOS
+		// BOS moves up to the arguments
 		int bosOffset = stackDepth;
 		
 		// push arguments
-		for(Expression arg : arguments) {
-			compileExpr(arg);
+		for(int i = 0; i < call.getArgCount(); ++i) {
+			compileExpr(call.getArg(i));
 		}
 		
-		emit(new Instruction(Opcode.PUSH, Instruction.BOS_REGISTER));
-		emit(new Instruction(Opcode.CONST, bosOffset));
-		emit(new Instruction(Opcode.ADD));
-		emit(new Instruction(Opcode.POP, Instruction.BOS_REGISTER));
-		
-		// jump to f
-		emitJump(f::getStartPos);
+		// update BOS and jump to f
+		emit(new Instruction(Opcode.CALL, f.getStartLabel(), bosOffset));
 		
 		emit(returnTo);
-		// PC and BOS restored by returner
-		stackDepth -= 3;
+		// PC and BOS restored by returner, which also popped the arguments
+		stackDepth -= 2 + call.getArgCount();
 		
 		// restore registers
-		for(int i = 3; i <= maxVarRegister; ++i) {
-			emit(new Instruction(Opcode.POP, i));
+		for(int reg : saved) {
+			emit(new Instruction(Opcode.POP, reg));
 		}
 		
 		if(expr) {
@@ -273,94 +454,178 @@ public class FunctionCompiler {
 		}
 	}
 	
-	private void compileReturnStmt(ReturnStmt s) {
-		if(s.getExpression().isPresent()) {
-			if(!returnsInt) {
-				throw new IllegalArgumentException("Cannot return value from void function: " + s);
-			}
-			compileExpr(s.getExpression().get());
-			emit(new Instruction(Opcode.POP, Instruction.IO_REGISTER));
-		} else if(returnsInt) {
-			throw new IllegalArgumentException("Non-void function must return a value");
+	// nothing after the call is needed, so the frame is reused: the arguments become the parameters' new values
+	private void compileTailCall(ExprNode.Call call) {
+		for(int i = 0; i < call.getArgCount(); ++i) {
+			compileExpr(call.getArg(i));
+		}
+		for(int i = paramCount-1; i >= 0; --i) {
+			emitPopToVar(variables.get(i));
 		}
-		emitJump(this::getReturnPos);
+		emitJump(bodyNoop);
 	}
 	
 	private void emitReturn() {
 		String name = method.getNameAsString();
 		if(name.equals("main")) {
 			emitHalt();
-		} else if(stackDepth != 0) {
-			throw new IllegalArgumentException("Incorrect stack depth " + stackDepth + " at return point in " + name + "; expected 0");
+		} else if(stackDepth != allocator.getFrameSize()) {
+			throw new IllegalArgumentException("Incorrect stack depth " + stackDepth + " at return point in " + name + "; expected " + allocator.getFrameSize());
 		} else {
-			emit(new Instruction(Opcode.POP, Instruction.BOS_REGISTER));
-			emit(new Instruction(Opcode.POP, Instruction.PC_REGISTER));
+			// the return value is in the IO register, so the frame is popped through the scratch register
+			while(stackDepth > 0) {
+				emit(new Instruction(Opcode.POP, RegisterAllocator.SCRATCH_REGISTER));
+			}
+			emit(new Instruction(Opcode.RET));
 		}
 	}
 	
-	private void compileExpr(Expression e) {
-		if(e instanceof EnclosedExpr) {
-			compileExpr(((EnclosedExpr) e).getInner().get());
-		} else if(e instanceof BinaryExpr) {
-			BinaryExpr ex = (BinaryExpr) e;
-			BinaryExpr.Operator o = ex.getOperator();
-			if(o == BinaryExpr.Operator.AND) {
+	private void compileExpr(ExprNode e) {
+		if(e instanceof ExprNode.Const) {
+			emit(new Instruction(Opcode.CONST, ((ExprNode.Const) e).getValue()));
+		} else if(e instanceof ExprNode.Var) {
+			emitPushVar(variables.get(((ExprNode.Var) e).getIndex()));
+		} else if(e instanceof ExprNode.Binary) {
+			ExprNode.Binary ex = (ExprNode.Binary) e;
+			if(ex.getOperator() == ExprNode.Operator.AND) {
 				compileShortCircuitAnd(ex);
-			} else if(o == BinaryExpr.Operator.OR) {
+			} else if(ex.getOperator() == ExprNode.Operator.OR) {
 				compileShortCircuitOr(ex);
 			} else {
-				compileBinaryExpr((BinaryExpr) e);
-			}
-		} else if(e instanceof UnaryExpr) {
-			compileUnaryExpr((UnaryExpr) e);
-		} else if(e instanceof IntegerLiteralExpr) {
-			compileLiteralExpr((IntegerLiteralExpr) e);
-		} else if(e instanceof MethodCallExpr) {
-			MethodCallExpr ex = (MethodCallExpr) e;
-			String name = ex.getNameAsString();
-			if(name.equals("output")) {
-				throw new IllegalArgumentException("output(...) call cannot be expression");
-			} else if(name.equals("input")) {
-				compileInputExpr(ex.getArguments());
-			} else {
-				compileFunctionCall(name, ex.getArguments(), true);
+				compileBinaryExpr(ex);
 			}
-		} else if(e instanceof NameExpr) {
-			emitPushVar(((NameExpr) e).getNameAsString());
+		} else if(e instanceof ExprNode.Unary) {
+			compileUnaryExpr((ExprNode.Unary) e);
+		} else if(e instanceof ExprNode.Call) {
+			compileFunctionCall((ExprNode.Call) e, true);
+		} else if(e instanceof ExprNode.Input) {
+			ExprNode.Input ex = (ExprNode.Input) e;
+			compileExpr(ex.getX());
+			compileExpr(ex.getY());
+			emit(new Instruction(Opcode.INPUT));
+			emit(new Instruction(Opcode.PUSH, Instruction.IO_REGISTER));
 		} else {
-			invalidAST(e);
+			throw new IllegalStateException("Unexpected expression " + e);
 		}
 	}
 	
-	private void compileShortCircuitAnd(BinaryExpr e) {
+	private void compileShortCircuitAnd(ExprNode.Binary e) {
 		Instruction halfway = new Instruction(Opcode.NOOP);
 		Instruction end = new Instruction(Opcode.NOOP);
 		
-		compileExpr(e.getLeft());
-		emitJumpIf(halfway);
+		compileCondition(e.getLeft(), false, halfway);
 		compileExpr(e.getRight());
-		emitJump(end::getPos);
+		emitJump(end);
+		// the right operand's value isn't on the stack at halfway
+		stackDepth--;
 		emit(halfway);
 		emit(new Instruction(Opcode.CONST, 0));
 		emit(end);
-		stackDepth--;
 	}
 	
-	private void compileShortCircuitOr(BinaryExpr e) {
+	private void compileShortCircuitOr(ExprNode.Binary e) {
 		Instruction halfway = new Instruction(Opcode.NOOP);
 		Instruction end = new Instruction(Opcode.NOOP);
 		
-		compileExpr(e.getLeft());
-		emitJumpIf(halfway);
+		compileCondition(e.getLeft(), false, halfway);
 		emit(new Instruction(Opcode.CONST, 1));
-		emitJump(end::getPos);
+		emitJump(end);
+		// the 1 isn't on the stack at halfway, so the right operand's calls get the right frame
+		stackDepth--;
 		emit(halfway);
 		compileExpr(e.getRight());
 		emit(end);
-		stackDepth--;
 	}
 	
-	private void compileBinaryExpr(BinaryExpr e) {
+	// Jumps to the target if the condition is true or false as given, and falls through otherwise. The machine only
+	// jumps on zero, so a negation costs nothing here but a change in which way the branch goes, and && and || become
+	// chains of jumps rather than values.
+	private void compileCondition(ExprNode e, boolean jumpIfTrue, Instruction to) {
+		if(e instanceof ExprNode.Const) {
+			if((((ExprNode.Const) e).getValue() != 0) == jumpIfTrue) {
+				emitJump(to);
+			}
+		} else if(e instanceof ExprNode.Unary && ((ExprNode.Unary) e).getOperator() == ExprNode.Operator.LOGICAL_NOT) {
+			compileCondition(((ExprNode.Unary) e).getOperand(), !jumpIfTrue, to);
+		} else if(e instanceof ExprNode.Binary) {
+			compileBinaryCondition((ExprNode.Binary) e, jumpIfTrue, to);
+		} else {
+			compileExpr(e);
+			emitJumpOnValue(jumpIfTrue, to);
+		}
+	}
+	
+	private void compileBinaryCondition(ExprNode.Binary e, boolean jumpIfTrue, Instruction to) {
+		ExprNode left = e.getLeft(), right = e.getRight();
+		ExprNode.Operator op = e.getOperator();
+		switch(op) {
+			case AND:
+			case OR:
+				if(jumpIfTrue == (op == ExprNode.Operator.OR)) {
+					// either operand decides it
+					compileCondition(left, jumpIfTrue, to);
+					compileCondition(right, jumpIfTrue, to);
+				} else {
+					Instruction skip = new Instruction(Opcode.NOOP);
+					compileCondition(left, !jumpIfTrue, skip);
+					compileCondition(right, jumpIfTrue, to);
+					emit(skip);
+				}
+				return;
+			case EQUALS:
+			case NOT_EQUALS:
+				compileExpr(left);
+				compileExpr(right);
+				emitBranch(jumpIfTrue == (op == ExprNode.Operator.EQUALS) ? Opcode.JUMPIFEQ : Opcode.JUMPIFNE, to);
+				return;
+			case LESS:
+			case GREATER:
+			case LESS_EQUALS:
+			case GREATER_EQUALS:
+				break;
+			default:
+				compileExpr(e);
+				emitJumpOnValue(jumpIfTrue, to);
+				return;
+		}
+		
+		// x > y is y < x, x <= y is !(y < x) and x >= y is !(x < y); a < b is also !(b < a + 1)
+		boolean reversed = op == ExprNode.Operator.GREATER || op == ExprNode.Operator.LESS_EQUALS;
+		boolean negated = op == ExprNode.Operator.LESS_EQUALS || op == ExprNode.Operator.GREATER_EQUALS;
+		boolean jumpIfLess = jumpIfTrue != negated;
+		boolean canSwap = isTrivial(left) || isTrivial(right);
+		if(!reversed && !jumpIfLess) {
+			emitLessThanJump(left, right, false, false, to);
+		} else if(!reversed) {
+			boolean swap = canSwap && left instanceof ExprNode.Const;
+			emitLessThanJump(swap ? right : left, swap ? left : right, swap, !swap, to);
+		} else if(!jumpIfLess) {
+			emitLessThanJump(canSwap ? right : left, canSwap ? left : right, !canSwap, !canSwap, to);
+		} else {
+			emitLessThanJump(left, right, true, false, to);
+		}
+	}
+	
+	// jumps if x < y + (addOne ? 1 : 0) is false, or true if negate is set
+	private void emitLessThanJump(ExprNode x, ExprNode y, boolean addOne, boolean negate, Instruction to) {
+		compileExpr(x);
+		if(addOne && y instanceof ExprNode.Const && ((ExprNode.Const) y).getValue() < Instruction.MAX_INT) {
+			emit(new Instruction(Opcode.CONST, ((ExprNode.Const) y).getValue() + 1));
+		} else {
+			compileExpr(y);
+			if(addOne) {
+				emitAddOne();
+			}
+		}
+		emitBranch(negate ? Opcode.JUMPIFLT : Opcode.JUMPIFGE, to);
+	}
+	
+	// evaluating the expression has no effect and can't fail, so it can be moved past any other
+	private static boolean isTrivial(ExprNode e) {
+		return e instanceof ExprNode.Var || e instanceof ExprNode.Const;
+	}
+	
+	private void compileBinaryExpr(ExprNode.Binary e) {
 		compileExpr(e.getLeft());
 		compileExpr(e.getRight());
 		switch(e.getOperator()) {
@@ -394,11 +659,12 @@ public class FunctionCompiler {
 			case LEFT_SHIFT:
 				emit(new Instruction(Opcode.LSHIFT));
 				break;
-			case SIGNED_RIGHT_SHIFT:
+			case RIGHT_SHIFT:
 				emit(new Instruction(Opcode.RSHIFT));
 				break;
 			case MINUS:
-				emitUnaryMinus();
+				emit(new Instruction(Opcode.SUB));
+				break;
 			case PLUS:
 				emit(new Instruction(Opcode.ADD));
 				break;
@@ -406,24 +672,24 @@ public class FunctionCompiler {
 				emit(new Instruction(Opcode.MULT));
 				break;
 			default:
-				throw new IllegalArgumentException("Invalid binary operator: " + e.getOperator());
+				throw new IllegalStateException("Unexpected binary operator " + e.getOperator());
 		}
 	}
 	
-	private void compileUnaryExpr(UnaryExpr e) {
-		compileExpr(e.getExpression());
+	private void compileUnaryExpr(ExprNode.Unary e) {
+		compileExpr(e.getOperand());
 		switch(e.getOperator()) {
-			case MINUS:
+			case NEGATE:
 				emitUnaryMinus();
 				break;
-			case LOGICAL_COMPLEMENT:
+			case LOGICAL_NOT:
 				emitLogicalNot();
 				break;
-			case BITWISE_COMPLEMENT:
+			case COMPLEMENT:
 				emit(new Instruction(Opcode.NOT));
 				break;
 			default:
-				throw new IllegalArgumentException("Invalid unary operator: " + e.getOperator());
+				throw new IllegalStateException("Unexpected unary operator " + e.getOperator());
 		}
 	}
 	
@@ -442,66 +708,90 @@ public class FunctionCompiler {
 		emit(new Instruction(Opcode.EQUALS));
 	}
 	
-	private void compileLiteralExpr(IntegerLiteralExpr e) {
-		int x = e.asInt();
-		if(x < -Instruction.MAX_INT || x > Instruction.MAX_INT) {
-			throw new IllegalArgumentException("Integer literal " + x + " too large");
-		}
-		emit(new Instruction(Opcode.CONST, x & Instruction.MAX_INT));
+	private void emitJump(Instruction to) {
+		emit(new Instruction(Opcode.JUMP, to));
+	}
+	
+	private void emitJumpIf(Instruction to) {
+		emit(new Instruction(Opcode.JUMPIFZ, to));
 	}
 	
-	private void emitJump(Supplier<Integer> toPos) {
-		emit(new Instruction(Opcode.CONST, toPos));
-		emit(new Instruction(Opcode.POP, Instruction.PC_REGISTER));
+	// one of the compare-and-branch instructions, taking its operands from the stack
+	private void emitBranch(Opcode op, Instruction to) {
+		emit(new Instruction(op, to));
 	}
 	
-	private void emitJumpIf(Instruction to) {
-		emit(new Instruction(Opcode.CONST, to::getPos));
-		emit(new Instruction(Opcode.POP, Instruction.IO_REGISTER));
-		emit(new Instruction(Opcode.JUMPIF, Instruction.IO_REGISTER));
+	// jumps if the value on the stack is non-zero, or if it is zero
+	private void emitJumpOnValue(boolean ifNonZero, Instruction to) {
+		if(ifNonZero) {
+			emit(new Instruction(Opcode.CONST, 0));
+			emitBranch(Opcode.JUMPIFNE, to);
+		} else {
+			emitJumpIf(to);
+		}
 	}
 	
 	private void emitHalt() {
-		emitJump(() -> -1);
+		emit(new Instruction(Opcode.JUMP, -1));
 	}
 	
 	private void addVariable(String name) {
-		// TODO: allow more than 5 variables using STORE/LOAD
-		
 		if(variables.contains(name)) {
 			throw new IllegalArgumentException("Variable " + name + " already declared");
 		}
 		variables.add(name);
-		if(variables.size() > 5) {
-			throw new IllegalArgumentException("Too many variables (max 5 per function)");
-		}
 	}
 	
-	private int getVariableRegister(String name) {
-		int idx = variables.indexOf(name);
-		if(idx < 0) {
+	private void checkVariable(String name) {
+		if(!variables.contains(name)) {
 			throw new IllegalArgumentException("No such variable " + name);
 		}
-		return idx + 3;
+	}
+	
+	// spilled variables are addressed through the IO register, which is always free between statements
+	private void emitLoadSlot(int reg, int slot) {
+		emit(new Instruction(Opcode.CONST, slot));
+		emit(new Instruction(Opcode.POP, Instruction.IO_REGISTER));
+		emit(new Instruction(Opcode.LOAD, reg, Instruction.IO_REGISTER));
+	}
+	
+	private void emitStoreSlot(int reg, int slot) {
+		emit(new Instruction(Opcode.CONST, slot));
+		emit(new Instruction(Opcode.POP, Instruction.IO_REGISTER));
+		emit(new Instruction(Opcode.STORE, reg, Instruction.IO_REGISTER));
 	}
 	
 	private void emitPushVar(String name) {
-		int reg = getVariableRegister(name);
+		checkVariable(name);
+		int reg = allocator.getRegister(name);
+		if(reg < 0) {
+			reg = Instruction.IO_REGISTER;
+			emitLoadSlot(reg, allocator.getSlot(name));
+		}
 		emit(new Instruction(Opcode.PUSH, reg));
 	}
 	
 	private void emitPopToVar(String name) {
-		int reg = getVariableRegister(name);
-		emit(new Instruction(Opcode.POP, reg));
+		checkVariable(name);
+		int reg = allocator.getRegister(name);
+		if(reg >= 0) {
+			emit(new Instruction(Opcode.POP, reg));
+		} else {
+			emit(new Instruction(Opcode.POP, RegisterAllocator.SCRATCH_REGISTER));
+			emitStoreSlot(RegisterAllocator.SCRATCH_REGISTER, allocator.getSlot(name));
+		}
 	}
 	
 	private void emit(Instruction instruction) {
+		instruction.setSource(location);
 		int n = out.size();
 		if(instruction.getOpcode() == Opcode.POP && n > 0 && out.get(n-1).getOpcode() == Opcode.PUSH) {
 			int toReg = instruction.getArg1();
 			int fromReg = out.remove(n-1).getArg1();
 			if(toReg != fromReg) {
-				out.add(new Instruction(Opcode.COPY, toReg, fromReg));
+				Instruction copy = new Instruction(Opcode.COPY, toReg, fromReg);
+				copy.setSource(location);
+				out.add(copy);
 			}
 		} else {
 			out.add(instruction);
@@ -0,0 +1,70 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.util.Arrays;
+
+public class Grid {
+	public static final int IO_SIZE = 16;
+	
+	public static boolean inRange(int x, int y) {
+		return x >= 0 && x < IO_SIZE && y >= 0 && y < IO_SIZE;
+	}
+	
+	private final int[] values = new int[IO_SIZE * IO_SIZE];
+	// output cells which have never been written are shown blank, like the spreadsheet
+	private final boolean[] written = new boolean[IO_SIZE * IO_SIZE];
+	
+	public int get(int x, int y) {
+		return values[y * IO_SIZE + x];
+	}
+	
+	public boolean isSet(int x, int y) {
+		return written[y * IO_SIZE + x];
+	}
+	
+	public void set(int x, int y, int value) {
+		int i = y * IO_SIZE + x;
+		values[i] = value;
+		written[i] = true;
+	}
+	
+	public void clear() {
+		Arrays.fill(values, 0);
+		Arrays.fill(written, false);
+	}
+	
+	public void copyFrom(Grid other) {
+		System.arraycopy(other.values, 0, values, 0, values.length);
+		System.arraycopy(other.written, 0, written, 0, written.length);
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof Grid)) {
+			return false;
+		}
+		Grid other = (Grid) o;
+		return Arrays.equals(values, other.values) && Arrays.equals(written, other.written);
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode(values) + Arrays.hashCode(written);
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(int y = 0; y < IO_SIZE; ++y) {
+			for(int x = 0; x < IO_SIZE; ++x) {
+				if(x > 0) {
+					sb.append('\t');
+				}
+				if(isSet(x, y)) {
+					sb.append(get(x, y));
+				}
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+}
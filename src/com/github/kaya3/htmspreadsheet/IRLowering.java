@@ -0,0 +1,327 @@
+package com.github.kaya3.htmspreadsheet;
+
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.*;
+import com.github.javaparser.ast.stmt.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Lowers a function body from JavaParser's AST to a control-flow graph, once, after the AST passes have run. This is
+// where the body is checked: calls against the other functions' signatures, returns against the return type, and
+// names against the declared variables. Blocks are numbered in source order, which the code generator lays out as is.
+public final class IRLowering {
+	private final ProgramCompiler compiler;
+	private final String name;
+	private final List<String> variables;
+	private final boolean returnsInt;
+	
+	private final List<List<StmtNode>> bodies = new ArrayList<>();
+	private final List<StmtNode.Terminator> terminators = new ArrayList<>();
+	private final List<Integer> depths = new ArrayList<>();
+	private int current;
+	private int depth;
+	private SourceLocation.Loop loop;
+	
+	private IRLowering(ProgramCompiler compiler, String name, List<String> variables, boolean returnsInt) {
+		this.compiler = compiler;
+		this.name = name;
+		this.variables = variables;
+		this.returnsInt = returnsInt;
+	}
+	
+	public static ControlFlowGraph lower(ProgramCompiler compiler, MethodDeclaration method, List<String> variables, int paramCount, boolean returnsInt) {
+		IRLowering lowering = new IRLowering(compiler, method.getNameAsString(), variables, returnsInt);
+		lowering.current = lowering.newBlock();
+		lowering.lowerStmt(method.getBody().get());
+		// falling off the end returns
+		lowering.finish(new StmtNode.Return(null, new SourceLocation(lowering.name, lineOf(method), SourceLocation.EPILOGUE, null)));
+		
+		BasicBlock[] blocks = new BasicBlock[lowering.bodies.size()];
+		for(int i = 0; i < blocks.length; ++i) {
+			blocks[i] = new BasicBlock(lowering.bodies.get(i).toArray(new StmtNode[0]), lowering.terminators.get(i), lowering.depths.get(i));
+		}
+		return new ControlFlowGraph(lowering.name, variables, paramCount, blocks);
+	}
+	
+	static int lineOf(Node node) {
+		return node.getBegin().isPresent() ? node.getBegin().get().line : -1;
+	}
+	
+	private static String kindOf(Statement s) {
+		if(s instanceof IfStmt) {
+			return SourceLocation.IF;
+		} else if(s instanceof WhileStmt || s instanceof DoStmt) {
+			return SourceLocation.WHILE;
+		} else if(s instanceof ReturnStmt) {
+			return SourceLocation.RETURN;
+		} else if(s instanceof ExpressionStmt) {
+			Expression e = ((ExpressionStmt) s).getExpression();
+			if(e instanceof VariableDeclarationExpr) {
+				return SourceLocation.DECLARATION;
+			} else if(e instanceof MethodCallExpr) {
+				return ((MethodCallExpr) e).getNameAsString().equals("output") ? SourceLocation.OUTPUT : SourceLocation.CALL;
+			}
+		}
+		return SourceLocation.ASSIGNMENT;
+	}
+	
+	private static void invalidAST(Node node) {
+		throw new IllegalArgumentException("Invalid AST node: " + node.getClass().getSimpleName() + "\n" + node);
+	}
+	
+	private int newBlock() {
+		bodies.add(new ArrayList<>());
+		terminators.add(null);
+		depths.add(depth);
+		return bodies.size() - 1;
+	}
+	
+	private void finish(StmtNode.Terminator terminator) {
+		terminators.set(current, terminator);
+	}
+	
+	private void lowerStmt(Statement s) {
+		if(s instanceof BlockStmt) {
+			for(Statement t : ((BlockStmt) s).getStatements()) {
+				lowerStmt(t);
+			}
+			return;
+		}
+		
+		SourceLocation location = new SourceLocation(name, lineOf(s), kindOf(s), loop);
+		if(s instanceof ExpressionStmt) {
+			Expression e = ((ExpressionStmt) s).getExpression();
+			if(e instanceof VariableDeclarationExpr) {
+				VariableDeclarator v = ((VariableDeclarationExpr) e).getVariable(0);
+				lowerAssignment(v.getName().asString(), v.getInitializer().get(), location);
+			} else if(e instanceof MethodCallExpr) {
+				MethodCallExpr ex = (MethodCallExpr) e;
+				String name = ex.getNameAsString();
+				if(name.equals("output")) {
+					lowerOutput(ex.getArguments(), location);
+				} else if(name.equals("input")) {
+					throw new IllegalArgumentException("input(...) call cannot be statement");
+				} else {
+					bodies.get(current).add(new StmtNode.Call(lowerCall(ex, false), location));
+				}
+			} else if(e instanceof AssignExpr) {
+				AssignExpr ex = (AssignExpr) e;
+				lowerAssignment(ex.getTarget().toString(), ex.getValue(), location);
+			} else {
+				invalidAST(e);
+			}
+		} else if(s instanceof IfStmt) {
+			lowerIf((IfStmt) s, location);
+		} else if(s instanceof ReturnStmt) {
+			lowerReturn((ReturnStmt) s, location);
+		} else if(s instanceof WhileStmt) {
+			lowerWhile((WhileStmt) s);
+		} else if(s instanceof DoStmt) {
+			lowerDo((DoStmt) s);
+		} else {
+			invalidAST(s);
+		}
+	}
+	
+	private void lowerAssignment(String target, Expression value, SourceLocation location) {
+		ExprNode v = lowerExpr(value);
+		bodies.get(current).add(new StmtNode.Assign(variable(target), v, location));
+	}
+	
+	private void lowerOutput(NodeList<Expression> arguments, SourceLocation location) {
+		if(arguments.size() != 3) {
+			throw new IllegalArgumentException("output(x,y,v) must take three arguments");
+		}
+		ExprNode x = lowerExpr(arguments.get(0)), y = lowerExpr(arguments.get(1)), v = lowerExpr(arguments.get(2));
+		bodies.get(current).add(new StmtNode.Output(x, y, v, location));
+	}
+	
+	// the jump over the else branch belongs to the if statement
+	private void lowerIf(IfStmt s, SourceLocation location) {
+		int condition = current;
+		ExprNode c = lowerExpr(s.getCondition());
+		
+		int thenStart = current = newBlock();
+		lowerStmt(s.getThenStmt());
+		int thenEnd = current;
+		int elseStart = -1, elseEnd = -1;
+		if(s.getElseStmt().isPresent()) {
+			elseStart = current = newBlock();
+			lowerStmt(s.getElseStmt().get());
+			elseEnd = current;
+		}
+		int join = current = newBlock();
+		
+		terminators.set(condition, new StmtNode.Branch(c, thenStart, elseStart >= 0 ? elseStart : join, location));
+		terminators.set(thenEnd, new StmtNode.Jump(join, location));
+		if(elseEnd >= 0) {
+			terminators.set(elseEnd, new StmtNode.Jump(join, location));
+		}
+	}
+	
+	// the condition and the jump back belong to the loop
+	private void lowerWhile(WhileStmt s) {
+		SourceLocation.Loop outer = loop;
+		loop = new SourceLocation.Loop(name, lineOf(s), outer);
+		SourceLocation location = new SourceLocation(name, lineOf(s), SourceLocation.WHILE, loop);
+		
+		depth++;
+		int header = newBlock();
+		finish(new StmtNode.Jump(header, location));
+		current = header;
+		ExprNode c = lowerExpr(s.getCondition());
+		
+		int body = current = newBlock();
+		lowerStmt(s.getBody());
+		finish(new StmtNode.Jump(header, location));
+		depth--;
+		
+		int exit = current = newBlock();
+		terminators.set(header, new StmtNode.Branch(c, body, exit, location));
+		loop = outer;
+	}
+	
+	// only LoopOptimizer makes these; the condition is tested at the end of the body, and branches back to its start
+	private void lowerDo(DoStmt s) {
+		SourceLocation.Loop outer = loop;
+		loop = new SourceLocation.Loop(name, lineOf(s), outer);
+		SourceLocation location = new SourceLocation(name, lineOf(s), SourceLocation.WHILE, loop);
+		
+		depth++;
+		int body = newBlock();
+		finish(new StmtNode.Jump(body, location));
+		current = body;
+		lowerStmt(s.getBody());
+		ExprNode c = lowerExpr(s.getCondition());
+		int test = current;
+		depth--;
+		
+		int exit = current = newBlock();
+		terminators.set(test, new StmtNode.Branch(c, body, exit, location));
+		loop = outer;
+	}
+	
+	// anything after a return is still checked, in a block nothing jumps to
+	private void lowerReturn(ReturnStmt s, SourceLocation location) {
+		ExprNode value = null;
+		if(s.getExpression().isPresent()) {
+			if(!returnsInt) {
+				throw new IllegalArgumentException("Cannot return value from void function: " + s);
+			}
+			value = lowerExpr(s.getExpression().get());
+		} else if(returnsInt) {
+			throw new IllegalArgumentException("Non-void function must return a value");
+		}
+		finish(new StmtNode.Return(value, location));
+		current = newBlock();
+	}
+	
+	private ExprNode lowerExpr(Expression e) {
+		if(e instanceof EnclosedExpr) {
+			return lowerExpr(((EnclosedExpr) e).getInner().get());
+		} else if(e instanceof BinaryExpr) {
+			BinaryExpr ex = (BinaryExpr) e;
+			return new ExprNode.Binary(binaryOperator(ex.getOperator()), lowerExpr(ex.getLeft()), lowerExpr(ex.getRight()));
+		} else if(e instanceof UnaryExpr) {
+			return lowerUnaryExpr((UnaryExpr) e);
+		} else if(e instanceof IntegerLiteralExpr) {
+			return new ExprNode.Const(literalValue((IntegerLiteralExpr) e));
+		} else if(e instanceof MethodCallExpr) {
+			MethodCallExpr ex = (MethodCallExpr) e;
+			String name = ex.getNameAsString();
+			if(name.equals("output")) {
+				throw new IllegalArgumentException("output(...) call cannot be expression");
+			} else if(name.equals("input")) {
+				if(ex.getArguments().size() != 2) {
+					throw new IllegalArgumentException("input(x,y) must take two arguments");
+				}
+				return new ExprNode.Input(lowerExpr(ex.getArguments().get(0)), lowerExpr(ex.getArguments().get(1)));
+			} else {
+				return lowerCall(ex, true);
+			}
+		} else if(e instanceof NameExpr) {
+			return new ExprNode.Var(variable(((NameExpr) e).getNameAsString()));
+		} else {
+			invalidAST(e);
+			return null;
+		}
+	}
+	
+	private static ExprNode.Operator binaryOperator(BinaryExpr.Operator o) {
+		switch(o) {
+			case BINARY_OR: return ExprNode.Operator.BINARY_OR;
+			case BINARY_AND: return ExprNode.Operator.BINARY_AND;
+			case XOR: return ExprNode.Operator.XOR;
+			case EQUALS: return ExprNode.Operator.EQUALS;
+			case NOT_EQUALS: return ExprNode.Operator.NOT_EQUALS;
+			case LESS: return ExprNode.Operator.LESS;
+			case LESS_EQUALS: return ExprNode.Operator.LESS_EQUALS;
+			case GREATER: return ExprNode.Operator.GREATER;
+			case GREATER_EQUALS: return ExprNode.Operator.GREATER_EQUALS;
+			case LEFT_SHIFT: return ExprNode.Operator.LEFT_SHIFT;
+			case SIGNED_RIGHT_SHIFT: return ExprNode.Operator.RIGHT_SHIFT;
+			case MINUS: return ExprNode.Operator.MINUS;
+			case PLUS: return ExprNode.Operator.PLUS;
+			case MULTIPLY: return ExprNode.Operator.MULTIPLY;
+			case AND: return ExprNode.Operator.AND;
+			case OR: return ExprNode.Operator.OR;
+			default:
+				throw new IllegalArgumentException("Invalid binary operator: " + o);
+		}
+	}
+	
+	private ExprNode lowerUnaryExpr(UnaryExpr e) {
+		if(e.getOperator() == UnaryExpr.Operator.MINUS && e.getExpression() instanceof IntegerLiteralExpr) {
+			// a negative constant
+			return new ExprNode.Const(-literalValue((IntegerLiteralExpr) e.getExpression()));
+		}
+		ExprNode operand = lowerExpr(e.getExpression());
+		switch(e.getOperator()) {
+			case MINUS:
+				return new ExprNode.Unary(ExprNode.Operator.NEGATE, operand);
+			case LOGICAL_COMPLEMENT:
+				return new ExprNode.Unary(ExprNode.Operator.LOGICAL_NOT, operand);
+			case BITWISE_COMPLEMENT:
+				return new ExprNode.Unary(ExprNode.Operator.COMPLEMENT, operand);
+			default:
+				throw new IllegalArgumentException("Invalid unary operator: " + e.getOperator());
+		}
+	}
+	
+	private static int literalValue(IntegerLiteralExpr e) {
+		int x = TreeSimplifier.intValue(e);
+		if(x < -Instruction.MAX_INT || x > Instruction.MAX_INT) {
+			throw new IllegalArgumentException("Integer literal " + x + " too large");
+		}
+		return x;
+	}
+	
+	private ExprNode.Call lowerCall(MethodCallExpr call, boolean expr) {
+		String name = call.getNameAsString();
+		FunctionCompiler f = compiler.getFunction(name);
+		if(f == null) {
+			throw new IllegalArgumentException("No such function: " + name);
+		} else if(expr && !f.returnsInt()) {
+			throw new IllegalArgumentException("Function " + name + " is void, cannot be expression");
+		} else if(call.getArguments().size() != f.getParamCount()) {
+			throw new IllegalArgumentException("Wrong number of arguments for function " + name + "; expected " + f.getParamCount() + ", was " + call.getArguments().size());
+		}
+		ExprNode[] args = new ExprNode[call.getArguments().size()];
+		for(int i = 0; i < args.length; ++i) {
+			args[i] = lowerExpr(call.getArguments().get(i));
+		}
+		return new ExprNode.Call(name, args);
+	}
+	
+	private int variable(String name) {
+		int index = variables.indexOf(name);
+		if(index < 0) {
+			throw new IllegalArgumentException("No such variable " + name);
+		}
+		return index;
+	}
+}
@@ -0,0 +1,204 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.util.BitSet;
+
+// The analyses and transforms run over each function's control-flow graph.
+public final class IRPasses {
+	private IRPasses() {}
+	
+	// variables live on entry to and exit from each block, by index
+	public static final class Liveness {
+		private final BitSet[] liveIn, liveOut;
+		
+		private Liveness(BitSet[] liveIn, BitSet[] liveOut) {
+			this.liveIn = liveIn;
+			this.liveOut = liveOut;
+		}
+		
+		public BitSet getLiveIn(int block) {
+			return (BitSet) liveIn[block].clone();
+		}
+		
+		public BitSet getLiveOut(int block) {
+			return (BitSet) liveOut[block].clone();
+		}
+	}
+	
+	// adds the variables the expression reads to live, which holds those live after it
+	public static void addUses(ExprNode e, BitSet live) {
+		if(e instanceof ExprNode.Var) {
+			live.set(((ExprNode.Var) e).getIndex());
+		} else if(e instanceof ExprNode.Unary) {
+			addUses(((ExprNode.Unary) e).getOperand(), live);
+		} else if(e instanceof ExprNode.Binary) {
+			addUses(((ExprNode.Binary) e).getLeft(), live);
+			addUses(((ExprNode.Binary) e).getRight(), live);
+		} else if(e instanceof ExprNode.Call) {
+			ExprNode.Call call = (ExprNode.Call) e;
+			for(int i = 0; i < call.getArgCount(); ++i) {
+				addUses(call.getArg(i), live);
+			}
+		} else if(e instanceof ExprNode.Input) {
+			addUses(((ExprNode.Input) e).getX(), live);
+			addUses(((ExprNode.Input) e).getY(), live);
+		}
+	}
+	
+	// turns the variables live after the statement into those live before it
+	public static void liveBefore(StmtNode s, BitSet live) {
+		if(s instanceof StmtNode.Assign) {
+			StmtNode.Assign ex = (StmtNode.Assign) s;
+			live.clear(ex.getTarget());
+			addUses(ex.getValue(), live);
+		} else if(s instanceof StmtNode.Output) {
+			StmtNode.Output ex = (StmtNode.Output) s;
+			addUses(ex.getX(), live);
+			addUses(ex.getY(), live);
+			addUses(ex.getValue(), live);
+		} else if(s instanceof StmtNode.Call) {
+			addUses(((StmtNode.Call) s).getCall(), live);
+		} else if(s instanceof StmtNode.Branch) {
+			addUses(((StmtNode.Branch) s).getCondition(), live);
+		} else if(s instanceof StmtNode.Return) {
+			ExprNode value = ((StmtNode.Return) s).getValue();
+			if(value != null) {
+				addUses(value, live);
+			}
+		} else if(s instanceof StmtNode.TailCall) {
+			addUses(((StmtNode.TailCall) s).getCall(), live);
+		}
+	}
+	
+	// iterated to a fixed point, visiting blocks backwards since most edges go forwards
+	public static final PassManager.Analysis<Liveness> LIVENESS = (graph, passes) -> {
+		int n = graph.size();
+		BitSet[] liveIn = new BitSet[n], liveOut = new BitSet[n];
+		for(int i = 0; i < n; ++i) {
+			liveIn[i] = new BitSet();
+			liveOut[i] = new BitSet();
+		}
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+			for(int i = n - 1; i >= 0; --i) {
+				BasicBlock block = graph.getBlock(i);
+				StmtNode.Terminator t = block.getTerminator();
+				BitSet live = new BitSet();
+				for(int j = 0; j < t.getSuccessorCount(); ++j) {
+					live.or(liveIn[t.getSuccessor(j)]);
+				}
+				liveOut[i] = (BitSet) live.clone();
+				liveBefore(t, live);
+				for(int j = block.getStatementCount() - 1; j >= 0; --j) {
+					liveBefore(block.getStatement(j), live);
+				}
+				if(!live.equals(liveIn[i])) {
+					liveIn[i] = live;
+					changed = true;
+				}
+			}
+		}
+		return new Liveness(liveIn, liveOut);
+	};
+	
+	public static final PassManager.Analysis<BitSet> REACHABLE = (graph, passes) -> {
+		BitSet reached = new BitSet(graph.size());
+		int[] stack = new int[graph.size()];
+		int top = 0;
+		stack[top++] = 0;
+		reached.set(0);
+		while(top > 0) {
+			StmtNode.Terminator t = graph.getBlock(stack[--top]).getTerminator();
+			for(int j = 0; j < t.getSuccessorCount(); ++j) {
+				int next = t.getSuccessor(j);
+				if(!reached.get(next)) {
+					reached.set(next);
+					stack[top++] = next;
+				}
+			}
+		}
+		return reached;
+	};
+	
+	public static final PassManager.Transform REMOVE_UNREACHABLE = (graph, passes) -> {
+		BitSet reached = passes.get(REACHABLE);
+		boolean[] keep = new boolean[graph.size()];
+		for(int i = 0; i < keep.length; ++i) {
+			keep[i] = reached.get(i);
+		}
+		return graph.retain(keep);
+	};
+	
+	// a jump to an empty block which only jumps on goes straight to where that block goes
+	public static final PassManager.Transform THREAD_JUMPS = (graph, passes) -> {
+		int n = graph.size();
+		int[] forward = new int[n];
+		boolean changed = false;
+		for(int i = 0; i < n; ++i) {
+			forward[i] = i;
+			// the entry is never skipped, so that the prologue still runs into it; a cycle of empty blocks is left alone
+			for(int hops = 0; hops < n && forward[i] != 0; ++hops) {
+				BasicBlock b = graph.getBlock(forward[i]);
+				if(b.getStatementCount() > 0 || !(b.getTerminator() instanceof StmtNode.Jump)) {
+					break;
+				}
+				forward[i] = ((StmtNode.Jump) b.getTerminator()).getTarget();
+			}
+			changed |= forward[i] != i;
+		}
+		if(!changed) {
+			return graph;
+		}
+		BasicBlock[] blocks = new BasicBlock[n];
+		for(int i = 0; i < n; ++i) {
+			blocks[i] = graph.getBlock(i).withTerminator(graph.getBlock(i).getTerminator().remap(forward));
+		}
+		return graph.withBlocks(blocks);
+	};
+	
+	// A call to the function itself is a tail call if it is returned, or if nothing but a void return follows it;
+	// it then reuses the frame rather than making a new one.
+	public static final PassManager.Transform TAIL_CALLS = (graph, passes) -> {
+		int n = graph.size();
+		BasicBlock[] blocks = new BasicBlock[n];
+		boolean changed = false;
+		for(int i = 0; i < n; ++i) {
+			BasicBlock b = graph.getBlock(i);
+			StmtNode.Terminator t = b.getTerminator();
+			blocks[i] = b;
+			if(t instanceof StmtNode.Return && isSelfCall(((StmtNode.Return) t).getValue(), graph)) {
+				blocks[i] = b.withTerminator(new StmtNode.TailCall((ExprNode.Call) ((StmtNode.Return) t).getValue(), t.getLocation()));
+			} else if(b.getStatementCount() > 0 && b.getStatement(b.getStatementCount() - 1) instanceof StmtNode.Call
+					&& returnsVoid(graph, i)) {
+				StmtNode.Call last = (StmtNode.Call) b.getStatement(b.getStatementCount() - 1);
+				if(isSelfCall(last.getCall(), graph)) {
+					blocks[i] = b.withoutLast(1, new StmtNode.TailCall(last.getCall(), last.getLocation()));
+				}
+			}
+			changed |= blocks[i] != b;
+		}
+		return changed ? graph.withBlocks(blocks) : graph;
+	};
+	
+	private static boolean isSelfCall(ExprNode e, ControlFlowGraph graph) {
+		return e instanceof ExprNode.Call && ((ExprNode.Call) e).getFunction().equals(graph.getFunction());
+	}
+	
+	// whether the block's terminator returns without a value, perhaps by jumping through empty blocks
+	private static boolean returnsVoid(ControlFlowGraph graph, int block) {
+		StmtNode.Terminator t = graph.getBlock(block).getTerminator();
+		for(int hops = 0; hops < graph.size(); ++hops) {
+			if(t instanceof StmtNode.Return) {
+				return ((StmtNode.Return) t).getValue() == null;
+			} else if(!(t instanceof StmtNode.Jump)) {
+				return false;
+			}
+			BasicBlock next = graph.getBlock(((StmtNode.Jump) t).getTarget());
+			if(next.getStatementCount() > 0) {
+				return false;
+			}
+			t = next.getTerminator();
+		}
+		return false;
+	}
+}
@@ -1,39 +1,45 @@
 package com.github.kaya3.htmspreadsheet;
 
-import java.util.function.Supplier;
-
 public class Instruction {
 	public static final int PC_REGISTER = 0;
 	public static final int BOS_REGISTER = 1;
 	public static final int IO_REGISTER = 2;
+	public static final int REGISTER_COUNT = 8;
 	
 	public static final int MAX_INT = (1 << 16) - 1;
 	
 	private int pos = -1;
 	private final Opcode opcode;
-	private final Supplier<Integer> arg1, arg2;
+	private final int argCount, arg1, arg2;
+	// for a CONST which pushes a code address, or an extended jump or call, the instruction (or label) it refers to
+	private Instruction target;
+	// for profiling; null if not compiled from source
+	private SourceLocation source;
 	
 	public Instruction(Opcode opcode) {
-		this(opcode, null, null);
+		this(opcode, 0, 0, 0);
 	}
 	public Instruction(Opcode opcode, int arg1) {
-		this(opcode, arg1, null);
-	}
-	public Instruction(Opcode opcode, Supplier<Integer> arg1) {
-		this(opcode, arg1, null);
+		this(opcode, 1, arg1, 0);
 	}
 	public Instruction(Opcode opcode, int arg1, int arg2) {
-		this(opcode, () -> arg1, () -> arg2);
+		this(opcode, 2, arg1, arg2);
 	}
-	public Instruction(Opcode opcode, Supplier<Integer> arg1, int arg2) {
-		this(opcode, arg1, () -> arg2);
+	
+	public Instruction(Opcode opcode, Instruction target) {
+		this(opcode, 1, 0, 0);
+		this.target = target;
 	}
-	public Instruction(Opcode opcode, int arg1, Supplier<Integer> arg2) {
-		this(opcode, () -> arg1, arg2);
+	
+	// a CALL, whose second argument is how far to move the base of stack
+	public Instruction(Opcode opcode, Instruction target, int arg2) {
+		this(opcode, 2, 0, arg2);
+		this.target = target;
 	}
 	
-	public Instruction(Opcode opcode, Supplier<Integer> arg1, Supplier<Integer> arg2) {
+	private Instruction(Opcode opcode, int argCount, int arg1, int arg2) {
 		this.opcode = opcode;
+		this.argCount = argCount;
 		this.arg1 = arg1;
 		this.arg2 = arg2;
 	}
@@ -46,24 +52,48 @@ public class Instruction {
 		this.pos = pos;
 	}
 	
+	public Instruction getTarget() {
+		return target;
+	}
+	
+	public void setTarget(Instruction target) {
+		if(this.target == null) {
+			throw new IllegalStateException("Instruction " + opcode + " has no target");
+		}
+		this.target = target;
+	}
+	
+	public SourceLocation getSource() {
+		return source;
+	}
+	
+	public void setSource(SourceLocation source) {
+		this.source = source;
+	}
+	
 	public Opcode getOpcode() {
 		return opcode;
 	}
 	
+	// how many arguments the instruction is written with
+	public int getArgCount() {
+		return argCount;
+	}
+	
 	public int getArg1() {
-		return arg1 == null ? 0 : arg1.get();
+		return target != null ? target.getPos() : arg1;
 	}
 	
 	public int getArg2() {
-		return arg2 == null ? 0 : arg2.get();
+		return arg2;
 	}
 	
 	@Override
 	public String toString() {
-		return arg1 == null
+		return argCount == 0
 			? opcode.toString()
-			: arg2 == null
-			? String.format("%s %d", opcode, arg1.get())
-			: String.format("%s %d %d", opcode, arg1.get(), arg2.get());
+			: argCount == 1
+			? String.format("%s %d", opcode, getArg1())
+			: String.format("%s %d %d", opcode, getArg1(), arg2);
 	}
 }
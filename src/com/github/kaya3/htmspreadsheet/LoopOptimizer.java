@@ -0,0 +1,1061 @@
+package com.github.kaya3.htmspreadsheet;
+
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.*;
+import com.github.javaparser.ast.stmt.*;
+import com.github.javaparser.ast.type.PrimitiveType;
+import com.github.javaparser.ast.visitor.VoidVisitorAdapter;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Optimises while loops in a simplified function body in place. Expressions which don't change in a loop are computed
+// once before it; expressions of the form v * k + d, for a counter v which goes up by a constant once per iteration,
+// are kept in variables of their own and updated by addition alongside v, and v goes if nothing else needs it; loops
+// with a small constant trip count are unrolled fully, with what is known of the variables folded into each copy; and
+// loops are rotated so that the test is at the bottom.
+// Each change is made only if it pays by a cost model. Every row of the sheet is recalculated on every tick, so a run
+// costs rows * steps. The function's rows, and its steps per call, are estimated once; a change pays if it makes
+// their product smaller, and the estimates are then updated. Steps count each loop's known trip count, or
+// ASSUMED_TRIPS where it isn't known. A change which leaves a loop with more variables live at once than there are
+// registers for them is charged for the spilling, as the register allocator shares registers between variables which
+// are never live together.
+// A hoisted expression is evaluated even if the loop runs zero times, so only expressions which can't fail are hoisted:
+// no calls other than input(...), and no shifts by an amount which might be negative.
+public final class LoopOptimizer {
+	// each can be turned off, to see what it is worth
+	public enum Transform { HOIST, REDUCE, UNROLL, ROTATE }
+
+	private static final int ASSUMED_TRIPS = 8;
+	private static final int MAX_UNROLL_TRIPS = 32;
+	private static final int MAX_UNROLLED_SIZE = 256;
+	// trip counts are worked out only this far
+	private static final int MAX_TRIPS = 1 << 20;
+	// a spilled variable is taken to be read or written twice a trip, each costing this many more steps
+	private static final int SPILL_COST = 3;
+	private static final String PREFIX = "loop$";
+
+	// a counter's increment, v = v + step, which is the only assignment to v in the loop
+	private static final class Counter {
+		private final String name;
+		private final int step;
+		private final Statement increment;
+
+		private Counter(String name, int step, Statement increment) {
+			this.name = name;
+			this.step = step;
+			this.increment = increment;
+		}
+	}
+
+	// v * k + d
+	private static final class Affine {
+		private final String name;
+		private final long k, d;
+
+		private Affine(String name, long k, long d) {
+			this.name = name;
+			this.k = k;
+			this.d = d;
+		}
+
+		private boolean isTrivial() {
+			return k == 0 || k == 1 && d == 0;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Affine && name.equals(((Affine) o).name) && k == ((Affine) o).k && d == ((Affine) o).d;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(name, k, d);
+		}
+	}
+
+	// Backward liveness over the tree; max is the most variables live at once anywhere it has been. If loops isn't
+	// null, it gets the variables live just after each loop.
+	private static final class Liveness {
+		private final Map<Statement, Set<String>> loops;
+		private int max;
+
+		private Liveness(Map<Statement, Set<String>> loops) {
+			this.loops = loops;
+		}
+
+		private Set<String> before(Statement s, Set<String> after) {
+			Set<String> live;
+			if(s instanceof BlockStmt) {
+				live = after;
+				NodeList<Statement> statements = ((BlockStmt) s).getStatements();
+				for(int i = statements.size() - 1; i >= 0; --i) {
+					live = before(statements.get(i), live);
+				}
+			} else if(s instanceof IfStmt) {
+				IfStmt ex = (IfStmt) s;
+				live = new HashSet<>(before(ex.getThenStmt(), after));
+				live.addAll(ex.getElseStmt().isPresent() ? before(ex.getElseStmt().get(), after) : after);
+				reads(ex.getCondition(), live);
+			} else if(s instanceof WhileStmt || s instanceof DoStmt) {
+				if(loops != null) {
+					loops.merge(s, new HashSet<>(after), (x, y) -> { x.addAll(y); return x; });
+				}
+				boolean isWhile = s instanceof WhileStmt;
+				Expression condition = isWhile ? ((WhileStmt) s).getCondition() : ((DoStmt) s).getCondition();
+				Statement body = isWhile ? ((WhileStmt) s).getBody() : ((DoStmt) s).getBody();
+				// what is live where the condition is tested, and at the top of the body, until neither grows
+				Set<String> test = new HashSet<>(after), top = new HashSet<>();
+				while(true) {
+					reads(condition, test);
+					Set<String> next = before(body, test);
+					if(next.equals(top)) {
+						break;
+					}
+					top = next;
+					test.addAll(top);
+				}
+				live = isWhile ? test : top;
+			} else if(s instanceof ReturnStmt) {
+				live = new HashSet<>();
+				if(((ReturnStmt) s).getExpression().isPresent()) {
+					reads(((ReturnStmt) s).getExpression().get(), live);
+				}
+			} else {
+				live = new HashSet<>(after);
+				String target = target(s);
+				if(target != null) {
+					live.remove(target);
+					reads(value(s), live);
+				} else if(s instanceof ExpressionStmt) {
+					reads(((ExpressionStmt) s).getExpression(), live);
+				}
+			}
+			max = Math.max(max, live.size());
+			return live;
+		}
+
+		private static void reads(Expression e, Set<String> live) {
+			e.accept(new VoidVisitorAdapter<Void>() {
+				@Override
+				public void visit(NameExpr n, Void v) {
+					live.add(n.getNameAsString());
+				}
+			}, null);
+		}
+	}
+
+	private final List<String> variables;
+	private final int registers;
+	private final Set<Transform> transforms;
+	// the variables live just after each loop in the body as it was given
+	private final Map<Statement, Set<String>> liveAfter = new IdentityHashMap<>();
+	// estimates for the whole function, kept up to date as changes are made
+	private long rows, steps;
+	// how many times the loop being optimised is reached per call
+	private long weight = 1;
+
+	private LoopOptimizer(List<String> variables, int registers, Set<Transform> transforms) {
+		this.variables = variables;
+		this.registers = registers;
+		this.transforms = transforms;
+	}
+
+	// the function's variables are extended with any new ones; registers is how many of them can be in registers at once
+	public static void optimize(BlockStmt body, List<String> variables, int registers, Set<Transform> transforms) {
+		LoopOptimizer optimizer = new LoopOptimizer(variables, registers, transforms);
+		new Liveness(optimizer.liveAfter).before(body, Collections.emptySet());
+		optimizer.rows = cost(body);
+		optimizer.steps = Math.max(1, steps(body, Collections.emptyList()));
+		optimizer.optimizeBlock(body);
+	}
+
+	private void optimizeBlock(BlockStmt block) {
+		NodeList<Statement> statements = new NodeList<>();
+		for(Statement s : new ArrayList<>(block.getStatements())) {
+			optimizeStmt(s, statements);
+		}
+		block.setStatements(statements);
+	}
+
+	private static BlockStmt asBlock(Statement s) {
+		return s instanceof BlockStmt ? (BlockStmt) s : new BlockStmt(NodeList.nodeList(s));
+	}
+
+	private static List<Statement> statementsOf(Statement s) {
+		return s instanceof BlockStmt ? ((BlockStmt) s).getStatements() : Collections.singletonList(s);
+	}
+
+	// appends the statement to out, after anything moved out of it
+	private void optimizeStmt(Statement s, NodeList<Statement> out) {
+		if(s instanceof BlockStmt) {
+			optimizeBlock((BlockStmt) s);
+		} else if(s instanceof IfStmt) {
+			IfStmt ex = (IfStmt) s;
+			BlockStmt thenBlock = asBlock(ex.getThenStmt());
+			optimizeBlock(thenBlock);
+			ex.setThenStmt(thenBlock);
+			if(ex.getElseStmt().isPresent()) {
+				BlockStmt elseBlock = asBlock(ex.getElseStmt().get());
+				optimizeBlock(elseBlock);
+				ex.setElseStmt(elseBlock);
+			}
+		} else if(s instanceof WhileStmt) {
+			optimizeLoop((WhileStmt) s, out);
+			return;
+		}
+		out.add(s);
+	}
+
+	// inner loops first, so that what they hoist can be hoisted again
+	private void optimizeLoop(WhileStmt loop, NodeList<Statement> out) {
+		long outer = weight;
+		weight *= trips(loop, out);
+		BlockStmt body = asBlock(loop.getBody());
+		optimizeBlock(body);
+		loop.setBody(body);
+		weight = outer;
+
+		Map<String, Integer> assignments = assignmentsIn(loop);
+		Map<String, Counter> counters = findCounters(body.getStatements(), assignments);
+		if(transforms.contains(Transform.UNROLL) && unroll(loop, counters, out)) {
+			return;
+		}
+		// before anything is put between the counters' initial values and the loop
+		Integer known = tripCount(loop.getCondition(), counters, out, MAX_TRIPS);
+		Map<String, Integer> starts = new HashMap<>();
+		for(String name : counters.keySet()) {
+			Integer start = initialValue(out, name);
+			if(start != null) {
+				starts.put(name, start);
+			}
+		}
+		long trips = known != null ? known : ASSUMED_TRIPS;
+		if(transforms.contains(Transform.HOIST)) {
+			hoistInvariants(loop, assignments, trips, out);
+		}
+		if(transforms.contains(Transform.REDUCE)) {
+			reduceStrength(loop, counters, trips, known, starts, out);
+		}
+		out.add(transforms.contains(Transform.ROTATE) ? rotate(loop, known) : loop);
+	}
+
+	// the number of assignments and declarations of each variable in the node
+	private static Map<String, Integer> assignmentsIn(Node node) {
+		Map<String, Integer> counts = new HashMap<>();
+		node.accept(new VoidVisitorAdapter<Void>() {
+			@Override
+			public void visit(AssignExpr n, Void v) {
+				counts.merge(n.getTarget().toString(), 1, Integer::sum);
+				super.visit(n, v);
+			}
+			@Override
+			public void visit(VariableDeclarator n, Void v) {
+				counts.merge(n.getNameAsString(), 1, Integer::sum);
+				super.visit(n, v);
+			}
+		}, null);
+		return counts;
+	}
+
+	private static Map<String, Counter> findCounters(List<Statement> body, Map<String, Integer> assignments) {
+		Map<String, Counter> counters = new HashMap<>();
+		for(Statement s : body) {
+			if(!(s instanceof ExpressionStmt) || !(((ExpressionStmt) s).getExpression() instanceof AssignExpr)) {
+				continue;
+			}
+			AssignExpr e = (AssignExpr) ((ExpressionStmt) s).getExpression();
+			String name = e.getTarget().toString();
+			Affine value = affine(e.getValue(), Collections.singleton(name));
+			if(value != null && value.k == 1 && value.d != 0 && Math.abs(value.d) <= Instruction.MAX_INT
+					&& assignments.get(name) == 1) {
+				counters.put(name, new Counter(name, (int) value.d, s));
+			}
+		}
+		return counters;
+	}
+
+	// how many times a while or do loop's body runs: its trip count if known, otherwise ASSUMED_TRIPS
+	private static long trips(Statement loop, List<Statement> before) {
+		boolean isWhile = loop instanceof WhileStmt;
+		Expression condition = isWhile ? ((WhileStmt) loop).getCondition() : ((DoStmt) loop).getCondition();
+		Statement body = isWhile ? ((WhileStmt) loop).getBody() : ((DoStmt) loop).getBody();
+		Integer trips = tripCount(condition, findCounters(statementsOf(body), assignmentsIn(loop)), before, MAX_TRIPS);
+		if(trips == null) {
+			return ASSUMED_TRIPS;
+		}
+		// a do loop's body runs once before the first test
+		return isWhile ? trips : Math.max(1, trips);
+	}
+
+	// How many times a loop with this condition runs, if it compares a counter, which starts at a constant set just
+	// before the loop, with a constant; null if that isn't known, or is more than max.
+	private static Integer tripCount(Expression e, Map<String, Counter> counters, List<Statement> before, int max) {
+		if(!(e instanceof BinaryExpr)) {
+			return null;
+		}
+		BinaryExpr condition = (BinaryExpr) e;
+		BinaryExpr.Operator o = condition.getOperator();
+		Integer limit = TreeSimplifier.constantValue(condition.getRight());
+		Counter counter = condition.getLeft() instanceof NameExpr ? counters.get(((NameExpr) condition.getLeft()).getNameAsString()) : null;
+		if(counter == null || limit == null) {
+			return null;
+		}
+		Integer start = initialValue(before, counter.name);
+		if(start == null || compare(o, start, limit) == null) {
+			return null;
+		}
+
+		int trips = 0;
+		for(long v = start; compare(o, v, limit); v += counter.step) {
+			if(++trips > max) {
+				return null;
+			}
+		}
+		return trips;
+	}
+
+	// Replaces a loop like { int v = a; while(v < b) { ...; v = v + c; } } with a copy of its body for each value of v,
+	// when a, b and c are constants. What is known of the variables from just before the loop is folded into the
+	// copies, and assignments whose values are then never read are left out.
+	private boolean unroll(WhileStmt loop, Map<String, Counter> counters, NodeList<Statement> out) {
+		Integer trips = tripCount(loop.getCondition(), counters, out, MAX_UNROLL_TRIPS);
+		if(trips == null || trips * cost(loop.getBody()) > MAX_UNROLLED_SIZE) {
+			return false;
+		}
+
+		Map<String, Integer> known = knownValues(out);
+		NodeList<Statement> unrolled = new NodeList<>();
+		for(int i = 0; i < trips; ++i) {
+			fold(loop.getBody().clone(), known, unrolled);
+		}
+		// the values the loop leaves, where they are known and still needed
+		Set<String> live = liveAfter(loop);
+		for(String name : new TreeSet<>(assignmentsIn(loop).keySet())) {
+			if(known.containsKey(name) && live.contains(name)) {
+				unrolled.add(assign(name, TreeSimplifier.literal(known.get(name))));
+			}
+		}
+		unrolled = removeDeadStores(unrolled, live);
+
+		long stepsBefore = trips * tripSteps(loop) + branchCost(loop.getCondition(), false);
+		int size = cost(unrolled);
+		if(size > MAX_UNROLLED_SIZE || !pays(weight * (stepsBefore - steps(unrolled)), size - cost(loop))) {
+			return false;
+		}
+		out.addAll(unrolled);
+		return true;
+	}
+
+	// the constant a variable is set to by the straight-line code just before the loop, or null
+	private static Integer initialValue(List<Statement> before, String name) {
+		for(int i = before.size() - 1; i >= 0; --i) {
+			Statement s = before.get(i);
+			if(!(s instanceof ExpressionStmt)) {
+				return null;
+			} else if(name.equals(target(s))) {
+				return TreeSimplifier.constantValue(value(s));
+			} else if(mentions(s, name)) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	// the constants variables hold after the statements, as far as is known from them alone
+	private static Map<String, Integer> knownValues(List<Statement> statements) {
+		Map<String, Integer> known = new HashMap<>();
+		for(Statement s : statements) {
+			String target = target(s);
+			if(target == null) {
+				known.keySet().removeAll(assignmentsIn(s).keySet());
+				continue;
+			}
+			Integer value = TreeSimplifier.constantValue(value(s));
+			if(value != null) {
+				known.put(target, value);
+			} else {
+				known.remove(target);
+			}
+		}
+		return known;
+	}
+
+	// Substitutes the known values of variables into the statement and folds it, appending what is left of it to out.
+	// known is kept up to date with the statement's assignments. An if whose condition is then constant is replaced by
+	// the branch taken.
+	private static void fold(Statement s, Map<String, Integer> known, List<Statement> out) {
+		Function<Expression, Expression> substitute = e -> e instanceof NameExpr && known.containsKey(((NameExpr) e).getNameAsString())
+			? TreeSimplifier.literal(known.get(((NameExpr) e).getNameAsString()))
+			: null;
+		if(s instanceof BlockStmt) {
+			for(Statement t : ((BlockStmt) s).getStatements()) {
+				fold(t, known, out);
+			}
+			return;
+		} else if(s instanceof IfStmt) {
+			IfStmt ex = (IfStmt) s;
+			Expression condition = TreeSimplifier.simplify(rewrite(ex.getCondition(), substitute));
+			Integer c = TreeSimplifier.constantValue(condition);
+			if(c != null) {
+				if(c != 0) {
+					fold(ex.getThenStmt(), known, out);
+				} else if(ex.getElseStmt().isPresent()) {
+					fold(ex.getElseStmt().get(), known, out);
+				}
+				return;
+			}
+			ex.setCondition(condition);
+			ex.setThenStmt(foldBranch(ex.getThenStmt(), known));
+			if(ex.getElseStmt().isPresent()) {
+				ex.setElseStmt(foldBranch(ex.getElseStmt().get(), known));
+			}
+			known.keySet().removeAll(assignmentsIn(s).keySet());
+		} else if(target(s) != null) {
+			Expression value = TreeSimplifier.simplify(rewrite(value(s), substitute));
+			setValue(s, value);
+			Integer c = TreeSimplifier.constantValue(value);
+			if(c != null) {
+				known.put(target(s), c);
+			} else {
+				known.remove(target(s));
+			}
+		} else if(s instanceof ExpressionStmt && ((ExpressionStmt) s).getExpression() instanceof MethodCallExpr) {
+			NodeList<Expression> args = ((MethodCallExpr) ((ExpressionStmt) s).getExpression()).getArguments();
+			for(int i = 0; i < args.size(); ++i) {
+				args.set(i, TreeSimplifier.simplify(rewrite(args.get(i), substitute)));
+			}
+		} else {
+			// a loop keeps only what it doesn't assign
+			known.keySet().removeAll(assignmentsIn(s).keySet());
+			rewrite(s, substitute);
+		}
+		out.add(s);
+	}
+
+	private static Statement foldBranch(Statement s, Map<String, Integer> known) {
+		NodeList<Statement> statements = new NodeList<>();
+		fold(s, new HashMap<>(known), statements);
+		return new BlockStmt(statements);
+	}
+
+	// the statements without assignments whose values are never read, given what is live after them
+	private static NodeList<Statement> removeDeadStores(List<Statement> statements, Set<String> liveAtEnd) {
+		Liveness liveness = new Liveness(null);
+		Set<String> live = liveAtEnd;
+		NodeList<Statement> kept = new NodeList<>();
+		for(int i = statements.size() - 1; i >= 0; --i) {
+			Statement s = statements.get(i);
+			String target = target(s);
+			if(target != null && !live.contains(target) && isInvariant(value(s), Collections.emptySet())) {
+				continue;
+			}
+			live = liveness.before(s, live);
+			kept.add(0, s);
+		}
+		return kept;
+	}
+
+	private static boolean mentions(Node node, String name) {
+		return countMentions(node, name) > 0;
+	}
+
+	private static int countMentions(Node node, String name) {
+		int[] found = { 0 };
+		node.accept(new VoidVisitorAdapter<Void>() {
+			@Override
+			public void visit(NameExpr n, Void v) {
+				if(n.getNameAsString().equals(name)) {
+					++found[0];
+				}
+			}
+		}, null);
+		return found[0];
+	}
+
+	// null for an operator which isn't a comparison, whose trip count isn't worked out
+	private static Boolean compare(BinaryExpr.Operator o, long x, long y) {
+		switch(o) {
+			case LESS: return x < y;
+			case LESS_EQUALS: return x <= y;
+			case GREATER: return x > y;
+			case GREATER_EQUALS: return x >= y;
+			case EQUALS: return x == y;
+			case NOT_EQUALS: return x != y;
+			default: return null;
+		}
+	}
+
+	private void hoistInvariants(WhileStmt loop, Map<String, Integer> assignments, long trips, NodeList<Statement> out) {
+		Set<String> assigned = new HashSet<>(assignments.keySet());
+
+		// A declaration in the body whose value doesn't change can move too, if nothing reads the variable before it
+		// or after the loop; this is how variables hoisted out of an inner loop, and the inliner's copies of arguments,
+		// move again.
+		NodeList<Statement> statements = ((BlockStmt) loop.getBody()).getStatements();
+		for(int i = 0; i < statements.size(); ++i) {
+			Statement s = statements.get(i);
+			VariableDeclarator v = declaration(s);
+			if(v == null || assignments.get(v.getNameAsString()) != 1 || !isInvariant(v.getInitializer().get(), assigned)
+					|| liveAfter(loop).contains(v.getNameAsString()) || mentions(loop.getCondition(), v.getNameAsString())
+					|| statements.subList(0, i).stream().anyMatch(t -> mentions(t, v.getNameAsString()))) {
+				continue;
+			}
+			int index = i;
+			if(tryChange(loop, trips, NodeList.nodeList(s.clone()), w -> ((BlockStmt) w.getBody()).getStatements().remove(index))) {
+				out.add(s);
+				assigned.remove(v.getNameAsString());
+				--i;
+			}
+		}
+
+		Map<String, Expression> found = new LinkedHashMap<>();
+		Function<Expression, Expression> collect = e -> {
+			if(!isInvariant(e, assigned) || isTrivial(e)) {
+				return null;
+			}
+			found.putIfAbsent(e.toString(), e);
+			return e;
+		};
+		loop.setCondition(rewrite(loop.getCondition(), collect));
+		rewrite(loop.getBody(), collect);
+
+		for(Map.Entry<String, Expression> entry : found.entrySet()) {
+			String name = freshName();
+			Statement declaration = declare(name, entry.getValue().clone());
+			Function<Expression, Expression> replace = x -> x.toString().equals(entry.getKey()) && isInvariant(x, assigned) ? new NameExpr(name) : null;
+			if(tryChange(loop, trips, NodeList.nodeList(declaration), w -> {
+				w.setCondition(rewrite(w.getCondition(), replace));
+				rewrite(w.getBody(), replace);
+			})) {
+				variables.add(name);
+				out.add(declaration);
+			}
+		}
+	}
+
+	private static VariableDeclarator declaration(Statement s) {
+		if(s instanceof ExpressionStmt && ((ExpressionStmt) s).getExpression() instanceof VariableDeclarationExpr) {
+			VariableDeclarator v = ((VariableDeclarationExpr) ((ExpressionStmt) s).getExpression()).getVariable(0);
+			return v.getInitializer().isPresent() ? v : null;
+		}
+		return null;
+	}
+
+	// the variable a declaration or assignment sets, or null for any other statement
+	private static String target(Statement s) {
+		if(!(s instanceof ExpressionStmt)) {
+			return null;
+		}
+		Expression e = ((ExpressionStmt) s).getExpression();
+		if(e instanceof VariableDeclarationExpr) {
+			return ((VariableDeclarationExpr) e).getVariable(0).getNameAsString();
+		} else if(e instanceof AssignExpr) {
+			return ((AssignExpr) e).getTarget().toString();
+		}
+		return null;
+	}
+
+	// the value a declaration or assignment sets its variable to
+	private static Expression value(Statement s) {
+		Expression e = ((ExpressionStmt) s).getExpression();
+		return e instanceof VariableDeclarationExpr
+			? ((VariableDeclarationExpr) e).getVariable(0).getInitializer().get()
+			: ((AssignExpr) e).getValue();
+	}
+
+	private static void setValue(Statement s, Expression value) {
+		Expression e = ((ExpressionStmt) s).getExpression();
+		if(e instanceof VariableDeclarationExpr) {
+			((VariableDeclarationExpr) e).getVariable(0).setInitializer(value);
+		} else {
+			((AssignExpr) e).setValue(value);
+		}
+	}
+
+	// whether the expression has the same value on every iteration, and can be evaluated early without failing
+	private static boolean isInvariant(Expression e, Set<String> assigned) {
+		if(e instanceof NameExpr) {
+			return !assigned.contains(((NameExpr) e).getNameAsString());
+		} else if(e instanceof IntegerLiteralExpr) {
+			return TreeSimplifier.constantValue(e) != null;
+		} else if(e instanceof EnclosedExpr) {
+			return isInvariant(((EnclosedExpr) e).getInner().get(), assigned);
+		} else if(e instanceof UnaryExpr) {
+			return isInvariant(((UnaryExpr) e).getExpression(), assigned);
+		} else if(e instanceof BinaryExpr) {
+			BinaryExpr ex = (BinaryExpr) e;
+			BinaryExpr.Operator o = ex.getOperator();
+			if(o == BinaryExpr.Operator.LEFT_SHIFT || o == BinaryExpr.Operator.SIGNED_RIGHT_SHIFT) {
+				Integer shift = TreeSimplifier.constantValue(ex.getRight());
+				if(shift == null || shift < 0) {
+					return false;
+				}
+			}
+			return isInvariant(ex.getLeft(), assigned) && isInvariant(ex.getRight(), assigned);
+		} else if(e instanceof MethodCallExpr) {
+			// the input grid doesn't change while the program runs
+			MethodCallExpr ex = (MethodCallExpr) e;
+			return ex.getNameAsString().equals("input") && ex.getArguments().stream().allMatch(a -> isInvariant(a, assigned));
+		}
+		return false;
+	}
+
+	private static boolean isTrivial(Expression e) {
+		if(e instanceof EnclosedExpr) {
+			return isTrivial(((EnclosedExpr) e).getInner().get());
+		}
+		return e instanceof NameExpr || TreeSimplifier.constantValue(e) != null;
+	}
+
+	// Keeps each v * k + d used in the loop in a variable of its own, set before the loop and increased by step * k
+	// where v is. If the loop then only needs v to test it against a constant, the test is made on the new variable
+	// instead, as long as the values of both are known to fit; v then goes, if nothing reads it after the loop.
+	private void reduceStrength(WhileStmt loop, Map<String, Counter> counters, long trips, Integer known, Map<String, Integer> starts, NodeList<Statement> out) {
+		if(counters.isEmpty()) {
+			return;
+		}
+		Set<Statement> increments = new HashSet<>();
+		for(Counter c : counters.values()) {
+			increments.add(c.increment);
+		}
+		NodeList<Statement> statements = ((BlockStmt) loop.getBody()).getStatements();
+
+		Map<Affine, Expression> found = new LinkedHashMap<>();
+		Map<Affine, Integer> mentioned = new HashMap<>();
+		Function<Expression, Expression> collect = e -> {
+			Affine a = affine(e, counters.keySet());
+			if(a == null || a.isTrivial()) {
+				return null;
+			}
+			found.putIfAbsent(a, e);
+			mentioned.merge(a, countMentions(e, a.name), Integer::sum);
+			return e;
+		};
+		loop.setCondition(rewrite(loop.getCondition(), collect));
+		for(Statement s : statements) {
+			if(!increments.contains(s)) {
+				rewrite(s, collect);
+			}
+		}
+
+		for(Map.Entry<Affine, Expression> entry : found.entrySet()) {
+			Affine a = entry.getKey();
+			Counter counter = counters.get(a.name);
+			int increment = statements.indexOf(counter.increment);
+			long update = a.k * counter.step;
+			if(Math.abs(a.k) > Instruction.MAX_INT || Math.abs(a.d) > Instruction.MAX_INT || Math.abs(update) > Instruction.MAX_INT) {
+				continue;
+			}
+
+			String name = freshName();
+			Integer start = starts.get(a.name);
+			Expression init = start != null && fits(start * a.k + a.d)
+				? TreeSimplifier.literal((int) (start * a.k + a.d))
+				: new BinaryExpr(
+					new BinaryExpr(new NameExpr(a.name), TreeSimplifier.literal((int) a.k), BinaryExpr.Operator.MULTIPLY),
+					TreeSimplifier.literal((int) a.d),
+					BinaryExpr.Operator.PLUS
+				);
+			Statement declaration = declare(name, init);
+			Statement step = assign(name, new BinaryExpr(new NameExpr(name), TreeSimplifier.literal((int) update), BinaryExpr.Operator.PLUS));
+
+			int others = countMentions(loop.getCondition(), a.name) - mentioned.get(a);
+			for(Statement s : statements) {
+				if(s != counter.increment) {
+					others += countMentions(s, a.name);
+				}
+			}
+			Expression test = others > 0 && others == countMentions(loop.getCondition(), a.name) ? retarget(loop.getCondition(), a, name, counter, start, known) : null;
+			boolean removeCounter = !liveAfter(loop).contains(a.name) && (others == 0 || test != null);
+
+			Function<Expression, Expression> replace = e -> a.equals(affine(e, counters.keySet())) ? new NameExpr(name) : null;
+			boolean changed = tryChange(loop, trips, NodeList.nodeList(declaration), w -> {
+				NodeList<Statement> body = ((BlockStmt) w.getBody()).getStatements();
+				w.setCondition(removeCounter && test != null ? test.clone() : rewrite(w.getCondition(), replace));
+				for(int i = 0; i < body.size(); ++i) {
+					if(i != increment) {
+						rewrite(body.get(i), replace);
+					}
+				}
+				if(removeCounter) {
+					body.set(increment, step.clone());
+				} else {
+					body.add(increment + 1, step.clone());
+				}
+			});
+			if(changed) {
+				variables.add(name);
+				out.add(declaration);
+				if(removeCounter) {
+					counters.remove(a.name);
+				}
+			}
+		}
+	}
+
+	private static boolean fits(long x) {
+		return x >= -Instruction.MAX_INT && x <= Instruction.MAX_INT;
+	}
+
+	// The loop's condition, v compared with a constant, as the same comparison of the variable holding v * k + d; null
+	// if the condition isn't of that form, or some value wouldn't fit in a literal.
+	private static Expression retarget(Expression e, Affine a, String name, Counter counter, Integer start, Integer trips) {
+		if(!(e instanceof BinaryExpr) || start == null || trips == null) {
+			return null;
+		}
+		BinaryExpr condition = (BinaryExpr) e;
+		BinaryExpr.Operator o = condition.getOperator();
+		Integer limit = TreeSimplifier.constantValue(condition.getRight());
+		if(!(condition.getLeft() instanceof NameExpr) || !((NameExpr) condition.getLeft()).getNameAsString().equals(a.name)
+				|| limit == null || compare(o, 0, 0) == null) {
+			return null;
+		}
+		long end = start + (long) trips * counter.step;
+		long first = start * a.k + a.d, last = end * a.k + a.d, bound = limit * a.k + a.d;
+		if(!fits(first) || !fits(last) || !fits(bound)) {
+			return null;
+		}
+		if(a.k < 0) {
+			switch(o) {
+				case LESS: o = BinaryExpr.Operator.GREATER; break;
+				case LESS_EQUALS: o = BinaryExpr.Operator.GREATER_EQUALS; break;
+				case GREATER: o = BinaryExpr.Operator.LESS; break;
+				case GREATER_EQUALS: o = BinaryExpr.Operator.LESS_EQUALS; break;
+				default: break;
+			}
+		}
+		return new BinaryExpr(new NameExpr(name), TreeSimplifier.literal((int) bound), o);
+	}
+
+	// the expression as v * k + d for one of the counters, or null if it isn't of that form
+	private static Affine affine(Expression e, Set<String> counters) {
+		Integer c = TreeSimplifier.constantValue(e);
+		if(c != null) {
+			return new Affine(null, 0, c);
+		} else if(e instanceof NameExpr) {
+			String name = ((NameExpr) e).getNameAsString();
+			return counters.contains(name) ? new Affine(name, 1, 0) : null;
+		} else if(e instanceof EnclosedExpr) {
+			return affine(((EnclosedExpr) e).getInner().get(), counters);
+		} else if(e instanceof UnaryExpr && ((UnaryExpr) e).getOperator() == UnaryExpr.Operator.MINUS) {
+			Affine a = affine(((UnaryExpr) e).getExpression(), counters);
+			return a == null ? null : new Affine(a.name, -a.k, -a.d);
+		} else if(!(e instanceof BinaryExpr)) {
+			return null;
+		}
+		BinaryExpr ex = (BinaryExpr) e;
+		Affine x = affine(ex.getLeft(), counters), y = affine(ex.getRight(), counters);
+		if(x == null || y == null || x.name != null && y.name != null && !x.name.equals(y.name)) {
+			return null;
+		}
+		String name = x.name != null ? x.name : y.name;
+		Affine result;
+		switch(ex.getOperator()) {
+			case PLUS:
+				result = new Affine(name, x.k + y.k, x.d + y.d);
+				break;
+			case MINUS:
+				result = new Affine(name, x.k - y.k, x.d - y.d);
+				break;
+			case MULTIPLY:
+				if(x.name != null && y.name != null) {
+					return null;
+				}
+				Affine a = x.name != null ? x : y, b = x.name != null ? y : x;
+				result = new Affine(name, a.k * b.d, a.d * b.d);
+				break;
+			default:
+				return null;
+		}
+		// constant parts larger than this can't be folded into the program
+		return Math.abs(result.k) <= Integer.MAX_VALUE && Math.abs(result.d) <= Integer.MAX_VALUE && result.name != null ? result : null;
+	}
+
+	// Turns while(c) B into if(c) { do B while(c); }, leaving out the if when the loop is known to run at least once.
+	// Each trip then ends with the test rather than a jump back to it, and a test which jumps when the condition is
+	// true can also be cheaper than one which jumps when it is false.
+	private Statement rotate(WhileStmt loop, Integer known) {
+		Expression condition = loop.getCondition();
+		boolean guarded = known == null || known == 0;
+		long trips = known != null ? known : ASSUMED_TRIPS;
+		int test = branchCost(condition, false), bottom = branchCost(condition, true);
+		long stepsSaved = trips * (test + 2 - bottom) + (guarded ? 0 : test);
+		if(!pays(weight * stepsSaved, bottom - 2 - (guarded ? 0 : test))) {
+			return loop;
+		}
+		DoStmt rotated = new DoStmt(loop.getBody(), guarded ? condition.clone() : condition);
+		loop.getRange().ifPresent(rotated::setRange);
+		if(!guarded) {
+			return rotated;
+		}
+		IfStmt guard = new IfStmt(condition, new BlockStmt(NodeList.nodeList(rotated)), null);
+		loop.getRange().ifPresent(guard::setRange);
+		return guard;
+	}
+
+	private Set<String> liveAfter(Statement loop) {
+		Set<String> live = liveAfter.get(loop);
+		// a loop which wasn't there at the start may need anything
+		return live != null ? live : new HashSet<>(variables);
+	}
+
+	// the most variables live at once in the loop, given what is live after it
+	private static int pressure(Statement loop, Set<String> after) {
+		Liveness liveness = new Liveness(null);
+		liveness.before(loop, after);
+		return liveness.max;
+	}
+
+	// Makes the change to a copy of the loop, and if that pays, to the loop itself. prelude is what the change puts
+	// just before the loop, which runs each time the loop is reached.
+	private boolean tryChange(WhileStmt loop, long trips, List<Statement> prelude, Consumer<WhileStmt> change) {
+		WhileStmt trial = loop.clone();
+		change.accept(trial);
+		long stepsSaved = trips * (tripSteps(loop) - tripSteps(trial))
+			+ branchCost(loop.getCondition(), false) - branchCost(trial.getCondition(), false) - steps(prelude);
+		long rowsAdded = cost(trial) + cost(prelude) - cost(loop);
+
+		int before = pressure(loop, liveAfter(loop)), after = pressure(trial, liveAfter(loop));
+		int spilled = after - Math.max(before, registers);
+		if(spilled > 0) {
+			stepsSaved -= trips * spilled * 2 * SPILL_COST;
+			rowsAdded += spilled * 2 * SPILL_COST;
+		}
+		if(!pays(weight * stepsSaved, rowsAdded)) {
+			return false;
+		}
+		change.accept(loop);
+		return true;
+	}
+
+	// whether a change makes the function's rows * steps smaller; if it does, the estimates are updated to include it
+	private boolean pays(long stepsSaved, long rowsAdded) {
+		long stepsAfter = Math.max(1, steps - stepsSaved);
+		if((double) (rows + rowsAdded) * stepsAfter >= (double) rows * steps) {
+			return false;
+		}
+		rows += rowsAdded;
+		steps = stepsAfter;
+		return true;
+	}
+
+	// about how many instructions FunctionCompiler generates for the expression
+	private static int cost(Expression e) {
+		if(e instanceof EnclosedExpr) {
+			return cost(((EnclosedExpr) e).getInner().get());
+		} else if(e instanceof UnaryExpr) {
+			UnaryExpr ex = (UnaryExpr) e;
+			return cost(ex.getExpression()) + (ex.getOperator() == UnaryExpr.Operator.BITWISE_COMPLEMENT ? 1 : 2);
+		} else if(e instanceof BinaryExpr) {
+			BinaryExpr ex = (BinaryExpr) e;
+			int operands = cost(ex.getLeft()) + cost(ex.getRight());
+			switch(ex.getOperator()) {
+				case AND: case OR:
+					return operands + 8;
+				case MINUS: case NOT_EQUALS: case LESS_EQUALS: case GREATER_EQUALS:
+					return operands + 3;
+				case GREATER:
+					return operands + 5;
+				default:
+					return operands + 1;
+			}
+		} else if(e instanceof MethodCallExpr) {
+			// input and output are single instructions, and other calls save and restore the frame
+			String name = ((MethodCallExpr) e).getNameAsString();
+			int n = name.equals("input") || name.equals("output") ? 1 : 10;
+			for(Expression arg : ((MethodCallExpr) e).getArguments()) {
+				n += cost(arg);
+			}
+			return n;
+		}
+		return 1;
+	}
+
+	// About how many instructions FunctionCompiler generates to jump on the condition, when it is true or when it is
+	// false. As there, a comparison which has to be negated, or have one added to an operand, costs two more.
+	private static int branchCost(Expression e, boolean jumpIfTrue) {
+		Integer c = TreeSimplifier.constantValue(e);
+		if(e instanceof EnclosedExpr) {
+			return branchCost(((EnclosedExpr) e).getInner().get(), jumpIfTrue);
+		} else if(c != null) {
+			return (c != 0) == jumpIfTrue ? 2 : 0;
+		} else if(e instanceof UnaryExpr && ((UnaryExpr) e).getOperator() == UnaryExpr.Operator.LOGICAL_COMPLEMENT) {
+			return branchCost(((UnaryExpr) e).getExpression(), !jumpIfTrue);
+		}
+		BinaryExpr.Operator o = e instanceof BinaryExpr ? ((BinaryExpr) e).getOperator() : null;
+		if(o == null || compare(o, 0, 0) == null && o != BinaryExpr.Operator.AND && o != BinaryExpr.Operator.OR) {
+			return cost(e) + 3 + (jumpIfTrue ? 2 : 0);
+		}
+		Expression left = ((BinaryExpr) e).getLeft(), right = ((BinaryExpr) e).getRight();
+		int n = cost(left) + cost(right) + 4;
+		switch(o) {
+			case AND:
+			case OR:
+				// the left operand jumps to the same place if it decides the condition, otherwise past the right
+				return branchCost(left, o == BinaryExpr.Operator.OR) + branchCost(right, jumpIfTrue);
+			case EQUALS:
+			case NOT_EQUALS:
+				return n;
+			default:
+				break;
+		}
+		boolean reversed = o == BinaryExpr.Operator.GREATER || o == BinaryExpr.Operator.LESS_EQUALS;
+		boolean negated = o == BinaryExpr.Operator.LESS_EQUALS || o == BinaryExpr.Operator.GREATER_EQUALS;
+		boolean jumpIfLess = jumpIfTrue != negated;
+		boolean canSwap = isTrivial(left) || isTrivial(right);
+		if(!reversed && !jumpIfLess) {
+			return n;
+		} else if(!reversed) {
+			return n + (canSwap && TreeSimplifier.constantValue(left) != null ? 0 : 2);
+		} else if(!jumpIfLess) {
+			return n + (canSwap ? 0 : 4);
+		} else {
+			return n + (TreeSimplifier.constantValue(right) != null ? 0 : 2);
+		}
+	}
+
+	private static int cost(Statement s) {
+		if(s instanceof BlockStmt) {
+			return cost(((BlockStmt) s).getStatements());
+		} else if(s instanceof IfStmt) {
+			IfStmt ex = (IfStmt) s;
+			return branchCost(ex.getCondition(), false) + cost(ex.getThenStmt()) + (ex.getElseStmt().isPresent() ? 2 + cost(ex.getElseStmt().get()) : 0);
+		} else if(s instanceof WhileStmt) {
+			WhileStmt ex = (WhileStmt) s;
+			return branchCost(ex.getCondition(), false) + cost(ex.getBody()) + 2;
+		} else if(s instanceof DoStmt) {
+			DoStmt ex = (DoStmt) s;
+			return cost(ex.getBody()) + branchCost(ex.getCondition(), true);
+		} else if(s instanceof ReturnStmt) {
+			ReturnStmt ex = (ReturnStmt) s;
+			return 3 + (ex.getExpression().isPresent() ? cost(ex.getExpression().get()) : 0);
+		} else if(target(s) != null) {
+			return 1 + cost(value(s));
+		} else if(s instanceof ExpressionStmt) {
+			return cost(((ExpressionStmt) s).getExpression());
+		}
+		return 1;
+	}
+
+	private static int cost(List<Statement> statements) {
+		int n = 0;
+		for(Statement s : statements) {
+			n += cost(s);
+		}
+		return n;
+	}
+
+	// About how many steps the statement takes; before is what runs just before it in the same block. Each branch of
+	// an if is taken to run half the time.
+	private static long steps(Statement s, List<Statement> before) {
+		if(s instanceof BlockStmt) {
+			return steps(((BlockStmt) s).getStatements());
+		} else if(s instanceof IfStmt) {
+			IfStmt ex = (IfStmt) s;
+			long branches = steps(statementsOf(ex.getThenStmt()));
+			if(ex.getElseStmt().isPresent()) {
+				branches += 2 + steps(statementsOf(ex.getElseStmt().get()));
+			}
+			return branchCost(ex.getCondition(), false) + branches / 2;
+		} else if(s instanceof WhileStmt) {
+			return trips(s, before) * tripSteps((WhileStmt) s) + branchCost(((WhileStmt) s).getCondition(), false);
+		} else if(s instanceof DoStmt) {
+			DoStmt ex = (DoStmt) s;
+			return trips(s, before) * (steps(statementsOf(ex.getBody())) + branchCost(ex.getCondition(), true));
+		}
+		return cost(s);
+	}
+
+	private static long steps(List<Statement> statements) {
+		long n = 0;
+		for(int i = 0; i < statements.size(); ++i) {
+			n += steps(statements.get(i), statements.subList(0, i));
+		}
+		return n;
+	}
+
+	// the steps one trip around a while loop takes: the test, the body, and the jump back
+	private static long tripSteps(WhileStmt loop) {
+		return branchCost(loop.getCondition(), false) + steps(statementsOf(loop.getBody())) + 2;
+	}
+
+	// replaces subexpressions, outermost first; where replace gives null, the expression's children are tried instead
+	private static Expression rewrite(Expression e, Function<Expression, Expression> replace) {
+		Expression r = replace.apply(e);
+		if(r != null) {
+			return r;
+		} else if(e instanceof EnclosedExpr) {
+			EnclosedExpr ex = (EnclosedExpr) e;
+			ex.setInner(rewrite(ex.getInner().get(), replace));
+		} else if(e instanceof BinaryExpr) {
+			BinaryExpr ex = (BinaryExpr) e;
+			ex.setLeft(rewrite(ex.getLeft(), replace));
+			ex.setRight(rewrite(ex.getRight(), replace));
+		} else if(e instanceof UnaryExpr) {
+			UnaryExpr ex = (UnaryExpr) e;
+			ex.setExpression(rewrite(ex.getExpression(), replace));
+		} else if(e instanceof MethodCallExpr) {
+			rewriteArguments((MethodCallExpr) e, replace);
+		}
+		return e;
+	}
+
+	private static void rewriteArguments(MethodCallExpr e, Function<Expression, Expression> replace) {
+		NodeList<Expression> args = e.getArguments();
+		for(int i = 0; i < args.size(); ++i) {
+			args.set(i, rewrite(args.get(i), replace));
+		}
+	}
+
+	// rewrites every expression the statement evaluates; assignment targets are left alone
+	private static void rewrite(Statement s, Function<Expression, Expression> replace) {
+		if(s instanceof BlockStmt) {
+			for(Statement t : ((BlockStmt) s).getStatements()) {
+				rewrite(t, replace);
+			}
+		} else if(s instanceof IfStmt) {
+			IfStmt ex = (IfStmt) s;
+			ex.setCondition(rewrite(ex.getCondition(), replace));
+			rewrite(ex.getThenStmt(), replace);
+			if(ex.getElseStmt().isPresent()) {
+				rewrite(ex.getElseStmt().get(), replace);
+			}
+		} else if(s instanceof WhileStmt) {
+			WhileStmt ex = (WhileStmt) s;
+			ex.setCondition(rewrite(ex.getCondition(), replace));
+			rewrite(ex.getBody(), replace);
+		} else if(s instanceof DoStmt) {
+			DoStmt ex = (DoStmt) s;
+			rewrite(ex.getBody(), replace);
+			ex.setCondition(rewrite(ex.getCondition(), replace));
+		} else if(s instanceof ReturnStmt) {
+			ReturnStmt ex = (ReturnStmt) s;
+			if(ex.getExpression().isPresent()) {
+				ex.setExpression(rewrite(ex.getExpression().get(), replace));
+			}
+		} else if(target(s) != null) {
+			setValue(s, rewrite(value(s), replace));
+		} else if(s instanceof ExpressionStmt && ((ExpressionStmt) s).getExpression() instanceof MethodCallExpr) {
+			rewriteArguments((MethodCallExpr) ((ExpressionStmt) s).getExpression(), replace);
+		}
+	}
+
+	// a name for a new variable, which is added to the function's variables once it is used
+	private String freshName() {
+		String name;
+		for(int i = 1; variables.contains(name = PREFIX + i); ++i) {}
+		return name;
+	}
+
+	private static Statement declare(String name, Expression value) {
+		return new ExpressionStmt(new VariableDeclarationExpr(new VariableDeclarator(new PrimitiveType(PrimitiveType.Primitive.INT), name, value)));
+	}
+
+	private static Statement assign(String name, Expression value) {
+		return new ExpressionStmt(new AssignExpr(new NameExpr(name), value, AssignExpr.Operator.ASSIGN));
+	}
+}
@@ -3,17 +3,116 @@ package com.github.kaya3.htmspreadsheet;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Main {
 	public static final String SRC_FILENAME = "programs-src/fibonacci-recursion.java";
 	
-	public static void main(String[] args) throws IOException {
+	// with no arguments, compiles SRC_FILENAME to standard output; otherwise
+	// Main [-o output-dir] [-j threads] [-b] [-x] [--metrics file] [--cache file] [--watch] (source-file | source-dir)...
+	// where -b also writes each program in the binary format, -x leaves programs in the extended instruction set for
+	// the Java engines, and --metrics writes the time, instruction counts and allocation of each compiler phase as
+	// JSON, to standard output if the file is -. --cache keeps each function's code in the file between runs, and
+	// --watch keeps running, recompiling each source file when it is saved.
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if(args.length > 0) {
+			batch(args);
+			return;
+		}
+		
 		String src = readSourceFile(SRC_FILENAME);
 		
 		ProgramCompiler compiler = new ProgramCompiler();
-		for(Instruction instruction : compiler.compile(src)) {
-			System.out.println(instruction);
+		ProgramWriter writer = new ProgramWriter(Channels.newChannel(System.out));
+		writer.write(compiler.compile(src));
+		writer.flush();
+		System.err.println("Peephole optimizer removed " + compiler.getRemovedCount() + " instructions");
+	}
+	
+	private static void batch(String[] args) throws IOException, InterruptedException {
+		Path outputDir = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean binary = false;
+		boolean extended = false;
+		String metrics = null;
+		Path cacheFile = null;
+		boolean watch = false;
+		List<Path> paths = new ArrayList<>();
+		for(int i = 0; i < args.length; ++i) {
+			if(args[i].equals("-o") && i + 1 < args.length) {
+				outputDir = Paths.get(args[++i]);
+			} else if(args[i].equals("-j") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-b")) {
+				binary = true;
+			} else if(args[i].equals("-x")) {
+				extended = true;
+			} else if(args[i].equals("--metrics") && i + 1 < args.length) {
+				metrics = args[++i];
+			} else if(args[i].equals("--cache") && i + 1 < args.length) {
+				cacheFile = Paths.get(args[++i]);
+			} else if(args[i].equals("--watch")) {
+				watch = true;
+			} else {
+				paths.add(Paths.get(args[i]));
+			}
+		}
+		
+		BatchCompiler compiler = new BatchCompiler(outputDir, threads, binary, metrics != null);
+		FunctionCache cache = null;
+		if(cacheFile != null) {
+			cache = FunctionCache.load(cacheFile, FunctionCache.DEFAULT_SIZE);
+		} else if(watch) {
+			cache = new FunctionCache();
+		}
+		compiler.setCache(cache);
+		compiler.setExtended(extended);
+		
+		if(watch) {
+			watch(compiler, paths, cacheFile);
+			return;
+		}
+		
+		long start = System.nanoTime();
+		List<BatchCompiler.Result> results = compiler.compile(paths);
+		BatchCompiler.printSummary(results, System.nanoTime() - start, System.err);
+		if(cacheFile != null) {
+			cache.save(cacheFile);
+		}
+		if(metrics != null && metrics.equals("-")) {
+			BatchCompiler.writeMetrics(results, System.out);
+			System.out.flush();
+		} else if(metrics != null) {
+			try(Writer writer = Files.newBufferedWriter(Paths.get(metrics), StandardCharsets.UTF_8)) {
+				BatchCompiler.writeMetrics(results, writer);
+			}
 		}
+		for(BatchCompiler.Result r : results) {
+			if(r.getError() != null) {
+				System.exit(1);
+			}
+		}
+	}
+	
+	private static void watch(BatchCompiler compiler, List<Path> paths, Path cacheFile) throws IOException, InterruptedException {
+		FunctionCache cache = compiler.getCache();
+		int[] counts = { 0, 0 };
+		new SourceWatcher(compiler, paths).watch((results, wallNanos) -> {
+			BatchCompiler.printSummary(results, wallNanos, System.err);
+			System.err.println("functions: " + (cache.getHits() - counts[0]) + " cached, " + (cache.getMisses() - counts[1]) + " compiled");
+			counts[0] = cache.getHits();
+			counts[1] = cache.getMisses();
+			if(cacheFile != null) {
+				cache.save(cacheFile);
+			}
+		});
 	}
 	
 	private static String readSourceFile(String filename) throws IOException {
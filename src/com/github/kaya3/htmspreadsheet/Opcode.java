@@ -8,17 +8,34 @@ public enum Opcode {
 	JUMPIF(-1),
 	ADD(-1), MULT(-1), AND(-1), OR(-1), XOR(-1), LSHIFT(-1), RSHIFT(-1),
 	NOT,
-	EQUALS(-1), LESSTHAN(-1);
+	EQUALS(-1), LESSTHAN(-1),
+	
+	// The extended set, which the Java engines run but the spreadsheet doesn't; ExtendedLowering expands each into
+	// the base set. Jumps take their destination as an immediate. JUMPIFLT x y jumps if x < y, and so on; CALL f n
+	// moves the base of stack up by n and jumps to f, and RET pops the base of stack and then the PC.
+	JUMP(0, true), JUMPIFZ(-1, true),
+	JUMPIFLT(-2, true), JUMPIFGE(-2, true), JUMPIFEQ(-2, true), JUMPIFNE(-2, true),
+	SUB(-1, true), DUP(1, true),
+	CALL(0, true), RET(-2, true);
 	
 	private final int stackDelta;
+	private final boolean extended;
 	Opcode() {
 		this(0);
 	}
 	Opcode(int stackDelta) {
+		this(stackDelta, false);
+	}
+	Opcode(int stackDelta, boolean extended) {
 		this.stackDelta = stackDelta;
+		this.extended = extended;
 	}
 	
 	public int getStackDelta() {
 		return stackDelta;
 	}
+	
+	public boolean isExtended() {
+		return extended;
+	}
 }
@@ -0,0 +1,49 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// Holds one function's current graph, runs transforms over it, and caches the results of analyses until a transform
+// replaces the graph. Analyses and transforms are compared by identity, so each should be a single shared instance.
+public final class PassManager {
+	public interface Analysis<T> {
+		T analyze(ControlFlowGraph graph, PassManager passes);
+	}
+	
+	// returns the same graph if nothing changed
+	public interface Transform {
+		ControlFlowGraph apply(ControlFlowGraph graph, PassManager passes);
+	}
+	
+	private ControlFlowGraph graph;
+	private final Map<Analysis<?>, Object> results = new IdentityHashMap<>();
+	
+	public PassManager(ControlFlowGraph graph) {
+		this.graph = graph;
+	}
+	
+	public ControlFlowGraph getGraph() {
+		return graph;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public <T> T get(Analysis<T> analysis) {
+		T result = (T) results.get(analysis);
+		if(result == null) {
+			result = analysis.analyze(graph, this);
+			results.put(analysis, result);
+		}
+		return result;
+	}
+	
+	// returns whether the transform changed the graph
+	public boolean run(Transform transform) {
+		ControlFlowGraph next = transform.apply(graph, this);
+		if(next == graph) {
+			return false;
+		}
+		graph = next;
+		results.clear();
+		return true;
+	}
+}
@@ -0,0 +1,152 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.util.*;
+
+public class PeepholeOptimizer {
+	private final List<PeepholeRule> rules;
+	
+	public PeepholeOptimizer() {
+		this(PeepholeRules.DEFAULT);
+	}
+	
+	public PeepholeOptimizer(List<PeepholeRule> rules) {
+		this.rules = new ArrayList<>(rules);
+	}
+	
+	// rewrites an assembled program until no rule applies; returns the number of instructions removed
+	public int optimize(List<Instruction> program) {
+		return optimize(program, Collections.emptyList());
+	}
+	
+	// references are instructions outside the program whose targets are kept up to date like jumps, though unlike
+	// jumps they don't stop their targets being changed or removed; a target removed from the end becomes null
+	public int optimize(List<Instruction> program, List<Instruction> references) {
+		int before = program.size();
+		while(pass(program, references)) {}
+		
+		for(int i = 0; i < program.size(); ++i) {
+			program.get(i).setPos(i);
+		}
+		return before - program.size();
+	}
+	
+	private boolean pass(List<Instruction> program, List<Instruction> references) {
+		List<Instruction> snapshot = new ArrayList<>(program);
+		Set<Instruction> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+		for(int i = 0; i < snapshot.size(); ++i) {
+			Instruction instruction = snapshot.get(i);
+			instruction.setPos(i);
+			if(instruction.getTarget() != null) {
+				targets.add(instruction.getTarget());
+			}
+		}
+		
+		Map<Instruction, Instruction> forward = new IdentityHashMap<>();
+		Window window = new Window(snapshot, targets);
+		program.clear();
+		for(int i = 0; i < snapshot.size();) {
+			window.pos = i;
+			window.replacement = null;
+			for(PeepholeRule rule : rules) {
+				if(rule.apply(window)) {
+					break;
+				}
+			}
+			
+			if(window.replacement == null) {
+				program.add(snapshot.get(i));
+				++i;
+			} else {
+				List<Instruction> replacement = Arrays.asList(window.replacement);
+				for(Instruction instruction : replacement) {
+					// new instructions are attributed to the source of what they replace
+					if(instruction.getSource() == null) {
+						instruction.setSource(snapshot.get(i).getSource());
+					}
+				}
+				program.addAll(replacement);
+				int end = i + window.length;
+				Instruction dest = replacement.isEmpty() ? (end < snapshot.size() ? snapshot.get(end) : null) : replacement.get(0);
+				for(int j = i; j < end; ++j) {
+					forward.put(snapshot.get(j), dest);
+				}
+				for(Instruction instruction : replacement) {
+					forward.remove(instruction);
+				}
+				i = end;
+			}
+		}
+		
+		if(forward.isEmpty()) {
+			return false;
+		}
+		retarget(program, forward);
+		retarget(references, forward);
+		return true;
+	}
+	
+	private static void retarget(List<Instruction> instructions, Map<Instruction, Instruction> forward) {
+		for(Instruction instruction : instructions) {
+			Instruction target = instruction.getTarget();
+			if(target != null && forward.containsKey(target)) {
+				do {
+					target = forward.get(target);
+				} while(target != null && forward.containsKey(target));
+				instruction.setTarget(target);
+			}
+		}
+	}
+	
+	private static class Window implements PeepholeRule.Window {
+		private final List<Instruction> program;
+		private final Set<Instruction> targets;
+		private int pos, length;
+		private Instruction[] replacement;
+		
+		private Window(List<Instruction> program, Set<Instruction> targets) {
+			this.program = program;
+			this.targets = targets;
+		}
+		
+		@Override
+		public List<Instruction> getProgram() {
+			return Collections.unmodifiableList(program);
+		}
+		
+		@Override
+		public int getPos() {
+			return pos;
+		}
+		
+		@Override
+		public Instruction get(int offset) {
+			int i = pos + offset;
+			return i >= 0 && i < program.size() ? program.get(i) : null;
+		}
+		
+		@Override
+		public boolean isJumpTarget(int offset) {
+			Instruction instruction = get(offset);
+			return instruction != null && targets.contains(instruction);
+		}
+		
+		@Override
+		public boolean replace(int length, Instruction... replacement) {
+			if(pos + length > program.size()) {
+				return false;
+			}
+			for(int i = 1; i < length; ++i) {
+				if(isJumpTarget(i)) {
+					return false;
+				}
+			}
+			// removing a jump target outright needs something after it to jump to instead
+			if(replacement.length == 0 && isJumpTarget(0) && pos + length == program.size()) {
+				return false;
+			}
+			this.length = length;
+			this.replacement = replacement;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.util.List;
+
+@FunctionalInterface
+public interface PeepholeRule {
+	// a rule may read anywhere in the program, but only the window it replaces may change
+	interface Window {
+		List<Instruction> getProgram();
+		int getPos();
+		// null past either end of the program
+		Instruction get(int offset);
+		boolean isJumpTarget(int offset);
+		// refused (returning false) if anything but the first instruction of the window is a jump target
+		boolean replace(int length, Instruction... replacement);
+	}
+	
+	// returns true if the rule rewrote the window starting at the current position
+	boolean apply(Window window);
+}
@@ -0,0 +1,268 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// Some of these rules change the value left in the IO register by a conditional jump. That is safe for compiler
+// output, where register 2 is always written immediately before it is read, except for a function's return value,
+// and no conditional jump comes between a return and the caller reading its result.
+public final class PeepholeRules {
+	private PeepholeRules() {}
+	
+	private static boolean is(Instruction instruction, Opcode opcode) {
+		return instruction != null && instruction.getOpcode() == opcode;
+	}
+	
+	private static boolean is(Instruction instruction, Opcode opcode, int arg1) {
+		return is(instruction, opcode) && instruction.getArg1() == arg1;
+	}
+	
+	// a CONST holding a plain number, rather than a code address
+	private static boolean isConst(Instruction instruction) {
+		return is(instruction, Opcode.CONST) && instruction.getTarget() == null;
+	}
+	
+	private static boolean isConst(Instruction instruction, int value) {
+		return isConst(instruction) && instruction.getArg1() == value;
+	}
+	
+	private static boolean isUnconditionalJump(Instruction instruction) {
+		Opcode op = instruction.getOpcode();
+		// a CALL returns to a label after it, which is a jump target
+		return (op == Opcode.POP || op == Opcode.COPY || op == Opcode.LOAD) && instruction.getArg1() == Instruction.PC_REGISTER
+			|| op == Opcode.JUMP || op == Opcode.CALL || op == Opcode.RET;
+	}
+	
+	// the extended conditional jumps which compare two values
+	private static boolean isCompareJump(Instruction instruction) {
+		return is(instruction, Opcode.JUMPIFLT) || is(instruction, Opcode.JUMPIFGE)
+			|| is(instruction, Opcode.JUMPIFEQ) || is(instruction, Opcode.JUMPIFNE);
+	}
+	
+	private static boolean isExtendedJump(Instruction instruction) {
+		return is(instruction, Opcode.JUMP) || is(instruction, Opcode.JUMPIFZ) || isCompareJump(instruction);
+	}
+	
+	// CONST x / POP r / JUMPIF r, starting at the given offset
+	private static boolean isJumpIf(PeepholeRule.Window w, int offset) {
+		Instruction pop = w.get(offset + 1);
+		return is(w.get(offset), Opcode.CONST)
+			&& is(pop, Opcode.POP) && pop.getArg1() != Instruction.PC_REGISTER
+			&& is(w.get(offset + 2), Opcode.JUMPIF, pop.getArg1());
+	}
+	
+	private static boolean isJumpIfIO(PeepholeRule.Window w, int offset) {
+		return isJumpIf(w, offset) && w.get(offset + 1).getArg1() == Instruction.IO_REGISTER;
+	}
+	
+	private static boolean isJump(PeepholeRule.Window w, int offset) {
+		return is(w.get(offset), Opcode.CONST) && is(w.get(offset + 1), Opcode.POP, Instruction.PC_REGISTER);
+	}
+	
+	// a copy of a CONST pushing the same number or code address
+	private static Instruction copyConst(Instruction c) {
+		return withOpcode(c, Opcode.CONST);
+	}
+	
+	// an instruction with the given opcode and the same number or code address as another
+	private static Instruction withOpcode(Instruction c, Opcode opcode) {
+		return c.getTarget() != null ? new Instruction(opcode, c.getTarget()) : new Instruction(opcode, c.getArg1());
+	}
+	
+	private static boolean isZeroTest(PeepholeRule.Window w, int offset) {
+		return isConst(w.get(offset), 0) && is(w.get(offset + 1), Opcode.EQUALS);
+	}
+	
+	// code after an unconditional jump is unreachable until the next jump target
+	public static final PeepholeRule DEAD_CODE = w -> {
+		if(!isUnconditionalJump(w.get(0))) {
+			return false;
+		}
+		int n = 1;
+		while(w.get(n) != null && !w.isJumpTarget(n)) {
+			++n;
+		}
+		return n > 1 && w.replace(n, w.get(0));
+	};
+	
+	public static final PeepholeRule JUMP_TO_NEXT = w -> {
+		if(isJump(w, 0) && w.get(0).getTarget() == w.get(2)) {
+			return w.replace(2);
+		} else if(isJumpIfIO(w, 0) && w.get(0).getTarget() == w.get(3)) {
+			// the condition still has to be popped
+			return w.replace(3, new Instruction(Opcode.POP, Instruction.IO_REGISTER));
+		} else if(is(w.get(0), Opcode.JUMP) && w.get(0).getTarget() == w.get(1)) {
+			return w.replace(1);
+		} else if(is(w.get(0), Opcode.JUMPIFZ) && w.get(0).getTarget() == w.get(1)) {
+			return w.replace(1, new Instruction(Opcode.POP, Instruction.IO_REGISTER));
+		} else if(isCompareJump(w.get(0)) && w.get(0).getTarget() == w.get(1)) {
+			return w.replace(1, new Instruction(Opcode.POP, Instruction.IO_REGISTER), new Instruction(Opcode.POP, Instruction.IO_REGISTER));
+		}
+		return false;
+	};
+	
+	// a jump (conditional or not) to an unconditional jump goes straight to its destination
+	public static final PeepholeRule JUMP_THREADING = w -> {
+		if(isExtendedJump(w.get(0))) {
+			return threadExtended(w);
+		}
+		boolean jump = isJump(w, 0);
+		if(!jump && !isJumpIfIO(w, 0)) {
+			return false;
+		}
+		List<Instruction> program = w.getProgram();
+		Set<Instruction> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+		Instruction target = w.get(0).getTarget(), dest = null;
+		while(target != null && is(target, Opcode.CONST) && target.getPos() + 1 < program.size()
+				&& is(program.get(target.getPos() + 1), Opcode.POP, Instruction.PC_REGISTER)) {
+			if(!seen.add(target)) {
+				// an infinite loop of jumps; leave it alone
+				return false;
+			}
+			dest = target;
+			target = target.getTarget();
+		}
+		if(dest == null) {
+			return false;
+		}
+		Instruction c = copyConst(dest);
+		return jump ? w.replace(2, c, w.get(1)) : w.replace(3, c, w.get(1), w.get(2));
+	};
+	
+	private static boolean threadExtended(PeepholeRule.Window w) {
+		Set<Instruction> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+		Instruction target = w.get(0).getTarget(), dest = null;
+		while(is(target, Opcode.JUMP)) {
+			if(!seen.add(target)) {
+				return false;
+			}
+			dest = target;
+			target = target.getTarget();
+		}
+		return dest != null && w.replace(1, withOpcode(dest, w.get(0).getOpcode()));
+	}
+	
+	// CONST c / CONST x / POP 2 / JUMPIF 2 either always jumps or never does
+	public static final PeepholeRule CONSTANT_BRANCH = w -> {
+		if(!isConst(w.get(0)) || !isJumpIfIO(w, 1)) {
+			return false;
+		} else if(w.get(0).getArg1() == 0) {
+			return w.replace(4, w.get(1), new Instruction(Opcode.POP, Instruction.PC_REGISTER));
+		} else {
+			return w.replace(4);
+		}
+	};
+	
+	// likewise CONST c / JUMPIFZ, and a comparison of two constants
+	public static final PeepholeRule CONSTANT_EXTENDED_BRANCH = w -> {
+		Instruction a = w.get(0), b = w.get(1), c = w.get(2);
+		if(isConst(a) && is(b, Opcode.JUMPIFZ)) {
+			return a.getArg1() == 0 ? w.replace(2, withOpcode(b, Opcode.JUMP)) : w.replace(2);
+		}
+		if(!isConst(a) || !isConst(b) || !isCompareJump(c)) {
+			return false;
+		}
+		int x = a.getArg1(), y = b.getArg1();
+		boolean taken;
+		switch(c.getOpcode()) {
+			case JUMPIFLT: taken = x < y; break;
+			case JUMPIFGE: taken = x >= y; break;
+			case JUMPIFEQ: taken = x == y; break;
+			default: taken = x != y; break;
+		}
+		return taken ? w.replace(3, withOpcode(c, Opcode.JUMP)) : w.replace(3);
+	};
+	
+	public static final PeepholeRule CONSTANT_FOLDING = w -> {
+		Instruction a = w.get(0), b = w.get(1), c = w.get(2);
+		if(isConst(a) && is(b, Opcode.NOT)) {
+			return w.replace(2, new Instruction(Opcode.CONST, ~a.getArg1() & Instruction.MAX_INT));
+		} else if(!isConst(a) || !isConst(b) || c == null) {
+			return false;
+		}
+		int x = a.getArg1(), y = b.getArg1();
+		long result;
+		switch(c.getOpcode()) {
+			case ADD: result = (long) x + y; break;
+			case SUB: result = (long) x - y; break;
+			case MULT: result = (long) x * y; break;
+			case AND: result = x & y; break;
+			case OR: result = x | y; break;
+			case XOR: result = x ^ y; break;
+			case LSHIFT:
+				if(y < 0) {
+					return false;
+				}
+				result = VirtualMachine.lshift(x, y);
+				break;
+			case RSHIFT:
+				if(y < 0) {
+					return false;
+				}
+				result = VirtualMachine.rshift(x, y);
+				break;
+			case EQUALS: result = x == y ? 1 : 0; break;
+			case LESSTHAN: result = x < y ? 1 : 0; break;
+			default:
+				return false;
+		}
+		// keep constants within what the compiler itself would emit
+		if(result < -Instruction.MAX_INT || result > Instruction.MAX_INT) {
+			return false;
+		}
+		return w.replace(3, new Instruction(Opcode.CONST, (int) result));
+	};
+	
+	public static final PeepholeRule ALGEBRAIC_IDENTITIES = w -> {
+		Instruction a = w.get(0), b = w.get(1);
+		if(isConst(a, 0) && (is(b, Opcode.ADD) || is(b, Opcode.SUB) || is(b, Opcode.OR) || is(b, Opcode.XOR) || is(b, Opcode.RSHIFT))
+				|| isConst(a, 1) && is(b, Opcode.MULT)) {
+			return w.replace(2);
+		} else if(isConst(a, -1) && is(b, Opcode.MULT) && isConst(w.get(2), -1) && is(w.get(3), Opcode.MULT)) {
+			return w.replace(4);
+		}
+		return false;
+	};
+	
+	// the CONST 0 / EQUALS pairs emitted for logical not
+	public static final PeepholeRule DOUBLE_NEGATION = w -> {
+		Instruction a = w.get(0);
+		if(isZeroTest(w, 0) && isZeroTest(w, 2)) {
+			if(isZeroTest(w, 4)) {
+				return w.replace(6, w.get(0), w.get(1));
+			} else if(isJumpIf(w, 4) || is(w.get(4), Opcode.JUMPIFZ)) {
+				// a conditional jump only tests for zero, so !!x is the same as x
+				return w.replace(4);
+			}
+		} else if((is(a, Opcode.EQUALS) || is(a, Opcode.LESSTHAN)) && isZeroTest(w, 1) && isZeroTest(w, 3)) {
+			// comparisons already give 0 or 1
+			return w.replace(5, a);
+		}
+		return false;
+	};
+	
+	public static final PeepholeRule PUSH_POP = w -> {
+		Instruction a = w.get(0), b = w.get(1);
+		if(!is(a, Opcode.PUSH) || !is(b, Opcode.POP)) {
+			return false;
+		} else if(a.getArg1() == b.getArg1()) {
+			return w.replace(2);
+		} else {
+			return w.replace(2, new Instruction(Opcode.COPY, b.getArg1(), a.getArg1()));
+		}
+	};
+	
+	public static final PeepholeRule COPY_SELF = w -> {
+		Instruction a = w.get(0);
+		return is(a, Opcode.COPY) && a.getArg1() == a.getArg2() && w.replace(1);
+	};
+	
+	public static final List<PeepholeRule> DEFAULT = Collections.unmodifiableList(Arrays.asList(
+		DEAD_CODE, JUMP_TO_NEXT, JUMP_THREADING, CONSTANT_BRANCH, CONSTANT_EXTENDED_BRANCH,
+		CONSTANT_FOLDING, ALGEBRAIC_IDENTITIES, DOUBLE_NEGATION,
+		PUSH_POP, COPY_SELF
+	));
+}
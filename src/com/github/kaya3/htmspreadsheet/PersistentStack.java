@@ -0,0 +1,185 @@
+package com.github.kaya3.htmspreadsheet;
+
+// An immutable stack of ints which also allows random access, as LOAD and STORE need. It is a 32-way trie, so a
+// change copies only the path to one leaf and shares the rest with the old version.
+// Changes are made through a Transient, whose nodes are mutated in place until it is made persistent again; so a run
+// of many steps between two persistent versions copies each node it touches once, not once per step.
+public final class PersistentStack {
+	private static final int BITS = 5;
+	private static final int WIDTH = 1 << BITS;
+	private static final int MASK = WIDTH - 1;
+	
+	public static final PersistentStack EMPTY = new PersistentStack(new Node(null, 0), 0, 0);
+	
+	private static final class Node {
+		// the Transient allowed to mutate this node in place, if any
+		private final Object edit;
+		private final int[] values;
+		private final Node[] children;
+		
+		private Node(Object edit, int shift) {
+			this.edit = edit;
+			this.values = shift == 0 ? new int[WIDTH] : null;
+			this.children = shift == 0 ? null : new Node[WIDTH];
+		}
+		
+		private Node(Object edit, Node other) {
+			this.edit = edit;
+			this.values = other.values == null ? null : other.values.clone();
+			this.children = other.children == null ? null : other.children.clone();
+		}
+	}
+	
+	private final Node root;
+	private final int shift;
+	private final int size;
+	
+	private PersistentStack(Node root, int shift, int size) {
+		this.root = root;
+		this.shift = shift;
+		this.size = size;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int get(int i) {
+		return get(root, shift, size, i);
+	}
+	
+	public PersistentStack push(int value) {
+		Transient t = asTransient();
+		t.push(value);
+		return t.persistent();
+	}
+	
+	public PersistentStack pop() {
+		if(size == 0) {
+			throw new IllegalStateException("Stack underflow");
+		}
+		return new PersistentStack(root, shift, size - 1);
+	}
+	
+	public PersistentStack set(int i, int value) {
+		Transient t = asTransient();
+		t.set(i, value);
+		return t.persistent();
+	}
+	
+	public Transient asTransient() {
+		return new Transient(root, shift, size);
+	}
+	
+	public int[] toArray() {
+		int[] out = new int[size];
+		for(int i = 0; i < size; ++i) {
+			out[i] = get(i);
+		}
+		return out;
+	}
+	
+	public static PersistentStack of(int[] values) {
+		Transient t = EMPTY.asTransient();
+		for(int v : values) {
+			t.push(v);
+		}
+		return t.persistent();
+	}
+	
+	private static int get(Node root, int shift, int size, int i) {
+		if(i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Stack index " + i + " out of range; stack size is " + size);
+		}
+		Node node = root;
+		for(int s = shift; s > 0; s -= BITS) {
+			node = node.children[(i >>> s) & MASK];
+		}
+		return node.values[i & MASK];
+	}
+	
+	public static final class Transient {
+		private Object edit = new Object();
+		private Node root;
+		private int shift;
+		private int size;
+		
+		private Transient(Node root, int shift, int size) {
+			this.root = root;
+			this.shift = shift;
+			this.size = size;
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public int get(int i) {
+			return PersistentStack.get(root, shift, size, i);
+		}
+		
+		public void push(int value) {
+			ensureEditable();
+			if(size == 1 << (shift + BITS)) {
+				Node newRoot = new Node(edit, shift + BITS);
+				newRoot.children[0] = root;
+				root = newRoot;
+				shift += BITS;
+			}
+			int i = size++;
+			leafFor(i).values[i & MASK] = value;
+		}
+		
+		public int pop() {
+			if(size == 0) {
+				throw new IllegalStateException("Stack underflow");
+			}
+			int value = get(size - 1);
+			--size;
+			return value;
+		}
+		
+		public int peek() {
+			return get(size - 1);
+		}
+		
+		public void set(int i, int value) {
+			if(i < 0 || i >= size) {
+				throw new IndexOutOfBoundsException("Stack index " + i + " out of range; stack size is " + size);
+			}
+			leafFor(i).values[i & MASK] = value;
+		}
+		
+		// after this, the Transient can't be used; its nodes now belong to the persistent version
+		public PersistentStack persistent() {
+			ensureEditable();
+			edit = null;
+			return new PersistentStack(root, shift, size);
+		}
+		
+		private void ensureEditable() {
+			if(edit == null) {
+				throw new IllegalStateException("Transient used after persistent()");
+			}
+		}
+		
+		// the leaf holding index i, copying the path to it if it is shared and creating it if it is new
+		private Node leafFor(int i) {
+			ensureEditable();
+			root = editable(root);
+			Node node = root;
+			for(int s = shift; s > 0; s -= BITS) {
+				int j = (i >>> s) & MASK;
+				Node child = node.children[j];
+				child = child == null ? new Node(edit, s - BITS) : editable(child);
+				node.children[j] = child;
+				node = child;
+			}
+			return node;
+		}
+		
+		private Node editable(Node node) {
+			return node.edit == edit ? node : new Node(edit, node);
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Function;
+
+// Runs a program one step at a time, attributing each step to the instruction, function, source line and loop it
+// belongs to. This is a separate engine so that VirtualMachine.run, and translated programs, pay nothing for it.
+// Calls are recognised as jumps to a function's start, and returns as jumps which leave the BOS below the frame's;
+// every call moves BOS up past the return address, so a jump to a function start with the same BOS is a tail call.
+public final class Profiler {
+	private static final class Frame {
+		private final String function;
+		private final Map<String, Frame> children = new LinkedHashMap<>();
+		private long steps;
+		
+		private Frame(String function) {
+			this.function = function;
+		}
+		
+		private Frame child(String function) {
+			return children.computeIfAbsent(function, f -> new Frame(f));
+		}
+	}
+	
+	private final VirtualMachine vm;
+	private final SourceMap sourceMap;
+	private final String[] entries;
+	private final long[] counts;
+	private final Map<String, Long> calls = new LinkedHashMap<>();
+	private final Frame root;
+	private final Deque<Frame> frames = new ArrayDeque<>();
+	private final Deque<Integer> frameBases = new ArrayDeque<>();
+	private int maxStackSize;
+	
+	public Profiler(DecodedProgram program, Grid input, SourceMap sourceMap, Map<String, Integer> symbols) {
+		if(sourceMap.length() != program.length()) {
+			throw new IllegalArgumentException("Source map has length " + sourceMap.length() + " but program has length " + program.length());
+		}
+		this.vm = new VirtualMachine(program, input);
+		this.sourceMap = sourceMap;
+		this.entries = new String[program.length()];
+		for(Map.Entry<String, Integer> e : symbols.entrySet()) {
+			if(e.getValue() >= 0 && e.getValue() < entries.length) {
+				entries[e.getValue()] = e.getKey();
+			}
+		}
+		this.counts = new long[program.length()];
+		
+		String first = entries.length > 0 && entries[0] != null ? entries[0] : "?";
+		root = new Frame(first);
+		frames.push(root);
+		frameBases.push(0);
+		calls.put(first, 1L);
+	}
+	
+	public VirtualMachine getVM() {
+		return vm;
+	}
+	
+	public long run() {
+		return run(Long.MAX_VALUE);
+	}
+	
+	// like VirtualMachine.run, returns the number of steps taken
+	public long run(long maxSteps) {
+		long n = 0;
+		while(n < maxSteps && vm.isRunning()) {
+			int pc = vm.getRegister(Instruction.PC_REGISTER);
+			++counts[pc];
+			++frames.peek().steps;
+			vm.run(1);
+			++n;
+			
+			maxStackSize = Math.max(maxStackSize, vm.getStackSize());
+			int next = vm.getRegister(Instruction.PC_REGISTER);
+			if(next != pc + 1) {
+				jumped(next);
+			}
+		}
+		return n;
+	}
+	
+	private void jumped(int pc) {
+		int bos = vm.getRegister(Instruction.BOS_REGISTER);
+		while(frames.size() > 1 && bos < frameBases.peek()) {
+			frames.pop();
+			frameBases.pop();
+		}
+		String function = pc >= 0 && pc < entries.length ? entries[pc] : null;
+		if(function == null) {
+			return;
+		}
+		if(frames.size() > 1 && bos == frameBases.peek()) {
+			frames.pop();
+			frameBases.pop();
+		}
+		frames.push(frames.peek().child(function));
+		frameBases.push(bos);
+		calls.merge(function, 1L, Long::sum);
+	}
+	
+	public long getTotalSteps() {
+		return vm.getSteps();
+	}
+	
+	public long getSteps(int pos) {
+		return counts[pos];
+	}
+	
+	public int getMaxStackSize() {
+		return maxStackSize;
+	}
+	
+	public Map<String, Long> getCallCounts() {
+		return Collections.unmodifiableMap(calls);
+	}
+	
+	public Map<Opcode, Long> getStepsByOpcode() {
+		Map<Opcode, Long> out = new EnumMap<>(Opcode.class);
+		DecodedProgram program = vm.getProgram();
+		for(int i = 0; i < counts.length; ++i) {
+			if(counts[i] > 0) {
+				out.merge(DecodedProgram.opcodeOf(program.getOp(i)), counts[i], Long::sum);
+			}
+		}
+		return out;
+	}
+	
+	// steps spent in each function's own code, not counting the functions it calls
+	public Map<String, Long> getStepsByFunction() {
+		Map<String, Long> out = new LinkedHashMap<>();
+		for(int i = 0; i < counts.length; ++i) {
+			if(counts[i] > 0) {
+				SourceLocation s = sourceMap.get(i);
+				out.merge(s == null ? "?" : s.getFunction(), counts[i], Long::sum);
+			}
+		}
+		return out;
+	}
+	
+	// keyed by "function:line", with the prologue and epilogue at the line of the method declaration
+	public Map<String, Long> getStepsByLine() {
+		Map<String, Long> out = new LinkedHashMap<>();
+		for(int i = 0; i < counts.length; ++i) {
+			SourceLocation s = sourceMap.get(i);
+			if(counts[i] > 0 && s != null && s.getLine() >= 0) {
+				out.merge(s.getFunction() + ":" + s.getLine(), counts[i], Long::sum);
+			}
+		}
+		return out;
+	}
+	
+	public Map<String, Long> getStepsByKind() {
+		Map<String, Long> out = new LinkedHashMap<>();
+		for(int i = 0; i < counts.length; ++i) {
+			SourceLocation s = sourceMap.get(i);
+			if(counts[i] > 0 && s != null) {
+				out.merge(s.getKind(), counts[i], Long::sum);
+			}
+		}
+		return out;
+	}
+	
+	// a loop's steps include those of the loops nested in it, but not of the functions called from it
+	public Map<SourceLocation.Loop, Long> getStepsByLoop() {
+		Map<SourceLocation.Loop, Long> out = new LinkedHashMap<>();
+		for(int i = 0; i < counts.length; ++i) {
+			SourceLocation s = sourceMap.get(i);
+			if(counts[i] > 0 && s != null) {
+				for(SourceLocation.Loop loop = s.getLoop(); loop != null; loop = loop.getParent()) {
+					out.merge(loop, counts[i], Long::sum);
+				}
+			}
+		}
+		return out;
+	}
+	
+	// one line per call stack, "main;f;g steps", as read by flame graph tools
+	public void writeCollapsedStacks(Appendable out) throws IOException {
+		writeCollapsedStacks(out, root, root.function);
+	}
+	
+	private static void writeCollapsedStacks(Appendable out, Frame frame, String path) throws IOException {
+		if(frame.steps > 0) {
+			out.append(path).append(' ').append(Long.toString(frame.steps)).append('\n');
+		}
+		for(Frame child : frame.children.values()) {
+			writeCollapsedStacks(out, child, path + ";" + child.function);
+		}
+	}
+	
+	public void printReport(PrintStream out, int limit) {
+		long total = getTotalSteps();
+		out.println("Steps: " + total);
+		out.println("Max stack size: " + maxStackSize);
+		
+		out.println();
+		out.println("By function (self):");
+		Map<String, Long> calls = getCallCounts();
+		printTop(out, getStepsByFunction(), total, limit, f -> f + " (" + calls.getOrDefault(f, 0L) + " calls)");
+		
+		out.println();
+		out.println("By line:");
+		printTop(out, getStepsByLine(), total, limit, String::valueOf);
+		
+		out.println();
+		out.println("By loop:");
+		printTop(out, getStepsByLoop(), total, limit, l -> "while at " + l);
+		
+		out.println();
+		out.println("By statement kind:");
+		printTop(out, getStepsByKind(), total, limit, String::valueOf);
+		
+		out.println();
+		out.println("By opcode:");
+		printTop(out, getStepsByOpcode(), total, limit, String::valueOf);
+		
+		out.println();
+		out.println("By instruction:");
+		Map<Integer, Long> byPos = new LinkedHashMap<>();
+		for(int i = 0; i < counts.length; ++i) {
+			if(counts[i] > 0) {
+				byPos.put(i, counts[i]);
+			}
+		}
+		DecodedProgram program = vm.getProgram();
+		String[] lines = program.toString().split("\n");
+		printTop(out, byPos, total, limit, i -> i + ": " + lines[i] + (sourceMap.get(i) == null ? "" : "  ; " + sourceMap.get(i)));
+	}
+	
+	private static <K> void printTop(PrintStream out, Map<K, Long> steps, long total, int limit, Function<K, String> describe) {
+		steps.entrySet().stream()
+			.sorted(Map.Entry.<K, Long>comparingByValue().reversed())
+			.limit(limit)
+			.forEach(e -> out.printf("  %12d %6.2f%%  %s%n", e.getValue(), 100.0 * e.getValue() / Math.max(1, total), describe.apply(e.getKey())));
+	}
+	
+	// Profiler program [collapsed-stacks-file]
+	// the program is compiled first if it is a .java file; a binary program's symbol table names its functions
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1 || args.length > 2) {
+			System.err.println("Usage: Profiler program.java|program.ssm|program" + BinaryProgram.EXTENSION + " [collapsed-stacks-file]");
+			System.exit(2);
+		}
+		Path path = Paths.get(args[0]);
+		
+		DecodedProgram program;
+		SourceMap sourceMap;
+		Map<String, Integer> symbols;
+		if(args[0].endsWith(".java")) {
+			ProgramCompiler compiler = new ProgramCompiler();
+			String src = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+			program = DecodedProgram.decode(compiler.compile(src));
+			sourceMap = compiler.getSourceMap();
+			symbols = compiler.getSymbols();
+		} else if(args[0].endsWith(BinaryProgram.EXTENSION)) {
+			BinaryProgram binary = BinaryProgram.load(path);
+			program = binary.getProgram();
+			symbols = binary.getSymbols();
+			sourceMap = SourceMap.fromSymbols(symbols, program.length());
+		} else {
+			program = DecodedProgram.parse(new StringReader(new String(Files.readAllBytes(path), StandardCharsets.UTF_8)));
+			symbols = Collections.emptyMap();
+			sourceMap = SourceMap.fromSymbols(symbols, program.length());
+		}
+		
+		Profiler profiler = new Profiler(program, new Grid(), sourceMap, symbols);
+		profiler.run();
+		System.out.print(profiler.getVM().getOutput());
+		System.out.println();
+		profiler.printReport(System.out, 20);
+		
+		if(args.length == 2) {
+			try(Writer out = Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+				profiler.writeCollapsedStacks(out);
+			}
+		}
+	}
+}
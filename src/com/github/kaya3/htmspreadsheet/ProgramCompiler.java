@@ -1,60 +1,495 @@
 package com.github.kaya3.htmspreadsheet;
 
 import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseProblemException;
 import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import com.github.javaparser.ast.Node;
 import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.stmt.BlockStmt;
+import com.github.javaparser.ast.stmt.IfStmt;
+import com.github.javaparser.ast.stmt.ReturnStmt;
+import com.github.javaparser.ast.stmt.Statement;
+import com.github.javaparser.ast.stmt.WhileStmt;
+import com.github.javaparser.ast.visitor.VoidVisitorAdapter;
 
 import java.util.*;
+import java.util.stream.Collectors;
 
 public class ProgramCompiler {
-	private final Map<String, FunctionCompiler> functions = new HashMap<>();
+	public static final int DEFAULT_MEMO_TABLE_SIZE = 64;
+	
+	private final Map<String, FunctionCompiler> functions = new LinkedHashMap<>();
+	private final PeepholeOptimizer optimizer;
+	private final boolean simplify;
+	private final int inlineThreshold;
+	private final int memoTableSize;
+	private CallInliner inliner;
+	private final Map<String, Integer> memoTables = new LinkedHashMap<>();
+	// the functions callers asked to memoise, or null for the compiler to choose
+	private Set<String> memoised;
+	private int removedCount;
+	private final Map<String, Integer> symbols = new LinkedHashMap<>();
+	private SourceMap sourceMap;
+	private StackLayout stackLayout;
+	private CompilerMetrics metrics = CompilerMetrics.NONE;
+	private boolean javaParserOnly;
+	private FunctionCache cache;
+	private boolean extended;
+	private Set<LoopOptimizer.Transform> loopTransforms = EnumSet.allOf(LoopOptimizer.Transform.class);
+	
+	public ProgramCompiler() {
+		this(new PeepholeOptimizer());
+	}
+	
+	// a null optimizer leaves the program exactly as generated
+	public ProgramCompiler(PeepholeOptimizer optimizer) {
+		this(optimizer, true);
+	}
+	
+	public ProgramCompiler(PeepholeOptimizer optimizer, boolean simplify) {
+		this(optimizer, simplify, simplify ? CallInliner.DEFAULT_THRESHOLD : 0);
+	}
+	
+	// functions whose bodies have at most inlineThreshold AST nodes are inlined into their callers; 0 for none
+	public ProgramCompiler(PeepholeOptimizer optimizer, boolean simplify, int inlineThreshold) {
+		this(optimizer, simplify, inlineThreshold, 0);
+	}
+	
+	// memoised functions get a table of memoTableSize results at the bottom of the stack; 0 for none
+	public ProgramCompiler(PeepholeOptimizer optimizer, boolean simplify, int inlineThreshold, int memoTableSize) {
+		this.optimizer = optimizer;
+		this.simplify = simplify;
+		this.inlineThreshold = inlineThreshold;
+		this.memoTableSize = memoTableSize;
+	}
 	
 	public List<Instruction> compile(String src) {
-		CompilationUnit unit = JavaParser.parse("class Program { " + src + "\n}");
-		ClassOrInterfaceDeclaration cls = unit.getClassByName("Program").get();
+		CompilerMetrics.Phase phase = metrics.begin("parse", null, 0);
+		List<MethodDeclaration> methods = parse(src);
+		CompilerMetrics.end(phase, 0);
 		
-		for(MethodDeclaration method : cls.getMethods()) {
+		// signatures are all known before any function body is compiled
+		phase = metrics.begin("declare", null, 0);
+		for(MethodDeclaration method : methods) {
 			String name = method.getNameAsString();
-			if(functions.containsKey(name)) {
+			if(name.equals("output") || name.equals("input")) {
+				throw new IllegalArgumentException("Function name " + name + " is reserved");
+			} else if(functions.containsKey(name)) {
 				throw new IllegalArgumentException("Function " + name + " already exists");
 			}
 			
 			functions.put(name, new FunctionCompiler(this, method));
 		}
+		CompilerMetrics.end(phase, 0);
 		
-		for(MethodDeclaration method : cls.getMethods()) {
-			String name = method.getNameAsString();
-			if(name.equals("output") || name.equals("input")) {
-				throw new IllegalArgumentException("Function name " + name + " is reserved");
+		FunctionCompiler main = functions.get("main");
+		if(main == null) {
+			throw new IllegalArgumentException("No main() function");
+		} else if(main.returnsInt() || main.getParamCount() > 0) {
+			throw new IllegalArgumentException("main() function must be void with no parameters");
+		}
+		
+		phase = metrics.begin("plan", null, 0);
+		memoTables.clear();
+		Map<String, Set<String>> calls = memoTableSize > 0 || cache != null ? findCalls(methods) : null;
+		if(memoTableSize > 0) {
+			Set<String> pure = findPureFunctions(calls);
+			if(memoised != null) {
+				for(String name : memoised) {
+					FunctionCompiler f = functions.get(name);
+					if(f == null) {
+						throw new IllegalArgumentException("Cannot memoise " + name + "; there is no such function");
+					} else if(!f.returnsInt()) {
+						throw new IllegalArgumentException("Cannot memoise " + name + "; it does not return int");
+					} else if(!pure.contains(name)) {
+						throw new IllegalArgumentException("Cannot memoise " + name + "; it does IO, or calls a function which does");
+					}
+				}
+			}
+			for(MethodDeclaration method : methods) {
+				String name = method.getNameAsString();
+				boolean memoise = memoised != null
+					? memoised.contains(name)
+					: pure.contains(name) && functions.get(name).returnsInt()
+						&& recursiveCalls(method.getBody().get().getStatements(), name, calls) > 1;
+				if(memoise) {
+					memoTables.put(name, memoTables.size() * memoTableSize);
+				}
 			}
-			functions.get(name).compile();
 		}
 		
+		inliner = inlineThreshold > 0 ? new CallInliner(methods, inlineThreshold) : null;
+		CompilerMetrics.end(phase, 0);
+		
+		// main comes first, then the rest in declaration order
+		List<FunctionCompiler> order = new ArrayList<>(functions.values());
+		order.remove(main);
+		order.add(0, main);
+		
+		// keys are taken before anything is compiled, since compiling changes the function bodies
+		Map<FunctionCompiler, String> keys = new IdentityHashMap<>();
+		if(cache != null) {
+			for(MethodDeclaration method : methods) {
+				keys.put(functions.get(method.getNameAsString()), cacheKey(method, methods, calls));
+			}
+		}
+		
+		// each function is compiled once, independently; calls refer to other functions by their start labels
+		List<List<Instruction>> compiled = order.parallelStream()
+			.map(f -> {
+				List<Instruction> code = cache == null ? f.compile() : cache.compile(f, keys.get(f), f.getLine(), functions);
+				if(extended) {
+					return code;
+				}
+				CompilerMetrics.Phase lowering = metrics.begin("lower-isa", f.getName(), code.size());
+				code = ExtendedLowering.lower(code);
+				CompilerMetrics.end(lowering, code.size());
+				return code;
+			})
+			.collect(Collectors.toList());
+		
 		List<Instruction> out = new ArrayList<>();
+		for(List<Instruction> code : compiled) {
+			out.addAll(code);
+		}
 		
-		FunctionCompiler main = functions.get("main");
-		if(main.returnsInt() || main.getParamCount() > 0) {
-			throw new IllegalArgumentException("main() function must be void with no parameters");
+		phase = metrics.begin("assemble", null, out.size());
+		out = Assembler.assemble(out);
+		CompilerMetrics.end(phase, out.size());
+		
+		// each function's entry point is tracked through the optimizer like a jump, to build the symbol table
+		List<Instruction> entries = new ArrayList<>();
+		for(FunctionCompiler f : order) {
+			entries.add(new Instruction(Opcode.CONST, out.get(f.getStartLabel().getPos())));
+		}
+		if(optimizer != null) {
+			phase = metrics.begin("peephole", null, out.size());
+			removedCount = optimizer.optimize(out, entries);
+			CompilerMetrics.end(phase, out.size());
 		}
 		
-		out.addAll(main.compile());
-		for(FunctionCompiler f : functions.values()) {
-			if(f != main) {
-				out.addAll(f.compile());
+		phase = metrics.begin("link", null, out.size());
+		Map<Instruction, Integer> owner = new IdentityHashMap<>();
+		for(int i = 0; i < compiled.size(); ++i) {
+			for(Instruction instruction : compiled.get(i)) {
+				owner.put(instruction, i);
+			}
+		}
+		symbols.clear();
+		for(int i = 0; i < order.size(); ++i) {
+			Instruction entry = entries.get(i).getTarget();
+			Integer f = entry == null ? null : owner.get(entry);
+			// an uncalled function is removed as dead code, and its entry is forwarded to the jump before it
+			if(entry != null && entry.getPos() < out.size() && out.get(entry.getPos()) == entry && (f == null || f == i)) {
+				symbols.put(order.get(i).getName(), entry.getPos());
 			}
 		}
+		sourceMap = SourceMap.of(out);
+		CompilerMetrics.end(phase, out.size());
 		
-		for(int i = 0; i < out.size();) {
-			Instruction instruction = out.get(i);
-			instruction.setPos(i);
-			if(instruction.getOpcode() == Opcode.NOOP) {
-				out.remove(i);
+		phase = metrics.begin("verify", null, out.size());
+		try {
+			stackLayout = StackVerifier.verify(DecodedProgram.decode(out));
+		} catch(IllegalArgumentException e) {
+			// compiled code always keeps its stack consistent, so this is a bug in the compiler
+			throw new IllegalStateException("Compiled program failed stack verification", e);
+		}
+		CompilerMetrics.end(phase, out.size());
+		return out;
+	}
+	
+	// The hand-written parser takes only the supported subset, so anything it rejects is tried with JavaParser too;
+	// constructs outside the subset then get the usual messages, and only source which isn't Java at all gets the
+	// hand-written parser's error, with its line and column.
+	private List<MethodDeclaration> parse(String src) {
+		if(javaParserOnly) {
+			return parseWithJavaParser(src);
+		}
+		try {
+			return SourceParser.parse(src);
+		} catch(SourceParser.SyntaxError e) {
+			try {
+				return parseWithJavaParser(src);
+			} catch(ParseProblemException notJava) {
+				throw e;
+			}
+		}
+	}
+	
+	private static List<MethodDeclaration> parseWithJavaParser(String src) {
+		CompilationUnit unit = JavaParser.parse("class Program { " + src + "\n}");
+		return unit.getClassByName("Program").get().getMethods();
+	}
+	
+	// Everything a function's code depends on: the options, its body and the lines of its statements relative to its
+	// declaration, its memo table, and the signatures of the functions it calls. Inlined code depends on the bodies of
+	// the functions inlined, and on where they are relative to the function since their lines are kept.
+	private String cacheKey(MethodDeclaration method, List<MethodDeclaration> methods, Map<String, Set<String>> calls) {
+		String name = method.getNameAsString();
+		int baseLine = IRLowering.lineOf(method);
+		StringBuilder sb = new StringBuilder();
+		sb.append(simplify).append(' ').append(inlineThreshold).append(' ').append(memoTableSize)
+			.append(' ').append(getMemoTable(name)).append(' ').append(loopTransforms);
+		if(name.equals("main")) {
+			sb.append(' ').append(getMemoTablesSize());
+		}
+		describe(method, baseLine, sb);
+		for(String callee : new TreeSet<>(calls.get(name))) {
+			FunctionCompiler f = functions.get(callee);
+			sb.append('\n').append(callee);
+			if(f != null) {
+				sb.append(' ').append(f.getParamCount()).append(' ').append(f.returnsInt());
+			}
+		}
+		if(inliner != null) {
+			Set<String> reached = new TreeSet<>();
+			Deque<String> todo = new ArrayDeque<>(calls.get(name));
+			while(!todo.isEmpty()) {
+				String f = todo.pop();
+				if(calls.containsKey(f) && reached.add(f)) {
+					todo.addAll(calls.get(f));
+				}
+			}
+			for(MethodDeclaration callee : methods) {
+				if(reached.contains(callee.getNameAsString())) {
+					describe(callee, baseLine, sb);
+				}
+			}
+		}
+		return FunctionCache.key(sb.toString());
+	}
+	
+	private static void describe(MethodDeclaration method, int baseLine, StringBuilder sb) {
+		sb.append('\n').append(method).append('\n');
+		describeLines(method, baseLine, sb);
+	}
+	
+	private static void describeLines(Node node, int baseLine, StringBuilder sb) {
+		int line = IRLowering.lineOf(node);
+		sb.append(line < 0 ? "?" : Integer.toString(line - baseLine)).append(' ');
+		for(Node child : node.getChildNodes()) {
+			describeLines(child, baseLine, sb);
+		}
+	}
+	
+	// the functions each function calls, including input and output
+	private static Map<String, Set<String>> findCalls(List<MethodDeclaration> methods) {
+		Map<String, Set<String>> calls = new HashMap<>();
+		for(MethodDeclaration method : methods) {
+			Set<String> callees = new HashSet<>();
+			method.accept(new VoidVisitorAdapter<Void>() {
+				@Override
+				public void visit(MethodCallExpr n, Void v) {
+					callees.add(n.getNameAsString());
+					super.visit(n, v);
+				}
+			}, null);
+			calls.put(method.getNameAsString(), callees);
+		}
+		return calls;
+	}
+	
+	// A function is pure if it does no IO and calls only pure functions; then its result depends on nothing but its
+	// arguments, since no function can reach another's frame. Starts from every function and removes the impure ones
+	// until none are left, so that recursive functions can be pure.
+	private static Set<String> findPureFunctions(Map<String, Set<String>> calls) {
+		Set<String> pure = new HashSet<>(calls.keySet());
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+			for(Iterator<String> it = pure.iterator(); it.hasNext(); ) {
+				for(String callee : calls.get(it.next())) {
+					if(!pure.contains(callee)) {
+						it.remove();
+						changed = true;
+						break;
+					}
+				}
+			}
+		}
+		return pure;
+	}
+	
+	// whether a call to the function from can lead back to the function to, directly or through others
+	private static boolean reaches(String from, String to, Map<String, Set<String>> calls) {
+		Deque<String> todo = new ArrayDeque<>();
+		todo.push(from);
+		Set<String> seen = new HashSet<>();
+		while(!todo.isEmpty()) {
+			String f = todo.pop();
+			if(f.equals(to)) {
+				return true;
+			} else if(seen.add(f) && calls.containsKey(f)) {
+				todo.addAll(calls.get(f));
+			}
+		}
+		return false;
+	}
+	
+	// The most calls back into the function that one run through the statements can make: the larger of the two
+	// branches of an if, stopping at a return, and many for a loop which makes any. A table only pays off when this is
+	// more than one, as in fib; in a linear recursion like factorial every call misses, so it is pure overhead.
+	private static int recursiveCalls(List<Statement> statements, String name, Map<String, Set<String>> calls) {
+		int n = 0;
+		for(int i = 0; i < statements.size(); ++i) {
+			Statement s = statements.get(i);
+			if(s instanceof IfStmt) {
+				IfStmt ex = (IfStmt) s;
+				int rest = recursiveCalls(statements.subList(i + 1, statements.size()), name, calls);
+				int then = branchCalls(ex.getThenStmt(), rest, name, calls);
+				int other = ex.getElseStmt().isPresent() ? branchCalls(ex.getElseStmt().get(), rest, name, calls) : rest;
+				return n + callsIn(ex.getCondition(), name, calls) + Math.max(then, other);
+			} else if(s instanceof BlockStmt) {
+				int rest = recursiveCalls(statements.subList(i + 1, statements.size()), name, calls);
+				return n + branchCalls(s, rest, name, calls);
+			} else if(s instanceof WhileStmt) {
+				if(callsIn(s, name, calls) > 0) {
+					return n + 2;
+				}
 			} else {
-				++i;
+				n += callsIn(s, name, calls);
+				if(s instanceof ReturnStmt) {
+					return n;
+				}
 			}
 		}
-		return out;
+		return n;
+	}
+	
+	// a branch of an if, followed by the statements after the if unless the branch always returns
+	private static int branchCalls(Statement branch, int rest, String name, Map<String, Set<String>> calls) {
+		List<Statement> statements = branch instanceof BlockStmt ? ((BlockStmt) branch).getStatements() : Collections.singletonList(branch);
+		int n = recursiveCalls(statements, name, calls);
+		return alwaysReturns(branch) ? n : n + rest;
+	}
+	
+	private static boolean alwaysReturns(Statement s) {
+		if(s instanceof ReturnStmt) {
+			return true;
+		} else if(s instanceof BlockStmt) {
+			for(Statement t : ((BlockStmt) s).getStatements()) {
+				if(alwaysReturns(t)) {
+					return true;
+				}
+			}
+		} else if(s instanceof IfStmt) {
+			IfStmt ex = (IfStmt) s;
+			return ex.getElseStmt().isPresent() && alwaysReturns(ex.getThenStmt()) && alwaysReturns(ex.getElseStmt().get());
+		}
+		return false;
+	}
+	
+	// the calls anywhere in the node which can lead back to the function
+	private static int callsIn(Node node, String name, Map<String, Set<String>> calls) {
+		int[] n = { 0 };
+		node.accept(new VoidVisitorAdapter<Void>() {
+			@Override
+			public void visit(MethodCallExpr call, Void v) {
+				if(reaches(call.getNameAsString(), name, calls)) {
+					++n[0];
+				}
+				super.visit(call, v);
+			}
+		}, null);
+		return n[0];
+	}
+	
+	// the number of instructions removed by the peephole optimizer in the last compile
+	public int getRemovedCount() {
+		return removedCount;
+	}
+	
+	// the start position of each function in the last compiled program, in layout order
+	public Map<String, Integer> getSymbols() {
+		return Collections.unmodifiableMap(symbols);
+	}
+	
+	// where each instruction of the last compiled program came from
+	public SourceMap getSourceMap() {
+		return sourceMap;
+	}
+	
+	// the frame of each function in the last compiled program, and its largest stack
+	public StackLayout getStackLayout() {
+		return stackLayout;
+	}
+	
+	// whether function bodies are simplified by TreeSimplifier before code generation, and self tail calls become jumps
+	public boolean isSimplifying() {
+		return simplify;
+	}
+	
+	// null if no functions are inlined
+	public CallInliner getInliner() {
+		return inliner;
+	}
+	
+	// the absolute stack address of a memoised function's table, or -1 if it isn't memoised
+	public int getMemoTable(String name) {
+		return memoTables.getOrDefault(name, -1);
+	}
+	
+	public int getMemoTableSize() {
+		return memoTableSize;
+	}
+	
+	// the stack space main reserves for all the tables
+	public int getMemoTablesSize() {
+		return memoTables.size() * memoTableSize;
+	}
+	
+	// the functions memoised in the last compile
+	public Set<String> getMemoised() {
+		return Collections.unmodifiableSet(memoTables.keySet());
+	}
+	
+	// With a memo table size, only the named functions are memoised; each must be pure and return int. By default, or
+	// given null, the compiler chooses the pure int functions which can call themselves more than once per call.
+	public void setMemoised(Collection<String> names) {
+		this.memoised = names == null ? null : new LinkedHashSet<>(names);
+	}
+	
+	// every phase of each compile is reported to these, as well as to Flight Recorder
+	public void setMetrics(CompilerMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public CompilerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	// parses every program with JavaParser instead of trying the hand-written parser first
+	public void setJavaParserOnly(boolean javaParserOnly) {
+		this.javaParserOnly = javaParserOnly;
+	}
+	
+	// Programs use the extended instruction set, which the Java engines run in fewer steps, rather than being
+	// lowered to the base set for the spreadsheet.
+	public void setExtended(boolean extended) {
+		this.extended = extended;
+	}
+	
+	public boolean isExtended() {
+		return extended;
+	}
+	
+	// which of LoopOptimizer's transforms are made when simplifying; all of them by default
+	public void setLoopTransforms(Set<LoopOptimizer.Transform> loopTransforms) {
+		this.loopTransforms = loopTransforms.isEmpty() ? EnumSet.noneOf(LoopOptimizer.Transform.class) : EnumSet.copyOf(loopTransforms);
+	}
+	
+	public Set<LoopOptimizer.Transform> getLoopTransforms() {
+		return Collections.unmodifiableSet(loopTransforms);
+	}
+	
+	// each function's code is taken from the cache if it hasn't changed, and kept there if it has; null for none
+	public void setCache(FunctionCache cache) {
+		this.cache = cache;
+	}
+	
+	public FunctionCache getCache() {
+		return cache;
 	}
 	
 	public FunctionCompiler getFunction(String name) {
@@ -0,0 +1,574 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.kaya3.htmspreadsheet.ClassFileWriter.*;
+import static com.github.kaya3.htmspreadsheet.DecodedProgram.*;
+
+public final class ProgramTranslator {
+	private static final String CLASS_NAME = "com/github/kaya3/htmspreadsheet/TranslatedProgram";
+	private static final String VM = "com/github/kaya3/htmspreadsheet/VirtualMachine";
+	private static final String GRID = "Lcom/github/kaya3/htmspreadsheet/Grid;";
+	private static final String REGION_DESCRIPTOR = "(L" + VM + ";J)V";
+	
+	// long straight-line runs are split so that any block fits in a region
+	private static final int MAX_BLOCK_LENGTH = 64;
+	private static final int MAX_REGION_LENGTH = 256;
+	
+	// local variable slots of each region method; guest registers 1-7 live in locals, the PC is only materialised on exit
+	private static final int
+		VM_LOCAL = 0, LIMIT_LOCAL = 1, REGS_LOCAL = 3, FIRST_REGISTER_LOCAL = 3,
+		STACK_LOCAL = 11, SP_LOCAL = 12, STEPS_LOCAL = 13, INPUT_LOCAL = 15, OUTPUT_LOCAL = 16,
+		X_LOCAL = 17, Y_LOCAL = 18, PC_LOCAL = 19, MAX_LOCALS = 20, MAX_STACK = 8;
+	
+	public static CompiledProgram translate(List<Instruction> instructions) {
+		return translate(DecodedProgram.decode(instructions));
+	}
+	
+	public static CompiledProgram translate(DecodedProgram program) {
+		return new ProgramTranslator(program).translate();
+	}
+	
+	private final DecodedProgram program;
+	private final int length;
+	private final boolean[] leaders;
+	private ClassFileWriter cf;
+	private Code code;
+	private Label[] blockLabels;
+	private Label dispatch, exit;
+	private int regionStart, regionEnd;
+	
+	private ProgramTranslator(DecodedProgram program) {
+		this.program = program;
+		this.length = program.length();
+		this.leaders = findLeaders();
+	}
+	
+	private boolean writesPC(int pc) {
+		int op = program.getOp(pc);
+		return op == OP_JUMPIF || op >= OP_JUMP && op <= OP_JUMPIFNE || op == OP_CALL || op == OP_RET
+			|| (op == OP_POP || op == OP_COPY || op == OP_LOAD) && program.getArg1(pc) == Instruction.PC_REGISTER;
+	}
+	
+	private boolean isConditionalJump(int pc) {
+		int op = program.getOp(pc);
+		return op == OP_JUMPIF || op >= OP_JUMPIFZ && op <= OP_JUMPIFNE;
+	}
+	
+	// the extended jumps and CALL give their destination directly
+	private boolean jumpsToArg(int pc) {
+		int op = program.getOp(pc);
+		return op >= OP_JUMP && op <= OP_JUMPIFNE || op == OP_CALL;
+	}
+	
+	private boolean[] findLeaders() {
+		boolean[] out = new boolean[length + 1];
+		out[0] = true;
+		out[length] = true;
+		int blockLength = 0;
+		for(int pc = 0; pc < length; ++pc) {
+			// any constant might be a jump target or a return address pushed for a later POP 0
+			if(program.getOp(pc) == OP_CONST || jumpsToArg(pc)) {
+				int x = program.getArg1(pc);
+				if(x >= 0 && x < length) {
+					out[x] = true;
+				}
+			}
+			if(writesPC(pc)) {
+				out[pc + 1] = true;
+			}
+		}
+		for(int pc = 0; pc < length; ++pc) {
+			blockLength = out[pc] ? 1 : blockLength + 1;
+			if(blockLength > MAX_BLOCK_LENGTH) {
+				out[pc] = true;
+				blockLength = 1;
+			}
+		}
+		return out;
+	}
+	
+	private int nextLeader(int pc) {
+		do {
+			++pc;
+		} while(!leaders[pc]);
+		return pc;
+	}
+	
+	private CompiledProgram translate() {
+		cf = new ClassFileWriter(CLASS_NAME);
+		List<int[]> regions = new ArrayList<>();
+		int start = 0;
+		while(start < length) {
+			int end = nextLeader(start);
+			while(end < length && end - start < MAX_REGION_LENGTH) {
+				end = nextLeader(end);
+			}
+			addRegions(start, end, regions);
+			start = end;
+		}
+		
+		int[] regionOf = new int[length];
+		MethodHandle[] handles = new MethodHandle[regions.size()];
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(cf.toByteArray(), true);
+			MethodType type = MethodType.methodType(void.class, VirtualMachine.class, long.class);
+			for(int i = 0; i < regions.size(); ++i) {
+				int[] r = regions.get(i);
+				for(int pc = r[0]; pc < r[1]; ++pc) {
+					regionOf[pc] = i;
+				}
+				handles[i] = lookup.findStatic(lookup.lookupClass(), "region" + i, type);
+			}
+		} catch(IllegalAccessException | NoSuchMethodException e) {
+			throw new AssertionError(e);
+		}
+		return new CompiledProgram(program, regionOf, handles);
+	}
+	
+	// regions whose bytecode is too large for the JIT are split in half at a block boundary
+	private void addRegions(int start, int end, List<int[]> regions) {
+		Code c = translateRegion(start, end);
+		if(c.size() > Code.MAX_JIT_SIZE && nextLeader(start) < end) {
+			int mid = start + (end - start) / 2;
+			while(!leaders[mid]) {
+				++mid;
+			}
+			if(mid == end) {
+				mid = start;
+				while(nextLeader(mid) < end) {
+					mid = nextLeader(mid);
+				}
+			}
+			addRegions(start, mid, regions);
+			addRegions(mid, end, regions);
+		} else {
+			cf.addMethod(ACC_STATIC, "region" + regions.size(), REGION_DESCRIPTOR, c);
+			regions.add(new int[] { start, end });
+		}
+	}
+	
+	private Code translateRegion(int start, int end) {
+		regionStart = start;
+		regionEnd = end;
+		code = new Code(MAX_STACK, MAX_LOCALS);
+		dispatch = code.newLabel();
+		exit = code.newLabel();
+		blockLabels = new Label[end - start];
+		for(int pc = start; pc < end; ++pc) {
+			if(leaders[pc]) {
+				blockLabels[pc - start] = code.newLabel();
+			}
+		}
+		
+		emitLoadState();
+		code.bind(dispatch);
+		code.op1(ILOAD, PC_LOCAL);
+		Label[] targets = new Label[end - start];
+		for(int i = 0; i < targets.length; ++i) {
+			// entering part-way through a block is left to the interpreter
+			targets[i] = blockLabels[i] != null ? blockLabels[i] : exit;
+		}
+		code.tableswitch(start, exit, targets);
+		
+		for(int pc = start; pc < end; pc = nextLeader(pc)) {
+			translateBlock(pc, nextLeader(pc));
+		}
+		
+		emitSaveState();
+		code.op(RETURN);
+		return code;
+	}
+	
+	private void invokeVM(String name, String descriptor) {
+		code.op1(ALOAD, VM_LOCAL);
+		code.op2(INVOKEVIRTUAL, cf.methodConstant(VM, name, descriptor));
+	}
+	
+	private void invokeStatic(String name, String descriptor) {
+		code.op2(INVOKESTATIC, cf.methodConstant(VM, name, descriptor));
+	}
+	
+	private void emitLoadState() {
+		invokeVM("registers", "()[I");
+		code.op1(ASTORE, REGS_LOCAL);
+		for(int r = 1; r < Instruction.REGISTER_COUNT; ++r) {
+			code.op1(ALOAD, REGS_LOCAL);
+			code.intConst(cf, r);
+			code.op(IALOAD);
+			code.op1(ISTORE, registerLocal(r));
+		}
+		invokeVM("stackArray", "()[I");
+		code.op1(ASTORE, STACK_LOCAL);
+		invokeVM("getStackSize", "()I");
+		code.op1(ISTORE, SP_LOCAL);
+		invokeVM("getSteps", "()J");
+		code.op1(LSTORE, STEPS_LOCAL);
+		invokeVM("getInput", "()" + GRID);
+		code.op1(ASTORE, INPUT_LOCAL);
+		invokeVM("getOutput", "()" + GRID);
+		code.op1(ASTORE, OUTPUT_LOCAL);
+		code.op1(ALOAD, REGS_LOCAL);
+		code.op(ICONST_0);
+		code.op(IALOAD);
+		code.op1(ISTORE, PC_LOCAL);
+	}
+	
+	private void emitSaveState() {
+		code.bind(exit);
+		code.op1(ALOAD, REGS_LOCAL);
+		code.op(ICONST_0);
+		code.op1(ILOAD, PC_LOCAL);
+		code.op(IASTORE);
+		for(int r = 1; r < Instruction.REGISTER_COUNT; ++r) {
+			code.op1(ALOAD, REGS_LOCAL);
+			code.intConst(cf, r);
+			code.op1(ILOAD, registerLocal(r));
+			code.op(IASTORE);
+		}
+		code.op1(ALOAD, VM_LOCAL);
+		code.op1(ALOAD, STACK_LOCAL);
+		code.op1(ILOAD, SP_LOCAL);
+		code.op1(LLOAD, STEPS_LOCAL);
+		code.op2(INVOKEVIRTUAL, cf.methodConstant(VM, "syncState", "([IIJ)V"));
+	}
+	
+	private static int registerLocal(int r) {
+		return FIRST_REGISTER_LOCAL + r;
+	}
+	
+	private void translateBlock(int start, int end) {
+		code.bind(blockLabels[start - regionStart]);
+		
+		// the whole block is charged on entry; if it doesn't fit in the budget, exit without running any of it
+		Label ok = code.newLabel();
+		code.op1(LLOAD, STEPS_LOCAL);
+		code.intConst(cf, end - start);
+		code.op(I2L);
+		code.op(LADD);
+		code.op(DUP2);
+		code.op1(LSTORE, STEPS_LOCAL);
+		code.op1(LLOAD, LIMIT_LOCAL);
+		code.op(LCMP);
+		code.branch(IFLE, ok);
+		code.op1(LLOAD, STEPS_LOCAL);
+		code.intConst(cf, end - start);
+		code.op(I2L);
+		code.op(LSUB);
+		code.op1(LSTORE, STEPS_LOCAL);
+		emitExit(start);
+		code.bind(ok);
+		
+		for(int pc = start; pc < end; ++pc) {
+			translateInstruction(pc);
+		}
+		
+		int last = end - 1;
+		boolean fallsThrough = !writesPC(last) || isConditionalJump(last);
+		if(fallsThrough && end == regionEnd) {
+			emitExit(end);
+		}
+	}
+	
+	private void emitExit(int pc) {
+		code.intConst(cf, pc);
+		code.op1(ISTORE, PC_LOCAL);
+		code.gotoW(exit);
+	}
+	
+	private void emitJumpTo(int target) {
+		if(target >= regionStart && target < regionEnd && leaders[target]) {
+			code.gotoW(blockLabels[target - regionStart]);
+		} else {
+			emitExit(target);
+		}
+	}
+	
+	private void emitReadRegister(int r, int pc) {
+		if(r == Instruction.PC_REGISTER) {
+			// the PC has already been incremented when an instruction reads it
+			code.intConst(cf, pc + 1);
+		} else {
+			code.op1(ILOAD, registerLocal(r));
+		}
+	}
+	
+	private void emitWriteRegister(int r) {
+		if(r == Instruction.PC_REGISTER) {
+			code.op1(ISTORE, PC_LOCAL);
+			code.gotoW(dispatch);
+		} else {
+			code.op1(ISTORE, registerLocal(r));
+		}
+	}
+	
+	private void emitPop() {
+		code.iinc(SP_LOCAL, -1);
+		code.op1(ALOAD, STACK_LOCAL);
+		code.op1(ILOAD, SP_LOCAL);
+		code.op(IALOAD);
+	}
+	
+	// leaves arrayref and index of the new top of stack, for the value to be pushed and stored
+	private void emitPushPrefix() {
+		if(program.getMaxStack() >= 0) {
+			// the machine's stack was allocated at the verified maximum, so there is always room
+			code.op1(ALOAD, STACK_LOCAL);
+			code.op1(ILOAD, SP_LOCAL);
+			return;
+		}
+		Label ok = code.newLabel();
+		code.op1(ILOAD, SP_LOCAL);
+		code.op1(ALOAD, STACK_LOCAL);
+		code.op(ARRAYLENGTH);
+		code.branch(IF_ICMPLT, ok);
+		code.op1(ALOAD, STACK_LOCAL);
+		invokeStatic("grow", "([I)[I");
+		code.op1(ASTORE, STACK_LOCAL);
+		code.bind(ok);
+		code.op1(ALOAD, STACK_LOCAL);
+		code.op1(ILOAD, SP_LOCAL);
+	}
+	
+	private void emitPushSuffix() {
+		code.op(IASTORE);
+		code.iinc(SP_LOCAL, 1);
+	}
+	
+	private void emitStackAddress(int addressRegister, int pc) {
+		code.op1(ALOAD, STACK_LOCAL);
+		emitReadRegister(Instruction.BOS_REGISTER, pc);
+		emitReadRegister(addressRegister, pc);
+		code.op(IADD);
+		code.op1(ILOAD, SP_LOCAL);
+		invokeStatic("checkAddress", "(II)I");
+	}
+	
+	// pops y into a local, and leaves arrayref, index and x for the result to be stored over x
+	private void emitBinaryPrefix() {
+		emitPop();
+		code.op1(ISTORE, Y_LOCAL);
+		code.op1(ALOAD, STACK_LOCAL);
+		code.op1(ILOAD, SP_LOCAL);
+		code.op(ICONST_0 + 1);
+		code.op(ISUB);
+		code.op(DUP2);
+		code.op(IALOAD);
+		code.op1(ILOAD, Y_LOCAL);
+	}
+	
+	// pops y and then x, and branches past a jump to the destination unless the comparison holds
+	private void emitCompareJump(int fallThroughOpcode, int target) {
+		Label fallThrough = code.newLabel();
+		emitPop();
+		code.op1(ISTORE, Y_LOCAL);
+		emitPop();
+		code.op1(ILOAD, Y_LOCAL);
+		code.branch(fallThroughOpcode, fallThrough);
+		emitJumpTo(target);
+		code.bind(fallThrough);
+	}
+	
+	private void emitComparison(int opcode) {
+		Label no = code.newLabel(), end = code.newLabel();
+		code.branch(opcode, no);
+		code.op(ICONST_0 + 1);
+		code.branch(GOTO, end);
+		code.bind(no);
+		code.op(ICONST_0);
+		code.bind(end);
+	}
+	
+	private void translateInstruction(int pc) {
+		int a = program.getArg1(pc), b = program.getArg2(pc);
+		boolean afterConst = pc > 0 && !leaders[pc] && program.getOp(pc - 1) == OP_CONST;
+		switch(program.getOp(pc)) {
+			case OP_CONST:
+				emitPushPrefix();
+				code.intConst(cf, a);
+				emitPushSuffix();
+				break;
+			case OP_PUSH:
+				emitPushPrefix();
+				emitReadRegister(a, pc);
+				emitPushSuffix();
+				break;
+			case OP_POP:
+				if(a == Instruction.PC_REGISTER && afterConst) {
+					// CONST x / POP 0 is a direct jump
+					code.iinc(SP_LOCAL, -1);
+					emitJumpTo(program.getArg1(pc - 1));
+				} else {
+					emitPop();
+					emitWriteRegister(a);
+				}
+				break;
+			case OP_LOAD:
+				emitStackAddress(b, pc);
+				code.op(IALOAD);
+				emitWriteRegister(a);
+				break;
+			case OP_STORE:
+				emitStackAddress(b, pc);
+				emitReadRegister(a, pc);
+				code.op(IASTORE);
+				break;
+			case OP_COPY:
+				emitReadRegister(b, pc);
+				emitWriteRegister(a);
+				break;
+			case OP_INPUT:
+				emitPop();
+				code.op1(ISTORE, Y_LOCAL);
+				emitPop();
+				code.op1(ISTORE, X_LOCAL);
+				code.op1(ALOAD, INPUT_LOCAL);
+				code.op1(ILOAD, X_LOCAL);
+				code.op1(ILOAD, Y_LOCAL);
+				invokeStatic("input", "(" + GRID + "II)I");
+				code.op1(ISTORE, registerLocal(Instruction.IO_REGISTER));
+				break;
+			case OP_OUTPUT:
+				emitPop();
+				code.op1(ISTORE, Y_LOCAL);
+				emitPop();
+				code.op1(ISTORE, X_LOCAL);
+				code.op1(ALOAD, OUTPUT_LOCAL);
+				code.op1(ILOAD, X_LOCAL);
+				code.op1(ILOAD, Y_LOCAL);
+				code.op1(ILOAD, registerLocal(Instruction.IO_REGISTER));
+				invokeStatic("output", "(" + GRID + "III)V");
+				break;
+			case OP_JUMPIF: {
+				Label fallThrough = code.newLabel();
+				emitPop();
+				code.branch(IFNE, fallThrough);
+				// CONST x / POP r / JUMPIF r is a direct conditional branch to x
+				if(a != Instruction.PC_REGISTER && pc > 1 && !leaders[pc] && !leaders[pc - 1]
+						&& program.getOp(pc - 1) == OP_POP && program.getArg1(pc - 1) == a
+						&& program.getOp(pc - 2) == OP_CONST) {
+					emitJumpTo(program.getArg1(pc - 2));
+				} else {
+					emitReadRegister(a, pc);
+					emitWriteRegister(Instruction.PC_REGISTER);
+				}
+				code.bind(fallThrough);
+				break;
+			}
+			case OP_JUMP:
+				emitJumpTo(a);
+				break;
+			case OP_JUMPIFZ: {
+				Label fallThrough = code.newLabel();
+				emitPop();
+				code.branch(IFNE, fallThrough);
+				emitJumpTo(a);
+				code.bind(fallThrough);
+				break;
+			}
+			case OP_JUMPIFLT:
+				emitCompareJump(IF_ICMPGE, a);
+				break;
+			case OP_JUMPIFGE:
+				emitCompareJump(IF_ICMPLT, a);
+				break;
+			case OP_JUMPIFEQ:
+				emitCompareJump(IF_ICMPNE, a);
+				break;
+			case OP_JUMPIFNE:
+				emitCompareJump(IF_ICMPEQ, a);
+				break;
+			case OP_CALL:
+				code.op1(ILOAD, registerLocal(Instruction.BOS_REGISTER));
+				code.intConst(cf, b);
+				code.op(IADD);
+				code.op1(ISTORE, registerLocal(Instruction.BOS_REGISTER));
+				emitJumpTo(a);
+				break;
+			case OP_RET:
+				emitPop();
+				code.op1(ISTORE, registerLocal(Instruction.BOS_REGISTER));
+				emitPop();
+				emitWriteRegister(Instruction.PC_REGISTER);
+				break;
+			case OP_DUP:
+				emitPushPrefix();
+				code.op1(ALOAD, STACK_LOCAL);
+				code.op1(ILOAD, SP_LOCAL);
+				code.op(ICONST_0 + 1);
+				code.op(ISUB);
+				code.op(IALOAD);
+				emitPushSuffix();
+				break;
+			case OP_ADD:
+				emitBinaryPrefix();
+				code.op(IADD);
+				code.op(IASTORE);
+				break;
+			case OP_SUB:
+				emitBinaryPrefix();
+				code.op(ISUB);
+				code.op(IASTORE);
+				break;
+			case OP_MULT:
+				emitBinaryPrefix();
+				code.op(IMUL);
+				code.op(IASTORE);
+				break;
+			case OP_AND:
+				emitBinaryPrefix();
+				code.op(IAND);
+				code.op(IASTORE);
+				break;
+			case OP_OR:
+				emitBinaryPrefix();
+				code.op(IOR);
+				code.op(IASTORE);
+				break;
+			case OP_XOR:
+				emitBinaryPrefix();
+				code.op(IXOR);
+				code.op(IASTORE);
+				break;
+			case OP_LSHIFT:
+				emitBinaryPrefix();
+				invokeStatic("lshift", "(II)I");
+				code.op(IASTORE);
+				break;
+			case OP_RSHIFT:
+				emitBinaryPrefix();
+				invokeStatic("rshift", "(II)I");
+				code.op(IASTORE);
+				break;
+			case OP_NOT:
+				code.op1(ALOAD, STACK_LOCAL);
+				code.op1(ILOAD, SP_LOCAL);
+				code.op(ICONST_0 + 1);
+				code.op(ISUB);
+				code.op(DUP2);
+				code.op(IALOAD);
+				code.op(ICONST_0 - 1);
+				code.op(IXOR);
+				code.intConst(cf, Instruction.MAX_INT);
+				code.op(IAND);
+				code.op(IASTORE);
+				break;
+			case OP_EQUALS:
+				emitBinaryPrefix();
+				emitComparison(IF_ICMPNE);
+				code.op(IASTORE);
+				break;
+			case OP_LESSTHAN:
+				emitBinaryPrefix();
+				emitComparison(IF_ICMPGE);
+				code.op(IASTORE);
+				break;
+			default:
+				throw new IllegalStateException("Invalid opcode " + program.getOp(pc) + " at position " + pc);
+		}
+	}
+}
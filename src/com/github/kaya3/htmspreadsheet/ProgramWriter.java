@@ -0,0 +1,84 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Writes programs in the text format one instruction per line, straight into a byte buffer; the format is all ASCII,
+// so there is no need to go through Strings or a charset encoder.
+public final class ProgramWriter {
+	private static final byte[][] NAMES = new byte[Opcode.values().length][];
+	static {
+		for(Opcode op : Opcode.values()) {
+			NAMES[op.ordinal()] = op.name().getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+	
+	// room for the longest opcode name and two ints
+	private static final int MAX_LINE_LENGTH = 64;
+	
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+	
+	public ProgramWriter(WritableByteChannel channel) {
+		this(channel, 1 << 16);
+	}
+	
+	public ProgramWriter(WritableByteChannel channel, int bufferSize) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(Math.max(bufferSize, MAX_LINE_LENGTH));
+	}
+	
+	public void write(List<Instruction> program) throws IOException {
+		for(Instruction instruction : program) {
+			write(instruction);
+		}
+	}
+	
+	public void write(Instruction instruction) throws IOException {
+		if(buffer.remaining() < MAX_LINE_LENGTH) {
+			flush();
+		}
+		buffer.put(NAMES[instruction.getOpcode().ordinal()]);
+		int argCount = instruction.getArgCount();
+		if(argCount > 0) {
+			buffer.put((byte) ' ');
+			putInt(instruction.getArg1());
+		}
+		if(argCount > 1) {
+			buffer.put((byte) ' ');
+			putInt(instruction.getArg2());
+		}
+		buffer.put((byte) '\n');
+	}
+	
+	private void putInt(int x) {
+		if(x < 0) {
+			buffer.put((byte) '-');
+		} else {
+			// negate so that Integer.MIN_VALUE works too
+			x = -x;
+		}
+		int start = buffer.position();
+		do {
+			buffer.put((byte) ('0' - x % 10));
+			x /= 10;
+		} while(x != 0);
+		// digits were written least significant first
+		for(int i = start, j = buffer.position() - 1; i < j; ++i, --j) {
+			byte t = buffer.get(i);
+			buffer.put(i, buffer.get(j));
+			buffer.put(j, t);
+		}
+	}
+	
+	public void flush() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
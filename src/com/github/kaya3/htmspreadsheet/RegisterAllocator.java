@@ -0,0 +1,324 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+// Liveness comes from the control-flow graph's cached analysis, and each block is walked backwards from its live-out
+// set to find which variables are live at the same time. Variables which never are share registers; what doesn't fit
+// in registers lives in the stack frame at BOS + slot. Variables are numbered as in the graph.
+public class RegisterAllocator {
+	public static final int FIRST_REGISTER = 3;
+	public static final int LAST_REGISTER = Instruction.REGISTER_COUNT - 1;
+	// reserved for moving values in and out of the stack frame if anything is spilled, and always reserved when there
+	// are pinned variables, since the code around the body uses it as a temporary
+	public static final int SCRATCH_REGISTER = LAST_REGISTER;
+	// variables which are never read are popped here and forgotten
+	public static final int DISCARD_REGISTER = Instruction.IO_REGISTER;
+	
+	private final List<String> variables;
+	private final int paramCount;
+	private final BitSet[] interference;
+	private final double[] spillCost;
+	private final BitSet read = new BitSet();
+	private final Map<ExprNode.Call, BitSet> liveAfterCall = new IdentityHashMap<>();
+	
+	// -1 where not assigned
+	private final int[] registers;
+	private final int[] slots;
+	private boolean spilled;
+	private int frameSize;
+	
+	public RegisterAllocator(PassManager passes, List<String> variables, int paramCount) {
+		this(passes, variables, paramCount, Collections.emptySet());
+	}
+	
+	// pinned variables belong to code the compiler adds around the body, and come after the graph's own variables:
+	// they are live throughout it, and the parameters are read on entry alongside them, whether or not the body reads
+	// them; that code needs the scratch register too, so no variable is given it
+	public RegisterAllocator(PassManager passes, List<String> variables, int paramCount, Set<String> pinned) {
+		this.variables = variables;
+		this.paramCount = paramCount;
+		int n = variables.size();
+		interference = new BitSet[n];
+		for(int v = 0; v < n; ++v) {
+			interference[v] = new BitSet(n);
+		}
+		spillCost = new double[n];
+		registers = new int[n];
+		slots = new int[n];
+		Arrays.fill(slots, -1);
+		
+		ControlFlowGraph graph = passes.getGraph();
+		IRPasses.Liveness liveness = passes.get(IRPasses.LIVENESS);
+		countUses(graph);
+		for(int b = 0; b < graph.size(); ++b) {
+			BasicBlock block = graph.getBlock(b);
+			BitSet live = liveness.getLiveOut(b);
+			walk(block.getTerminator(), live);
+			for(int i = block.getStatementCount() - 1; i >= 0; --i) {
+				walk(block.getStatement(i), live);
+			}
+		}
+		BitSet liveIn = liveness.getLiveIn(0);
+		
+		if(!pinned.isEmpty()) {
+			read.set(0, paramCount);
+			BitSet pins = new BitSet();
+			for(String v : pinned) {
+				pins.set(variables.indexOf(v));
+			}
+			read.or(pins);
+			for(int v = pins.nextSetBit(0); v >= 0; v = pins.nextSetBit(v + 1)) {
+				for(int other = read.nextSetBit(0); other >= 0; other = read.nextSetBit(other + 1)) {
+					if(other != v) {
+						interfere(v, other);
+					}
+				}
+			}
+			for(BitSet live : liveAfterCall.values()) {
+				live.or(pins);
+			}
+		}
+		// parameters are all defined at once on entry
+		for(int i = 0; i < paramCount; ++i) {
+			define(i, liveIn);
+			for(int j = 0; j < paramCount; ++j) {
+				if(i != j && read.get(i) && read.get(j)) {
+					interfere(i, j);
+				}
+			}
+		}
+		
+		if(!color(pinned.isEmpty() ? LAST_REGISTER - FIRST_REGISTER + 1 : SCRATCH_REGISTER - FIRST_REGISTER)) {
+			color(SCRATCH_REGISTER - FIRST_REGISTER);
+			assignSlots();
+		}
+	}
+	
+	// how many of the function's own variables can be in registers at once, given how many are pinned
+	public static int freeRegisters(int pinnedCount) {
+		return pinnedCount == 0 ? LAST_REGISTER - FIRST_REGISTER + 1 : SCRATCH_REGISTER - FIRST_REGISTER - pinnedCount;
+	}
+	
+	public boolean hasSpills() {
+		return spilled;
+	}
+	
+	// parameters keep the stack slots they were passed in, so the frame covers those too
+	public int getFrameSize() {
+		return frameSize;
+	}
+	
+	// -1 if the variable is spilled to the stack frame
+	public int getRegister(String name) {
+		return registers[variables.indexOf(name)];
+	}
+	
+	// -1 if the variable is held in a register
+	public int getSlot(String name) {
+		return slots[variables.indexOf(name)];
+	}
+	
+	// the registers which must be saved around a call, in ascending order
+	public int[] getSavedRegisters(ExprNode.Call call) {
+		BitSet live = liveAfterCall.get(call);
+		if(live == null) {
+			throw new IllegalStateException("No liveness information for call " + call);
+		}
+		return live.stream()
+			.map(v -> registers[v])
+			.filter(r -> r >= 0 && r != DISCARD_REGISTER)
+			.distinct()
+			.sorted()
+			.toArray();
+	}
+	
+	private void interfere(int a, int b) {
+		interference[a].set(b);
+		interference[b].set(a);
+	}
+	
+	private void define(int v, BitSet liveAfter) {
+		if(!read.get(v)) {
+			return;
+		}
+		for(int other = liveAfter.nextSetBit(0); other >= 0; other = liveAfter.nextSetBit(other + 1)) {
+			if(other != v) {
+				interfere(v, other);
+			}
+		}
+	}
+	
+	private void countUses(ControlFlowGraph graph) {
+		for(int b = 0; b < graph.size(); ++b) {
+			BasicBlock block = graph.getBlock(b);
+			double weight = Math.pow(10, Math.min(block.getLoopDepth(), 6));
+			for(int i = 0; i < block.getStatementCount(); ++i) {
+				countUses(block.getStatement(i), weight);
+			}
+			countUses(block.getTerminator(), weight);
+		}
+	}
+	
+	private void countUses(StmtNode s, double weight) {
+		if(s instanceof StmtNode.Assign) {
+			// the target is written, not read
+			spillCost[((StmtNode.Assign) s).getTarget()] += weight;
+		}
+		forEachExpr(s, e -> countUses(e, weight));
+	}
+	
+	private void countUses(ExprNode e, double weight) {
+		if(e instanceof ExprNode.Var) {
+			int v = ((ExprNode.Var) e).getIndex();
+			read.set(v);
+			spillCost[v] += weight;
+		} else if(e instanceof ExprNode.Unary) {
+			countUses(((ExprNode.Unary) e).getOperand(), weight);
+		} else if(e instanceof ExprNode.Binary) {
+			countUses(((ExprNode.Binary) e).getLeft(), weight);
+			countUses(((ExprNode.Binary) e).getRight(), weight);
+		} else if(e instanceof ExprNode.Call) {
+			ExprNode.Call call = (ExprNode.Call) e;
+			for(int i = 0; i < call.getArgCount(); ++i) {
+				countUses(call.getArg(i), weight);
+			}
+		} else if(e instanceof ExprNode.Input) {
+			countUses(((ExprNode.Input) e).getX(), weight);
+			countUses(((ExprNode.Input) e).getY(), weight);
+		}
+	}
+	
+	// the expressions a statement evaluates, in order
+	private static void forEachExpr(StmtNode s, Consumer<ExprNode> action) {
+		if(s instanceof StmtNode.Assign) {
+			action.accept(((StmtNode.Assign) s).getValue());
+		} else if(s instanceof StmtNode.Output) {
+			StmtNode.Output ex = (StmtNode.Output) s;
+			action.accept(ex.getX());
+			action.accept(ex.getY());
+			action.accept(ex.getValue());
+		} else if(s instanceof StmtNode.Call) {
+			action.accept(((StmtNode.Call) s).getCall());
+		} else if(s instanceof StmtNode.Branch) {
+			action.accept(((StmtNode.Branch) s).getCondition());
+		} else if(s instanceof StmtNode.Return && ((StmtNode.Return) s).getValue() != null) {
+			action.accept(((StmtNode.Return) s).getValue());
+		} else if(s instanceof StmtNode.TailCall) {
+			action.accept(((StmtNode.TailCall) s).getCall());
+		}
+	}
+	
+	// turns live after the statement into live before it, recording what interferes on the way
+	private void walk(StmtNode s, BitSet live) {
+		if(s instanceof StmtNode.Assign) {
+			StmtNode.Assign ex = (StmtNode.Assign) s;
+			live.clear(ex.getTarget());
+			define(ex.getTarget(), live);
+			walk(ex.getValue(), live);
+		} else if(s instanceof StmtNode.Output) {
+			StmtNode.Output ex = (StmtNode.Output) s;
+			walk(ex.getValue(), live);
+			walk(ex.getY(), live);
+			walk(ex.getX(), live);
+		} else {
+			forEachExpr(s, e -> walk(e, live));
+		}
+	}
+	
+	// subexpressions are evaluated left to right, so liveness flows right to left; a call saves what is live after it
+	private void walk(ExprNode e, BitSet live) {
+		if(e instanceof ExprNode.Var) {
+			live.set(((ExprNode.Var) e).getIndex());
+		} else if(e instanceof ExprNode.Unary) {
+			walk(((ExprNode.Unary) e).getOperand(), live);
+		} else if(e instanceof ExprNode.Binary) {
+			walk(((ExprNode.Binary) e).getRight(), live);
+			walk(((ExprNode.Binary) e).getLeft(), live);
+		} else if(e instanceof ExprNode.Call) {
+			ExprNode.Call call = (ExprNode.Call) e;
+			liveAfterCall.put(call, (BitSet) live.clone());
+			for(int i = call.getArgCount() - 1; i >= 0; --i) {
+				walk(call.getArg(i), live);
+			}
+		} else if(e instanceof ExprNode.Input) {
+			walk(((ExprNode.Input) e).getY(), live);
+			walk(((ExprNode.Input) e).getX(), live);
+		}
+	}
+	
+	// optimistic colouring, after Briggs; returns false if anything had to be spilled
+	private boolean color(int k) {
+		Arrays.fill(registers, -1);
+		BitSet candidates = new BitSet();
+		for(int v = 0; v < variables.size(); ++v) {
+			if(read.get(v)) {
+				candidates.set(v);
+			} else {
+				registers[v] = DISCARD_REGISTER;
+			}
+		}
+		
+		Deque<Integer> stack = new ArrayDeque<>();
+		BitSet removed = new BitSet();
+		while(removed.cardinality() < candidates.cardinality()) {
+			int pick = -1;
+			for(int v = candidates.nextSetBit(0); v >= 0; v = candidates.nextSetBit(v + 1)) {
+				if(!removed.get(v) && degree(v, removed) < k) {
+					pick = v;
+					break;
+				}
+			}
+			if(pick < 0) {
+				double best = Double.POSITIVE_INFINITY;
+				for(int v = candidates.nextSetBit(0); v >= 0; v = candidates.nextSetBit(v + 1)) {
+					double cost = spillCost[v] / Math.max(1, degree(v, removed));
+					if(!removed.get(v) && cost < best) {
+						best = cost;
+						pick = v;
+					}
+				}
+			}
+			removed.set(pick);
+			stack.push(pick);
+		}
+		
+		boolean allColored = true;
+		while(!stack.isEmpty()) {
+			int v = stack.pop();
+			boolean[] used = new boolean[Instruction.REGISTER_COUNT];
+			for(int n = interference[v].nextSetBit(0); n >= 0; n = interference[v].nextSetBit(n + 1)) {
+				if(registers[n] >= 0) {
+					used[registers[n]] = true;
+				}
+			}
+			int r = FIRST_REGISTER;
+			while(r < FIRST_REGISTER + k && used[r]) {
+				++r;
+			}
+			if(r < FIRST_REGISTER + k) {
+				registers[v] = r;
+			} else {
+				allColored = false;
+			}
+		}
+		return allColored;
+	}
+	
+	private int degree(int v, BitSet removed) {
+		BitSet remaining = (BitSet) interference[v].clone();
+		remaining.andNot(removed);
+		return remaining.cardinality();
+	}
+	
+	private void assignSlots() {
+		int next = paramCount;
+		for(int v = 0; v < variables.size(); ++v) {
+			if(registers[v] < 0) {
+				slots[v] = v < paramCount ? v : next++;
+				spilled = true;
+			}
+		}
+		frameSize = next;
+	}
+}
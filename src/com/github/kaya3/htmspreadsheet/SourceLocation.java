@@ -0,0 +1,74 @@
+package com.github.kaya3.htmspreadsheet;
+
+// Where an instruction came from: the function, the line of the statement, and what kind of statement it was.
+public final class SourceLocation {
+	public static final String PROLOGUE = "prologue", EPILOGUE = "epilogue";
+	public static final String DECLARATION = "declaration", ASSIGNMENT = "assignment", CALL = "call", OUTPUT = "output";
+	public static final String IF = "if", WHILE = "while", RETURN = "return";
+	
+	// a while loop; its own condition and jump back belong to it, as well as its body
+	public static final class Loop {
+		private final String function;
+		private final int line;
+		private final Loop parent;
+		
+		Loop(String function, int line, Loop parent) {
+			this.function = function;
+			this.line = line;
+			this.parent = parent;
+		}
+		
+		public String getFunction() {
+			return function;
+		}
+		
+		public int getLine() {
+			return line;
+		}
+		
+		// the enclosing loop in the same function, or null
+		public Loop getParent() {
+			return parent;
+		}
+		
+		@Override
+		public String toString() {
+			return function + ":" + line;
+		}
+	}
+	
+	private final String function;
+	private final int line;
+	private final String kind;
+	private final Loop loop;
+	
+	public SourceLocation(String function, int line, String kind, Loop loop) {
+		this.function = function;
+		this.line = line;
+		this.kind = kind;
+		this.loop = loop;
+	}
+	
+	public String getFunction() {
+		return function;
+	}
+	
+	// -1 if unknown
+	public int getLine() {
+		return line;
+	}
+	
+	public String getKind() {
+		return kind;
+	}
+	
+	// the innermost loop the instruction belongs to, or null
+	public Loop getLoop() {
+		return loop;
+	}
+	
+	@Override
+	public String toString() {
+		return function + ":" + line + " " + kind;
+	}
+}
@@ -0,0 +1,55 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// A side table from each position in a program to the source it was compiled from.
+public final class SourceMap {
+	private final SourceLocation[] locations;
+	
+	private SourceMap(SourceLocation[] locations) {
+		this.locations = locations;
+	}
+	
+	public static SourceMap of(List<Instruction> program) {
+		SourceLocation[] locations = new SourceLocation[program.size()];
+		for(int i = 0; i < locations.length; ++i) {
+			locations[i] = program.get(i).getSource();
+		}
+		return new SourceMap(locations);
+	}
+	
+	// for a program without source, such as a loaded binary, functions are known from the symbol table alone
+	public static SourceMap fromSymbols(Map<String, Integer> symbols, int length) {
+		String[] names = new String[length];
+		for(Map.Entry<String, Integer> e : symbols.entrySet()) {
+			if(e.getValue() >= 0 && e.getValue() < length) {
+				names[e.getValue()] = e.getKey();
+			}
+		}
+		SourceLocation[] locations = new SourceLocation[length];
+		SourceLocation current = null;
+		for(int i = 0; i < length; ++i) {
+			if(names[i] != null) {
+				current = new SourceLocation(names[i], -1, SourceLocation.PROLOGUE, null);
+			}
+			locations[i] = current;
+		}
+		return new SourceMap(locations);
+	}
+	
+	public int length() {
+		return locations.length;
+	}
+	
+	// null if nothing is known about the instruction at this position
+	public SourceLocation get(int pos) {
+		return pos >= 0 && pos < locations.length ? locations[pos] : null;
+	}
+	
+	@Override
+	public String toString() {
+		return Arrays.toString(locations);
+	}
+}
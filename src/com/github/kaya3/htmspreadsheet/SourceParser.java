@@ -0,0 +1,411 @@
+package com.github.kaya3.htmspreadsheet;
+
+import com.github.javaparser.Position;
+import com.github.javaparser.Range;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.Parameter;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.*;
+import com.github.javaparser.ast.stmt.*;
+import com.github.javaparser.ast.type.PrimitiveType;
+import com.github.javaparser.ast.type.Type;
+import com.github.javaparser.ast.type.VoidType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A hand-written lexer and recursive descent parser for exactly the subset of Java the compiler accepts: int and void
+// functions with int parameters, int locals declared with an initialiser, assignments, calls, if, while and return,
+// and decimal literals. It builds the same nodes JavaParser would, positioned at the same lines, so the rest of the
+// compiler can't tell them apart, without loading JavaParser's generated parser. Anything outside the subset is a
+// SyntaxError, even if it is valid Java; the caller can then try JavaParser.
+public final class SourceParser {
+	public static final class SyntaxError extends IllegalArgumentException {
+		private static final long serialVersionUID = 1L;
+		
+		private final int line, column;
+		
+		private SyntaxError(String message, int line, int column) {
+			super("Syntax error at line " + line + ", column " + column + ": " + message);
+			this.line = line;
+			this.column = column;
+		}
+		
+		public int getLine() {
+			return line;
+		}
+		
+		public int getColumn() {
+			return column;
+		}
+	}
+	
+	private static final int EOF = 0, IDENTIFIER = 1, NUMBER = 2, SYMBOL = 3;
+	
+	// longest first, so that the first which matches is the token; '>>>' isn't in the subset, but is a token so that it
+	// is reported where it begins rather than as a stray '>'
+	private static final String[] SYMBOLS = {
+		">>>", "<<", ">>", "<=", ">=", "==", "!=", "&&", "||",
+		"(", ")", "{", "}", ",", ";", "=", "<", ">", "+", "-", "*", "&", "|", "^", "!", "~",
+	};
+	
+	// from loosest to tightest; all are left associative. Only the operators the compiler supports are here, so that
+	// others are syntax errors at their position
+	private static final String[][] BINARY_LEVELS = {
+		{ "||" }, { "&&" }, { "|" }, { "^" }, { "&" }, { "==", "!=" }, { "<", ">", "<=", ">=" },
+		{ "<<", ">>" }, { "+", "-" }, { "*" },
+	};
+	private static final BinaryExpr.Operator[][] BINARY_OPERATORS = {
+		{ BinaryExpr.Operator.OR }, { BinaryExpr.Operator.AND }, { BinaryExpr.Operator.BINARY_OR },
+		{ BinaryExpr.Operator.XOR }, { BinaryExpr.Operator.BINARY_AND },
+		{ BinaryExpr.Operator.EQUALS, BinaryExpr.Operator.NOT_EQUALS },
+		{ BinaryExpr.Operator.LESS, BinaryExpr.Operator.GREATER, BinaryExpr.Operator.LESS_EQUALS, BinaryExpr.Operator.GREATER_EQUALS },
+		{ BinaryExpr.Operator.LEFT_SHIFT, BinaryExpr.Operator.SIGNED_RIGHT_SHIFT },
+		{ BinaryExpr.Operator.PLUS, BinaryExpr.Operator.MINUS },
+		{ BinaryExpr.Operator.MULTIPLY },
+	};
+	
+	private final String src;
+	private int pos, line = 1, lineStart;
+	
+	// the current token
+	private int kind;
+	private String text;
+	private int tokenLine, tokenColumn;
+	
+	private SourceParser(String src) {
+		this.src = src;
+	}
+	
+	public static List<MethodDeclaration> parse(String src) {
+		SourceParser parser = new SourceParser(src);
+		parser.next();
+		List<MethodDeclaration> methods = new ArrayList<>();
+		while(parser.kind != EOF) {
+			methods.add(parser.parseMethod());
+		}
+		return methods;
+	}
+	
+	private SyntaxError error(String message) {
+		return new SyntaxError(message, tokenLine, tokenColumn);
+	}
+	
+	private SyntaxError expected(String what) {
+		return error("expected " + what + " but found " + (kind == EOF ? "end of input" : "'" + text + "'"));
+	}
+	
+	private void next() {
+		skipWhitespaceAndComments();
+		tokenLine = line;
+		tokenColumn = pos - lineStart + 1;
+		if(pos >= src.length()) {
+			kind = EOF;
+			text = null;
+			return;
+		}
+		
+		char c = src.charAt(pos);
+		int start = pos;
+		if(Character.isJavaIdentifierStart(c)) {
+			while(pos < src.length() && Character.isJavaIdentifierPart(src.charAt(pos))) {
+				++pos;
+			}
+			kind = IDENTIFIER;
+		} else if(c >= '0' && c <= '9') {
+			while(pos < src.length() && src.charAt(pos) >= '0' && src.charAt(pos) <= '9') {
+				++pos;
+			}
+			// a leading zero is octal, and other forms of literal aren't in the subset
+			boolean octal = c == '0' && pos - start > 1;
+			if(octal || pos < src.length() && (Character.isJavaIdentifierPart(src.charAt(pos)) || src.charAt(pos) == '.')) {
+				throw error("unsupported literal");
+			}
+			kind = NUMBER;
+		} else {
+			kind = SYMBOL;
+			for(String s : SYMBOLS) {
+				if(src.startsWith(s, pos)) {
+					pos += s.length();
+					break;
+				}
+			}
+			if(pos == start) {
+				throw error("unexpected character '" + c + "'");
+			}
+		}
+		text = src.substring(start, pos);
+	}
+	
+	private void skipWhitespaceAndComments() {
+		while(pos < src.length()) {
+			char c = src.charAt(pos);
+			if(c == '\n') {
+				++pos;
+				++line;
+				lineStart = pos;
+			} else if(Character.isWhitespace(c)) {
+				++pos;
+			} else if(src.startsWith("//", pos)) {
+				while(pos < src.length() && src.charAt(pos) != '\n') {
+					++pos;
+				}
+			} else if(src.startsWith("/*", pos)) {
+				tokenLine = line;
+				tokenColumn = pos - lineStart + 1;
+				int end = src.indexOf("*/", pos + 2);
+				if(end < 0) {
+					throw error("unterminated comment");
+				}
+				for(pos += 2; pos < end; ++pos) {
+					if(src.charAt(pos) == '\n') {
+						++line;
+						lineStart = pos + 1;
+					}
+				}
+				pos = end + 2;
+			} else {
+				break;
+			}
+		}
+	}
+	
+	private boolean at(String symbol) {
+		return kind == SYMBOL && text.equals(symbol);
+	}
+	
+	private boolean atKeyword(String keyword) {
+		return kind == IDENTIFIER && text.equals(keyword);
+	}
+	
+	private void expect(String symbol) {
+		if(!at(symbol)) {
+			throw expected("'" + symbol + "'");
+		}
+		next();
+	}
+	
+	private String expectIdentifier() {
+		if(kind != IDENTIFIER || isKeyword(text)) {
+			throw expected("a name");
+		}
+		String name = text;
+		next();
+		return name;
+	}
+	
+	// Java's keywords as well as the subset's, so that none can be a name
+	private static boolean isKeyword(String s) {
+		switch(s) {
+			case "abstract": case "assert": case "boolean": case "break": case "byte": case "case": case "catch":
+			case "char": case "class": case "const": case "continue": case "default": case "do": case "double":
+			case "else": case "enum": case "extends": case "final": case "finally": case "float": case "for":
+			case "goto": case "if": case "implements": case "import": case "instanceof": case "int":
+			case "interface": case "long": case "native": case "new": case "package": case "private":
+			case "protected": case "public": case "return": case "short": case "static": case "strictfp":
+			case "super": case "switch": case "synchronized": case "this": case "throw": case "throws":
+			case "transient": case "try": case "void": case "volatile": case "while": case "true": case "false":
+			case "null":
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	// nodes are positioned where they begin, as only the start line is used
+	private static <T extends Node> T located(T node, int line, int column) {
+		Position p = new Position(line, column);
+		node.setRange(new Range(p, p));
+		return node;
+	}
+	
+	private MethodDeclaration parseMethod() {
+		int l = tokenLine, c = tokenColumn;
+		Type type;
+		if(atKeyword("int")) {
+			type = new PrimitiveType(PrimitiveType.Primitive.INT);
+		} else if(atKeyword("void")) {
+			type = new VoidType();
+		} else {
+			throw expected("'int' or 'void'");
+		}
+		next();
+		String name = expectIdentifier();
+		
+		expect("(");
+		NodeList<Parameter> params = new NodeList<>();
+		if(!at(")")) {
+			params.add(parseParameter());
+			while(at(",")) {
+				next();
+				params.add(parseParameter());
+			}
+		}
+		expect(")");
+		
+		MethodDeclaration method = new MethodDeclaration();
+		method.setType(type);
+		method.setName(name);
+		method.setParameters(params);
+		method.setBody(parseBlock());
+		return located(method, l, c);
+	}
+	
+	private Parameter parseParameter() {
+		int l = tokenLine, c = tokenColumn;
+		if(!atKeyword("int")) {
+			throw expected("'int'");
+		}
+		next();
+		return located(new Parameter(new PrimitiveType(PrimitiveType.Primitive.INT), expectIdentifier()), l, c);
+	}
+	
+	private BlockStmt parseBlock() {
+		int l = tokenLine, c = tokenColumn;
+		expect("{");
+		NodeList<Statement> statements = new NodeList<>();
+		while(!at("}")) {
+			statements.add(atKeyword("int") ? parseDeclaration() : parseStatement());
+		}
+		next();
+		return located(new BlockStmt(statements), l, c);
+	}
+	
+	// a declaration is only allowed directly inside a block, as in Java
+	private Statement parseDeclaration() {
+		int l = tokenLine, c = tokenColumn;
+		next();
+		int vl = tokenLine, vc = tokenColumn;
+		String name = expectIdentifier();
+		expect("=");
+		VariableDeclarator v = located(new VariableDeclarator(new PrimitiveType(PrimitiveType.Primitive.INT), name, parseExpression()), vl, vc);
+		expect(";");
+		return located(new ExpressionStmt(located(new VariableDeclarationExpr(v), l, c)), l, c);
+	}
+	
+	private Statement parseStatement() {
+		int l = tokenLine, c = tokenColumn;
+		if(at("{")) {
+			return parseBlock();
+		} else if(atKeyword("if")) {
+			next();
+			Expression condition = parseCondition();
+			Statement then = parseStatement();
+			Statement otherwise = null;
+			if(atKeyword("else")) {
+				next();
+				otherwise = parseStatement();
+			}
+			return located(new IfStmt(condition, then, otherwise), l, c);
+		} else if(atKeyword("while")) {
+			next();
+			Expression condition = parseCondition();
+			return located(new WhileStmt(condition, parseStatement()), l, c);
+		} else if(atKeyword("return")) {
+			next();
+			ReturnStmt s = located(at(";") ? new ReturnStmt() : new ReturnStmt(parseExpression()), l, c);
+			expect(";");
+			return s;
+		}
+		
+		if(atKeyword("int")) {
+			throw error("variable declaration not allowed here");
+		}
+		
+		Expression e;
+		String name = expectIdentifier();
+		if(at("=")) {
+			next();
+			e = located(new AssignExpr(located(new NameExpr(name), l, c), parseExpression(), AssignExpr.Operator.ASSIGN), l, c);
+		} else if(at("(")) {
+			e = parseCall(name, l, c);
+		} else {
+			throw expected("'=' or '('");
+		}
+		expect(";");
+		return located(new ExpressionStmt(e), l, c);
+	}
+	
+	private Expression parseCondition() {
+		expect("(");
+		Expression e = parseExpression();
+		expect(")");
+		return e;
+	}
+	
+	private Expression parseExpression() {
+		return parseBinary(0);
+	}
+	
+	private Expression parseBinary(int level) {
+		if(level == BINARY_LEVELS.length) {
+			return parseUnary();
+		}
+		int l = tokenLine, c = tokenColumn;
+		Expression left = parseBinary(level + 1);
+		while(true) {
+			BinaryExpr.Operator op = null;
+			if(kind == SYMBOL) {
+				for(int i = 0; i < BINARY_LEVELS[level].length; ++i) {
+					if(text.equals(BINARY_LEVELS[level][i])) {
+						op = BINARY_OPERATORS[level][i];
+					}
+				}
+			}
+			if(op == null) {
+				return left;
+			}
+			next();
+			left = located(new BinaryExpr(left, parseBinary(level + 1), op), l, c);
+		}
+	}
+	
+	private Expression parseUnary() {
+		int l = tokenLine, c = tokenColumn;
+		UnaryExpr.Operator op = null;
+		if(at("-")) {
+			op = UnaryExpr.Operator.MINUS;
+		} else if(at("!")) {
+			op = UnaryExpr.Operator.LOGICAL_COMPLEMENT;
+		} else if(at("~")) {
+			op = UnaryExpr.Operator.BITWISE_COMPLEMENT;
+		}
+		if(op == null) {
+			return parsePrimary();
+		}
+		next();
+		return located(new UnaryExpr(parseUnary(), op), l, c);
+	}
+	
+	private Expression parsePrimary() {
+		int l = tokenLine, c = tokenColumn;
+		if(kind == NUMBER) {
+			IntegerLiteralExpr e = located(new IntegerLiteralExpr(text), l, c);
+			next();
+			return e;
+		} else if(at("(")) {
+			next();
+			Expression inner = parseExpression();
+			expect(")");
+			return located(new EnclosedExpr(inner), l, c);
+		}
+		String name = expectIdentifier();
+		return at("(") ? parseCall(name, l, c) : located(new NameExpr(name), l, c);
+	}
+	
+	private MethodCallExpr parseCall(String name, int l, int c) {
+		expect("(");
+		NodeList<Expression> args = new NodeList<>();
+		if(!at(")")) {
+			args.add(parseExpression());
+			while(at(",")) {
+				next();
+				args.add(parseExpression());
+			}
+		}
+		expect(")");
+		return located(new MethodCallExpr(null, new SimpleName(name), args), l, c);
+	}
+}
@@ -0,0 +1,112 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Recompiles source files as they are saved, watching the same paths a BatchCompiler is given. Editors often write
+// a file in several steps, so changes are collected until none have arrived for a short while; then only the files
+// which changed are compiled, and with a FunctionCache only the functions in them which changed.
+public class SourceWatcher {
+	public static final long QUIET_MILLIS = 50;
+	
+	public interface Listener {
+		void compiled(List<BatchCompiler.Result> results, long wallNanos) throws IOException;
+	}
+	
+	private final BatchCompiler compiler;
+	private final List<Path> paths;
+	private final Map<WatchKey, Path> dirs = new HashMap<>();
+	
+	public SourceWatcher(BatchCompiler compiler, List<Path> paths) {
+		this.compiler = compiler;
+		this.paths = paths;
+	}
+	
+	// compiles everything once, then each change until the thread is interrupted
+	public void watch(Listener listener) throws IOException, InterruptedException {
+		try(WatchService service = FileSystems.getDefault().newWatchService()) {
+			for(Path path : paths) {
+				if(Files.isDirectory(path)) {
+					registerAll(path, service);
+				} else {
+					register(path.toAbsolutePath().getParent(), service);
+				}
+			}
+			
+			long start = System.nanoTime();
+			listener.compiled(compiler.compile(paths), System.nanoTime() - start);
+			
+			while(true) {
+				Set<Path> changed = new HashSet<>();
+				WatchKey key = service.take();
+				while(key != null) {
+					collect(key, service, changed);
+					key = service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+				}
+				if(changed.isEmpty()) {
+					continue;
+				}
+				start = System.nanoTime();
+				List<BatchCompiler.Result> results = compiler.compile(paths, source -> changed.contains(normalize(source)));
+				listener.compiled(results, System.nanoTime() - start);
+			}
+		}
+	}
+	
+	private void collect(WatchKey key, WatchService service, Set<Path> changed) throws IOException {
+		Path dir = dirs.get(key);
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if(dir == null || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				continue;
+			}
+			Path path = dir.resolve((Path) event.context());
+			if(Files.isDirectory(path)) {
+				// a new directory may already have sources in it
+				if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+					registerAll(path, service);
+					try(Stream<Path> files = Files.walk(path)) {
+						changed.addAll(files.map(SourceWatcher::normalize).collect(Collectors.toList()));
+					}
+				}
+			} else if(path.getFileName().toString().endsWith(".java")) {
+				changed.add(normalize(path));
+			}
+		}
+		if(!key.reset()) {
+			dirs.remove(key);
+		}
+	}
+	
+	private void registerAll(Path root, WatchService service) throws IOException {
+		List<Path> subdirs;
+		try(Stream<Path> files = Files.walk(root)) {
+			subdirs = files.filter(Files::isDirectory).collect(Collectors.toList());
+		}
+		for(Path dir : subdirs) {
+			register(dir, service);
+		}
+	}
+	
+	private void register(Path dir, WatchService service) throws IOException {
+		WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		dirs.put(key, dir);
+	}
+	
+	private static Path normalize(Path path) {
+		return path.toAbsolutePath().normalize();
+	}
+}
@@ -0,0 +1,418 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Writes a compiled program out as a spreadsheet which runs it, laid out like spreadsheet.ods:
+//   Program: one instruction per row; op, arg1, arg2
+//   Execute: one step per row, computed by formulas from the row above; the registers in M:T, the stack size in U
+//     and the stack from V
+//   Input, Output: IO_SIZE x IO_SIZE grids
+// Alternatively, writeTrace runs the program here and writes each step's state as plain values, spilling onto
+// further sheets when one is full.
+public final class SpreadsheetEmitter {
+	public static final long DEFAULT_MAX_STEPS = 10000000;
+	
+	private static final String[] EXECUTE_HEADERS = {
+		"Op", "Arg1", "Arg2", "Read val", "Write reg", "Write val", "Address", "Stack[-2]", "Stack[-1]", "Stack push",
+		"Output x,y", "Output v"
+	};
+	private static final String[] TRACE_HEADERS = { "Step", "PC", "Op", "Arg1", "Arg2" };
+	private static final int REGISTERS_COLUMN = EXECUTE_HEADERS.length;
+	private static final int STACK_SIZE_COLUMN = REGISTERS_COLUMN + Instruction.REGISTER_COUNT;
+	
+	private final DecodedProgram program;
+	private final Grid input;
+	
+	public SpreadsheetEmitter(DecodedProgram program, Grid input) {
+		if(program.isExtended()) {
+			throw new IllegalArgumentException("The spreadsheet only runs the base instruction set; compile without the extended set");
+		}
+		this.program = program;
+		this.input = input;
+	}
+	
+	// A formula in Excel syntax, where {r} is the current row and {p} the previous row. The template is converted to
+	// the writer's syntax once, so each row only costs the string concatenation.
+	private static final class Formula {
+		private static final Pattern REFERENCE = Pattern.compile(
+			"(?<![A-Za-z_])(?:([A-Za-z]+)!)?(\\$?[A-Z]{1,3}\\$?(?:\\d+|\\{[rp]\\}))(?::(\\$?[A-Z]{1,3}\\$?(?:\\d+|\\{[rp]\\})))?"
+		);
+		// functions added in Excel 2013, which OOXML stores with a prefix
+		private static final Pattern NEWER_FUNCTION = Pattern.compile("(?<![A-Za-z_.])(BIT(?:AND|OR|XOR|LSHIFT|RSHIFT))\\(");
+		
+		private final String[] parts;
+		
+		private Formula(String template, boolean openDocument) {
+			parts = (openDocument ? toOpenDocument(template) : toExcel(template)).split("(?=\\{[rp]\\})|(?<=\\{[rp]\\})");
+		}
+		
+		// Program!$A$1:$A$9 becomes [Program.$A$1:.$A$9], and argument separators become semicolons
+		private static String toOpenDocument(String template) {
+			StringBuilder sb = new StringBuilder();
+			String[] pieces = template.split("\"", -1);
+			for(int i = 0; i < pieces.length; ++i) {
+				if(i % 2 == 1) {
+					sb.append('"').append(pieces[i]).append('"');
+					continue;
+				}
+				Matcher m = REFERENCE.matcher(pieces[i].replace(',', ';'));
+				StringBuffer out = new StringBuffer();
+				while(m.find()) {
+					String sheet = m.group(1) == null ? "" : m.group(1);
+					String ref = "[" + sheet + "." + m.group(2) + (m.group(3) == null ? "" : ":." + m.group(3)) + "]";
+					m.appendReplacement(out, Matcher.quoteReplacement(ref));
+				}
+				m.appendTail(out);
+				sb.append(out);
+			}
+			return sb.toString();
+		}
+		
+		// BITAND(...) becomes _xlfn.BITAND(...); without the prefix Excel shows #NAME?
+		private static String toExcel(String template) {
+			return NEWER_FUNCTION.matcher(template).replaceAll("_xlfn.$1(");
+		}
+		
+		private String render(StringBuilder sb, int row) {
+			sb.setLength(0);
+			for(String part : parts) {
+				if(part.equals("{r}")) {
+					sb.append(row);
+				} else if(part.equals("{p}")) {
+					sb.append(row - 1);
+				} else {
+					sb.append(part);
+				}
+			}
+			return sb.toString();
+		}
+	}
+	
+	private static String column(int column) {
+		return SpreadsheetWriter.columnName(column);
+	}
+	
+	private static String is(String op) {
+		return "$A{r}=\"" + op + "\"";
+	}
+	
+	private static String isAny(String... ops) {
+		StringBuilder sb = new StringBuilder("OR(");
+		for(int i = 0; i < ops.length; ++i) {
+			sb.append(i > 0 ? "," : "").append(is(ops[i]));
+		}
+		return sb.append(")").toString();
+	}
+	
+	// the formulas for one row of the Execute sheet, column by column
+	private static List<String> executeTemplates(int stackColumns) {
+		String registers = "$M{p}:$T{p}";
+		String stack = "$V{p}:$" + column(STACK_SIZE_COLUMN + stackColumns) + "{p}";
+		
+		List<String> t = new ArrayList<>();
+		for(String c : new String[] { "A", "B", "C" }) {
+			t.add("IF(AND($M{p}>=0,$M{p}<ProgramLength),INDEX(Program!$" + c + "$1:$" + c + "$1048576,$M{p}+1),\"\")");
+		}
+		// D: the value of the register read by PUSH, STORE or JUMPIF
+		t.add("IF(" + isAny("PUSH", "STORE", "JUMPIF") + ",INDEX(" + registers + ",1,$B{r}+1),\"\")");
+		// E, F: the register written, and its new value
+		t.add("IF(" + isAny("COPY", "POP", "LOAD") + ",$B{r},IF(" + is("INPUT") + ",2,IF(AND(" + is("JUMPIF") + ",$I{r}=0),0,\"\")))");
+		t.add("IF(" + is("COPY") + ",INDEX(" + registers + ",1,$C{r}+1),"
+			+ "IF(" + is("INPUT") + ",INDEX(Input!$A$1:$Z$1048576,$I{r}+1,$H{r}+1),"
+			+ "IF(AND(" + is("JUMPIF") + ",$I{r}=0),$D{r},"
+			+ "IF(" + is("POP") + ",$I{r},"
+			+ "IF(" + is("LOAD") + ",INDEX(" + stack + ",1,$G{r}+1),\"\")))))");
+		// G: the stack address for LOAD and STORE
+		t.add("IF(" + isAny("LOAD", "STORE") + ",$N{p}+INDEX(" + registers + ",1,$C{r}+1),\"\")");
+		// H, I: the top two values of the stack
+		t.add("IF(AND($A{r}<>\"\",$U{p}>=2),INDEX(" + stack + ",1,$U{p}-1),\"\")");
+		t.add("IF(AND($A{r}<>\"\",$U{p}>=1),INDEX(" + stack + ",1,$U{p}),\"\")");
+		// J: the value pushed
+		String[][] pushes = {
+			{ "CONST", "$B{r}" },
+			{ "PUSH", "$D{r}" },
+			{ "ADD", "$H{r}+$I{r}" },
+			{ "MULT", "$H{r}*$I{r}" },
+			{ "AND", "BITAND($H{r},$I{r})" },
+			{ "OR", "BITOR($H{r},$I{r})" },
+			{ "XOR", "BITXOR($H{r},$I{r})" },
+			{ "LSHIFT", "BITAND(BITLSHIFT($H{r},$I{r}),MAX_INT)" },
+			{ "RSHIFT", "BITRSHIFT($H{r},$I{r})" },
+			{ "EQUALS", "IF($H{r}=$I{r},1,0)" },
+			{ "LESSTHAN", "IF($H{r}<$I{r},1,0)" },
+			{ "NOT", "BITXOR($I{r},MAX_INT)" },
+		};
+		StringBuilder push = new StringBuilder();
+		for(String[] p : pushes) {
+			push.append("IF(").append(is(p[0])).append(",").append(p[1]).append(",");
+		}
+		push.append("\"\"");
+		for(int i = 0; i < pushes.length; ++i) {
+			push.append(")");
+		}
+		t.add(push.toString());
+		// K, L: the output cell, encoded as (x + 1) + 1000 * (y + 1), and the value written to it
+		t.add("IF(" + is("OUTPUT") + ",($H{r}+1)+1000*($I{r}+1),\"\")");
+		t.add("IF(" + is("OUTPUT") + ",$O{r},\"\")");
+		
+		// M:T: the registers; the PC also advances by one each step
+		for(int r = 0; r < Instruction.REGISTER_COUNT; ++r) {
+			String self = column(REGISTERS_COLUMN + r) + "{p}";
+			String unchanged = r == Instruction.PC_REGISTER ? self + "+1" : self;
+			t.add("IF($A{r}=\"\",\"\",IF($E{r}=" + r + ",$F{r}," + unchanged + "))");
+		}
+		// U: the stack size
+		t.add("IF($A{r}=\"\",\"\",$U{p}+IF(" + isAny("CONST", "PUSH") + ",1,IF("
+			+ isAny("POP", "JUMPIF", "ADD", "MULT", "AND", "OR", "XOR", "LSHIFT", "RSHIFT", "EQUALS", "LESSTHAN")
+			+ ",-1,IF(" + isAny("INPUT", "OUTPUT") + ",-2,0))))");
+		// V onwards: the stack, bottom first
+		for(int i = 0; i < stackColumns; ++i) {
+			String self = column(STACK_SIZE_COLUMN + 1 + i) + "{p}";
+			t.add("IF(OR($A{r}=\"\"," + i + ">=$U{r}),\"\",IF(AND($J{r}<>\"\"," + i + "=$U{r}-1),$J{r},"
+				+ "IF(AND(" + is("STORE") + "," + i + "=$G{r}),$D{r}," + self + ")))");
+		}
+		return t;
+	}
+	
+	// Writes the program with an Execute sheet of the given number of steps. The stack needs as many columns as the
+	// program's largest stack; see measure.
+	public void writeWorkbook(Path path, int steps, int stackColumns) throws IOException {
+		if(steps + 2 > SpreadsheetWriter.MAX_ROWS) {
+			throw new IllegalArgumentException("Cannot fit " + steps + " steps in one sheet; use a trace instead");
+		}
+		try(SpreadsheetWriter out = SpreadsheetWriter.open(path)) {
+			writeProgram(out);
+			
+			out.startSheet("Execute");
+			out.startRow();
+			for(String h : EXECUTE_HEADERS) {
+				out.cell(h);
+			}
+			for(int r = 0; r < Instruction.REGISTER_COUNT; ++r) {
+				out.cell("Reg" + r);
+			}
+			out.cell("Stack length");
+			out.cell("Stack");
+			out.endRow();
+			
+			// the initial state, and the constants the formulas refer to
+			out.startRow();
+			out.cell(program.length());
+			out.cell(Instruction.MAX_INT);
+			for(int c = 2; c < REGISTERS_COLUMN; ++c) {
+				out.emptyCell();
+			}
+			for(int r = 0; r <= Instruction.REGISTER_COUNT; ++r) {
+				out.cell(0);
+			}
+			out.endRow();
+			out.defineName("ProgramLength", "Execute", "$A$2");
+			out.defineName("MAX_INT", "Execute", "$B$2");
+			
+			List<Formula> formulas = new ArrayList<>();
+			for(String t : executeTemplates(stackColumns)) {
+				formulas.add(new Formula(t, out.isOpenDocument()));
+			}
+			StringBuilder sb = new StringBuilder();
+			for(int row = 3; row < steps + 3; ++row) {
+				out.startRow();
+				for(Formula f : formulas) {
+					out.formula(f.render(sb, row));
+				}
+				out.endRow();
+			}
+			out.endSheet();
+			
+			writeInput(out);
+			
+			// the last write to each cell, as in the VM; LOOKUP skips the errors from 1/FALSE and takes the last 1
+			int lastRow = Math.max(steps, 1) + 2;
+			String keys = "Execute!$K$3:$K$" + lastRow, values = "Execute!$L$3:$L$" + lastRow;
+			Formula output = new Formula("IFERROR(LOOKUP(2,1/(" + keys + "=COLUMN()+1000*ROW())," + values + "),\"\")", out.isOpenDocument());
+			out.startSheet("Output");
+			for(int y = 0; y < Grid.IO_SIZE; ++y) {
+				out.startRow();
+				for(int x = 0; x < Grid.IO_SIZE; ++x) {
+					out.formula(output.render(sb, y + 1));
+				}
+				out.endRow();
+			}
+			out.endSheet();
+		}
+	}
+	
+	// Runs the program, returning { steps, largest stack size }, or throws if it doesn't halt within maxSteps.
+	public long[] measure(long maxSteps) {
+		VirtualMachine vm = new VirtualMachine(program, input);
+		int maxStackSize = 0;
+		while(vm.isRunning()) {
+			if(vm.getSteps() >= maxSteps) {
+				throw new IllegalStateException("Did not halt within " + maxSteps + " steps");
+			}
+			vm.run(1);
+			maxStackSize = Math.max(maxStackSize, vm.getStackSize());
+		}
+		return new long[] { vm.getSteps(), maxStackSize };
+	}
+	
+	// Writes the program, then runs it for up to maxSteps, writing one row per step with the instruction executed and
+	// the registers, stack size and top of stack after it. Returns the number of steps taken.
+	public long writeTrace(Path path, long maxSteps) throws IOException {
+		VirtualMachine vm = new VirtualMachine(program, input);
+		try(SpreadsheetWriter out = SpreadsheetWriter.open(path)) {
+			writeProgram(out);
+			writeInput(out);
+			
+			int sheets = 0;
+			while(vm.isRunning() && vm.getSteps() < maxSteps) {
+				out.startSheet(++sheets == 1 ? "Trace" : "Trace " + sheets);
+				out.startRow();
+				for(String h : TRACE_HEADERS) {
+					out.cell(h);
+				}
+				for(int r = 0; r < Instruction.REGISTER_COUNT; ++r) {
+					out.cell("Reg" + r);
+				}
+				out.cell("Stack length");
+				out.cell("Stack[-1]");
+				out.endRow();
+				
+				for(int rows = 1; rows < SpreadsheetWriter.MAX_ROWS && vm.isRunning() && vm.getSteps() < maxSteps; ++rows) {
+					int pc = vm.getRegister(Instruction.PC_REGISTER);
+					vm.run(1);
+					out.startRow();
+					out.cell(vm.getSteps());
+					out.cell(pc);
+					writeInstruction(out, pc);
+					for(int r = 0; r < Instruction.REGISTER_COUNT; ++r) {
+						out.cell(vm.getRegister(r));
+					}
+					int size = vm.getStackSize();
+					out.cell(size);
+					if(size > 0) {
+						out.cell(vm.getStackValue(size - 1));
+					}
+					out.endRow();
+				}
+				out.endSheet();
+			}
+			
+			out.startSheet("Output");
+			Grid output = vm.getOutput();
+			for(int y = 0; y < Grid.IO_SIZE; ++y) {
+				out.startRow();
+				for(int x = 0; x < Grid.IO_SIZE; ++x) {
+					if(output.isSet(x, y)) {
+						out.cell(output.get(x, y));
+					} else {
+						out.emptyCell();
+					}
+				}
+				out.endRow();
+			}
+			out.endSheet();
+		}
+		return vm.getSteps();
+	}
+	
+	private void writeProgram(SpreadsheetWriter out) throws IOException {
+		if(program.length() > SpreadsheetWriter.MAX_ROWS) {
+			throw new IllegalArgumentException("Program has " + program.length() + " instructions; a sheet holds at most " + SpreadsheetWriter.MAX_ROWS);
+		}
+		out.startSheet("Program");
+		for(int pos = 0; pos < program.length(); ++pos) {
+			out.startRow();
+			writeInstruction(out, pos);
+			out.endRow();
+		}
+		out.endSheet();
+	}
+	
+	private void writeInstruction(SpreadsheetWriter out, int pos) throws IOException {
+		int op = program.getOp(pos);
+		out.cell(DecodedProgram.opcodeOf(op).name());
+		int argCount = DecodedProgram.getArgCount(op);
+		if(argCount >= 1) {
+			out.cell(program.getArg1(pos));
+		} else {
+			out.emptyCell();
+		}
+		if(argCount >= 2) {
+			out.cell(program.getArg2(pos));
+		} else {
+			out.emptyCell();
+		}
+	}
+	
+	private void writeInput(SpreadsheetWriter out) throws IOException {
+		out.startSheet("Input");
+		for(int y = 0; y < Grid.IO_SIZE; ++y) {
+			out.startRow();
+			for(int x = 0; x < Grid.IO_SIZE; ++x) {
+				out.cell(input.get(x, y));
+			}
+			out.endRow();
+		}
+		out.endSheet();
+	}
+	
+	// SpreadsheetEmitter [--trace] [-s max-steps] program.java|program.ssm|program.ssmb out.ods|out.xlsx
+	// the program is compiled first if it is a .java file; without --trace, it is run here to size the Execute sheet
+	public static void main(String[] args) throws IOException {
+		boolean trace = false;
+		long maxSteps = DEFAULT_MAX_STEPS;
+		List<String> paths = new ArrayList<>();
+		for(int i = 0; i < args.length; ++i) {
+			if(args[i].equals("--trace")) {
+				trace = true;
+			} else if(args[i].equals("-s") && i + 1 < args.length) {
+				maxSteps = Long.parseLong(args[++i]);
+			} else {
+				paths.add(args[i]);
+			}
+		}
+		if(paths.size() != 2) {
+			System.err.println("Usage: SpreadsheetEmitter [--trace] [-s max-steps] program.java|program.ssm|program" + BinaryProgram.EXTENSION + " out.ods|out.xlsx");
+			System.exit(2);
+		}
+		Path path = Paths.get(paths.get(0));
+		DecodedProgram program;
+		if(paths.get(0).endsWith(".java")) {
+			program = DecodedProgram.decode(new ProgramCompiler().compile(new String(Files.readAllBytes(path), StandardCharsets.UTF_8)));
+		} else if(paths.get(0).endsWith(BinaryProgram.EXTENSION)) {
+			program = BinaryProgram.load(path).getProgram();
+		} else {
+			program = DecodedProgram.parse(new StringReader(new String(Files.readAllBytes(path), StandardCharsets.UTF_8)));
+		}
+		
+		SpreadsheetEmitter emitter = new SpreadsheetEmitter(program, new Grid());
+		Path out = Paths.get(paths.get(1));
+		if(trace) {
+			System.out.println(emitter.writeTrace(out, maxSteps) + " steps written to " + out);
+		} else {
+			long[] measured = emitter.measure(maxSteps);
+			// the Input sheet can be edited, so the stack is sized for any input when the verifier can bound it
+			int stackColumns = (int) measured[1];
+			try {
+				StackLayout layout = StackVerifier.verify(program);
+				if(layout.isBounded()) {
+					stackColumns = layout.getMaxStack();
+				}
+			} catch(IllegalArgumentException e) {
+				// a hand-written program the verifier can't follow is sized by the run alone
+			}
+			// one more row than steps, so the sheet visibly halts
+			emitter.writeWorkbook(out, (int) measured[0] + 1, Math.max(1, stackColumns));
+			System.out.println(measured[0] + " steps, stack size " + stackColumns + ", written to " + out);
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Writes a spreadsheet one cell at a time, straight into the zip file, so memory use doesn't depend on its size.
+// Formulas are given in Excel syntax, e.g. IF($A2="",0,Program!$B$1+1), and converted for OpenDocument files.
+public abstract class SpreadsheetWriter implements AutoCloseable {
+	public static final int MAX_ROWS = 1048576;
+	
+	protected final ZipOutputStream zip;
+	protected final Writer out;
+	protected final List<String> sheets = new ArrayList<>();
+	protected final Map<String, String> names = new LinkedHashMap<>();
+	protected int rows;
+	
+	private SpreadsheetWriter(Path path) throws IOException {
+		zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+		out = new BufferedWriter(new OutputStreamWriter(zip, StandardCharsets.UTF_8), 1 << 16);
+	}
+	
+	// .ods or .xlsx, by file extension
+	public static SpreadsheetWriter open(Path path) throws IOException {
+		String name = path.getFileName().toString();
+		if(name.endsWith(".ods")) {
+			return new Ods(path);
+		} else if(name.endsWith(".xlsx")) {
+			return new Xlsx(path);
+		}
+		throw new IllegalArgumentException("Unknown spreadsheet format: " + name);
+	}
+	
+	public abstract boolean isOpenDocument();
+	
+	public void startSheet(String name) throws IOException {
+		sheets.add(name);
+		rows = 0;
+	}
+	
+	public abstract void endSheet() throws IOException;
+	
+	public void startRow() throws IOException {
+		if(++rows > MAX_ROWS) {
+			throw new IllegalStateException("Sheet " + sheets.get(sheets.size() - 1) + " has more than " + MAX_ROWS + " rows");
+		}
+	}
+	
+	public abstract void endRow() throws IOException;
+	
+	public abstract void emptyCell() throws IOException;
+	
+	public abstract void cell(String value) throws IOException;
+	
+	public abstract void cell(long value) throws IOException;
+	
+	// a formula already in this writer's syntax; see Formula
+	public abstract void formula(CharSequence formula) throws IOException;
+	
+	// a name for a single cell, such as Execute!$A$2, usable in formulas
+	public void defineName(String name, String sheet, String cell) {
+		names.put(name, sheet + "!" + cell);
+	}
+	
+	protected abstract void finish() throws IOException;
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+			out.flush();
+		} finally {
+			zip.close();
+		}
+	}
+	
+	protected void entry(String name, String content) throws IOException {
+		zip.putNextEntry(new ZipEntry(name));
+		out.write(content);
+		out.flush();
+		zip.closeEntry();
+	}
+	
+	protected void escape(CharSequence s) throws IOException {
+		for(int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			switch(c) {
+				case '&': out.write("&amp;"); break;
+				case '<': out.write("&lt;"); break;
+				case '>': out.write("&gt;"); break;
+				case '"': out.write("&quot;"); break;
+				default: out.write(c);
+			}
+		}
+	}
+	
+	// column 0 is A
+	public static String columnName(int column) {
+		StringBuilder sb = new StringBuilder();
+		for(int c = column + 1; c > 0; c = (c - 1) / 26) {
+			sb.append((char) ('A' + (c - 1) % 26));
+		}
+		return sb.reverse().toString();
+	}
+	
+	private static final class Ods extends SpreadsheetWriter {
+		private static final String NAMESPACES = " xmlns:office=\"urn:oasis:names:tc:opendocument:xmlns:office:1.0\""
+			+ " xmlns:table=\"urn:oasis:names:tc:opendocument:xmlns:table:1.0\""
+			+ " xmlns:text=\"urn:oasis:names:tc:opendocument:xmlns:text:1.0\""
+			+ " xmlns:of=\"urn:oasis:names:tc:opendocument:xmlns:of:1.2\""
+			+ " office:version=\"1.2\"";
+		private static final String MIMETYPE = "application/vnd.oasis.opendocument.spreadsheet";
+		
+		private Ods(Path path) throws IOException {
+			super(path);
+			// the mimetype must come first, uncompressed
+			byte[] mimetype = MIMETYPE.getBytes(StandardCharsets.US_ASCII);
+			ZipEntry entry = new ZipEntry("mimetype");
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(mimetype.length);
+			CRC32 crc = new CRC32();
+			crc.update(mimetype);
+			entry.setCrc(crc.getValue());
+			zip.putNextEntry(entry);
+			zip.write(mimetype);
+			zip.closeEntry();
+			
+			entry("META-INF/manifest.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<manifest:manifest xmlns:manifest=\"urn:oasis:names:tc:opendocument:xmlns:manifest:1.0\" manifest:version=\"1.2\">"
+				+ "<manifest:file-entry manifest:full-path=\"/\" manifest:media-type=\"" + MIMETYPE + "\"/>"
+				+ "<manifest:file-entry manifest:full-path=\"content.xml\" manifest:media-type=\"text/xml\"/>"
+				+ "</manifest:manifest>");
+			
+			zip.putNextEntry(new ZipEntry("content.xml"));
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<office:document-content" + NAMESPACES + "><office:body><office:spreadsheet>");
+		}
+		
+		@Override
+		public boolean isOpenDocument() {
+			return true;
+		}
+		
+		@Override
+		public void startSheet(String name) throws IOException {
+			super.startSheet(name);
+			out.write("<table:table table:name=\"");
+			escape(name);
+			out.write("\">");
+		}
+		
+		@Override
+		public void endSheet() throws IOException {
+			if(rows == 0) {
+				// a table must have at least one row
+				out.write("<table:table-row><table:table-cell/></table:table-row>");
+			}
+			out.write("</table:table>");
+		}
+		
+		@Override
+		public void startRow() throws IOException {
+			super.startRow();
+			out.write("<table:table-row>");
+		}
+		
+		@Override
+		public void endRow() throws IOException {
+			out.write("</table:table-row>");
+		}
+		
+		@Override
+		public void emptyCell() throws IOException {
+			out.write("<table:table-cell/>");
+		}
+		
+		@Override
+		public void cell(String value) throws IOException {
+			out.write("<table:table-cell office:value-type=\"string\"><text:p>");
+			escape(value);
+			out.write("</text:p></table:table-cell>");
+		}
+		
+		@Override
+		public void cell(long value) throws IOException {
+			out.write("<table:table-cell office:value-type=\"float\" office:value=\"");
+			out.write(Long.toString(value));
+			out.write("\"/>");
+		}
+		
+		@Override
+		public void formula(CharSequence formula) throws IOException {
+			out.write("<table:table-cell table:formula=\"of:=");
+			escape(formula);
+			out.write("\"/>");
+		}
+		
+		@Override
+		protected void finish() throws IOException {
+			if(!names.isEmpty()) {
+				out.write("<table:named-expressions>");
+				for(Map.Entry<String, String> e : names.entrySet()) {
+					String address = "$" + e.getValue().replace("!", ".");
+					out.write("<table:named-range table:name=\"");
+					escape(e.getKey());
+					out.write("\" table:base-cell-address=\"");
+					escape(address);
+					out.write("\" table:cell-range-address=\"");
+					escape(address);
+					out.write("\"/>");
+				}
+				out.write("</table:named-expressions>");
+			}
+			out.write("</office:spreadsheet></office:body></office:document-content>");
+			out.flush();
+			zip.closeEntry();
+		}
+	}
+	
+	private static final class Xlsx extends SpreadsheetWriter {
+		private Xlsx(Path path) throws IOException {
+			super(path);
+		}
+		
+		@Override
+		public boolean isOpenDocument() {
+			return false;
+		}
+		
+		@Override
+		public void startSheet(String name) throws IOException {
+			super.startSheet(name);
+			zip.putNextEntry(new ZipEntry("xl/worksheets/sheet" + sheets.size() + ".xml"));
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+				+ "<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><sheetData>");
+		}
+		
+		@Override
+		public void endSheet() throws IOException {
+			out.write("</sheetData></worksheet>");
+			out.flush();
+			zip.closeEntry();
+		}
+		
+		@Override
+		public void startRow() throws IOException {
+			super.startRow();
+			out.write("<row>");
+		}
+		
+		@Override
+		public void endRow() throws IOException {
+			out.write("</row>");
+		}
+		
+		@Override
+		public void emptyCell() throws IOException {
+			out.write("<c/>");
+		}
+		
+		@Override
+		public void cell(String value) throws IOException {
+			out.write("<c t=\"inlineStr\"><is><t>");
+			escape(value);
+			out.write("</t></is></c>");
+		}
+		
+		@Override
+		public void cell(long value) throws IOException {
+			out.write("<c><v>");
+			out.write(Long.toString(value));
+			out.write("</v></c>");
+		}
+		
+		@Override
+		public void formula(CharSequence formula) throws IOException {
+			out.write("<c><f>");
+			escape(formula);
+			out.write("</f></c>");
+		}
+		
+		@Override
+		protected void finish() throws IOException {
+			StringBuilder types = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+				+ "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+				+ "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+				+ "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+				+ "<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>");
+			StringBuilder workbook = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+				+ "<workbook xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\""
+				+ " xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\"><sheets>");
+			StringBuilder rels = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+				+ "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">");
+			for(int i = 1; i <= sheets.size(); ++i) {
+				types.append("<Override PartName=\"/xl/worksheets/sheet").append(i)
+					.append(".xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+				workbook.append("<sheet name=\"").append(sheets.get(i - 1)).append("\" sheetId=\"").append(i)
+					.append("\" r:id=\"rId").append(i).append("\"/>");
+				rels.append("<Relationship Id=\"rId").append(i)
+					.append("\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet\" Target=\"worksheets/sheet")
+					.append(i).append(".xml\"/>");
+			}
+			types.append("</Types>");
+			workbook.append("</sheets>");
+			if(!names.isEmpty()) {
+				workbook.append("<definedNames>");
+				for(Map.Entry<String, String> e : names.entrySet()) {
+					workbook.append("<definedName name=\"").append(e.getKey()).append("\">").append(e.getValue()).append("</definedName>");
+				}
+				workbook.append("</definedNames>");
+			}
+			// nothing has a cached value, so everything is calculated when the file is opened
+			workbook.append("<calcPr fullCalcOnLoad=\"1\"/></workbook>");
+			rels.append("</Relationships>");
+			
+			entry("[Content_Types].xml", types.toString());
+			entry("_rels/.rels", "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+				+ "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+				+ "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"xl/workbook.xml\"/>"
+				+ "</Relationships>");
+			entry("xl/workbook.xml", workbook.toString());
+			entry("xl/_rels/workbook.xml.rels", rels.toString());
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// How much stack a verified program uses: the frame of each function, and the most the whole program can need.
+// Frames are measured from the base of stack register when the function starts, so a function's parameters are the
+// first slots of its frame, and the return address and saved base of stack below it belong to the caller.
+public final class StackLayout {
+	public static final class Frame {
+		private final int entry;
+		private final int paramCount;
+		private final int size;
+		private final int depth;
+		
+		public Frame(int entry, int paramCount, int size, int depth) {
+			this.entry = entry;
+			this.paramCount = paramCount;
+			this.size = size;
+			this.depth = depth;
+		}
+		
+		// the position of the function's first instruction; 0 for main
+		public int getEntry() {
+			return entry;
+		}
+		
+		public int getParamCount() {
+			return paramCount;
+		}
+		
+		// the most slots the function itself holds at once, counting its parameters but not the frames of its callees
+		public int getSize() {
+			return size;
+		}
+		
+		// the most slots in use at once from the base of the frame, including callees; -1 if calls can recurse
+		public int getDepth() {
+			return depth;
+		}
+	}
+	
+	private final List<Frame> frames;
+	private final Map<Integer, Frame> byEntry = new HashMap<>();
+	
+	public StackLayout(List<Frame> frames) {
+		this.frames = Collections.unmodifiableList(new ArrayList<>(frames));
+		for(Frame f : frames) {
+			byEntry.put(f.getEntry(), f);
+		}
+		if(!byEntry.containsKey(0)) {
+			throw new IllegalArgumentException("Stack layout has no frame for main");
+		}
+	}
+	
+	// in order of entry position
+	public List<Frame> getFrames() {
+		return frames;
+	}
+	
+	// null if no function starts there
+	public Frame getFrame(int entry) {
+		return byEntry.get(entry);
+	}
+	
+	// the largest the stack can get on any input, or -1 if it is unbounded because calls can recurse
+	public int getMaxStack() {
+		return byEntry.get(0).getDepth();
+	}
+	
+	public boolean isBounded() {
+		return getMaxStack() >= 0;
+	}
+	
+	// one line per frame, named from the symbol table where possible
+	public String toString(Map<String, Integer> symbols) {
+		Map<Integer, String> names = new HashMap<>();
+		for(Map.Entry<String, Integer> e : symbols.entrySet()) {
+			names.putIfAbsent(e.getValue(), e.getKey());
+		}
+		StringBuilder sb = new StringBuilder();
+		for(Frame f : frames) {
+			sb.append(names.getOrDefault(f.getEntry(), f.getEntry() == 0 ? "main" : "@" + f.getEntry()))
+				.append(": ").append(f.getParamCount()).append(" params, frame size ").append(f.getSize())
+				.append(", depth ").append(f.getDepth() < 0 ? "unbounded" : String.valueOf(f.getDepth()))
+				.append('\n');
+		}
+		sb.append("Max stack: ").append(isBounded() ? String.valueOf(getMaxStack()) : "unbounded").append('\n');
+		return sb.toString();
+	}
+	
+	@Override
+	public String toString() {
+		return toString(Collections.emptyMap());
+	}
+}
@@ -0,0 +1,538 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+import static com.github.kaya3.htmspreadsheet.DecodedProgram.*;
+
+// Proves that a program uses the stack consistently, and works out how much stack it needs. Each function is
+// interpreted abstractly, with stack heights counted from the base of its frame; registers and stack slots are tracked
+// only while they hold a constant or an address in the frame, which is enough to follow the jumps, calls and returns
+// the compiler emits. Every instruction must be reached with the same stack height on every path to it.
+// A jump is a call when the base of stack register has moved up to a new frame, and a return when its target isn't
+// known, since return addresses come from the caller. A function may also move its own base above the top of the
+// stack, as main does to keep memo tables below its frame, and fill the space up to it in a loop; an instruction may
+// then be reached with a greater height each time round, and the loop is followed round once per pass, so its
+// counter must be a known constant. A call's base is never above the top of the stack.
+// Stores to unknown addresses are assumed not to overwrite the return addresses and bases of stack saved in the
+// frames of callers, which compiled code never does.
+public final class StackVerifier {
+	private static final class Value {
+		private static final Value UNKNOWN = new Value(false, 0);
+		
+		private final boolean frame;
+		private final int n;
+		
+		private Value(boolean frame, int n) {
+			this.frame = frame;
+			this.n = n;
+		}
+		
+		private static Value constant(int n) {
+			return new Value(false, n);
+		}
+		
+		// an address n slots above the base of the current frame
+		private static Value frame(int n) {
+			return new Value(true, n);
+		}
+		
+		private boolean isConstant() {
+			return this != UNKNOWN && !frame;
+		}
+		
+		private Value join(Value other) {
+			// UNKNOWN holds 0 too, so it must not compare equal to the constant 0
+			boolean same = this != UNKNOWN && other != UNKNOWN && frame == other.frame && n == other.n;
+			return this == other || same ? this : UNKNOWN;
+		}
+	}
+	
+	private static final class State {
+		private final Value[] registers;
+		private Value[] stack;
+		private int height;
+		// where the base of stack register points while this function isn't making a call
+		private int base;
+		
+		private State(Value[] registers, int height, int base) {
+			this.registers = registers;
+			this.height = height;
+			this.base = base;
+			this.stack = new Value[Math.max(height, 0)];
+			Arrays.fill(stack, Value.UNKNOWN);
+		}
+		
+		private State copy() {
+			State s = new State(registers.clone(), height, base);
+			System.arraycopy(stack, 0, s.stack, 0, s.stack.length);
+			return s;
+		}
+		
+		// slots below the frame belong to the caller, and aren't tracked
+		private Value slot(int i) {
+			return i >= 0 && i < height ? stack[i] : Value.UNKNOWN;
+		}
+		
+		private void push(Value v) {
+			if(height >= 0) {
+				if(height == stack.length) {
+					stack = Arrays.copyOf(stack, Math.max(8, 2 * height));
+				}
+				stack[height] = v;
+			}
+			++height;
+		}
+		
+		private Value pop() {
+			Value v = slot(height - 1);
+			--height;
+			return v;
+		}
+		
+		private void forgetStack() {
+			Arrays.fill(stack, Value.UNKNOWN);
+		}
+	}
+	
+	private static final class Call {
+		private final int pos;
+		private final Function caller, callee;
+		private final int base;
+		private State state;
+		
+		private Call(int pos, Function caller, Function callee, int base, State state) {
+			this.pos = pos;
+			this.caller = caller;
+			this.callee = callee;
+			this.base = base;
+			this.state = state;
+		}
+	}
+	
+	private static final class Function {
+		private final int entry;
+		private final int paramCount;
+		private int size;
+		// the stack height just after returning, counted from this frame's base; the caller's link slots are below it
+		private Integer returnHeight;
+		private final Map<Integer, Call> calls = new HashMap<>();
+		// calls to this function whose continuation can't be found until this function is seen to return
+		private final List<Call> waiting = new ArrayList<>();
+		
+		private Function(int entry, int paramCount) {
+			this.entry = entry;
+			this.paramCount = paramCount;
+			this.size = paramCount;
+		}
+	}
+	
+	public static StackLayout verify(DecodedProgram program) {
+		return new StackVerifier(program).verify();
+	}
+	
+	private final DecodedProgram program;
+	private final int length;
+	private final State[] states;
+	private final Function[] owners;
+	private final Map<Integer, Function> functions = new TreeMap<>();
+	private final Deque<Integer> worklist = new ArrayDeque<>();
+	private final boolean[] queued;
+	
+	private StackVerifier(DecodedProgram program) {
+		this.program = program;
+		this.length = program.length();
+		this.states = new State[length];
+		this.owners = new Function[length];
+		this.queued = new boolean[length];
+	}
+	
+	private StackLayout verify() {
+		// main's frame starts at address 0, so its addresses are plain constants, and every register starts at 0
+		Function main = new Function(0, 0);
+		functions.put(0, main);
+		Value[] registers = new Value[Instruction.REGISTER_COUNT];
+		Arrays.fill(registers, Value.constant(0));
+		if(length > 0) {
+			merge(0, new State(registers, 0, 0), main);
+		}
+		
+		while(!worklist.isEmpty()) {
+			int pos = worklist.pop();
+			queued[pos] = false;
+			step(pos, states[pos].copy(), owners[pos]);
+		}
+		
+		Map<Integer, Integer> depths = new HashMap<>();
+		List<StackLayout.Frame> frames = new ArrayList<>();
+		for(Function f : functions.values()) {
+			frames.add(new StackLayout.Frame(f.entry, f.paramCount, f.size, depth(f, depths)));
+		}
+		return new StackLayout(frames);
+	}
+	
+	// a function's own frame, or the deepest of its calls; -1 when a call can reach a function still being measured
+	private int depth(Function f, Map<Integer, Integer> depths) {
+		Integer known = depths.get(f.entry);
+		if(known != null) {
+			return known;
+		}
+		depths.put(f.entry, -1);
+		int depth = f.size;
+		for(Call call : f.calls.values()) {
+			int callee = depth(call.callee, depths);
+			if(callee < 0) {
+				depth = -1;
+				break;
+			}
+			depth = Math.max(depth, call.base + callee);
+		}
+		depths.put(f.entry, depth);
+		return depth;
+	}
+	
+	private void step(int pos, State s, Function f) {
+		int op = program.getOp(pos), a = program.getArg1(pos), b = program.getArg2(pos);
+		switch(op) {
+			case OP_CONST:
+				s.push(Value.constant(a));
+				break;
+			case OP_PUSH:
+				s.push(read(s, a, pos));
+				break;
+			case OP_POP:
+				Value popped = s.pop();
+				if(a == Instruction.PC_REGISTER) {
+					jump(pos, popped, s, f);
+					return;
+				} else if(a == Instruction.BOS_REGISTER) {
+					setBase(s, popped, f);
+				} else {
+					s.registers[a] = popped;
+				}
+				break;
+			case OP_LOAD: {
+				int address = address(s, b, f, pos);
+				Value loaded = address == Integer.MIN_VALUE ? Value.UNKNOWN : s.slot(address);
+				if(a == Instruction.PC_REGISTER) {
+					jump(pos, loaded, s, f);
+					return;
+				}
+				s.registers[a] = loaded;
+				break;
+			}
+			case OP_STORE: {
+				int address = address(s, b, f, pos);
+				if(address == Integer.MIN_VALUE) {
+					s.forgetStack();
+				} else if(address >= 0) {
+					s.stack[address] = read(s, a, pos);
+				}
+				break;
+			}
+			case OP_COPY:
+				if(a == Instruction.PC_REGISTER) {
+					jump(pos, read(s, b, pos), s, f);
+					return;
+				}
+				s.registers[a] = read(s, b, pos);
+				break;
+			case OP_INPUT:
+				s.pop();
+				s.pop();
+				s.registers[Instruction.IO_REGISTER] = Value.UNKNOWN;
+				break;
+			case OP_OUTPUT:
+				s.pop();
+				s.pop();
+				break;
+			case OP_JUMPIF: {
+				Value condition = s.pop();
+				if(branch(pos, s, f, read(s, a, pos), condition.isConstant() ? condition.n == 0 : null)) {
+					return;
+				}
+				break;
+			}
+			case OP_JUMP:
+				jump(pos, Value.constant(a), s, f);
+				return;
+			case OP_JUMPIFZ: {
+				Value condition = s.pop();
+				if(branch(pos, s, f, Value.constant(a), condition.isConstant() ? condition.n == 0 : null)) {
+					return;
+				}
+				break;
+			}
+			case OP_JUMPIFLT:
+			case OP_JUMPIFGE:
+			case OP_JUMPIFEQ:
+			case OP_JUMPIFNE: {
+				Value y = s.pop(), x = s.pop();
+				Boolean taken = null;
+				if(x.isConstant() && y.isConstant()) {
+					taken = op == OP_JUMPIFLT ? x.n < y.n : op == OP_JUMPIFGE ? x.n >= y.n : op == OP_JUMPIFEQ ? x.n == y.n : x.n != y.n;
+				}
+				if(branch(pos, s, f, Value.constant(a), taken)) {
+					return;
+				}
+				break;
+			}
+			case OP_SUB: {
+				// as the base set's x + y * -1, which keeps an address in the frame but not the negation of one
+				Value y = s.pop(), x = s.pop();
+				s.push(x != Value.UNKNOWN && y.isConstant() ? new Value(x.frame, x.n - y.n) : Value.UNKNOWN);
+				break;
+			}
+			case OP_DUP: {
+				Value top = s.pop();
+				s.push(top);
+				s.push(top);
+				break;
+			}
+			case OP_CALL: {
+				Value base = read(s, Instruction.BOS_REGISTER, pos);
+				setBase(s, base == Value.UNKNOWN ? base : new Value(base.frame, base.n + b), f);
+				jump(pos, Value.constant(a), s, f);
+				return;
+			}
+			case OP_RET:
+				setBase(s, s.pop(), f);
+				jump(pos, s.pop(), s, f);
+				return;
+			case OP_ADD: {
+				Value y = s.pop(), x = s.pop();
+				if(x == Value.UNKNOWN || y == Value.UNKNOWN || x.frame && y.frame) {
+					s.push(Value.UNKNOWN);
+				} else {
+					s.push(new Value(x.frame || y.frame, x.n + y.n));
+				}
+				break;
+			}
+			case OP_MULT: {
+				Value y = s.pop(), x = s.pop();
+				s.push(x.isConstant() && y.isConstant() ? Value.constant(x.n * y.n) : Value.UNKNOWN);
+				break;
+			}
+			case OP_NOT:
+				s.pop();
+				s.push(Value.UNKNOWN);
+				break;
+			case OP_EQUALS:
+			case OP_LESSTHAN: {
+				// known for a loop counter, so that the loop is seen to end
+				Value y = s.pop(), x = s.pop();
+				if(x.isConstant() && y.isConstant()) {
+					s.push(Value.constant((op == OP_EQUALS ? x.n == y.n : x.n < y.n) ? 1 : 0));
+				} else {
+					s.push(Value.UNKNOWN);
+				}
+				break;
+			}
+			default:
+				s.pop();
+				s.pop();
+				s.push(Value.UNKNOWN);
+				break;
+		}
+		checkHeight(pos, s, f);
+		if(pos + 1 < length) {
+			merge(pos + 1, s, f);
+		}
+	}
+	
+	// Continues at the destination if the jump may be taken, given whether it is known to be; returns true if it is
+	// known to be taken, so nothing follows.
+	private boolean branch(int pos, State s, Function f, Value destination, Boolean taken) {
+		checkHeight(pos, s, f);
+		if(taken == null || taken) {
+			jump(pos, destination, s.copy(), f);
+		}
+		return taken != null && taken;
+	}
+	
+	private static void setBase(State s, Value base, Function f) {
+		Integer offset = frameOffset(base, f);
+		if(offset != null && offset > s.height) {
+			s.base = offset;
+		}
+		s.registers[Instruction.BOS_REGISTER] = base;
+	}
+	
+	private void checkHeight(int pos, State s, Function f) {
+		if(f.entry == 0 && s.height < 0) {
+			throw error(pos, "stack underflow");
+		}
+		f.size = Math.max(f.size, s.height);
+	}
+	
+	private static Value read(State s, int r, int pos) {
+		// the PC has already been incremented when an instruction reads it
+		return r == Instruction.PC_REGISTER ? Value.constant(pos + 1) : s.registers[r];
+	}
+	
+	// where a value sits relative to the base of the frame, if it is known
+	private static Integer frameOffset(Value v, Function f) {
+		if(v.frame) {
+			return v.n;
+		} else if(v.isConstant() && f.entry == 0) {
+			return v.n;
+		} else {
+			return null;
+		}
+	}
+	
+	// the frame slot a LOAD or STORE addresses, or Integer.MIN_VALUE if it isn't known
+	private static int address(State s, int r, Function f, int pos) {
+		Integer base = frameOffset(s.registers[Instruction.BOS_REGISTER], f);
+		Value offset = read(s, r, pos);
+		if(base == null || !offset.isConstant()) {
+			return Integer.MIN_VALUE;
+		}
+		int address = base + offset.n;
+		if(address >= s.height || f.entry == 0 && address < 0) {
+			throw error(pos, "address " + address + " is outside the frame of height " + s.height);
+		}
+		return address;
+	}
+	
+	private void jump(int pos, Value target, State s, Function f) {
+		checkHeight(pos, s, f);
+		if(!target.isConstant()) {
+			if(f.entry == 0) {
+				throw error(pos, "jump to an unknown position from main");
+			}
+			if(f.returnHeight == null) {
+				f.returnHeight = s.height;
+				for(Call call : f.waiting) {
+					resume(call, f);
+				}
+				f.waiting.clear();
+			} else if(f.returnHeight != s.height) {
+				throw error(pos, "function at " + f.entry + " returns with stack heights " + f.returnHeight + " and " + s.height);
+			}
+			return;
+		} else if(target.n < 0 || target.n >= length) {
+			// halts
+			return;
+		}
+		
+		Integer base = frameOffset(s.registers[Instruction.BOS_REGISTER], f);
+		if(base == null) {
+			throw error(pos, "jump with an unknown base of stack");
+		} else if(base == s.base) {
+			merge(target.n, s, f);
+			return;
+		} else if(base > s.height) {
+			throw error(pos, "call with the base of stack above the top of the stack");
+		}
+		
+		int paramCount = s.height - base;
+		Function callee = functions.get(target.n);
+		if(callee == null) {
+			callee = new Function(target.n, paramCount);
+			functions.put(target.n, callee);
+		} else if(callee.paramCount != paramCount) {
+			throw error(pos, "function at " + target.n + " is called with " + callee.paramCount + " and " + paramCount + " arguments");
+		}
+		Value[] registers = new Value[Instruction.REGISTER_COUNT];
+		Arrays.fill(registers, Value.UNKNOWN);
+		registers[Instruction.BOS_REGISTER] = Value.frame(0);
+		merge(target.n, new State(registers, paramCount, 0), callee);
+		
+		Call call = f.calls.get(pos);
+		if(call == null) {
+			call = new Call(pos, f, callee, base, s);
+			f.calls.put(pos, call);
+		} else if(call.base != base || call.callee != callee) {
+			throw error(pos, "call to more than one frame");
+		}
+		call.state = s;
+		if(callee.returnHeight != null) {
+			resume(call, callee);
+		} else if(!callee.waiting.contains(call)) {
+			callee.waiting.add(call);
+		}
+	}
+	
+	// continues the caller at the return address it saved, with the base of stack the callee restores
+	private void resume(Call call, Function callee) {
+		int height = call.base + callee.returnHeight;
+		Value returnTo = call.state.slot(height), savedBase = call.state.slot(height + 1);
+		if(!returnTo.isConstant()) {
+			throw error(call.pos, "return address of call is not known");
+		}
+		State after = call.state.copy();
+		after.height = height;
+		Arrays.fill(after.registers, Value.UNKNOWN);
+		after.registers[Instruction.BOS_REGISTER] = savedBase;
+		if(returnTo.n >= 0 && returnTo.n < length) {
+			merge(returnTo.n, after, call.caller);
+		}
+	}
+	
+	private void merge(int pos, State s, Function f) {
+		State old = states[pos];
+		if(old == null) {
+			states[pos] = s.copy();
+			owners[pos] = f;
+		} else if(owners[pos] != f) {
+			throw error(pos, "reached from the functions at " + owners[pos].entry + " and " + f.entry);
+		} else if(old.base != s.base) {
+			throw error(pos, "base of stack is " + old.base + " on one path and " + s.base + " on another");
+		} else if(old.height < s.height && old.height < s.base) {
+			// the space below the frame being filled; this pass replaces the last, and heights only grow up to the base
+			states[pos] = s.copy();
+		} else if(old.height != s.height) {
+			throw error(pos, "stack height is " + old.height + " on one path and " + s.height + " on another");
+		} else {
+			boolean changed = false;
+			for(int r = 0; r < Instruction.REGISTER_COUNT; ++r) {
+				Value v = old.registers[r].join(s.registers[r]);
+				changed |= v != old.registers[r];
+				old.registers[r] = v;
+			}
+			for(int i = 0; i < old.stack.length && i < old.height; ++i) {
+				Value v = old.stack[i].join(s.stack[i]);
+				changed |= v != old.stack[i];
+				old.stack[i] = v;
+			}
+			if(!changed) {
+				return;
+			}
+		}
+		f.size = Math.max(f.size, s.height);
+		if(!queued[pos]) {
+			queued[pos] = true;
+			worklist.push(pos);
+		}
+	}
+	
+	private static IllegalArgumentException error(int pos, String message) {
+		return new IllegalArgumentException("Cannot verify stack at position " + pos + ": " + message);
+	}
+	
+	// StackVerifier program.ssm|program.ssmb
+	// prints each function's frame and the program's largest stack
+	public static void main(String[] args) throws IOException {
+		if(args.length != 1) {
+			System.err.println("Usage: StackVerifier program.ssm|program" + BinaryProgram.EXTENSION);
+			System.exit(2);
+		}
+		Path path = Paths.get(args[0]);
+		DecodedProgram program;
+		Map<String, Integer> symbols = Collections.emptyMap();
+		if(args[0].endsWith(BinaryProgram.EXTENSION)) {
+			BinaryProgram binary = BinaryProgram.load(path);
+			program = binary.getProgram();
+			symbols = binary.getSymbols();
+		} else {
+			program = DecodedProgram.parse(new StringReader(new String(Files.readAllBytes(path), StandardCharsets.UTF_8)));
+		}
+		System.out.print(verify(program).toString(symbols));
+	}
+}
@@ -0,0 +1,244 @@
+package com.github.kaya3.htmspreadsheet;
+
+// A statement in the intermediate representation: straight-line statements make up the body of a basic block, and
+// each block ends with one terminator. Every statement keeps the source location its instructions are attributed to.
+public abstract class StmtNode {
+	private final SourceLocation location;
+	
+	private StmtNode(SourceLocation location) {
+		this.location = location;
+	}
+	
+	public SourceLocation getLocation() {
+		return location;
+	}
+	
+	public static final class Assign extends StmtNode {
+		private final int target;
+		private final ExprNode value;
+		
+		public Assign(int target, ExprNode value, SourceLocation location) {
+			super(location);
+			this.target = target;
+			this.value = value;
+		}
+		
+		public int getTarget() {
+			return target;
+		}
+		
+		public ExprNode getValue() {
+			return value;
+		}
+		
+		@Override
+		public String toString() {
+			return "$" + target + " = " + value;
+		}
+	}
+	
+	public static final class Output extends StmtNode {
+		private final ExprNode x, y, value;
+		
+		public Output(ExprNode x, ExprNode y, ExprNode value, SourceLocation location) {
+			super(location);
+			this.x = x;
+			this.y = y;
+			this.value = value;
+		}
+		
+		public ExprNode getX() {
+			return x;
+		}
+		
+		public ExprNode getY() {
+			return y;
+		}
+		
+		public ExprNode getValue() {
+			return value;
+		}
+		
+		@Override
+		public String toString() {
+			return "output(" + x + ", " + y + ", " + value + ")";
+		}
+	}
+	
+	// a call whose result, if any, is discarded
+	public static final class Call extends StmtNode {
+		private final ExprNode.Call call;
+		
+		public Call(ExprNode.Call call, SourceLocation location) {
+			super(location);
+			this.call = call;
+		}
+		
+		public ExprNode.Call getCall() {
+			return call;
+		}
+		
+		@Override
+		public String toString() {
+			return call.toString();
+		}
+	}
+	
+	public abstract static class Terminator extends StmtNode {
+		private Terminator(SourceLocation location) {
+			super(location);
+		}
+		
+		public abstract int getSuccessorCount();
+		
+		public abstract int getSuccessor(int i);
+		
+		// the same terminator with its successors renumbered
+		public abstract Terminator remap(int[] blocks);
+	}
+	
+	public static final class Jump extends Terminator {
+		private final int target;
+		
+		public Jump(int target, SourceLocation location) {
+			super(location);
+			this.target = target;
+		}
+		
+		public int getTarget() {
+			return target;
+		}
+		
+		@Override
+		public int getSuccessorCount() {
+			return 1;
+		}
+		
+		@Override
+		public int getSuccessor(int i) {
+			return target;
+		}
+		
+		@Override
+		public Terminator remap(int[] blocks) {
+			return new Jump(blocks[target], getLocation());
+		}
+		
+		@Override
+		public String toString() {
+			return "jump " + target;
+		}
+	}
+	
+	public static final class Branch extends Terminator {
+		private final ExprNode condition;
+		private final int ifTrue, ifFalse;
+		
+		public Branch(ExprNode condition, int ifTrue, int ifFalse, SourceLocation location) {
+			super(location);
+			this.condition = condition;
+			this.ifTrue = ifTrue;
+			this.ifFalse = ifFalse;
+		}
+		
+		public ExprNode getCondition() {
+			return condition;
+		}
+		
+		public int getIfTrue() {
+			return ifTrue;
+		}
+		
+		public int getIfFalse() {
+			return ifFalse;
+		}
+		
+		@Override
+		public int getSuccessorCount() {
+			return 2;
+		}
+		
+		@Override
+		public int getSuccessor(int i) {
+			return i == 0 ? ifTrue : ifFalse;
+		}
+		
+		@Override
+		public Terminator remap(int[] blocks) {
+			return new Branch(condition, blocks[ifTrue], blocks[ifFalse], getLocation());
+		}
+		
+		@Override
+		public String toString() {
+			return "branch " + condition + " ? " + ifTrue + " : " + ifFalse;
+		}
+	}
+	
+	public static final class Return extends Terminator {
+		// null for a void return
+		private final ExprNode value;
+		
+		public Return(ExprNode value, SourceLocation location) {
+			super(location);
+			this.value = value;
+		}
+		
+		public ExprNode getValue() {
+			return value;
+		}
+		
+		@Override
+		public int getSuccessorCount() {
+			return 0;
+		}
+		
+		@Override
+		public int getSuccessor(int i) {
+			throw new IndexOutOfBoundsException();
+		}
+		
+		@Override
+		public Terminator remap(int[] blocks) {
+			return this;
+		}
+		
+		@Override
+		public String toString() {
+			return value == null ? "return" : "return " + value;
+		}
+	}
+	
+	// a call to the function itself with nothing after it, which reuses the frame
+	public static final class TailCall extends Terminator {
+		private final ExprNode.Call call;
+		
+		public TailCall(ExprNode.Call call, SourceLocation location) {
+			super(location);
+			this.call = call;
+		}
+		
+		public ExprNode.Call getCall() {
+			return call;
+		}
+		
+		@Override
+		public int getSuccessorCount() {
+			return 0;
+		}
+		
+		@Override
+		public int getSuccessor(int i) {
+			throw new IndexOutOfBoundsException();
+		}
+		
+		@Override
+		public Terminator remap(int[] blocks) {
+			return this;
+		}
+		
+		@Override
+		public String toString() {
+			return "tail " + call;
+		}
+	}
+}
@@ -0,0 +1,448 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import static com.github.kaya3.htmspreadsheet.DecodedProgram.*;
+
+// A debugging engine which can run backwards. Every so many steps it keeps a checkpoint of the machine state, which is
+// cheap because the stack is persistent: a checkpoint shares every stack node not written since the one before, so
+// memory grows with the number of distinct writes rather than with steps times stack size. Seeking to a step restores
+// the nearest checkpoint at or before it and runs forward from there; the machine is deterministic, so this lands in
+// exactly the state the first run passed through.
+// Like Profiler, this is a separate engine so that VirtualMachine.run pays nothing for it.
+public final class TimeTravelDebugger {
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 1024;
+	
+	// The snapshot format: magic "HTMS", version byte, then big-endian:
+	//   program length (int) and CRC-32 (long), so a snapshot can't be restored against another program
+	//   step count (long), the registers (ints), stack size (int) and values (ints)
+	//   the input grid (IO_SIZE * IO_SIZE ints), then the written output cells as a count (int) and (index, value) ints
+	public static final int SNAPSHOT_VERSION = 1;
+	private static final byte[] SNAPSHOT_MAGIC = { 'H', 'T', 'M', 'S' };
+	
+	private static final class Checkpoint {
+		private final int[] registers;
+		private final PersistentStack stack;
+		private final Grid output;
+		
+		private Checkpoint(int[] registers, PersistentStack stack, Grid output) {
+			this.registers = registers;
+			this.stack = stack;
+			this.output = output;
+		}
+	}
+	
+	private final DecodedProgram program;
+	private final Grid input;
+	private final int interval;
+	private final TreeMap<Long, Checkpoint> checkpoints = new TreeMap<>();
+	
+	private final int[] registers = new int[Instruction.REGISTER_COUNT];
+	private PersistentStack.Transient stack;
+	private Grid output;
+	// whether the output grid belongs to a checkpoint too, and must be copied before it is written
+	private boolean outputShared;
+	private long steps;
+	
+	public TimeTravelDebugger(DecodedProgram program, Grid input) {
+		this(program, input, DEFAULT_CHECKPOINT_INTERVAL);
+	}
+	
+	public TimeTravelDebugger(DecodedProgram program, Grid input, int interval) {
+		if(interval < 1) {
+			throw new IllegalArgumentException("Checkpoint interval must be positive");
+		}
+		this.program = program;
+		this.input = new Grid();
+		this.input.copyFrom(input);
+		this.interval = interval;
+		restore(0, new Checkpoint(new int[Instruction.REGISTER_COUNT], PersistentStack.EMPTY, new Grid()));
+	}
+	
+	public DecodedProgram getProgram() {
+		return program;
+	}
+	
+	public Grid getInput() {
+		return input;
+	}
+	
+	// shared with the checkpoints, so it must not be modified
+	public Grid getOutput() {
+		return output;
+	}
+	
+	public int getRegister(int r) {
+		return registers[r];
+	}
+	
+	public int getStackSize() {
+		return stack.size();
+	}
+	
+	public int getStackValue(int i) {
+		return stack.get(i);
+	}
+	
+	public long getSteps() {
+		return steps;
+	}
+	
+	public boolean isRunning() {
+		int pc = registers[Instruction.PC_REGISTER];
+		return pc >= 0 && pc < program.length();
+	}
+	
+	public int getCheckpointCount() {
+		return checkpoints.size();
+	}
+	
+	private Checkpoint checkpoint() {
+		PersistentStack frozen = stack.persistent();
+		stack = frozen.asTransient();
+		outputShared = true;
+		return new Checkpoint(registers.clone(), frozen, output);
+	}
+	
+	private void restore(long step, Checkpoint c) {
+		checkpoints.put(step, c);
+		System.arraycopy(c.registers, 0, registers, 0, registers.length);
+		stack = c.stack.asTransient();
+		output = c.output;
+		outputShared = true;
+		steps = step;
+	}
+	
+	public void step() {
+		if(!isRunning()) {
+			throw new IllegalStateException("VM has halted");
+		}
+		run(1);
+	}
+	
+	public long run() {
+		return run(Long.MAX_VALUE);
+	}
+	
+	// like VirtualMachine.run, with the same semantics, returning the number of steps taken
+	public long run(long maxSteps) {
+		final int[] r = registers;
+		long n = 0;
+		while(n < maxSteps && isRunning()) {
+			// a checkpoint replaces the Transient, so this can't be hoisted out of the loop
+			PersistentStack.Transient s = stack;
+			int pc = r[Instruction.PC_REGISTER];
+			r[Instruction.PC_REGISTER] = pc + 1;
+			int arg1 = program.getArg1(pc), arg2 = program.getArg2(pc);
+			int x, y;
+			switch(program.getOp(pc)) {
+				case OP_CONST: s.push(arg1); break;
+				case OP_PUSH: s.push(r[arg1]); break;
+				case OP_POP: r[arg1] = s.pop(); break;
+				case OP_LOAD: r[arg1] = s.get(VirtualMachine.checkAddress(r[Instruction.BOS_REGISTER] + r[arg2], s.size())); break;
+				case OP_STORE: s.set(VirtualMachine.checkAddress(r[Instruction.BOS_REGISTER] + r[arg2], s.size()), r[arg1]); break;
+				case OP_COPY: r[arg1] = r[arg2]; break;
+				case OP_INPUT:
+					y = s.pop();
+					x = s.pop();
+					r[Instruction.IO_REGISTER] = VirtualMachine.input(input, x, y);
+					break;
+				case OP_OUTPUT:
+					y = s.pop();
+					x = s.pop();
+					if(Grid.inRange(x, y)) {
+						if(outputShared) {
+							Grid copy = new Grid();
+							copy.copyFrom(output);
+							output = copy;
+							outputShared = false;
+						}
+						output.set(x, y, r[Instruction.IO_REGISTER]);
+					}
+					break;
+				case OP_JUMPIF:
+					if(s.pop() == 0) {
+						r[Instruction.PC_REGISTER] = r[arg1];
+					}
+					break;
+				case OP_NOT: s.push(~s.pop() & Instruction.MAX_INT); break;
+				case OP_JUMP: r[Instruction.PC_REGISTER] = arg1; break;
+				case OP_JUMPIFZ:
+					if(s.pop() == 0) {
+						r[Instruction.PC_REGISTER] = arg1;
+					}
+					break;
+				case OP_JUMPIFLT:
+				case OP_JUMPIFGE:
+				case OP_JUMPIFEQ:
+				case OP_JUMPIFNE:
+					y = s.pop();
+					if(compare(program.getOp(pc), s.pop(), y)) {
+						r[Instruction.PC_REGISTER] = arg1;
+					}
+					break;
+				case OP_DUP:
+					x = s.pop();
+					s.push(x);
+					s.push(x);
+					break;
+				case OP_CALL:
+					r[Instruction.BOS_REGISTER] += arg2;
+					r[Instruction.PC_REGISTER] = arg1;
+					break;
+				case OP_RET:
+					r[Instruction.BOS_REGISTER] = s.pop();
+					r[Instruction.PC_REGISTER] = s.pop();
+					break;
+				default:
+					y = s.pop();
+					s.push(binary(program.getOp(pc), s.pop(), y));
+			}
+			++n;
+			if(++steps % interval == 0 && !checkpoints.containsKey(steps)) {
+				checkpoints.put(steps, checkpoint());
+			}
+		}
+		return n;
+	}
+	
+	private static int binary(int op, int x, int y) {
+		switch(op) {
+			case OP_ADD: return x + y;
+			case OP_SUB: return x - y;
+			case OP_MULT: return x * y;
+			case OP_AND: return x & y;
+			case OP_OR: return x | y;
+			case OP_XOR: return x ^ y;
+			case OP_LSHIFT: return VirtualMachine.lshift(x, y);
+			case OP_RSHIFT: return VirtualMachine.rshift(x, y);
+			case OP_EQUALS: return x == y ? 1 : 0;
+			case OP_LESSTHAN: return x < y ? 1 : 0;
+			default: throw new IllegalStateException("Invalid opcode " + op);
+		}
+	}
+	
+	private static boolean compare(int op, int x, int y) {
+		switch(op) {
+			case OP_JUMPIFLT: return x < y;
+			case OP_JUMPIFGE: return x >= y;
+			case OP_JUMPIFEQ: return x == y;
+			case OP_JUMPIFNE: return x != y;
+			default: throw new IllegalStateException("Invalid opcode " + op);
+		}
+	}
+	
+	// Moves to the state after the given number of steps, or to the end if the program halts sooner. Returns the step
+	// reached.
+	public long seek(long step) {
+		if(step < 0) {
+			throw new IllegalArgumentException("Cannot seek to step " + step);
+		}
+		if(step < steps) {
+			Map.Entry<Long, Checkpoint> e = checkpoints.floorEntry(step);
+			restore(e.getKey(), e.getValue());
+		}
+		run(step - steps);
+		return steps;
+	}
+	
+	public long stepBack() {
+		return stepBack(1);
+	}
+	
+	public long stepBack(long n) {
+		return seek(Math.max(0, steps - n));
+	}
+	
+	// Writes the current state; the history before it isn't saved, but is recomputed from the start if needed.
+	public void snapshot(Path path) throws IOException {
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			out.write(SNAPSHOT_MAGIC);
+			out.writeByte(SNAPSHOT_VERSION);
+			out.writeInt(program.length());
+			out.writeLong(fingerprint(program));
+			out.writeLong(steps);
+			for(int r : registers) {
+				out.writeInt(r);
+			}
+			out.writeInt(stack.size());
+			for(int i = 0; i < stack.size(); ++i) {
+				out.writeInt(stack.get(i));
+			}
+			int written = 0;
+			for(int y = 0; y < Grid.IO_SIZE; ++y) {
+				for(int x = 0; x < Grid.IO_SIZE; ++x) {
+					out.writeInt(input.get(x, y));
+					written += output.isSet(x, y) ? 1 : 0;
+				}
+			}
+			out.writeInt(written);
+			for(int y = 0; y < Grid.IO_SIZE; ++y) {
+				for(int x = 0; x < Grid.IO_SIZE; ++x) {
+					if(output.isSet(x, y)) {
+						out.writeInt(y * Grid.IO_SIZE + x);
+						out.writeInt(output.get(x, y));
+					}
+				}
+			}
+		}
+	}
+	
+	// Replaces the current state with a snapshot of a run of the same program. If the snapshot's input grid differs
+	// from this debugger's, the checkpoints taken with the old input are dropped.
+	public void restore(Path path) throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			for(byte b : SNAPSHOT_MAGIC) {
+				if(in.readByte() != b) {
+					throw new IllegalArgumentException("Not a snapshot");
+				}
+			}
+			int version = in.readUnsignedByte();
+			if(version != SNAPSHOT_VERSION) {
+				throw new IllegalArgumentException("Unsupported snapshot version " + version);
+			}
+			if(in.readInt() != program.length() || in.readLong() != fingerprint(program)) {
+				throw new IllegalArgumentException("Snapshot is of a different program");
+			}
+			long step = in.readLong();
+			int[] regs = new int[Instruction.REGISTER_COUNT];
+			for(int i = 0; i < regs.length; ++i) {
+				regs[i] = in.readInt();
+			}
+			int[] values = new int[in.readInt()];
+			for(int i = 0; i < values.length; ++i) {
+				values[i] = in.readInt();
+			}
+			Grid snapshotInput = new Grid();
+			for(int y = 0; y < Grid.IO_SIZE; ++y) {
+				for(int x = 0; x < Grid.IO_SIZE; ++x) {
+					snapshotInput.set(x, y, in.readInt());
+				}
+			}
+			Grid snapshotOutput = new Grid();
+			for(int n = in.readInt(); n > 0; --n) {
+				int i = in.readInt(), value = in.readInt();
+				snapshotOutput.set(i % Grid.IO_SIZE, i / Grid.IO_SIZE, value);
+			}
+			
+			if(!sameValues(snapshotInput, input)) {
+				input.copyFrom(snapshotInput);
+				Checkpoint start = checkpoints.get(0L);
+				checkpoints.clear();
+				checkpoints.put(0L, start);
+			}
+			restore(step, new Checkpoint(regs, PersistentStack.of(values), snapshotOutput));
+		} catch(EOFException e) {
+			throw new IllegalArgumentException("Truncated snapshot", e);
+		}
+	}
+	
+	// compares values only; every input cell counts as set
+	private static boolean sameValues(Grid a, Grid b) {
+		for(int y = 0; y < Grid.IO_SIZE; ++y) {
+			for(int x = 0; x < Grid.IO_SIZE; ++x) {
+				if(a.get(x, y) != b.get(x, y)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	private static long fingerprint(DecodedProgram program) {
+		CRC32 crc = new CRC32();
+		for(int i = 0; i < program.length(); ++i) {
+			crc.update(program.getOp(i));
+			for(int a : new int[] { program.getArg1(i), program.getArg2(i) }) {
+				crc.update(a >>> 24);
+				crc.update(a >>> 16);
+				crc.update(a >>> 8);
+				crc.update(a);
+			}
+		}
+		return crc.getValue();
+	}
+	
+	private String describe() {
+		StringBuilder sb = new StringBuilder("step " + steps + ":");
+		if(isRunning()) {
+			int pc = registers[Instruction.PC_REGISTER];
+			int op = program.getOp(pc), argCount = DecodedProgram.getArgCount(op);
+			sb.append(" next ").append(pc).append(": ").append(DecodedProgram.opcodeOf(op));
+			if(argCount > 0) {
+				sb.append(' ').append(program.getArg1(pc));
+			}
+			if(argCount > 1) {
+				sb.append(' ').append(program.getArg2(pc));
+			}
+		} else {
+			sb.append(" halted");
+		}
+		sb.append("\n  registers ").append(Arrays.toString(registers)).append("\n  stack");
+		int from = Math.max(0, stack.size() - 16);
+		if(from > 0) {
+			sb.append(" ...");
+		}
+		for(int i = from; i < stack.size(); ++i) {
+			sb.append(' ').append(stack.get(i));
+		}
+		return sb.toString();
+	}
+	
+	// TimeTravelDebugger program.ssm|program.ssmb
+	// reads commands from standard input: step [n], back [n], seek n, run, output, save file, load file, quit
+	public static void main(String[] args) throws IOException {
+		if(args.length != 1) {
+			System.err.println("Usage: TimeTravelDebugger program.ssm|program" + BinaryProgram.EXTENSION);
+			System.exit(2);
+		}
+		Path path = Paths.get(args[0]);
+		DecodedProgram program = args[0].endsWith(BinaryProgram.EXTENSION)
+			? BinaryProgram.load(path).getProgram()
+			: DecodedProgram.parse(new StringReader(new String(Files.readAllBytes(path), StandardCharsets.UTF_8)));
+		
+		TimeTravelDebugger debugger = new TimeTravelDebugger(program, new Grid());
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		System.out.println(debugger.describe());
+		String line;
+		while((line = in.readLine()) != null) {
+			String[] parts = line.trim().split("\\s+");
+			try {
+				switch(parts[0]) {
+					case "":
+						continue;
+					case "step": debugger.run(parts.length > 1 ? Long.parseLong(parts[1]) : 1); break;
+					case "back": debugger.stepBack(parts.length > 1 ? Long.parseLong(parts[1]) : 1); break;
+					case "seek": debugger.seek(Long.parseLong(parts[1])); break;
+					case "run": debugger.run(); break;
+					case "output": System.out.print(debugger.getOutput()); break;
+					case "save": debugger.snapshot(Paths.get(parts[1])); break;
+					case "load": debugger.restore(Paths.get(parts[1])); break;
+					case "quit": return;
+					default:
+						System.out.println("Commands: step [n], back [n], seek n, run, output, save file, load file, quit");
+						continue;
+				}
+			} catch(RuntimeException e) {
+				System.out.println(e.getMessage());
+			}
+			System.out.println(debugger.describe());
+		}
+	}
+}
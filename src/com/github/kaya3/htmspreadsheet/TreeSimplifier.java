@@ -0,0 +1,351 @@
+package com.github.kaya3.htmspreadsheet;
+
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.*;
+import com.github.javaparser.ast.stmt.*;
+
+// Simplifies a function body in place before code generation. Folding follows the VM exactly: ADD and MULT don't
+// wrap, only LSHIFT and NOT are masked to 16 bits, so a result which doesn't fit in 16 bits is left unfolded.
+public final class TreeSimplifier {
+	private TreeSimplifier() {}
+	
+	public static void simplify(BlockStmt body) {
+		simplifyBlock(body);
+	}
+	
+	private static void simplifyBlock(BlockStmt block) {
+		NodeList<Statement> statements = new NodeList<>();
+		for(Statement s : block.getStatements()) {
+			Statement r = simplify(s);
+			if(r != null) {
+				statements.add(r);
+			}
+		}
+		block.setStatements(statements);
+	}
+	
+	// null if the statement can be removed entirely
+	private static Statement simplify(Statement s) {
+		if(s instanceof BlockStmt) {
+			simplifyBlock((BlockStmt) s);
+		} else if(s instanceof ExpressionStmt) {
+			Expression e = ((ExpressionStmt) s).getExpression();
+			if(e instanceof VariableDeclarationExpr) {
+				for(VariableDeclarator v : ((VariableDeclarationExpr) e).getVariables()) {
+					if(v.getInitializer().isPresent()) {
+						v.setInitializer(simplify(v.getInitializer().get()));
+					}
+				}
+			} else if(e instanceof AssignExpr) {
+				AssignExpr ex = (AssignExpr) e;
+				ex.setValue(simplify(ex.getValue()));
+			} else if(e instanceof MethodCallExpr) {
+				simplifyArguments((MethodCallExpr) e);
+			}
+		} else if(s instanceof IfStmt) {
+			IfStmt ex = (IfStmt) s;
+			Expression condition = simplify(ex.getCondition());
+			Integer c = constantValue(condition);
+			if(c != null && c != 0) {
+				return simplify(ex.getThenStmt());
+			} else if(c != null) {
+				return ex.getElseStmt().isPresent() ? simplify(ex.getElseStmt().get()) : null;
+			}
+			ex.setCondition(condition);
+			ex.setThenStmt(orEmpty(simplify(ex.getThenStmt())));
+			if(ex.getElseStmt().isPresent()) {
+				ex.setElseStmt(orEmpty(simplify(ex.getElseStmt().get())));
+			}
+		} else if(s instanceof WhileStmt) {
+			WhileStmt ex = (WhileStmt) s;
+			Expression condition = simplify(ex.getCondition());
+			Integer c = constantValue(condition);
+			if(c != null && c == 0) {
+				return null;
+			}
+			ex.setCondition(condition);
+			ex.setBody(orEmpty(simplify(ex.getBody())));
+		} else if(s instanceof DoStmt) {
+			// only LoopOptimizer makes these
+			DoStmt ex = (DoStmt) s;
+			ex.setCondition(simplify(ex.getCondition()));
+			ex.setBody(orEmpty(simplify(ex.getBody())));
+		} else if(s instanceof ReturnStmt) {
+			ReturnStmt ex = (ReturnStmt) s;
+			if(ex.getExpression().isPresent()) {
+				ex.setExpression(simplify(ex.getExpression().get()));
+			}
+		}
+		// FunctionCompiler reports anything unsupported
+		return s;
+	}
+	
+	private static Statement orEmpty(Statement s) {
+		return s != null ? s : new BlockStmt();
+	}
+	
+	private static void simplifyArguments(MethodCallExpr e) {
+		NodeList<Expression> args = e.getArguments();
+		for(int i = 0; i < args.size(); ++i) {
+			args.set(i, simplify(args.get(i)));
+		}
+	}
+	
+	// the expression may be changed in place; the simplified expression is returned
+	static Expression simplify(Expression e) {
+		if(e instanceof EnclosedExpr) {
+			EnclosedExpr ex = (EnclosedExpr) e;
+			Expression inner = simplify(ex.getInner().get());
+			if(constantValue(inner) != null || inner instanceof NameExpr) {
+				return inner;
+			}
+			ex.setInner(inner);
+		} else if(e instanceof BinaryExpr) {
+			return simplifyBinaryExpr((BinaryExpr) e);
+		} else if(e instanceof UnaryExpr) {
+			return simplifyUnaryExpr((UnaryExpr) e);
+		} else if(e instanceof MethodCallExpr) {
+			simplifyArguments((MethodCallExpr) e);
+		}
+		return e;
+	}
+	
+	private static Expression simplifyUnaryExpr(UnaryExpr e) {
+		Expression operand = simplify(e.getExpression());
+		Integer x = constantValue(operand);
+		if(x != null) {
+			switch(e.getOperator()) {
+				case MINUS: return literal(-x);
+				case LOGICAL_COMPLEMENT: return literal(x == 0 ? 1 : 0);
+				case BITWISE_COMPLEMENT: return literal(~x & Instruction.MAX_INT);
+			}
+		} else if(e.getOperator() == UnaryExpr.Operator.MINUS && operand instanceof UnaryExpr
+				&& ((UnaryExpr) operand).getOperator() == UnaryExpr.Operator.MINUS) {
+			// x * -1 * -1 is x, since MULT doesn't wrap
+			return ((UnaryExpr) operand).getExpression();
+		}
+		e.setExpression(operand);
+		return e;
+	}
+	
+	private static Expression simplifyBinaryExpr(BinaryExpr e) {
+		Expression left = simplify(e.getLeft()), right = simplify(e.getRight());
+		BinaryExpr.Operator o = e.getOperator();
+		Integer x = constantValue(left), y = constantValue(right);
+		
+		if(x != null && y != null) {
+			Long result = fold(o, x, y);
+			if(result != null && result >= -Instruction.MAX_INT && result <= Instruction.MAX_INT) {
+				return literal((int) (long) result);
+			}
+		} else if(x != null && (o == BinaryExpr.Operator.AND || o == BinaryExpr.Operator.OR)) {
+			// only the left-hand side of && or || decides whether the right is evaluated; && gives the right-hand value
+			if(o == BinaryExpr.Operator.AND) {
+				return x == 0 ? literal(0) : right;
+			} else {
+				return x != 0 ? literal(1) : right;
+			}
+		} else if(x != null || y != null) {
+			Expression r = simplifyIdentity(o, left, right, x, y);
+			if(r != null) {
+				return r;
+			}
+		}
+		
+		e.setLeft(left);
+		e.setRight(right);
+		return e;
+	}
+	
+	// one side of the expression is constant; null if there is nothing to simplify
+	private static Expression simplifyIdentity(BinaryExpr.Operator o, Expression left, Expression right, Integer x, Integer y) {
+		Expression other = x != null ? right : left;
+		int c = x != null ? x : y;
+		switch(o) {
+			case PLUS:
+				if(c == 0) {
+					return other;
+				}
+				return reassociate(o, other, c);
+			case MINUS:
+				if(y != null && y == 0) {
+					return left;
+				} else if(y != null) {
+					return reassociate(BinaryExpr.Operator.PLUS, left, -y);
+				}
+				break;
+			case MULTIPLY:
+				if(c == 1) {
+					return other;
+				} else if(c == 0 && isPure(other)) {
+					return literal(0);
+				} else if(c == -1) {
+					return new UnaryExpr(other, UnaryExpr.Operator.MINUS);
+				} else if(c > 0 && Integer.bitCount(c) == 1) {
+					// LSHIFT masks its result, so this only works when the product is known to fit
+					int k = Integer.numberOfTrailingZeros(c);
+					int bound = upperBound(other);
+					if(bound >= 0 && (long) bound << k <= Instruction.MAX_INT) {
+						return new BinaryExpr(other, literal(k), BinaryExpr.Operator.LEFT_SHIFT);
+					}
+				}
+				return reassociate(o, other, c);
+			case BINARY_AND:
+				if(c == 0 && isPure(other)) {
+					return literal(0);
+				}
+				break;
+			case BINARY_OR:
+			case XOR:
+				if(c == 0) {
+					return other;
+				}
+				break;
+			case LEFT_SHIFT:
+				// LSHIFT masks even a shift by zero
+				if(y != null && y == 0 && upperBound(left) >= 0) {
+					return left;
+				}
+				break;
+			case SIGNED_RIGHT_SHIFT:
+				if(y != null && y == 0) {
+					return left;
+				}
+				break;
+		}
+		return null;
+	}
+	
+	// (e + a) + b becomes e + (a + b), and likewise for multiplication
+	private static Expression reassociate(BinaryExpr.Operator o, Expression e, int c) {
+		Expression inner = e instanceof EnclosedExpr ? ((EnclosedExpr) e).getInner().get() : e;
+		if(!(inner instanceof BinaryExpr) || ((BinaryExpr) inner).getOperator() != o) {
+			return null;
+		}
+		BinaryExpr b = (BinaryExpr) inner;
+		Integer a = constantValue(b.getRight());
+		if(a == null) {
+			return null;
+		}
+		long result = o == BinaryExpr.Operator.PLUS ? (long) a + c : (long) a * c;
+		if(result < -Instruction.MAX_INT || result > Instruction.MAX_INT) {
+			return null;
+		} else if(o == BinaryExpr.Operator.PLUS ? result == 0 : result == 1) {
+			return b.getLeft();
+		}
+		return new BinaryExpr(b.getLeft(), literal((int) result), o);
+	}
+	
+	// the same result as the code FunctionCompiler generates; null if it can't be computed at compile time
+	private static Long fold(BinaryExpr.Operator o, int x, int y) {
+		switch(o) {
+			case PLUS: return (long) x + y;
+			case MINUS: return (long) x - y;
+			case MULTIPLY: return (long) x * y;
+			case BINARY_AND: return (long) (x & y);
+			case BINARY_OR: return (long) (x | y);
+			case XOR: return (long) (x ^ y);
+			case EQUALS: return x == y ? 1L : 0L;
+			case NOT_EQUALS: return x != y ? 1L : 0L;
+			case LESS: return x < y ? 1L : 0L;
+			case LESS_EQUALS: return x <= y ? 1L : 0L;
+			case GREATER: return x > y ? 1L : 0L;
+			case GREATER_EQUALS: return x >= y ? 1L : 0L;
+			case AND: return x == 0 ? 0L : (long) y;
+			case OR: return x != 0 ? 1L : (long) y;
+			// a negative shift is an error at run time, so leave it to happen there
+			case LEFT_SHIFT: return y < 0 ? null : (long) VirtualMachine.lshift(x, y);
+			case SIGNED_RIGHT_SHIFT: return y < 0 ? null : (long) VirtualMachine.rshift(x, y);
+			default: return null;
+		}
+	}
+	
+	// the largest value the expression can have, or -1 if it isn't known to be non-negative
+	private static int upperBound(Expression e) {
+		Integer c = constantValue(e);
+		if(c != null) {
+			return c >= 0 ? c : -1;
+		} else if(e instanceof EnclosedExpr) {
+			return upperBound(((EnclosedExpr) e).getInner().get());
+		} else if(e instanceof UnaryExpr) {
+			switch(((UnaryExpr) e).getOperator()) {
+				case LOGICAL_COMPLEMENT: return 1;
+				case BITWISE_COMPLEMENT: return Instruction.MAX_INT;
+				default: return -1;
+			}
+		} else if(!(e instanceof BinaryExpr)) {
+			return -1;
+		}
+		BinaryExpr ex = (BinaryExpr) e;
+		int a = upperBound(ex.getLeft()), b = upperBound(ex.getRight());
+		switch(ex.getOperator()) {
+			case EQUALS: case NOT_EQUALS: case LESS: case LESS_EQUALS: case GREATER: case GREATER_EQUALS:
+				return 1;
+			case AND:
+				// 0 or the right-hand value
+				return b;
+			case OR:
+				return b < 0 ? -1 : Math.max(1, b);
+			case LEFT_SHIFT:
+				return Instruction.MAX_INT;
+			case SIGNED_RIGHT_SHIFT:
+				return a;
+			case BINARY_AND:
+				// the result is no larger than either non-negative side
+				return a < 0 ? b : b < 0 ? a : Math.min(a, b);
+			case BINARY_OR:
+			case XOR:
+				if(a < 0 || b < 0) {
+					return -1;
+				}
+				return Math.max(a, b) == 0 ? 0 : (Integer.highestOneBit(Math.max(a, b)) << 1) - 1;
+			default:
+				return -1;
+		}
+	}
+	
+	// whether the expression can be dropped without losing a side effect
+	private static boolean isPure(Expression e) {
+		if(e instanceof EnclosedExpr) {
+			return isPure(((EnclosedExpr) e).getInner().get());
+		} else if(e instanceof BinaryExpr) {
+			return isPure(((BinaryExpr) e).getLeft()) && isPure(((BinaryExpr) e).getRight());
+		} else if(e instanceof UnaryExpr) {
+			return isPure(((UnaryExpr) e).getExpression());
+		} else {
+			return e instanceof IntegerLiteralExpr || e instanceof NameExpr;
+		}
+	}
+	
+	// a literal, or a negated literal
+	static Integer constantValue(Expression e) {
+		if(e instanceof IntegerLiteralExpr) {
+			try {
+				int x = intValue((IntegerLiteralExpr) e);
+				// FunctionCompiler reports literals which are too large
+				return x <= Instruction.MAX_INT ? x : null;
+			} catch(NumberFormatException ex) {
+				return null;
+			}
+		} else if(e instanceof UnaryExpr && ((UnaryExpr) e).getOperator() == UnaryExpr.Operator.MINUS
+				&& ((UnaryExpr) e).getExpression() instanceof IntegerLiteralExpr) {
+			Integer x = constantValue(((UnaryExpr) e).getExpression());
+			return x != null ? -x : null;
+		}
+		return null;
+	}
+	
+	// The literal's value, read as Java does, with underscores and hex, octal and binary literals; throws
+	// NumberFormatException if it is too large. Newer JavaParser versions deprecate asInt() for asNumber(), which
+	// the version this builds against doesn't have, so every literal is read here.
+	@SuppressWarnings("deprecation")
+	static int intValue(IntegerLiteralExpr e) {
+		return e.asInt();
+	}
+	
+	static Expression literal(int x) {
+		IntegerLiteralExpr e = new IntegerLiteralExpr(Integer.toString(Math.abs(x)));
+		return x < 0 ? new UnaryExpr(e, UnaryExpr.Operator.MINUS) : e;
+	}
+}
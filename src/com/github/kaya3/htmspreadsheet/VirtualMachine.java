@@ -0,0 +1,360 @@
+package com.github.kaya3.htmspreadsheet;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static com.github.kaya3.htmspreadsheet.DecodedProgram.*;
+
+public class VirtualMachine {
+	private static final int INITIAL_STACK_SIZE = 64;
+	
+	private final DecodedProgram program;
+	private final Grid output;
+	private Grid input;
+	private final int[] registers = new int[Instruction.REGISTER_COUNT];
+	private int[] stack;
+	private int stackSize;
+	private long steps;
+	
+	public VirtualMachine(DecodedProgram program) {
+		this(program, new Grid());
+	}
+	
+	public VirtualMachine(DecodedProgram program, Grid input) {
+		this.program = program;
+		this.input = input;
+		this.output = new Grid();
+		// a program's verified maximum never needs to grow
+		this.stack = new int[program.getMaxStack() >= 0 ? Math.max(program.getMaxStack(), 1) : INITIAL_STACK_SIZE];
+	}
+	
+	public DecodedProgram getProgram() {
+		return program;
+	}
+	
+	public Grid getInput() {
+		return input;
+	}
+	
+	public Grid getOutput() {
+		return output;
+	}
+	
+	public int getRegister(int r) {
+		return registers[r];
+	}
+	
+	public int getStackSize() {
+		return stackSize;
+	}
+	
+	public int getStackValue(int i) {
+		if(i < 0 || i >= stackSize) {
+			throw new IndexOutOfBoundsException("Stack index " + i + " out of range; stack size is " + stackSize);
+		}
+		return stack[i];
+	}
+	
+	public long getSteps() {
+		return steps;
+	}
+	
+	public boolean isRunning() {
+		int pc = registers[Instruction.PC_REGISTER];
+		return pc >= 0 && pc < program.length();
+	}
+	
+	public void reset() {
+		Arrays.fill(registers, 0);
+		stackSize = 0;
+		steps = 0;
+		output.clear();
+	}
+	
+	// starts again on another input, keeping the stack buffer, so one machine can be reused for many runs
+	public void reset(Grid input) {
+		this.input = input;
+		reset();
+	}
+	
+	public void step() {
+		if(!isRunning()) {
+			throw new IllegalStateException("VM has halted");
+		}
+		run(1);
+	}
+	
+	public long run() {
+		return run(Long.MAX_VALUE);
+	}
+	
+	// executes until the program halts or the step budget runs out, returning the number of steps taken
+	public long run(long maxSteps) {
+		final int[] ops = program.ops(), args1 = program.args1(), args2 = program.args2();
+		final int length = ops.length;
+		final int[] r = registers;
+		int[] s = stack;
+		int sp = stackSize;
+		long n = 0;
+		try {
+			while(n < maxSteps) {
+				int pc = r[Instruction.PC_REGISTER];
+				if(pc < 0 || pc >= length) {
+					break;
+				}
+				r[Instruction.PC_REGISTER] = pc + 1;
+				++n;
+				
+				int x, y;
+				switch(ops[pc]) {
+					case OP_CONST:
+						if(sp == s.length) {
+							s = grow(s);
+						}
+						s[sp++] = args1[pc];
+						break;
+					case OP_PUSH:
+						if(sp == s.length) {
+							s = grow(s);
+						}
+						s[sp++] = r[args1[pc]];
+						break;
+					case OP_POP:
+						r[args1[pc]] = s[--sp];
+						break;
+					case OP_LOAD:
+						r[args1[pc]] = s[checkAddress(r[Instruction.BOS_REGISTER] + r[args2[pc]], sp)];
+						break;
+					case OP_STORE:
+						s[checkAddress(r[Instruction.BOS_REGISTER] + r[args2[pc]], sp)] = r[args1[pc]];
+						break;
+					case OP_COPY:
+						r[args1[pc]] = r[args2[pc]];
+						break;
+					case OP_INPUT:
+						y = s[--sp];
+						x = s[--sp];
+						r[Instruction.IO_REGISTER] = input(input, x, y);
+						break;
+					case OP_OUTPUT:
+						y = s[--sp];
+						x = s[--sp];
+						output(output, x, y, r[Instruction.IO_REGISTER]);
+						break;
+					case OP_JUMPIF:
+						if(s[--sp] == 0) {
+							r[Instruction.PC_REGISTER] = r[args1[pc]];
+						}
+						break;
+					case OP_ADD:
+						y = s[--sp];
+						s[sp-1] += y;
+						break;
+					case OP_MULT:
+						y = s[--sp];
+						s[sp-1] *= y;
+						break;
+					case OP_AND:
+						y = s[--sp];
+						s[sp-1] &= y;
+						break;
+					case OP_OR:
+						y = s[--sp];
+						s[sp-1] |= y;
+						break;
+					case OP_XOR:
+						y = s[--sp];
+						s[sp-1] ^= y;
+						break;
+					case OP_LSHIFT:
+						y = s[--sp];
+						s[sp-1] = lshift(s[sp-1], y);
+						break;
+					case OP_RSHIFT:
+						y = s[--sp];
+						s[sp-1] = rshift(s[sp-1], y);
+						break;
+					case OP_NOT:
+						s[sp-1] = ~s[sp-1] & Instruction.MAX_INT;
+						break;
+					case OP_EQUALS:
+						y = s[--sp];
+						s[sp-1] = s[sp-1] == y ? 1 : 0;
+						break;
+					case OP_LESSTHAN:
+						y = s[--sp];
+						s[sp-1] = s[sp-1] < y ? 1 : 0;
+						break;
+					case OP_JUMP:
+						r[Instruction.PC_REGISTER] = args1[pc];
+						break;
+					case OP_JUMPIFZ:
+						if(s[--sp] == 0) {
+							r[Instruction.PC_REGISTER] = args1[pc];
+						}
+						break;
+					case OP_JUMPIFLT:
+						x = s[sp-2];
+						y = s[sp-1];
+						sp -= 2;
+						if(x < y) {
+							r[Instruction.PC_REGISTER] = args1[pc];
+						}
+						break;
+					case OP_JUMPIFGE:
+						x = s[sp-2];
+						y = s[sp-1];
+						sp -= 2;
+						if(x >= y) {
+							r[Instruction.PC_REGISTER] = args1[pc];
+						}
+						break;
+					case OP_JUMPIFEQ:
+						x = s[sp-2];
+						y = s[sp-1];
+						sp -= 2;
+						if(x == y) {
+							r[Instruction.PC_REGISTER] = args1[pc];
+						}
+						break;
+					case OP_JUMPIFNE:
+						x = s[sp-2];
+						y = s[sp-1];
+						sp -= 2;
+						if(x != y) {
+							r[Instruction.PC_REGISTER] = args1[pc];
+						}
+						break;
+					case OP_SUB:
+						y = s[--sp];
+						s[sp-1] -= y;
+						break;
+					case OP_DUP:
+						x = s[sp-1];
+						if(sp == s.length) {
+							s = grow(s);
+						}
+						s[sp++] = x;
+						break;
+					case OP_CALL:
+						r[Instruction.BOS_REGISTER] += args2[pc];
+						r[Instruction.PC_REGISTER] = args1[pc];
+						break;
+					case OP_RET:
+						x = s[sp-2];
+						r[Instruction.BOS_REGISTER] = s[sp-1];
+						r[Instruction.PC_REGISTER] = x;
+						sp -= 2;
+						break;
+					default:
+						throw new IllegalStateException("Invalid opcode " + ops[pc] + " at position " + pc);
+				}
+			}
+		} catch(ArrayIndexOutOfBoundsException e) {
+			// registers and addresses are checked, so only popping an empty stack can get here
+			throw new IllegalStateException("Stack underflow at position " + (r[Instruction.PC_REGISTER] - 1), e);
+		} finally {
+			stack = s;
+			stackSize = sp;
+			steps += n;
+		}
+		return n;
+	}
+	
+	// used by translated programs, which keep the machine state in locals between syncs
+	int[] registers() {
+		return registers;
+	}
+	
+	int[] stackArray() {
+		return stack;
+	}
+	
+	void syncState(int[] stack, int stackSize, long steps) {
+		this.stack = stack;
+		this.stackSize = stackSize;
+		this.steps = steps;
+	}
+	
+	static int input(Grid input, int x, int y) {
+		return Grid.inRange(x, y) ? input.get(x, y) : 0;
+	}
+	
+	static void output(Grid output, int x, int y, int value) {
+		if(Grid.inRange(x, y)) {
+			output.set(x, y, value);
+		}
+	}
+	
+	static int[] grow(int[] s) {
+		return Arrays.copyOf(s, 2 * s.length);
+	}
+	
+	static int checkAddress(int address, int stackSize) {
+		if(address < 0 || address >= stackSize) {
+			throw new IllegalStateException("Stack address " + address + " out of range; stack size is " + stackSize);
+		}
+		return address;
+	}
+	
+	// shifts are defined on unbounded ints in vm.py, so large shift amounts must not wrap around as in Java
+	static int lshift(int x, int y) {
+		checkShift(y);
+		return y >= 16 ? 0 : (x << y) & Instruction.MAX_INT;
+	}
+	
+	static int rshift(int x, int y) {
+		checkShift(y);
+		return x >> Math.min(y, 31);
+	}
+	
+	private static void checkShift(int y) {
+		if(y < 0) {
+			throw new IllegalStateException("Negative shift count " + y);
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		boolean translate = args.length > 0 && args[0].equals("--translate");
+		if(translate) {
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		
+		DecodedProgram program;
+		if(args.length == 1 && args[0].endsWith(BinaryProgram.EXTENSION)) {
+			program = BinaryProgram.load(Paths.get(args[0])).getProgram();
+		} else {
+			program = DecodedProgram.parse(new StringReader(readSource(args)));
+		}
+		
+		VirtualMachine vm = new VirtualMachine(program);
+		if(translate) {
+			ProgramTranslator.translate(program).run(vm);
+		} else {
+			vm.run();
+		}
+		System.out.print(vm.getOutput());
+	}
+	
+	private static String readSource(String[] args) throws IOException {
+		StringBuilder src = new StringBuilder();
+		if(args.length == 0) {
+			Reader in = new InputStreamReader(System.in, StandardCharsets.UTF_8);
+			char[] buf = new char[8192];
+			int n;
+			while((n = in.read(buf)) > 0) {
+				src.append(buf, 0, n);
+			}
+		}
+		for(String filename : args) {
+			src.append(new String(Files.readAllBytes(Paths.get(filename)), StandardCharsets.UTF_8)).append('\n');
+		}
+		return src.toString();
+	}
+}
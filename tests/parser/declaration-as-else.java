@@ -0,0 +1,9 @@
+// REJECT 7 7
+// a declaration isn't a statement on its own, so it can't be a branch without braces
+void main() {
+	int x = input(0, 0);
+	int a = 0;
+	if(x) a = 1;
+	else int v = 0;
+	output(0, 0, a);
+}
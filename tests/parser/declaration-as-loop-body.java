@@ -0,0 +1,7 @@
+// REJECT 5 15
+// a declaration isn't a statement on its own, so it can't be a loop body without braces
+void main() {
+	int i = 0;
+	while(i < 3) int v = i;
+	output(0, 0, i);
+}
@@ -0,0 +1,7 @@
+// REJECT 5 8
+// a declaration isn't a statement on its own, so it can't be a branch without braces
+void main() {
+	int x = input(0, 0);
+	if(x) int v = 1;
+	output(0, 0, x);
+}